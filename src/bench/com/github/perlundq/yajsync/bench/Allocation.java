@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.bench;
+
+import java.lang.management.ManagementFactory;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Number of megabytes allocated by the benchmark thread per gigabyte
+ * transferred, measured between begin() and end(numBytes).
+ *
+ * NOTE: requires a HotSpot compatible JVM (com.sun.management), reports -1
+ * otherwise. Allocations made by other threads are not included.
+ */
+@AuxCounters(AuxCounters.Type.EVENTS)
+@State(Scope.Thread)
+public class Allocation
+{
+    private static final double MEGABYTE = 1024 * 1024;
+    private static final double GIGABYTE = 1024 * MEGABYTE;
+
+    public double allocatedMegabytesPerGigabyte;
+
+    private com.sun.management.ThreadMXBean _threadBean;
+    private long _startBytes;
+    private long _allocatedBytes;
+    private long _transferredBytes;
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        java.lang.management.ThreadMXBean threadBean =
+            ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            _threadBean = (com.sun.management.ThreadMXBean) threadBean;
+        }
+        allocatedMegabytesPerGigabyte = 0;
+        _allocatedBytes = 0;
+        _transferredBytes = 0;
+    }
+
+    private long allocatedBytes()
+    {
+        if (_threadBean == null) {
+            return -1;
+        }
+        return _threadBean.getThreadAllocatedBytes(
+            Thread.currentThread().getId());
+    }
+
+    public void begin()
+    {
+        _startBytes = allocatedBytes();
+    }
+
+    public void end(long numBytesTransferred)
+    {
+        if (_threadBean == null) {
+            allocatedMegabytesPerGigabyte = -1;
+            return;
+        }
+        _allocatedBytes += allocatedBytes() - _startBytes;
+        _transferredBytes += numBytesTransferred;
+        allocatedMegabytesPerGigabyte =
+            _allocatedBytes / MEGABYTE / (_transferredBytes / GIGABYTE);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Synthetic source and basis (i.e. the receiver's old version) file pairs.
+ */
+public enum FilePair
+{
+    /** basis is identical to source */
+    IDENTICAL,
+    /** source is basis with 1/16 of its size appended */
+    APPENDED,
+    /** source is basis with a non block aligned prefix inserted */
+    PREFIX_INSERTED,
+    /** basis is source with on average 4 small random overwrites per MB */
+    MUTATED,
+    /** basis and source are unrelated */
+    RANDOM;
+
+    private static final int BUF_SIZE = 64 * 1024;
+    private static final int PREFIX_SIZE = 1001;
+    private static final int MAX_MUTATION_SIZE = 64;
+
+    /**
+     * Write a source file of sourceSize bytes and a basis file related to it
+     * as defined by this pair type. Content is deterministic for the same
+     * seed.
+     */
+    public void write(Path source, Path basis, long sourceSize, long seed)
+        throws IOException
+    {
+        Random random = new Random(seed);
+        Random unrelated = new Random(~seed);
+        byte[] buf = new byte[BUF_SIZE];
+        byte[] basisBuf = new byte[BUF_SIZE];
+        long basisSize = this == APPENDED ? sourceSize - sourceSize / 16
+                                          : sourceSize;
+
+        try (OutputStream sourceOut = Files.newOutputStream(source);
+             OutputStream basisOut = Files.newOutputStream(basis)) {
+            long offset = 0;
+            if (this == PREFIX_INSERTED) {
+                int length = (int) Math.min(PREFIX_SIZE, sourceSize);
+                random.nextBytes(buf);
+                sourceOut.write(buf, 0, length);
+                offset += length;
+                basisSize -= length;
+            }
+            long basisOffset = 0;
+            while (offset < sourceSize) {
+                int length = (int) Math.min(BUF_SIZE, sourceSize - offset);
+                random.nextBytes(buf);
+                sourceOut.write(buf, 0, length);
+                offset += length;
+
+                int basisLength = (int) Math.min(length,
+                                                 basisSize - basisOffset);
+                if (this == RANDOM) {
+                    unrelated.nextBytes(basisBuf);
+                } else {
+                    System.arraycopy(buf, 0, basisBuf, 0, length);
+                }
+                if (this == MUTATED && random.nextInt(4) == 0) {
+                    int mutationOffset = random.nextInt(BUF_SIZE -
+                                                        MAX_MUTATION_SIZE);
+                    int mutationLength = 1 + random.nextInt(MAX_MUTATION_SIZE);
+                    for (int i = 0; i < mutationLength; i++) {
+                        basisBuf[mutationOffset + i] ^= 1 + random.nextInt(255);
+                    }
+                }
+                basisOut.write(basisBuf, 0, basisLength);
+                basisOffset += basisLength;
+            }
+        }
+    }
+
+    /**
+     * Write a source file and a basis file where (100 - similarity) percent
+     * of every 64 KB region of source is replaced with random data.
+     */
+    public static void writeSimilar(Path source, Path basis, long size,
+                                    int similarity, long seed)
+        throws IOException
+    {
+        assert similarity >= 0 && similarity <= 100;
+        Random random = new Random(seed);
+        byte[] buf = new byte[BUF_SIZE];
+        try (OutputStream sourceOut = Files.newOutputStream(source);
+             OutputStream basisOut = Files.newOutputStream(basis)) {
+            for (long i = 0; i < size; i += buf.length) {
+                int length = (int) Math.min(buf.length, size - i);
+                random.nextBytes(buf);
+                sourceOut.write(buf, 0, length);
+                int numMutated = length * (100 - similarity) / 100;
+                for (int j = 0; j < numMutated; j++) {
+                    buf[j] = (byte) random.nextInt();
+                }
+                basisOut.write(buf, 0, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A WritableByteChannel which discards all data written to it.
+ */
+public class NullChannel implements WritableByteChannel
+{
+    @Override
+    public boolean isOpen()
+    {
+        return true;
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public int write(ByteBuffer src)
+    {
+        int length = src.remaining();
+        src.position(src.limit());
+        return length;
+    }
+}
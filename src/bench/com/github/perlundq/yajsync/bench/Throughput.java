@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Number of megabytes (2^20 bytes) processed, reported by JMH per time unit
+ * (i.e. MB/s with @OutputTimeUnit(TimeUnit.SECONDS)). Only meaningful with
+ * Mode.Throughput.
+ */
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+@State(Scope.Thread)
+public class Throughput
+{
+    private static final double MEGABYTE = 1024 * 1024;
+
+    public double megabytes;
+
+    public void add(long numBytes)
+    {
+        megabytes += numBytes / MEGABYTE;
+    }
+}
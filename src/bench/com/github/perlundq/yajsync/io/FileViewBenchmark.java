@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.perlundq.yajsync.bench.Allocation;
+import com.github.perlundq.yajsync.bench.FilePair;
+import com.github.perlundq.yajsync.bench.Throughput;
+
+/**
+ * Sequential scan of a file with a FileView, sliding either one full window
+ * at a time (as done by Generator and for new files by Sender) or one byte
+ * at a time (worst case for Sender), using either a BufferedFileView or a
+ * MappedFileView.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileViewBenchmark
+{
+    @Param({ "268435456" })
+    public long fileSize;
+
+    @Param({ "8192" })
+    public int windowLength;
+
+    @Param({ "buffered", "mapped" })
+    public String view;
+
+    private Path _tempDir;
+    private Path _file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        _tempDir = Files.createTempDirectory("yajsync-bench");
+        _file = _tempDir.resolve("file");
+        Path unused = _tempDir.resolve("unused");
+        FilePair.RANDOM.write(_file, unused, fileSize, fileSize);
+        Files.delete(unused);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(_file);
+        Files.deleteIfExists(_tempDir);
+    }
+
+    private FileView open(int bufferSize) throws FileViewOpenFailed
+    {
+        if (view.equals("mapped")) {
+            return new MappedFileView(_file, fileSize, windowLength,
+                                      bufferSize);
+        }
+        return new BufferedFileView(_file, fileSize, windowLength, bufferSize);
+    }
+
+    @Benchmark
+    public int slideWindow(Throughput throughput, Allocation allocation)
+        throws FileViewReadError
+    {
+        int sum = 0;
+        allocation.begin();
+        try (FileView fv = open(windowLength)) {
+            while (fv.windowLength() > 0) {
+                sum += fv.valueAt(fv.startOffset());
+                fv.slide(fv.windowLength());
+            }
+        }
+        allocation.end(fileSize);
+        throughput.add(fileSize);
+        return sum;
+    }
+
+    @Benchmark
+    public int slideByte(Throughput throughput, Allocation allocation)
+        throws FileViewReadError
+    {
+        int sum = 0;
+        allocation.begin();
+        try (FileView fv = open(windowLength * 10)) {
+            fv.setMarkRelativeToStart(0);
+            while (fv.windowLength() > 0) {
+                sum += fv.valueAt(fv.startOffset());
+                if (fv.isFull()) {
+                    fv.setMarkRelativeToStart(0);
+                }
+                fv.slide(1);
+            }
+        }
+        allocation.end(fileSize);
+        throughput.add(fileSize);
+        return sum;
+    }
+}
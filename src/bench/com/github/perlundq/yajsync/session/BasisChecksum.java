@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.nio.file.Path;
+import java.security.MessageDigest;
+
+import com.github.perlundq.yajsync.io.BufferedFileView;
+import com.github.perlundq.yajsync.util.MD5;
+import com.github.perlundq.yajsync.util.Rolling;
+
+/**
+ * Checksums of a basis file, computed the same way as
+ * Generator.sendItemizeAndChecksums but without any channel I/O.
+ */
+final class BasisChecksum
+{
+    private static final int MIN_BLOCK_SIZE = 512;
+    private static final int DIGEST_LENGTH = 2;
+
+    private BasisChecksum() {}
+
+    // same as Generator, i.e. the power of 2 closest to the square root of
+    // file size
+    static int blockLengthFor(long fileSize)
+    {
+        int blockLength = Integer.highestOneBit((int) Math.sqrt(fileSize));
+        return Math.max(MIN_BLOCK_SIZE, blockLength);
+    }
+
+    static Checksum of(Path basis, long fileSize, byte[] checksumSeed)
+        throws Exception
+    {
+        int blockLength = blockLengthFor(fileSize);
+        Checksum checksum = new Checksum(new Checksum.Header(blockLength,
+                                                             DIGEST_LENGTH,
+                                                             fileSize));
+        MessageDigest md = MD5.newInstance();
+        try (BufferedFileView fv = new BufferedFileView(basis, fileSize,
+                                                        blockLength,
+                                                        blockLength)) {
+            while (fv.windowLength() > 0) {
+                int rolling = Rolling.compute(fv.array(),
+                                              fv.startOffset(),
+                                              fv.windowLength());
+                md.update(fv.array(), fv.startOffset(), fv.windowLength());
+                md.update(checksumSeed);
+                checksum.addChunkInformation(rolling, md.digest());
+                fv.slide(fv.windowLength());
+            }
+        }
+        return checksum;
+    }
+}
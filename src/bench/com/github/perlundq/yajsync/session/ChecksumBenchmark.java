@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Candidate lookup in Checksum for rolling checksums which are present
+ * (hit) respectively absent (miss), score is lookups per microsecond.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBenchmark
+{
+    private static final int NUM_LOOKUPS = 1024;
+    private static final int BLOCK_LENGTH = 512;
+
+    @Param({ "1024", "65536", "1048576" })
+    public int chunkCount;
+
+    private Checksum _checksum;
+    private final int[] _hits = new int[NUM_LOOKUPS];
+    private final int[] _misses = new int[NUM_LOOKUPS];
+
+    @Setup
+    public void setup() throws Checksum.ChunkOverflow
+    {
+        Random random = new Random(chunkCount);
+        int[] rollings = new int[chunkCount];
+        _checksum = new Checksum(new Checksum.Header(
+                                     BLOCK_LENGTH, Checksum.MIN_DIGEST_LENGTH,
+                                     (long) chunkCount * BLOCK_LENGTH));
+        byte[] digest = new byte[Checksum.MIN_DIGEST_LENGTH];
+        for (int i = 0; i < chunkCount; i++) {
+            rollings[i] = random.nextInt();
+            random.nextBytes(digest);
+            _checksum.addChunkInformation(rollings[i], digest);
+        }
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            _hits[i] = rollings[random.nextInt(chunkCount)];
+            _misses[i] = random.nextInt();
+        }
+        _checksum.firstCandidate(0, BLOCK_LENGTH, 0); // builds the index
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_LOOKUPS)
+    public int hit()
+    {
+        int sum = 0;
+        for (int rolling : _hits) {
+            sum += _checksum.firstCandidate(rolling, BLOCK_LENGTH, -1);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_LOOKUPS)
+    public int miss()
+    {
+        int sum = 0;
+        for (int rolling : _misses) {
+            sum += _checksum.firstCandidate(rolling, BLOCK_LENGTH, -1);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.perlundq.yajsync.bench.Allocation;
+import com.github.perlundq.yajsync.bench.FilePair;
+import com.github.perlundq.yajsync.bench.NullChannel;
+import com.github.perlundq.yajsync.bench.Throughput;
+import com.github.perlundq.yajsync.io.FileView;
+import com.github.perlundq.yajsync.util.MD5;
+
+/**
+ * Sender (Sender.sendMatchesAndData) and Receiver
+ * (Receiver.combineDataToFile) throughput in MB/s of source file size for
+ * each type of synthetic file pair. The receiver reads a token stream
+ * recorded from the sender during setup.
+ *
+ * Secondary results: megabytes (MB/s) and allocatedMegabytesPerGigabyte
+ * (heap allocated by the benchmark thread per transferred GB).
+ *
+ * ant bench -Dbench.args="DeltaBenchmark -p fileSize=1073741824"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeltaBenchmark
+{
+    @Param({ "268435456" })
+    public long fileSize;
+
+    @Param({ "IDENTICAL", "APPENDED", "PREFIX_INSERTED", "MUTATED", "RANDOM" })
+    public FilePair pair;
+
+    private final byte[] _checksumSeed = { 1, 2, 3, 4 };
+    private final Charset _charset = Charset.forName("UTF-8");
+    private Path _tempDir;
+    private Path _source;
+    private Path _basis;
+    private Path _tokens;
+    private Path _target;
+    private Checksum _checksum;
+
+    private Sender newSender(WritableByteChannel out)
+    {
+        return new Sender(Channels.newChannel(
+                              new ByteArrayInputStream(new byte[0])),
+                          out,
+                          Collections.<Path>emptyList(),
+                          _charset,
+                          _checksumSeed);
+    }
+
+    private byte[] send(Sender sender) throws Exception
+    {
+        int blockLength = _checksum.header().blockLength();
+        try (FileView fv = FileView.open(_source, fileSize, blockLength,
+                                         blockLength * 10)) {
+            return sender.sendMatchesAndData(fv, _checksum, fileSize);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        _tempDir = Files.createTempDirectory("yajsync-bench");
+        _source = _tempDir.resolve("source");
+        _basis = _tempDir.resolve("basis");
+        _tokens = _tempDir.resolve("tokens");
+        _target = _tempDir.resolve("target");
+        pair.write(_source, _basis, fileSize, fileSize);
+        _checksum = BasisChecksum.of(_basis, Files.size(_basis),
+                                     _checksumSeed);
+
+        try (FileChannel out = FileChannel.open(_tokens,
+                                                StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE)) {
+            Sender sender = newSender(out);
+            send(sender);
+            sender.closeChannel();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        for (Path path : new Path[] { _source, _basis, _tokens, _target }) {
+            Files.deleteIfExists(path);
+        }
+        Files.deleteIfExists(_tempDir);
+    }
+
+    @Benchmark
+    public byte[] sender(Throughput throughput, Allocation allocation)
+        throws Exception
+    {
+        allocation.begin();
+        byte[] result = send(newSender(new NullChannel()));
+        allocation.end(fileSize);
+        throughput.add(fileSize);
+        return result;
+    }
+
+    @Benchmark
+    public boolean receiver(Throughput throughput, Allocation allocation)
+        throws Exception
+    {
+        allocation.begin();
+        boolean isIntact;
+        try (FileChannel in = FileChannel.open(_tokens);
+             FileChannel replica = FileChannel.open(_basis);
+             FileChannel out = FileChannel.open(
+                                   _target,
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING)) {
+            Receiver receiver = new Receiver(null, in, _charset, "/");
+            MessageDigest md = MD5.newInstance();
+            isIntact = receiver.combineDataToFile(replica, out,
+                                                  _checksum.header(), md);
+            md.digest();
+        }
+        allocation.end(fileSize);
+        throughput.add(fileSize);
+        return isIntact;
+    }
+}
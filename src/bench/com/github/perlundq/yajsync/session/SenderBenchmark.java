@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.perlundq.yajsync.bench.FilePair;
+import com.github.perlundq.yajsync.bench.NullChannel;
+import com.github.perlundq.yajsync.io.FileView;
+
+/**
+ * Sender match search (Sender.sendMatchesAndData) of a source file against
+ * the checksums of a basis file which has the given percentage of blocks in
+ * common with the source file. Output is discarded.
+ *
+ * ant bench -Dbench.args="SenderBenchmark -p fileSize=104857600"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SenderBenchmark
+{
+    @Param({ "1073741824" })
+    public long fileSize;
+
+    @Param({ "0", "50", "99" })
+    public int similarity;
+
+    private final byte[] _checksumSeed = { 1, 2, 3, 4 };
+    private Path _tempDir;
+    private Path _source;
+    private Checksum _checksum;
+    private Sender _sender;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        _tempDir = Files.createTempDirectory("yajsync-bench");
+        _source = _tempDir.resolve("source");
+        Path basis = _tempDir.resolve("basis");
+        FilePair.writeSimilar(_source, basis, fileSize, similarity, fileSize);
+        _checksum = BasisChecksum.of(basis, fileSize, _checksumSeed);
+        Files.delete(basis);
+        _sender = new Sender(Channels.newChannel(
+                                 new ByteArrayInputStream(new byte[0])),
+                             new NullChannel(),
+                             Collections.<Path>emptyList(),
+                             Charset.forName("UTF-8"),
+                             _checksumSeed);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(_source);
+        Files.deleteIfExists(_tempDir);
+    }
+
+    @Benchmark
+    public byte[] sendMatchesAndData() throws Exception
+    {
+        int blockLength = _checksum.header().blockLength();
+        try (FileView fv = FileView.open(_source, fileSize, blockLength,
+                                         blockLength * 10)) {
+            return _sender.sendMatchesAndData(fv, _checksum, fileSize);
+        }
+    }
+}
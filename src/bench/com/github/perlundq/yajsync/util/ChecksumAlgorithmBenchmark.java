@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Strong checksum over a 1 MB buffer, i.e. the score is in MB/s.
+ *
+ * blocks - one seeded digest per block (as done by Generator and Sender)
+ * file   - one digest of the whole buffer (as done for file checksums)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumAlgorithmBenchmark
+{
+    private static final int BUF_SIZE = 1024 * 1024;
+
+    @Param({ "md5", "xxh64", "xxh128" })
+    public String algorithm;
+
+    @Param({ "1024", "32768" })
+    public int blockLength;
+
+    private final byte[] _buf = new byte[BUF_SIZE];
+    private final byte[] _seed = { 1, 2, 3, 4 };
+    private MessageDigest _md;
+    private byte[] _digest;
+
+    @Setup
+    public void setup()
+    {
+        new Random(0).nextBytes(_buf);
+        _md = ChecksumAlgorithm.fromNameOrNull(algorithm).newInstance();
+        _digest = new byte[_md.getDigestLength()];
+    }
+
+    @Benchmark
+    public byte[] blocks()
+    {
+        for (int offset = 0; offset < BUF_SIZE; offset += blockLength) {
+            _md.update(_buf, offset, Math.min(blockLength, BUF_SIZE - offset));
+            _md.update(_seed);
+            MD5.digestInto(_md, _digest);
+        }
+        return _digest;
+    }
+
+    @Benchmark
+    public byte[] file()
+    {
+        for (int offset = 0; offset < BUF_SIZE; offset += blockLength) {
+            _md.update(_buf, offset, Math.min(blockLength, BUF_SIZE - offset));
+        }
+        MD5.digestInto(_md, _digest);
+        return _digest;
+    }
+}
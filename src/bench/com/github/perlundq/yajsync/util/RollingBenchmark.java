@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rolling checksum over a 1 MB buffer, i.e. the score is in MB/s.
+ *
+ * compute - block wise computation, one call per block
+ * blocks  - block wise computation, one call for all blocks (as done by
+ *           Generator)
+ * roll    - per byte update of one block length window (as done by Sender)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RollingBenchmark
+{
+    private static final int BUF_SIZE = 1024 * 1024;
+
+    @Param({ "512", "8192", "131072" })
+    public int blockLength;
+
+    private final byte[] _buf = new byte[BUF_SIZE];
+    private int[] _result;
+
+    @Setup
+    public void setup()
+    {
+        new Random(0).nextBytes(_buf);
+        _result = new int[Rolling.numBlocks(BUF_SIZE, blockLength)];
+    }
+
+    @Benchmark
+    public int compute()
+    {
+        int sum = 0;
+        for (int offset = 0; offset < BUF_SIZE; offset += blockLength) {
+            sum += Rolling.compute(_buf, offset,
+                                   Math.min(blockLength, BUF_SIZE - offset));
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int[] blocks()
+    {
+        Rolling.computeBlocks(_buf, 0, BUF_SIZE, blockLength, _result);
+        return _result;
+    }
+
+    @Benchmark
+    public int roll()
+    {
+        int rolling = Rolling.compute(_buf, 0, blockLength);
+        for (int offset = 0; offset < BUF_SIZE - blockLength; offset++) {
+            rolling = Rolling.subtract(rolling, blockLength, _buf[offset]);
+            rolling = Rolling.add(rolling, _buf[offset + blockLength]);
+        }
+        return rolling;
+    }
+}
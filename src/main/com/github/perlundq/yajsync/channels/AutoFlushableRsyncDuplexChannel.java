@@ -18,6 +18,8 @@
  */
 package com.github.perlundq.yajsync.channels;
 
+import java.nio.ByteBuffer;
+
 public class AutoFlushableRsyncDuplexChannel extends AutoFlushableDuplexChannel
                                              implements Taggable, IndexDecoder,
                                                         IndexEncoder
@@ -33,6 +35,12 @@ public class AutoFlushableRsyncDuplexChannel extends AutoFlushableDuplexChannel
         _outChannel = outChannel;
     }
 
+    public void setBufferAllocator(BufferAllocator allocator)
+    {
+        _inChannel.setBufferAllocator(allocator);
+        _outChannel.setBufferAllocator(allocator);
+    }
+
     @Override
     public void flush() throws ChannelException
     {
@@ -47,6 +55,11 @@ public class AutoFlushableRsyncDuplexChannel extends AutoFlushableDuplexChannel
         _outChannel.putMessage(message);
     }
 
+    public void putIntAndData(int i, ByteBuffer data) throws ChannelException
+    {
+        _outChannel.putIntAndData(i, data);
+    }
+
     @Override
     public void encodeIndex(int index) throws ChannelException
     {
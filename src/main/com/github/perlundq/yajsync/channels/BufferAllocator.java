@@ -0,0 +1,111 @@
+/*
+ * Allocation of the channel buffers of a session
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.perlundq.yajsync.util.Environment;
+
+/**
+ * Allocates the channel buffers of a single session according to a
+ * BufferSizing and keeps track of their total size. Thread safe, the
+ * channels of a session are used by different threads.
+ *
+ * A buffer grows once its channel transfers enough data per second to
+ * fill a larger one within a millisecond - but never beyond the current
+ * size of the socket buffer (SO_SNDBUF or SO_RCVBUF) of its channel, as
+ * there is little to gain from handing over more data to the kernel at
+ * once than it is able to queue.
+ */
+public class BufferAllocator
+{
+    private final BufferSizing _sizing;
+    private final AtomicLong _numBytesAllocated = new AtomicLong();
+
+    public BufferAllocator(BufferSizing sizing)
+    {
+        assert sizing != null;
+        _sizing = sizing;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (%s, allocated=%d)",
+                             getClass().getSimpleName(), _sizing,
+                             _numBytesAllocated.get());
+    }
+
+    public BufferSizing sizing()
+    {
+        return _sizing;
+    }
+
+    /**
+     * @return the total size of all buffers currently in use
+     */
+    public long numBytesAllocated()
+    {
+        return _numBytesAllocated.get();
+    }
+
+    static ByteBuffer allocate(int size)
+    {
+        ByteBuffer buf = Environment.isAllocateDirect()
+                             ? ByteBuffer.allocateDirect(size)
+                             : ByteBuffer.allocate(size);
+        return buf.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Accounts for an initial buffer of size bytes, regardless of the
+     * session limit.
+     */
+    void reserve(int size)
+    {
+        _numBytesAllocated.addAndGet(size);
+    }
+
+    /**
+     * @return a new empty buffer replacing one of currentSize bytes, at
+     *         most wantedSize bytes large but limited by both maxSize and
+     *         maxSessionSize - or null if it would not be larger than
+     *         currentSize
+     */
+    ByteBuffer largerOrNull(int currentSize, long wantedSize)
+    {
+        while (true) {
+            long numBytesAllocated = _numBytesAllocated.get();
+            long available = _sizing.maxSessionSize() - numBytesAllocated +
+                             currentSize;
+            int size = (int) Math.min(Math.min(wantedSize, available),
+                                      _sizing.maxSize());
+            if (size <= currentSize) {
+                return null;
+            }
+            if (_numBytesAllocated.compareAndSet(numBytesAllocated,
+                                                 numBytesAllocated -
+                                                 currentSize + size)) {
+                return allocate(size);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Throughput based growth of a channel buffer
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.NetworkChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.channels.net.SSLChannel;
+import com.github.perlundq.yajsync.channels.net.StandardSocketChannel;
+
+/**
+ * Samples the throughput of a single channel and decides when its buffer
+ * should grow, see BufferAllocator. Not thread safe.
+ */
+class BufferGrowth
+{
+    private static final Logger _log =
+        Logger.getLogger(BufferGrowth.class.getName());
+    private static final long SAMPLE_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private final BufferAllocator _allocator;
+    private final NetworkChannel _socket; // null if not a socket
+    private final SocketOption<Integer> _socketBufferOption;
+    private long _sampleStartNanos;
+    private long _sampleStartNumBytes;
+
+    BufferGrowth(BufferAllocator allocator, Channel channel,
+                 SocketOption<Integer> socketBufferOption)
+    {
+        _allocator = allocator;
+        _socket = networkChannelOrNull(channel);
+        _socketBufferOption = socketBufferOption;
+        _sampleStartNanos = System.nanoTime();
+    }
+
+    private static NetworkChannel networkChannelOrNull(Channel channel)
+    {
+        if (channel instanceof StandardSocketChannel) {
+            return ((StandardSocketChannel) channel).socketChannel();
+        } else if (channel instanceof SSLChannel) {
+            return ((SSLChannel) channel).socketChannel();
+        } else if (channel instanceof NetworkChannel) {
+            return (NetworkChannel) channel;
+        }
+        return null;
+    }
+
+    /**
+     * @param numBytesTransferred the total number of bytes transferred via
+     *        a buffer of currentSize bytes so far
+     * @return a new empty buffer to use instead, or null if the current one
+     *         should be kept
+     */
+    ByteBuffer largerOrNull(int currentSize, long numBytesTransferred)
+    {
+        if (!_allocator.sizing().isAdaptive()) {
+            return null;
+        }
+        long now = System.nanoTime();
+        long elapsed = now - _sampleStartNanos;
+        if (elapsed < SAMPLE_NANOS) {
+            return null;
+        }
+        long numBytes = numBytesTransferred - _sampleStartNumBytes;
+        _sampleStartNanos = now;
+        _sampleStartNumBytes = numBytesTransferred;
+
+        long wantedSize = numBytes * TARGET_NANOS / elapsed;
+        if (wantedSize <= currentSize) {
+            return null;
+        }
+        // grow gradually, the throughput may increase with the buffer size
+        wantedSize = Math.min(wantedSize, 2L * currentSize);
+        if (_socket != null) {
+            try {
+                wantedSize = Math.min(wantedSize,
+                                      _socket.getOption(_socketBufferOption));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        ByteBuffer buf = _allocator.largerOrNull(currentSize, wantedSize);
+        if (buf != null && _log.isLoggable(Level.FINE)) {
+            _log.fine(String.format("growing buffer of %s from %d to %d " +
+                                    "bytes (%d bytes/s), %s", _socket,
+                                    currentSize, buf.capacity(),
+                                    numBytes * TimeUnit.SECONDS.toNanos(1) /
+                                    elapsed, _allocator));
+        }
+        return buf;
+    }
+}
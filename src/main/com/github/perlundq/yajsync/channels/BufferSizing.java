@@ -0,0 +1,105 @@
+/*
+ * Buffer sizes of the channels of a session
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+/**
+ * Each channel buffer of a session starts out with size bytes. If maxSize
+ * is larger it grows with the throughput of its channel (see
+ * BufferAllocator) up to maxSize bytes, but the buffers of a session never
+ * grow beyond maxSessionSize bytes in total.
+ *
+ * Immutable, a single instance may be shared by several concurrent
+ * sessions.
+ */
+public class BufferSizing
+{
+    // large enough for any single message or value read at once
+    public static final int MIN_SIZE = 8 * 1024;
+    // an output buffer may be sent as a single multiplexed message, whose
+    // length is limited to 24 bits
+    public static final int MAX_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_MAX_SESSION_SIZE = 16 * 1024 * 1024;
+    public static final BufferSizing DEFAULT =
+        new BufferSizing(DEFAULT_SIZE, DEFAULT_MAX_SIZE,
+                         DEFAULT_MAX_SESSION_SIZE);
+
+    private final int _size;
+    private final int _maxSize;
+    private final long _maxSessionSize;
+
+    /**
+     * A maxSize less than size means that buffers never grow. The initial
+     * buffers are always allocated, even if they exceed maxSessionSize.
+     *
+     * @throws IllegalArgumentException if size or maxSize is less than
+     *         MIN_SIZE or larger than MAX_SIZE, or if maxSessionSize is
+     *         negative
+     */
+    public BufferSizing(int size, int maxSize, long maxSessionSize)
+    {
+        checkSize(size);
+        checkSize(maxSize);
+        if (maxSessionSize < 0) {
+            throw new IllegalArgumentException(String.format(
+                "invalid max session buffer size %d", maxSessionSize));
+        }
+        _size = size;
+        _maxSize = Math.max(size, maxSize);
+        _maxSessionSize = maxSessionSize;
+    }
+
+    private static void checkSize(int size)
+    {
+        if (size < MIN_SIZE || size > MAX_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                "buffer size %d is not within %d and %d", size, MIN_SIZE,
+                MAX_SIZE));
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (size=%d, maxSize=%d, maxSessionSize=%d)",
+                             getClass().getSimpleName(), _size, _maxSize,
+                             _maxSessionSize);
+    }
+
+    public int size()
+    {
+        return _size;
+    }
+
+    public int maxSize()
+    {
+        return _maxSize;
+    }
+
+    public long maxSessionSize()
+    {
+        return _maxSessionSize;
+    }
+
+    public boolean isAdaptive()
+    {
+        return _maxSize > _size;
+    }
+}
@@ -20,9 +20,11 @@
 package com.github.perlundq.yajsync.channels;
 
 import java.io.IOException;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
 
 import com.github.perlundq.yajsync.util.Consts;
@@ -32,10 +34,12 @@ import com.github.perlundq.yajsync.util.Util;
 
 public class BufferedOutputChannel implements Bufferable
 {
-    private static final int DEFAULT_BUF_SIZE = 8 * 1024;
+    private static final int DEFAULT_BUF_SIZE = BufferSizing.DEFAULT_SIZE;
     private final WritableByteChannel _sinkChannel;
-    protected final ByteBuffer _buffer;
+    protected ByteBuffer _buffer;   // may be replaced by a larger one
+    private BufferGrowth _growth;   // null unless given an allocator
     private long _numBytesWritten;
+    private long _numBytesFlushed;
 
     public BufferedOutputChannel(WritableByteChannel sock)
     {
@@ -53,6 +57,46 @@ public class BufferedOutputChannel implements Bufferable
         _buffer.order(ByteOrder.LITTLE_ENDIAN);
     }
 
+    /**
+     * Lets allocator decide the size of the buffer from now on, i.e. it
+     * gets the initial size of allocator and grows with the throughput of
+     * this channel. Any buffered data is kept.
+     */
+    public void setBufferAllocator(BufferAllocator allocator)
+    {
+        setBufferAllocator(allocator,
+                           new BufferGrowth(allocator, _sinkChannel,
+                                            StandardSocketOptions.SO_SNDBUF));
+    }
+
+    // growth decides when the buffer grows, given for testing
+    void setBufferAllocator(BufferAllocator allocator, BufferGrowth growth)
+    {
+        int size = allocator.sizing().size();
+        if (size != _buffer.capacity()) {
+            replaceBuffer(BufferAllocator.allocate(size));
+        }
+        allocator.reserve(size);
+        _growth = growth;
+    }
+
+    /**
+     * @return the current size of the buffer
+     */
+    public int bufferSize()
+    {
+        return _buffer.capacity();
+    }
+
+    // keeps the position of the buffer and all data before it
+    private void replaceBuffer(ByteBuffer buf)
+    {
+        assert buf.capacity() >= _buffer.position();
+        _buffer.flip();
+        buf.put(_buffer);
+        _buffer = buf;
+    }
+
     public void send(ByteBuffer buf) throws ChannelException
     {
         try {
@@ -71,13 +115,57 @@ public class BufferedOutputChannel implements Bufferable
         }
     }
 
+    /**
+     * Writes all of srcs using gathering writes if supported by the
+     * underlying channel, without copying them into the buffer.
+     */
+    public void send(ByteBuffer[] srcs) throws ChannelException
+    {
+        if (!(_sinkChannel instanceof GatheringByteChannel)) {
+            for (ByteBuffer src : srcs) {
+                send(src);
+            }
+            return;
+        }
+
+        GatheringByteChannel sink = (GatheringByteChannel) _sinkChannel;
+        long numBytesRemaining = 0;
+        for (ByteBuffer src : srcs) {
+            numBytesRemaining += src.remaining();
+        }
+        try {
+            while (numBytesRemaining > 0) {
+                long count = sink.write(srcs);
+                if (count <= 0) {
+                    throw new ChannelEOFException(String.format(
+                        "channel write unexpectedly returned %d (EOF)", count));
+                }
+                _numBytesWritten += count;
+                numBytesRemaining -= count;
+            }
+        } catch (ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            throw new ChannelException(e);
+        }
+    }
+
     @Override
     public void flush() throws ChannelException
     {
         if (numBytesBuffered() > 0) {
+            _numBytesFlushed += _buffer.position();
             _buffer.flip();
             send(_buffer);
             _buffer.clear();
+            if (_growth != null) {
+                ByteBuffer larger =
+                    _growth.largerOrNull(_buffer.capacity(),
+                                         _numBytesFlushed);
+                if (larger != null) {
+                    replaceBuffer(larger);
+                }
+            }
         }
     }
 
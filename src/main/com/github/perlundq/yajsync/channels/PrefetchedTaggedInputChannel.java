@@ -20,6 +20,7 @@
  */
 package com.github.perlundq.yajsync.channels;
 
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ReadableByteChannel;
@@ -31,9 +32,12 @@ import com.github.perlundq.yajsync.util.Util;
 
 public class PrefetchedTaggedInputChannel extends TaggedInputChannel
 {
-    private static final int DEFAULT_BUF_SIZE = 8 * 1024; // TODO: make buffer size configurable
-    private final ByteBuffer _buf;                                              // never flipped, never marked and its limit is never changed
+    private static final int DEFAULT_BUF_SIZE = BufferSizing.DEFAULT_SIZE;
+    private final ReadableByteChannel _sock;
+    private ByteBuffer _buf;                                                    // never flipped, never marked and its limit is never changed
+    private BufferGrowth _growth; // null unless given an allocator
     private int _readIndex = 0;
+    private long _numBytesPrefetchedTotal;
 
     public PrefetchedTaggedInputChannel(ReadableByteChannel sock,
                                         MessageHandler handler)
@@ -46,6 +50,7 @@ public class PrefetchedTaggedInputChannel extends TaggedInputChannel
                                         int bufferSize)
     {
         super(sock, handler);
+        _sock = sock;
         if (Environment.isAllocateDirect()) {
             _buf = ByteBuffer.allocateDirect(bufferSize);
         } else {
@@ -54,6 +59,38 @@ public class PrefetchedTaggedInputChannel extends TaggedInputChannel
         _buf.order(ByteOrder.LITTLE_ENDIAN);
     }
 
+    /**
+     * Lets allocator decide the size of the buffer from now on, i.e. it
+     * gets the initial size of allocator and grows with the throughput of
+     * this channel. Any prefetched data is kept.
+     */
+    public void setBufferAllocator(BufferAllocator allocator)
+    {
+        setBufferAllocator(allocator,
+                           new BufferGrowth(allocator, _sock,
+                                            StandardSocketOptions.SO_RCVBUF));
+    }
+
+    // growth decides when the buffer grows, given for testing
+    void setBufferAllocator(BufferAllocator allocator, BufferGrowth growth)
+    {
+        int size = allocator.sizing().size();
+        if (size != _buf.capacity()) {
+            replaceBuffer(BufferAllocator.allocate(size));
+        }
+        allocator.reserve(size);
+        _growth = growth;
+    }
+
+    /**
+     * @return the current size of the buffer, i.e. the maximum number of
+     *         bytes that may be read at once using get(int)
+     */
+    public int bufferSize()
+    {
+        return _buf.capacity();
+    }
+
     @Override
     public String toString()
     {
@@ -146,11 +183,29 @@ public class PrefetchedTaggedInputChannel extends TaggedInputChannel
         return nextReadableSlice(numBytesPrefetched());
     }
 
+    // moves all prefetched data to the beginning of buf
+    private void replaceBuffer(ByteBuffer buf)
+    {
+        assert buf.capacity() >= numBytesPrefetched();
+        buf.put(readableSlice());
+        _buf = buf;
+        _readIndex = 0;
+    }
+
     private void ensureSpaceFor(int numBytes)
     {
         assert numBytes >= 0;
         assert numBytes <= _buf.limit();
         if (_readIndex + numBytes > _buf.limit()) {
+            if (_growth != null) {
+                ByteBuffer larger =
+                    _growth.largerOrNull(_buf.capacity(),
+                                         _numBytesPrefetchedTotal);
+                if (larger != null) {
+                    replaceBuffer(larger);
+                    return;
+                }
+            }
             ByteBuffer prefetched = readableSlice();
             assert _readIndex == writeIndex();
             prefetched.compact();
@@ -164,7 +219,9 @@ public class PrefetchedTaggedInputChannel extends TaggedInputChannel
         assert numBytes <= _buf.limit();
         ensureSpaceFor(numBytes);
         while (numBytesPrefetched() < numBytes) {
+            int position = _buf.position();
             readNextAvailable(_buf);
+            _numBytesPrefetchedTotal += _buf.position() - position;
         }
         assert numBytesPrefetched() >= numBytes;
     }
@@ -20,6 +20,8 @@
  */
 package com.github.perlundq.yajsync.channels;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.WritableByteChannel;
 
 import com.github.perlundq.yajsync.util.Consts;
@@ -64,6 +66,33 @@ public class TaggedOutputChannel extends BufferedOutputChannel
         updateTagOffsetAndBufPos(_buffer.position());
     }
 
+    /**
+     * Sends i followed by data as a DATA message of its own, with a single
+     * gathering write if supported by the underlying channel, i.e. data is
+     * not copied into the buffer. Any buffered data is flushed first.
+     *
+     * @throws IllegalArgumentException if data is too large to fit in a
+     *         single message
+     */
+    public void putIntAndData(int i, ByteBuffer data) throws ChannelException
+    {
+        ByteBuffer header = dataHeaderFor(i, data.remaining());
+        flush();
+        send(new ByteBuffer[] { header, data });
+    }
+
+    private static ByteBuffer dataHeaderFor(int i, int dataLength)
+    {
+        MessageHeader header = new MessageHeader(MessageCode.DATA,
+                                                 TAG_SIZE + dataLength);        // throws IllegalArgumentException
+        ByteBuffer buf = ByteBuffer.allocate(2 * TAG_SIZE).
+            order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(header.toTag());
+        buf.putInt(i);
+        buf.flip();
+        return buf;
+    }
+
     @Override
     public void flush() throws ChannelException
     {
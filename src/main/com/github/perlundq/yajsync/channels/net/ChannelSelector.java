@@ -0,0 +1,250 @@
+/*
+ * Waiting for idle socket channels to become readable
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches any number of channels (plain or TLS) from a single thread (the
+ * one calling run) and hands each one to the Listener once its underlying
+ * socket channel has data available to read, switched back to blocking
+ * mode. A connection which is idle hence does not occupy a thread of its
+ * own until its peer sends something. A channel which is still not
+ * readable after the idle timeout is closed.
+ *
+ * register and close may be called from any thread.
+ */
+public class ChannelSelector implements Runnable, AutoCloseable
+{
+    public interface Listener
+    {
+        /**
+         * Called by the selecting thread, should return quickly.
+         */
+        void readable(DuplexByteChannel sock);
+    }
+
+    // a registered channel and the time (System.nanoTime) it is closed
+    private static class Waiting
+    {
+        final DuplexByteChannel _sock;
+        final long _deadline;
+
+        Waiting(DuplexByteChannel sock, long deadline)
+        {
+            _sock = sock;
+            _deadline = deadline;
+        }
+    }
+
+    private static final Logger _log =
+        Logger.getLogger(ChannelSelector.class.getName());
+    private final Selector _selector;
+    private final Listener _listener;
+    private final long _idleTimeoutNanos;
+    private final Queue<Waiting> _registrations =
+        new ConcurrentLinkedQueue<>();
+    private volatile boolean _isClosed;
+
+    /**
+     * A channel is never closed for being idle.
+     */
+    public ChannelSelector(Listener listener) throws IOException
+    {
+        this(listener, 0);
+    }
+
+    /**
+     * @param idleTimeoutMillis the time a registered channel may stay
+     *        unreadable before it is closed, 0 for no limit
+     */
+    public ChannelSelector(Listener listener, long idleTimeoutMillis)
+        throws IOException
+    {
+        assert listener != null;
+        assert idleTimeoutMillis >= 0;
+        _selector = Selector.open();
+        _listener = listener;
+        _idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /**
+     * @throws IOException if sock could not be put in non-blocking mode
+     */
+    public void register(DuplexByteChannel sock) throws IOException
+    {
+        sock.socketChannel().configureBlocking(false);
+        _registrations.add(new Waiting(sock,
+                                       System.nanoTime() + _idleTimeoutNanos));
+        _selector.wakeup();
+    }
+
+    /**
+     * Stops the selecting thread, closing all channels still waiting.
+     */
+    @Override
+    public void close()
+    {
+        _isClosed = true;
+        _selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            long timeoutMillis = 0;
+            while (!_isClosed) {
+                if (_selector.selectedKeys().isEmpty()) {
+                    _selector.select(timeoutMillis);
+                }
+                registerAll();
+                List<DuplexByteChannel> readable = new ArrayList<>();
+                for (SelectionKey key : _selector.selectedKeys()) {
+                    key.cancel();
+                    readable.add(((Waiting) key.attachment())._sock);
+                }
+                _selector.selectedKeys().clear();
+                // a channel cannot be put in blocking mode until its
+                // cancelled key is removed by the next selection operation
+                _selector.selectNow();
+                for (DuplexByteChannel sock : readable) {
+                    dispatch(sock);
+                }
+                if (_idleTimeoutNanos > 0) {
+                    timeoutMillis = closeExpired();
+                }
+            }
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.SEVERE)) {
+                _log.severe("Error: selector failed: " + e.getMessage());
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void registerAll()
+    {
+        while (true) {
+            Waiting waiting = _registrations.poll();
+            if (waiting == null) {
+                return;
+            }
+            try {
+                waiting._sock.socketChannel().register(_selector,
+                                                       SelectionKey.OP_READ,
+                                                       waiting);
+            } catch (ClosedChannelException e) {
+                // peer is not interested any more
+            }
+        }
+    }
+
+    /**
+     * Closes all channels which have been idle for too long.
+     *
+     * @return the time in milliseconds until the next channel expires, at
+     *         least 1, or 0 if no channel is waiting
+     */
+    private long closeExpired()
+    {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        for (SelectionKey key : _selector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            Waiting waiting = (Waiting) key.attachment();
+            long remaining = waiting._deadline - now;
+            if (remaining <= 0) {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine(String.format("closing idle %s",
+                                            waiting._sock));
+                }
+                key.cancel();
+                closeQuietly(waiting._sock);
+            } else {
+                next = Math.min(next, remaining);
+            }
+        }
+        if (next == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+    }
+
+    private void dispatch(DuplexByteChannel sock)
+    {
+        try {
+            sock.socketChannel().configureBlocking(true);
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("failed to put %s in blocking " +
+                                           "mode: %s", sock, e.getMessage()));
+            }
+            closeQuietly(sock);
+            return;
+        }
+        _listener.readable(sock);
+    }
+
+    private void closeAll()
+    {
+        for (SelectionKey key : _selector.keys()) {
+            closeQuietly(((Waiting) key.attachment())._sock);
+        }
+        while (true) {
+            Waiting waiting = _registrations.poll();
+            if (waiting == null) {
+                break;
+            }
+            closeQuietly(waiting._sock);
+        }
+        try {
+            _selector.close();
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning("failed to close selector: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void closeQuietly(DuplexByteChannel sock)
+    {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format("failed to close %s: %s", sock,
+                                        e.getMessage()));
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.github.perlundq.yajsync.channels.net;
 
 import java.net.InetAddress;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.Principal;
 
@@ -27,4 +28,10 @@ public interface DuplexByteChannel extends ReadableByteChannel,
     InetAddress peerAddress();
     boolean isPeerAuthenticated();
     Principal peerPrincipal();
+
+    /**
+     * @return the underlying socket channel, e.g. for registering it with a
+     *         Selector
+     */
+    SocketChannel socketChannel();
 }
@@ -18,95 +18,266 @@
  */
 package com.github.perlundq.yajsync.channels.net;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLPeerUnverifiedException;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 import com.github.perlundq.yajsync.util.Environment;
 
+/**
+ * TLS over a SocketChannel using an SSLEngine. Works with both heap and
+ * direct buffers and is interruptible just like the SocketChannel itself.
+ *
+ * The initial handshake is done by the first call to read or write (or by
+ * peerPrincipal). Reading and writing may be done concurrently by two
+ * different threads. If the socket channel is in non-blocking mode read
+ * and write return 0 when they would block, any encrypted data not yet
+ * sent is then sent by the next call to write or flush.
+ *
+ * Sessions are resumed if the same SSLContext is used again for the same
+ * peer (host and port), e.g. the default one.
+ */
 public class SSLChannel implements DuplexByteChannel
 {
-    private final InputStream _is;
-    private final OutputStream _os;
-    private final SSLSocket _sslSocket;
+    private static final Logger _log =
+        Logger.getLogger(SSLChannel.class.getName());
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long UNWRAP_POLL_MILLIS = 10;
+    private final SocketChannel _sock;
+    private final SSLEngine _engine;
+    // lock order is _readLock before _writeLock
+    private final Lock _readLock = new ReentrantLock();
+    private final Lock _writeLock = new ReentrantLock();
+    private ByteBuffer _netIn;      // guarded by _readLock, write mode
+    private ByteBuffer _appIn;      // guarded by _readLock, read mode
+    private ByteBuffer _netOut;     // guarded by _writeLock, read mode
+    private boolean _isHandshakeStarted;
+    private IOException _handshakeFailure;
+    private volatile boolean _isHandshakeDone;
+    // handshake messages a reader could not wrap, see afterUnwrap
+    private volatile boolean _isWrapPending;
 
-    public SSLChannel(SSLSocket sslSocket) throws IOException
+    public SSLChannel(SocketChannel sock, SSLEngine engine)
     {
-        assert Environment.hasAllocateDirectArray() ||
-               !Environment.isAllocateDirect();
-        _sslSocket = sslSocket;
-        _is = _sslSocket.getInputStream();
-        _os = _sslSocket.getOutputStream();
+        assert sock != null;
+        assert engine != null;
+        _sock = sock;
+        _engine = engine;
+        int packetSize = _engine.getSession().getPacketBufferSize();
+        int applicationSize = _engine.getSession().getApplicationBufferSize();
+        _netIn = allocate(packetSize);
+        _appIn = allocate(applicationSize);
+        _appIn.flip();
+        _netOut = allocate(packetSize);
+        _netOut.flip();
     }
 
+    /**
+     * Connects to address:port as a TLS client using the default
+     * SSLContext.
+     */
     public static SSLChannel open(String address, int port) throws IOException
     {
-        SocketFactory factory = SSLSocketFactory.getDefault();
-        Socket sock = factory.createSocket(address, port);
-        return new SSLChannel((SSLSocket) sock);
+        SSLEngine engine = defaultContext().createSSLEngine(address, port);
+        engine.setUseClientMode(true);
+        SocketChannel sock =
+            SocketChannel.open(new InetSocketAddress(address, port));
+        return new SSLChannel(sock, engine);
+    }
+
+    static SSLContext defaultContext() throws IOException
+    {
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
     }
 
     @Override
     public String toString()
     {
-        return _sslSocket.toString();
+        return String.format("%s (%s)", getClass().getSimpleName(), _sock);
     }
 
+    /**
+     * Sends close_notify (unless a write is in progress) and closes the
+     * socket channel.
+     */
     @Override
     public void close() throws IOException
     {
-        _sslSocket.close(); // will implicitly close _is and _os also
+        try {
+            _engine.closeOutbound();
+            if (_isHandshakeDone && _writeLock.tryLock()) {
+                try {
+                    wrap(EMPTY);
+                    flush0();
+                } catch (IOException e) {
+                    if (_log.isLoggable(Level.FINE)) {
+                        _log.fine(String.format("failed to send close_notify " +
+                                                "to %s: %s", _sock,
+                                                e.getMessage()));
+                    }
+                } finally {
+                    _writeLock.unlock();
+                }
+            }
+        } finally {
+            _sock.close();
+        }
     }
 
     @Override
     public boolean isOpen()
     {
-        return !_sslSocket.isClosed();
+        return _sock.isOpen();
     }
 
     @Override
-    public int write(ByteBuffer src) throws IOException
+    public int read(ByteBuffer dst) throws IOException
     {
-        byte[] buf = src.array();
-        int offset = src.arrayOffset() + src.position();
-        int len = src.remaining();
-        _os.write(buf, offset, len);
-        src.position(src.position() + len);
-        return len;
+        if (!ensureHandshake()) {
+            return 0;
+        }
+        _readLock.lock();
+        try {
+            while (true) {
+                if (_appIn.hasRemaining()) {
+                    return move(_appIn, dst);
+                } else if (_engine.isInboundDone()) {
+                    return -1;
+                }
+                if (_netIn.position() > 0) {
+                    boolean isDirect = dst.remaining() >=
+                        _engine.getSession().getApplicationBufferSize();
+                    SSLEngineResult result = isDirect ? unwrap(dst)
+                                                      : unwrapBuffered();
+                    if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+                        isDirect = false;
+                        result = unwrapBuffered();
+                    }
+                    afterUnwrap(result);
+                    if (isDirect && result.bytesProduced() > 0) {
+                        return result.bytesProduced();
+                    } else if (result.getStatus() != Status.BUFFER_UNDERFLOW &&
+                               result.bytesConsumed() > 0) {
+                        continue;
+                    }
+                }
+                int n = fill();
+                if (n == 0) {
+                    return 0;
+                } else if (n < 0) {
+                    closeInbound();
+                }
+            }
+        } finally {
+            _readLock.unlock();
+        }
     }
 
     @Override
-    public int read(ByteBuffer dst) throws IOException
+    public int write(ByteBuffer src) throws IOException
     {
-        byte[] buf = dst.array();
-        int offset = dst.arrayOffset() + dst.position();
-        int len = dst.remaining();
-        int n = _is.read(buf, offset, len);
-        if (n != -1) {
-            dst.position(dst.position() + n);
+        if (!ensureHandshake()) {
+            return 0;
+        }
+        _writeLock.lock();
+        try {
+            wrapPending();
+            if (!flush0()) {
+                return 0;
+            }
+            int numBytes = 0;
+            while (src.hasRemaining()) {
+                SSLEngineResult result = wrap(src);
+                if (result.getStatus() == Status.CLOSED) {
+                    throw new ClosedChannelException();
+                }
+                numBytes += result.bytesConsumed();
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                }
+                if (!flush0()) {
+                    break;
+                }
+                if (result.bytesConsumed() == 0 &&
+                    result.bytesProduced() == 0) {
+                    if (_engine.getHandshakeStatus() !=
+                        HandshakeStatus.NEED_UNWRAP) {
+                        throw new SSLException(String.format(
+                            "TLS engine of %s stalled: %s", _sock, result));
+                    } else if (!awaitUnwrap()) {
+                        break;
+                    }
+                }
+            }
+            if (_isWrapPending) {
+                wrapPending();
+                flush0();
+            }
+            return numBytes;
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if all encrypted data is sent, i.e. always true if the
+     *         socket channel is in blocking mode
+     */
+    public boolean flush() throws IOException
+    {
+        _writeLock.lock();
+        try {
+            wrapPending();
+            return flush0();
+        } finally {
+            _writeLock.unlock();
         }
-        return n;
+    }
+
+    @Override
+    public SocketChannel socketChannel()
+    {
+        return _sock;
     }
 
     @Override
     public InetAddress peerAddress()
     {
-        InetAddress address = _sslSocket.getInetAddress();
-        if (address == null) {
-            throw new IllegalStateException(String.format(
-                "unable to determine remote address of %s - not connected",
-                _sslSocket));
+        try {
+            InetSocketAddress socketAddress =
+                (InetSocketAddress) _sock.getRemoteAddress();
+            if (socketAddress == null || socketAddress.getAddress() == null) {
+                throw new IllegalStateException(String.format(
+                    "unable to determine remote address of %s", _sock));
+            }
+            return socketAddress.getAddress();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
         }
-        return address;
     }
 
     @Override
@@ -120,13 +291,352 @@ public class SSLChannel implements DuplexByteChannel
         }
     }
 
+    /**
+     * @throws IllegalStateException if the peer is not authenticated or
+     *         the handshake fails
+     */
     @Override
     public Principal peerPrincipal()
     {
         try {
-            return _sslSocket.getSession().getPeerPrincipal();
+            if (!ensureHandshake()) {
+                throw new IllegalStateException(
+                    "handshake with " + _sock + " is not completed");
+            }
+            return _engine.getSession().getPeerPrincipal();
         } catch (SSLPeerUnverifiedException e) {
             throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return true if the initial handshake is completed, false if it
+     *         would block
+     */
+    private boolean ensureHandshake() throws IOException
+    {
+        if (_isHandshakeDone) {
+            return true;
+        }
+        _readLock.lock();
+        try {
+            // the handshake is done while holding both locks, a writer
+            // blocked on its peer must not block us once it is done
+            if (_isHandshakeDone) {
+                return true;
+            }
+            _writeLock.lock();
+            try {
+                if (_handshakeFailure != null) {
+                    throw new SSLException("handshake with " + _sock +
+                                           " failed", _handshakeFailure);
+                } else if (!_isHandshakeDone) {
+                    if (!_isHandshakeStarted) {
+                        _engine.beginHandshake();
+                        _isHandshakeStarted = true;
+                    }
+                    try {
+                        _isHandshakeDone = handshake();
+                    } catch (IOException e) {
+                        _handshakeFailure = e;
+                        sendAlert();
+                        throw e;
+                    }
+                    if (_isHandshakeDone && _log.isLoggable(Level.FINE)) {
+                        _log.fine(String.format(
+                            "handshake with %s done using %s %s", _sock,
+                            _engine.getSession().getProtocol(),
+                            _engine.getSession().getCipherSuite()));
+                    }
+                }
+                return _isHandshakeDone;
+            } finally {
+                _writeLock.unlock();
+            }
+        } finally {
+            _readLock.unlock();
+        }
+    }
+
+    // guarded by both _readLock and _writeLock
+    private boolean handshake() throws IOException
+    {
+        while (true) {
+            switch (_engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                runDelegatedTasks();
+                break;
+            case NEED_WRAP:
+                if (wrap(EMPTY).getStatus() == Status.CLOSED &&
+                    !_netOut.hasRemaining()) {
+                    throw new SSLException("TLS engine closed during " +
+                                           "handshake with " + _sock);
+                }
+                if (!flush0()) {
+                    return false;
+                }
+                break;
+            case NEED_UNWRAP:
+                if (!flush0()) {
+                    return false;
+                }
+                SSLEngineResult result = null;
+                if (_netIn.position() > 0) {
+                    result = unwrapBuffered();
+                    if (result.getStatus() == Status.CLOSED) {
+                        throw new SSLException("peer closed TLS during " +
+                                               "handshake with " + _sock);
+                    }
+                }
+                if (result == null ||
+                    result.getStatus() == Status.BUFFER_UNDERFLOW ||
+                    result.bytesConsumed() == 0) {
+                    int n = fill();
+                    if (n == 0) {
+                        return false;
+                    } else if (n < 0) {
+                        throw new EOFException("connection closed during TLS " +
+                                               "handshake with " + _sock);
+                    }
+                }
+                break;
+            default:
+                return flush0();
+            }
+        }
+    }
+
+    // guarded by _writeLock, tells the peer why the handshake failed
+    private void sendAlert()
+    {
+        try {
+            _engine.closeOutbound();
+            wrap(EMPTY);
+            flush0();
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format("failed to send alert to %s: %s",
+                                        _sock, e.getMessage()));
+            }
+        }
+    }
+
+    // guarded by _readLock, processes handshake messages received after
+    // the initial handshake (e.g. TLS 1.3 key updates or close_notify).
+    // A writer may be blocked on a peer which in turn waits for us to read,
+    // so if the writer holds _writeLock the answer is left to its next
+    // write or flush instead of waiting for it
+    private void afterUnwrap(SSLEngineResult result) throws IOException
+    {
+        HandshakeStatus status = result.getHandshakeStatus();
+        if (status == HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+            status = _engine.getHandshakeStatus();
+        }
+        if (status != HandshakeStatus.NEED_WRAP) {
+            return;
+        }
+        _isWrapPending = true;
+        if (!_writeLock.tryLock()) {
+            return;
+        }
+        try {
+            wrapPending();
+            flush0();
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    // guarded by _writeLock
+    private void wrapPending() throws IOException
+    {
+        if (!_isWrapPending) {
+            return;
+        }
+        _isWrapPending = false;
+        while (_engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+            SSLEngineResult r = wrap(EMPTY);
+            if (r.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            } else if (r.bytesProduced() == 0) {
+                break;
+            }
+        }
+    }
+
+    // guarded by _writeLock which is released while waiting; the peer
+    // started a new handshake whose messages are unwrapped by whoever is
+    // reading. @return false if it would block
+    private boolean awaitUnwrap() throws IOException
+    {
+        _writeLock.unlock();
+        try {
+            while (_engine.getHandshakeStatus() ==
+                   HandshakeStatus.NEED_UNWRAP) {
+                if (!_readLock.tryLock(UNWRAP_POLL_MILLIS,
+                                       TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                try {
+                    if (_engine.getHandshakeStatus() !=
+                        HandshakeStatus.NEED_UNWRAP) {
+                        break;
+                    }
+                    SSLEngineResult result = null;
+                    if (_netIn.position() > 0) {
+                        result = unwrapBuffered();
+                        afterUnwrap(result);
+                    }
+                    if (result == null ||
+                        result.getStatus() == Status.BUFFER_UNDERFLOW ||
+                        result.bytesConsumed() == 0) {
+                        int n = fill();
+                        if (n == 0) {
+                            return false;
+                        } else if (n < 0) {
+                            throw new EOFException("connection closed " +
+                                                   "during TLS handshake " +
+                                                   "with " + _sock);
+                        }
+                    }
+                } finally {
+                    _readLock.unlock();
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            _writeLock.lock();
+        }
+    }
+
+    // guarded by _readLock
+    private SSLEngineResult unwrap(ByteBuffer dst) throws SSLException
+    {
+        _netIn.flip();
+        try {
+            return _engine.unwrap(_netIn, dst);
+        } finally {
+            _netIn.compact();
+        }
+    }
+
+    // guarded by _readLock, unwraps into _appIn
+    private SSLEngineResult unwrapBuffered() throws SSLException
+    {
+        while (true) {
+            _appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = unwrap(_appIn);
+            } finally {
+                _appIn.flip();
+            }
+            if (result.getStatus() != Status.BUFFER_OVERFLOW) {
+                return result;
+            }
+            _appIn = enlarge(_appIn,
+                             _engine.getSession().getApplicationBufferSize());
+        }
+    }
+
+    // guarded by _readLock
+    private int fill() throws IOException
+    {
+        if (!_netIn.hasRemaining()) {   // a record larger than _netIn
+            _netIn.flip();
+            _netIn = enlarge(_netIn,
+                             _engine.getSession().getPacketBufferSize());
+            _netIn.position(_netIn.limit());
+            _netIn.limit(_netIn.capacity());
+        }
+        return _sock.read(_netIn);
+    }
+
+    // guarded by _readLock
+    private void closeInbound()
+    {
+        try {
+            _engine.closeInbound();
+        } catch (SSLException e) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format("%s closed without close_notify: %s",
+                                        _sock, e.getMessage()));
+            }
+        }
+    }
+
+    // guarded by _writeLock
+    private SSLEngineResult wrap(ByteBuffer src) throws SSLException
+    {
+        while (true) {
+            _netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = _engine.wrap(src, _netOut);
+            } finally {
+                _netOut.flip();
+            }
+            if (result.getStatus() != Status.BUFFER_OVERFLOW) {
+                return result;
+            }
+            _netOut = enlarge(_netOut,
+                              _engine.getSession().getPacketBufferSize());
+        }
+    }
+
+    // guarded by _writeLock
+    private boolean flush0() throws IOException
+    {
+        while (_netOut.hasRemaining()) {
+            if (_sock.write(_netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runDelegatedTasks()
+    {
+        while (true) {
+            Runnable task = _engine.getDelegatedTask();
+            if (task == null) {
+                return;
+            }
+            task.run();
+        }
+    }
+
+    private static int move(ByteBuffer src, ByteBuffer dst)
+    {
+        int length = Math.min(src.remaining(), dst.remaining());
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + length);
+        dst.put(slice);
+        src.position(src.position() + length);
+        return length;
+    }
+
+    // @return a buffer in read mode with the remaining data of buf and room
+    // for at least size more bytes
+    private static ByteBuffer enlarge(ByteBuffer buf, int size)
+    {
+        ByteBuffer result = allocate(buf.remaining() + size);
+        result.put(buf);
+        result.flip();
+        return result;
+    }
+
+    private static ByteBuffer allocate(int size)
+    {
+        if (Environment.isAllocateDirect()) {
+            return ByteBuffer.allocateDirect(size);
         }
+        return ByteBuffer.allocate(size);
     }
 }
@@ -17,28 +17,48 @@
 package com.github.perlundq.yajsync.channels.net;
 
 import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 public class SSLServerChannel implements ServerChannel
 {
-    private final SSLServerSocket _sslSocket;
+    private final ServerSocketChannel _sock;
+    private final SSLContext _context;
+    private final boolean _isWantClientAuth;
 
-    public SSLServerChannel(SSLServerSocket sock) throws IOException
+    public SSLServerChannel(ServerSocketChannel sock, SSLContext context,
+                            boolean isWantClientAuth)
     {
-        _sslSocket = sock;
+        _sock = sock;
+        _context = context;
+        _isWantClientAuth = isWantClientAuth;
     }
 
     @Override
     public void close() throws IOException
     {
-        _sslSocket.close();
+        _sock.close();
     }
 
     @Override
     public SSLChannel accept() throws IOException
     {
-        return new SSLChannel((SSLSocket) _sslSocket.accept());
+        SocketChannel sock = _sock.accept();
+        try {
+            SSLEngine engine = _context.createSSLEngine();
+            engine.setUseClientMode(false);
+            engine.setWantClientAuth(_isWantClientAuth);
+            return new SSLChannel(sock, engine);
+        } catch (Throwable t) {
+            try {
+                sock.close();
+            } catch (Throwable tt) {
+                t.addSuppressed(tt);
+            }
+            throw t;
+        }
     }
 }
@@ -18,23 +18,16 @@ package com.github.perlundq.yajsync.channels.net;
 
 import java.io.IOException;
 import java.net.InetAddress;
-
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
 
 public class SSLServerChannelFactory implements ServerChannelFactory
 {
-    private final SSLServerSocketFactory _factory;
-
     private boolean _isWantClientAuth;
     private boolean _isReuseAddress;
     private int _backlog = 128;
 
-    public SSLServerChannelFactory()
-    {
-        _factory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
-    }
-
     @Override
     public ServerChannelFactory setReuseAddress(boolean isReuseAddress)
     {
@@ -57,20 +50,23 @@ public class SSLServerChannelFactory implements ServerChannelFactory
     @Override
     public ServerChannel open(InetAddress address, int port) throws IOException
     {
-        SSLServerSocket sock =
-            (SSLServerSocket) _factory.createServerSocket(port,
-                                                          _backlog, address);
+        ServerSocketChannel sock = ServerSocketChannel.open();
         try {
-            sock.setReuseAddress(_isReuseAddress);
-            sock.setWantClientAuth(_isWantClientAuth);
-            return new SSLServerChannel(sock);
+            if (_isReuseAddress) {
+                sock.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            }
+            InetSocketAddress socketAddress =
+                new InetSocketAddress(address, port);
+            sock.bind(socketAddress, _backlog);
+            return new SSLServerChannel(sock, SSLChannel.defaultContext(),
+                                        _isWantClientAuth);
         } catch (Throwable t) {
-            if (!sock.isClosed()) {
-                try {
+            try {
+                if (sock.isOpen()) {
                     sock.close();
-                } catch (Throwable tt) {
-                    t.addSuppressed(tt);
                 }
+            } catch (Throwable tt) {
+                t.addSuppressed(tt);
             }
             throw t;
         }
@@ -0,0 +1,108 @@
+/*
+ * FileView which reads the file into a heap buffer
+ *
+ * Copyright (C) 1996-2011 by Andrew Tridgell, Wayne Davison, and others
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.io;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class BufferedFileView extends FileView
+{
+    private final InputStream _is;
+    private final byte[] _buf;
+    private final ByteBuffer _wrapped;
+
+    public BufferedFileView(Path path, long fileSize, int windowLength,
+                            int bufferSize)
+        throws FileViewOpenFailed
+    {
+        super(path, fileSize, windowLength, bufferSize);
+
+        try {
+            if (fileSize > 0) {
+                _is = Files.newInputStream(path);
+                _buf = new byte[bufferSize];
+                _wrapped = ByteBuffer.wrap(_buf);
+                slide(0);
+                assert startOffset() == 0;
+                assert endOffset() >= 0;
+            } else {
+                _is = null;
+                _buf = new byte[0];
+                _wrapped = ByteBuffer.wrap(_buf);
+            }
+        } catch (FileNotFoundException | NoSuchFileException e) { // TODO: which exception should we really catch
+            throw new FileViewNotFound(e.getMessage());
+        } catch (IOException e) {
+            throw new FileViewOpenFailed(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the heap array backing buffer()
+     */
+    public byte[] array()
+    {
+        return _buf;
+    }
+
+    @Override
+    public ByteBuffer buffer()
+    {
+        return _wrapped;
+    }
+
+    @Override
+    protected int capacity()
+    {
+        return _buf.length;
+    }
+
+    @Override
+    protected int read(int offset, int length) throws IOException
+    {
+        return _is.read(_buf, offset, length);
+    }
+
+    @Override
+    protected void fillZeroes(int offset, int length)
+    {
+        Arrays.fill(_buf, offset, offset + length, (byte) 0);
+    }
+
+    @Override
+    protected void moveToStart(int offset, int length)
+    {
+        System.arraycopy(_buf, offset, _buf, 0, length);
+    }
+
+    @Override
+    protected void closeFile() throws IOException
+    {
+        if (_is != null) {
+            _is.close();
+        }
+    }
+}
@@ -21,27 +21,28 @@
 package com.github.perlundq.yajsync.io;
 
 import java.io.EOFException;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
-import java.nio.file.Files;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.github.perlundq.yajsync.util.Environment;
 import com.github.perlundq.yajsync.util.RuntimeInterruptException;
 
-public class FileView implements AutoCloseable
+/**
+ * All offsets are absolute indices into buffer(). Subclasses decide how the
+ * buffer is backed, BufferedFileView reads the file into a heap buffer and
+ * MappedFileView maps the file into memory.
+ */
+public abstract class FileView implements AutoCloseable
 {
     private static final Logger _log =
         Logger.getLogger(FileView.class.getName());
     public final static int DEFAULT_BLOCK_SIZE = 8 * 1024;
-    private final InputStream _is;
-    private final int _windowLength;  // size of sliding window (<= _buf.length)
-    private final byte[] _buf;
+    private final int _windowLength;  // size of sliding window (<= _bufferSize)
+    private final int _bufferSize;    // max number of marked and prefetched bytes
     private final String _fileName;
     private int _startOffset = 0;
     private int _endOffset = -1;     // length == _endOffset - _startOffset + 1
@@ -49,9 +50,11 @@ public class FileView implements AutoCloseable
     private int _readOffset = -1;
     private long _remainingBytes;
     private IOException _ioError = null;
+    private ByteBuffer _range;        // reused view of _rangeSource
+    private ByteBuffer _rangeSource;
 
-    public FileView(Path path, long fileSize, int windowLength, int bufferSize)
-        throws FileViewOpenFailed
+    protected FileView(Path path, long fileSize, int windowLength,
+                       int bufferSize)
     {
         assert path != null;
         assert fileSize >= 0;
@@ -59,30 +62,49 @@ public class FileView implements AutoCloseable
         assert bufferSize >= 0;
         assert windowLength <= bufferSize;
 
-        try {
-            _fileName = path.toString();
-            _remainingBytes = fileSize;
-
-            if (fileSize > 0) {
-                _is = Files.newInputStream(path);
-                _windowLength = windowLength;
-                _buf = new byte[bufferSize];
-                slide(0);
-                assert _startOffset == 0;
-                assert _endOffset >= 0;
-            } else {
-                _is = null;
-                _windowLength = 0;
-                _buf = new byte[0];
-            }
+        _fileName = path.toString();
+        _remainingBytes = fileSize;
+        _windowLength = fileSize > 0 ? windowLength : 0;
+        _bufferSize = fileSize > 0 ? bufferSize : 0;
+    }
 
-        } catch (FileNotFoundException | NoSuchFileException e) { // TODO: which exception should we really catch
-            throw new FileViewNotFound(e.getMessage());
-        } catch (IOException e) {
-            throw new FileViewOpenFailed(e.getMessage());
+    /**
+     * @return a MappedFileView if fileSize is at least
+     *         Environment.getMmapThreshold(), otherwise a BufferedFileView
+     */
+    public static FileView open(Path path, long fileSize, int windowLength,
+                                int bufferSize)
+        throws FileViewOpenFailed
+    {
+        long threshold = Environment.getMmapThreshold();
+        if (threshold >= 0 && fileSize >= threshold && fileSize > 0) {
+            return new MappedFileView(path, fileSize, windowLength,
+                                      bufferSize);
         }
+        return new BufferedFileView(path, fileSize, windowLength, bufferSize);
     }
 
+    /**
+     * @return the buffer which all offsets of this view refer to. The
+     *         returned buffer might be replaced by another one when sliding
+     *         and must not be modified.
+     */
+    public abstract ByteBuffer buffer();
+
+    // current length of buffer()
+    protected abstract int capacity();
+
+    // read at most length bytes into buffer() at offset, returns the number
+    // of bytes read or a value <= 0 on end of file
+    protected abstract int read(int offset, int length) throws IOException;
+
+    protected abstract void fillZeroes(int offset, int length);
+
+    // move length bytes starting at offset to the start of buffer()
+    protected abstract void moveToStart(int offset, int length);
+
+    protected abstract void closeFile() throws IOException;
+
     @Override
     public String toString()
     {
@@ -97,14 +119,12 @@ public class FileView implements AutoCloseable
     @Override
     public void close() throws FileViewReadError
     {
-        if (_is != null) {
-            try {
-                _is.close();
-            } catch (ClosedByInterruptException e) {
-                throw new RuntimeInterruptException(e);
-            } catch (IOException e) {
-                throw new FileViewReadError(e);
-            }
+        try {
+            closeFile();
+        } catch (ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            throw new FileViewReadError(e);
         }
 
         if (_ioError != null) {
@@ -112,16 +132,31 @@ public class FileView implements AutoCloseable
         }
     }
 
-    public byte[] array()
+    /**
+     * @return a view of buffer() with its position set to offset and its
+     *         limit set to offset + length, valid until the next call
+     */
+    public ByteBuffer range(int offset, int length)
     {
-        return _buf;
+        assert offset >= 0;
+        assert length >= 0;
+        assert offset + length <= capacity();
+        if (_rangeSource != buffer()) {
+            _rangeSource = buffer();
+            _range = _rangeSource.duplicate();
+        }
+        _range.limit(offset + length);
+        _range.position(offset);
+        return _range;
     }
 
     // TODO: the names startOffset and firstOffset are confusingly similar
     public int startOffset()
     {
         assert _startOffset >= 0;
-        assert _startOffset <= _buf.length - 1 || _is == null;
+        // equal to capacity() if the window is empty and the buffer ends
+        // exactly at the end of the file
+        assert _startOffset <= capacity();
         return _startOffset;
     }
 
@@ -129,7 +164,7 @@ public class FileView implements AutoCloseable
     public int markOffset()
     {
         assert _markOffset >= -1;
-        assert _markOffset <= _buf.length - 1 || _is == null;
+        assert _markOffset <= capacity();
         return _markOffset;
     }
 
@@ -182,23 +217,31 @@ public class FileView implements AutoCloseable
         return _endOffset - firstOffset() + 1;
     }
 
+    private int capacityAvailable()
+    {
+        assert _readOffset <= capacity() - 1;
+        return (capacity() - 1) - _readOffset;
+    }
+
+    // the number of marked and prefetched bytes is limited to _bufferSize
+    // even if buffer() is larger
     private int bufferSpaceAvailable()
     {
-        assert _readOffset <= _buf.length - 1;
-        return (_buf.length - 1) - _readOffset;
+        int numBytesBuffered = _readOffset - firstOffset() + 1;
+        return Math.min(capacityAvailable(), _bufferSize - numBytesBuffered);
     }
 
     public byte valueAt(int offset)
     {
         assert offset >= firstOffset();
         assert offset <= _endOffset;
-        return _buf[offset];
+        return buffer().get(offset);
     }
 
     public boolean isFull()
     {
-        assert totalBytes() <= _buf.length;
-        return totalBytes() == _buf.length; // || windowLength() == 0 && _remainingBytes == 0
+        assert totalBytes() <= _bufferSize;
+        return totalBytes() == _bufferSize; // || windowLength() == 0 && _remainingBytes == 0
     }
 
     private void readBetween(int min, int max) throws IOException
@@ -209,7 +252,7 @@ public class FileView implements AutoCloseable
 
         int numBytesRead = 0;
         while (numBytesRead < min) {
-            int len = _is.read(_buf, _readOffset + 1 , max - numBytesRead);
+            int len = read(_readOffset + 1, max - numBytesRead);
             if (len <= 0) {
                 throw new EOFException(String.format("File ended prematurely " +
                                                      "(%d)", len));
@@ -232,7 +275,7 @@ public class FileView implements AutoCloseable
         assert amount <= _remainingBytes;
         assert amount <= bufferSpaceAvailable();
 
-        Arrays.fill(_buf, _readOffset + 1, _readOffset + 1 + amount, (byte)0);
+        fillZeroes(_readOffset + 1, amount);
         _readOffset += amount;
         _remainingBytes -= amount;
     }
@@ -270,7 +313,7 @@ public class FileView implements AutoCloseable
         }
 
         if (minBytesToRead > 0) {
-            if (minBytesToRead > bufferSpaceAvailable()) {
+            if (minBytesToRead > capacityAvailable()) {
                 compact();
             }
 
@@ -310,10 +353,10 @@ public class FileView implements AutoCloseable
             _log.finest(String.format(
                 "compact of %s before - buf[%d] %d bytes to buf[0], " +
                 "buf.length = %d",
-                this, shiftOffset, numShifts, _buf.length));
+                this, shiftOffset, numShifts, capacity()));
         }
 
-        System.arraycopy(_buf, shiftOffset, _buf, 0, numShifts);
+        moveToStart(shiftOffset, numShifts);
         _startOffset -= shiftOffset;
         _endOffset -= shiftOffset;
         _readOffset -= shiftOffset;
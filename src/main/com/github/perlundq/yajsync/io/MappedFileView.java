@@ -0,0 +1,190 @@
+/*
+ * FileView which maps the file into memory
+ *
+ * Copyright (C) 1996-2011 by Andrew Tridgell, Wayne Davison, and others
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.io;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+
+/**
+ * Maps the file in regions of (at least) MAP_SIZE bytes, sliding within a
+ * region neither reads nor copies any data. Compaction is replaced by
+ * mapping a new region starting at the first marked or prefetched byte.
+ *
+ * If a region cannot be mapped, e.g. because the file has shrunk, the view
+ * continues by reading into a heap buffer of bufferSize bytes just like
+ * BufferedFileView, i.e. I/O errors are deferred until close and missing
+ * data is replaced by zeroes. Note however that the JVM throws an
+ * InternalError when reading a mapped region of a file which has been
+ * truncated, which is why it is only used if enabled by the mmap.threshold
+ * property.
+ */
+public class MappedFileView extends FileView
+{
+    private static final Logger _log =
+        Logger.getLogger(MappedFileView.class.getName());
+    private static final int MAP_SIZE = 64 * 1024 * 1024;
+    private final FileChannel _channel;
+    private final long _fileSize;
+    private final int _mapSize;
+    private final int _bufferSize;
+    private ByteBuffer _buf;      // mapped region or heap buffer
+    private long _bufPosition;    // file position of _buf[0]
+
+    public MappedFileView(Path path, long fileSize, int windowLength,
+                          int bufferSize)
+        throws FileViewOpenFailed
+    {
+        this(path, fileSize, windowLength, bufferSize, MAP_SIZE);
+    }
+
+    MappedFileView(Path path, long fileSize, int windowLength, int bufferSize,
+                   int mapSize)
+        throws FileViewOpenFailed
+    {
+        super(path, fileSize, windowLength, bufferSize);
+        _fileSize = fileSize;
+        _mapSize = Math.max(mapSize, bufferSize);
+        _bufferSize = bufferSize;
+
+        try {
+            if (fileSize > 0) {
+                _channel = FileChannel.open(path, StandardOpenOption.READ);
+                _buf = mapOrNull(0);
+                if (_buf == null) {
+                    _buf = ByteBuffer.allocate((int) Math.min(bufferSize,
+                                                              fileSize));
+                }
+                slide(0);
+                assert startOffset() == 0;
+                assert endOffset() >= 0;
+            } else {
+                _channel = null;
+                _buf = ByteBuffer.allocate(0);
+            }
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            throw new FileViewNotFound(e.getMessage());
+        } catch (IOException e) {
+            throw new FileViewOpenFailed(e.getMessage());
+        }
+    }
+
+    private boolean isMapped()
+    {
+        return !_buf.hasArray();
+    }
+
+    // returns null if the region cannot be mapped
+    private ByteBuffer mapOrNull(long position)
+    {
+        long size = Math.min(_mapSize, _fileSize - position);
+        try {
+            if (_channel.size() < position + size) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "%s has shrunk to %d bytes, expected at least %d",
+                        this, _channel.size(), position + size));
+                }
+                return null;
+            }
+            if (_log.isLoggable(Level.FINEST)) {
+                _log.finest(String.format("mapping %d bytes at %d",
+                                          size, position));
+            }
+            return _channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        } catch (ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("failed to map %s: %s",
+                                           this, e.getMessage()));
+            }
+            return null;
+        }
+    }
+
+    @Override
+    public ByteBuffer buffer()
+    {
+        return _buf;
+    }
+
+    @Override
+    protected int capacity()
+    {
+        return _buf.capacity();
+    }
+
+    @Override
+    protected int read(int offset, int length) throws IOException
+    {
+        if (isMapped()) {
+            assert offset + length <= _buf.capacity();
+            return length;
+        }
+        ByteBuffer dst = ByteBuffer.wrap(_buf.array(), offset, length);
+        return _channel.read(dst, _bufPosition + offset);
+    }
+
+    @Override
+    protected void fillZeroes(int offset, int length)
+    {
+        assert !isMapped();
+        Arrays.fill(_buf.array(), offset, offset + length, (byte) 0);
+    }
+
+    @Override
+    protected void moveToStart(int offset, int length)
+    {
+        long position = _bufPosition + offset;
+        if (isMapped()) {
+            ByteBuffer mapped = mapOrNull(position);
+            if (mapped != null) {
+                _buf = mapped;
+            } else {
+                int size = (int) Math.min(_bufferSize, _fileSize - position);
+                ByteBuffer copy = ByteBuffer.allocate(size);
+                copy.put(range(offset, length));
+                _buf = copy;
+            }
+        } else {
+            System.arraycopy(_buf.array(), offset, _buf.array(), 0, length);
+        }
+        _bufPosition = position;
+    }
+
+    @Override
+    protected void closeFile() throws IOException
+    {
+        if (_channel != null) {
+            _channel.close();
+        }
+    }
+}
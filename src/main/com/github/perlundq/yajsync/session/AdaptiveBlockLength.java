@@ -0,0 +1,138 @@
+/*
+ * Adaptive checksum block length
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scales the square root block length by a power of two which is tuned
+ * separately per kind of file, i.e. per file name extension or per
+ * directory for files without an extension.
+ *
+ * The literal and matched byte counts of previous transfers of the same
+ * kind (the same numbers as collected in Statistics, with older transfers
+ * given exponentially less weight) decide in which direction to tune:
+ *
+ * - a (very) high match ratio means that files of this kind change little,
+ *   larger blocks reduce the checksum overhead at a small cost of literal
+ *   data.
+ *
+ * - no matches at all means that the checksums are pure overhead, e.g.
+ *   compressed or encrypted data, use larger blocks.
+ *
+ * - a low match ratio means that changes are spread out over the file,
+ *   smaller blocks makes more of the unchanged data match.
+ */
+public class AdaptiveBlockLength extends BlockLengthStrategy
+{
+    private static final Logger _log =
+        Logger.getLogger(AdaptiveBlockLength.class.getName());
+    private static final int MAX_SHIFT = 3;
+    private static final double HIGH_MATCH_RATIO = 0.95;
+    private static final double LOW_MATCH_RATIO = 0.5;
+    private static final int MAX_NUM_KINDS = 1024;
+
+    private static class History
+    {
+        private long _numBytesLiteral;
+        private long _numBytesMatched;
+        private int _shift;
+    }
+
+    private final SquareRootBlockLength _base = new SquareRootBlockLength();
+    // least recently used kinds are forgotten
+    @SuppressWarnings("serial")
+    private final Map<String, History> _histories =
+        new LinkedHashMap<String, History>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, History> e)
+            {
+                return size() > MAX_NUM_KINDS;
+            }
+        };
+
+    private static String kindOf(Path path)
+    {
+        Path fileName = path.getFileName();
+        String name = fileName == null ? "" : fileName.toString();
+        int dotIndex = name.lastIndexOf('.');
+        if (dotIndex > 0 && dotIndex < name.length() - 1) {
+            return name.substring(dotIndex).toLowerCase(Locale.ENGLISH);
+        }
+        Path parent = path.toAbsolutePath().getParent();
+        return parent == null ? "/" : parent.toString() + "/";
+    }
+
+    @Override
+    public synchronized int blockLengthFor(Path path, long fileSize)
+    {
+        int blockLength = _base.blockLengthFor(path, fileSize);
+        History history = _histories.get(kindOf(path));
+        if (history == null) {
+            return blockLength;
+        }
+        if (history._shift > 0) {
+            blockLength <<= history._shift;
+        } else {
+            blockLength >>= -history._shift;
+        }
+        return Math.min(Checksum.MAX_CHECKSUM_BLOCK_LENGTH,
+                        Math.max(SquareRootBlockLength.MIN_BLOCK_LENGTH,
+                                 blockLength));
+    }
+
+    @Override
+    public synchronized void addResult(Path path, int blockLength,
+                                       long numBytesLiteral,
+                                       long numBytesMatched)
+    {
+        String kind = kindOf(path);
+        History history = _histories.get(kind);
+        if (history == null) {
+            history = new History();
+            _histories.put(kind, history);
+        }
+        history._numBytesLiteral = history._numBytesLiteral / 2 +
+                                   numBytesLiteral;
+        history._numBytesMatched = history._numBytesMatched / 2 +
+                                   numBytesMatched;
+        long total = history._numBytesLiteral + history._numBytesMatched;
+        if (total == 0) {
+            return;
+        }
+
+        double matchRatio = history._numBytesMatched / (double) total;
+        if (matchRatio >= HIGH_MATCH_RATIO || matchRatio == 0) {
+            history._shift = Math.min(MAX_SHIFT, history._shift + 1);
+        } else if (matchRatio < LOW_MATCH_RATIO) {
+            history._shift = Math.max(-MAX_SHIFT, history._shift - 1);
+        }
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine(String.format("%s (%s): %.1f%% match with block " +
+                                    "length %d, block length shift is now %d",
+                                    path, kind, 100 * matchRatio, blockLength,
+                                    history._shift));
+        }
+    }
+}
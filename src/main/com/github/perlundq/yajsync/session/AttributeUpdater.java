@@ -0,0 +1,167 @@
+/*
+ * Updating the attributes and type of existing target files
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.util.FileOps;
+
+/**
+ * Applies the preserved attributes of a source file to its target file,
+ * used by Generator, Receiver and LocalCopy. Configured before use, may
+ * then be used by several threads concurrently.
+ */
+class AttributeUpdater
+{
+    private static final Logger _log =
+        Logger.getLogger(AttributeUpdater.class.getName());
+
+    private boolean _isPreservePermissions;
+    private boolean _isPreserveTimes;
+    private boolean _isPreserveUser;
+
+    public AttributeUpdater setIsPreservePermissions(
+        boolean isPreservePermissions)
+    {
+        _isPreservePermissions = isPreservePermissions;
+        return this;
+    }
+
+    public AttributeUpdater setIsPreserveTimes(boolean isPreserveTimes)
+    {
+        _isPreserveTimes = isPreserveTimes;
+        return this;
+    }
+
+    public AttributeUpdater setIsPreserveUser(boolean isPreserveUser)
+    {
+        _isPreserveUser = isPreserveUser;
+        return this;
+    }
+
+    public boolean isPreservingAny()
+    {
+        return _isPreservePermissions || _isPreserveTimes || _isPreserveUser;
+    }
+
+    /**
+     * @param curAttrs the current attributes of path, or null if all
+     *        preserved attributes should be applied
+     */
+    public void updateAttrsIfDiffer(Path path, RsyncFileAttributes curAttrs,
+                                    RsyncFileAttributes targetAttrs)
+        throws IOException
+    {
+        if (_isPreservePermissions && (curAttrs == null ||
+                                       curAttrs.mode() != targetAttrs.mode())) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format(
+                    "updating file permissions %o -> %o on %s",
+                    curAttrs == null ? 0 : curAttrs.mode(),
+                    targetAttrs.mode(), path));
+            }
+            FileOps.setFileMode(path, targetAttrs.mode(),
+                                LinkOption.NOFOLLOW_LINKS);
+        }
+        if (_isPreserveTimes &&
+            (curAttrs == null ||
+             curAttrs.lastModifiedTime() != targetAttrs.lastModifiedTime()))
+        {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format(
+                    "updating mtime %d -> %d on %s",
+                    curAttrs == null ? 0 : curAttrs.lastModifiedTime(),
+                    targetAttrs.lastModifiedTime(), path));
+            }
+            FileOps.setLastModifiedTime(path, targetAttrs.lastModifiedTime(),
+                                        LinkOption.NOFOLLOW_LINKS);
+        }
+        // NOTE: keep this one last in the method, in case we fail due to
+        //       insufficient permissions (the other ones are more likely to
+        //       succeed).
+        // NOTE: we cannot detect if we have the capabilities to change
+        //       ownership (knowing if UID 0 is not sufficient)
+        // TODO: fall back to changing uid (find out how rsync works) if name
+        //       change fails
+        if (_isPreserveUser && !targetAttrs.user().name().isEmpty() &&
+            (curAttrs == null ||
+             !curAttrs.user().name().equals(targetAttrs.user().name())))
+        {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format(
+                    "updating ownership %s -> %s on %s",
+                    curAttrs == null ? "" : curAttrs.user(),
+                    targetAttrs.user(), path));
+            }
+            // NOTE: side effect of chown in Linux is that set user/group id bit
+            //       might be cleared.
+            FileOps.setOwner(path, targetAttrs.user(),
+                             LinkOption.NOFOLLOW_LINKS);
+        } else if (_isPreserveUser && targetAttrs.user().name().isEmpty() &&
+            (curAttrs == null ||
+             curAttrs.user().uid() != targetAttrs.user().uid()))
+        {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format(
+                    "updating uid %s -> %d on %s",
+                    curAttrs == null ? "" : curAttrs.user().uid(),
+                    targetAttrs.user().uid(), path));
+            }
+            // NOTE: side effect of chown in Linux is that set user/group id bit
+            //       might be cleared.
+            FileOps.setUserId(path, targetAttrs.user().uid(),
+                              LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    /**
+     * Removes path if it exists as another type of file than targetAttrs,
+     * a directory is removed along with all of its contents.
+     *
+     * @param curAttrs the current attributes of path or null if it does not
+     *        exist
+     * @return true if path was removed
+     */
+    public static boolean removeIfDifferentType(
+                                              Path path,
+                                              RsyncFileAttributes curAttrs,
+                                              RsyncFileAttributes targetAttrs)
+        throws IOException
+    {
+        if (curAttrs == null || curAttrs.fileType() == targetAttrs.fileType()) {
+            return false;
+        }
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine(String.format("removing %s of different type (%s)",
+                                    path, curAttrs));
+        }
+        if (curAttrs.isDirectory()) {
+            FileOps.deleteRecursively(path);
+        } else {
+            Files.deleteIfExists(path);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Checksum block length selection
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.nio.file.Path;
+
+/**
+ * Decides the checksum block length Generator uses for a basis file. The
+ * outcome of each transfer is reported back by the Receiver thread using
+ * addResult, hence implementations must be thread safe. A single instance
+ * may also be shared by several concurrent sessions.
+ */
+public abstract class BlockLengthStrategy
+{
+    public static final String SQUARE_ROOT = "sqrt";
+    public static final String RSYNC = "rsync";
+    public static final String ADAPTIVE = "adaptive";
+
+    /**
+     * @return a new strategy given its name (SQUARE_ROOT, RSYNC or
+     *         ADAPTIVE) or null if there is no such strategy
+     */
+    public static BlockLengthStrategy newInstanceOrNull(String name)
+    {
+        switch (name) {
+        case SQUARE_ROOT:
+            return new SquareRootBlockLength();
+        case RSYNC:
+            return new RsyncBlockLength();
+        case ADAPTIVE:
+            return new AdaptiveBlockLength();
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return the block length to use for the basis file path of size
+     *         fileSize (> 0), at most Checksum.MAX_CHECKSUM_BLOCK_LENGTH
+     */
+    public abstract int blockLengthFor(Path path, long fileSize);
+
+    /**
+     * Called once the data of path has been combined with its basis file
+     * using blockLength. Does nothing by default.
+     */
+    public void addResult(Path path, int blockLength, long numBytesLiteral,
+                          long numBytesMatched)
+    {
+    }
+}
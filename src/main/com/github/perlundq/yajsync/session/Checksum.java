@@ -19,12 +19,7 @@
  */
 package com.github.perlundq.yajsync.session;
 
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
-import java.util.NoSuchElementException;
-
-import com.github.perlundq.yajsync.util.Multimap;
+import java.util.Arrays;
 
 class Checksum
 {
@@ -35,38 +30,6 @@ class Checksum
         }
     }
 
-    public static class Chunk {
-
-        private final byte[] _md5sum;
-        private final int _length;
-        private final int _chunkIndex;
-
-        private Chunk(int length, byte[] md5sum, int chunkIndex)
-        {
-            assert length >= 0;
-            assert md5sum != null;
-            assert md5sum.length > 0;
-            _length = length;
-            _md5sum = md5sum;
-            _chunkIndex = chunkIndex;
-        }
-
-        public byte[] md5Checksum()
-        {
-            return _md5sum;
-        }
-
-        public int length()
-        {
-            return _length;
-        }
-
-        public int chunkIndex()
-        {
-            return _chunkIndex;
-        }
-    }
-
     public static class Header {
         private final int _blockLength;     // sum_struct.blength
         private final int _digestLength;    // sum_struct.s2length
@@ -176,22 +139,34 @@ class Checksum
     public static final int MIN_DIGEST_LENGTH = 2;
     public static final int MAX_DIGEST_LENGTH = 16;
 
-    private static final int MAX_CHECKSUM_BLOCK_LENGTH = 1 << 17;
-    private static final Iterable<Chunk> EMPTY_ITERABLE =
-        new Iterable<Chunk>() {
-        @Override
-        public Iterator<Chunk> iterator() {
-            return Collections.emptyIterator();
-        }
-    };
+    static final int MAX_CHECKSUM_BLOCK_LENGTH = 1 << 17;
+    private static final int HASH_MULTIPLIER = 0x9E3779B9;
+    private static final int MIN_FILTER_BITS = 16;
 
     private final Header _header;
-    private final Multimap<Integer, Chunk> _sums;
+    // per chunk information, indexed by chunk index:
+    private final int[] _rollings;
+    private final byte[] _digests;       // chunkCount * digestLength bytes
+    private int _size;
+    // open addressing table keyed by rolling checksum, each used slot refers
+    // to the range [_slotStart[i], _slotEnd[i]) of _sortedChunks, i.e. all
+    // chunk indices (ascending) sharing that same rolling checksum:
+    private int[] _slotKeys;
+    private int[] _slotStart;
+    private int[] _slotEnd;
+    private int[] _sortedChunks;
+    private int _slotMask;
+    // a bit set of hashed rolling checksums, used for quickly rejecting the
+    // vast majority of non matching rolling checksums without having to
+    // probe the (much larger) table above:
+    private long[] _filter;
+    private int _filterShift;
 
     public Checksum(Header header)
     {
         _header = header;
-        _sums = new Multimap<>(header.chunkCount());
+        _rollings = new int[header.chunkCount()];
+        _digests = new byte[header.chunkCount() * header.digestLength()];
     }
 
     @Override
@@ -210,119 +185,241 @@ class Checksum
         return _header._blockLength;
     }
 
-    public void addChunkInformation(int rolling, byte[] md5sum)
+    /**
+     * Add rolling checksum and digest of the next chunk. Only the first
+     * header.digestLength() bytes of digest are stored, the caller is free
+     * to reuse digest afterwards.
+     */
+    public void addChunkInformation(int rolling, byte[] digest)
+    {
+        assert digest != null;
+        assert _header._digestLength >= MIN_DIGEST_LENGTH &&
+               _header._digestLength <= MAX_DIGEST_LENGTH;
+        assert digest.length >= _header._digestLength;
+        assert _size <= _header._chunkCount - 1;
+        assert _sortedChunks == null : "index is already built";
+
+        _rollings[_size] = rolling;
+        System.arraycopy(digest, 0, _digests, _size * _header._digestLength,
+                         _header._digestLength);
+        _size++;
+    }
+
+    private static int capacityFor(int numKeys)
+    {
+        int capacity = 2;
+        while (capacity < numKeys * 2 && capacity < 1 << 30) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private int homeSlotOf(int rolling)
+    {
+        return (rolling * HASH_MULTIPLIER >>> 16 ^ rolling) & _slotMask;
+    }
+
+    private int filterBitOf(int rolling)
+    {
+        return rolling * HASH_MULTIPLIER >>> _filterShift;
+    }
+
+    private boolean isFiltered(int rolling)
+    {
+        int bit = filterBitOf(rolling);
+        return (_filter[bit >>> 6] & 1L << bit) == 0;
+    }
+
+    private boolean isSlotUsed(int slot)
     {
-        assert md5sum != null;
-        assert md5sum.length >= MIN_DIGEST_LENGTH &&
-               md5sum.length <= MAX_DIGEST_LENGTH;
-        assert _sums.size() <= _header._chunkCount - 1;
-
-        int chunkIndex = _sums.size();
-        int chunkLength = chunkLengthFor(chunkIndex);
-        Chunk chunk = new Chunk(chunkLength, md5sum, chunkIndex);
-        _sums.put(rolling, chunk);
+        return _slotEnd[slot] > _slotStart[slot];
     }
 
-    // retrieve a close index for the chunk with the supplied chunk index
-    private int closeIndexOf(List<Chunk> chunks, int chunkIndex)
+    /*
+     * Build the lookup index from all chunks added so far. Two passes over
+     * the chunks: the first one counts the number of chunks per distinct
+     * rolling checksum, the second one places the chunk indices in
+     * ascending order into each slot's range of _sortedChunks.
+     */
+    private void buildIndex()
     {
-        int idx = binarySearch(chunks, chunkIndex);
-        if (idx < 0) {
-            int insertionPoint = - idx - 1;
-            return Math.min(insertionPoint, chunks.size() - 1);
+        int capacity = capacityFor(_size);
+        _slotMask = capacity - 1;
+        _slotKeys = new int[capacity];
+        _slotStart = new int[capacity];
+        _slotEnd = new int[capacity];   // used as a counter during the build
+        _sortedChunks = new int[_size];
+        int filterBits = Math.max(MIN_FILTER_BITS,
+                                  Integer.numberOfTrailingZeros(capacity) + 2);
+        _filterShift = 32 - filterBits;
+        _filter = new long[1 << filterBits - 6];
+
+        for (int i = 0; i < _size; i++) {
+            int bit = filterBitOf(_rollings[i]);
+            _filter[bit >>> 6] |= 1L << bit;
+            int slot = homeSlotOf(_rollings[i]);
+            while (_slotEnd[slot] > 0 && _slotKeys[slot] != _rollings[i]) {
+                slot = (slot + 1) & _slotMask;
+            }
+            _slotKeys[slot] = _rollings[i];
+            _slotEnd[slot]++;
+        }
+
+        int offset = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int count = _slotEnd[slot];
+            _slotStart[slot] = offset;
+            _slotEnd[slot] = offset;
+            offset += count;
+        }
+        assert offset == _size;
+
+        // NOTE: the key is known to be present and all slots between its home
+        // slot and its actual slot are used, hence no need to check for
+        // unused slots here (which can't be done until the build is done)
+        for (int i = 0; i < _size; i++) {
+            int slot = homeSlotOf(_rollings[i]);
+            while (_slotKeys[slot] != _rollings[i]) {
+                slot = (slot + 1) & _slotMask;
+            }
+            _sortedChunks[_slotEnd[slot]++] = i;
         }
-        return idx;
     }
 
-    private int binarySearch(List<Chunk> chunks, int chunkIndex)
+    // returns -1 if there is no chunk with the given rolling checksum
+    private int slotOf(int rolling)
     {
-        int i_left = 0;
-        int i_right = chunks.size() - 1;
+        int slot = homeSlotOf(rolling);
+        while (isSlotUsed(slot)) {
+            if (_slotKeys[slot] == rolling) {
+                return slot;
+            }
+            slot = (slot + 1) & _slotMask;
+        }
+        return -1;
+    }
 
-        while (i_left <= i_right) {
-            int i_middle = i_left + (i_right - i_left) / 2;                     // i_middle < i_right and i_middle >= i_left
-            int chunkIndex_m = chunks.get(i_middle).chunkIndex();
+    // position of chunkIndex within the sorted range of slot, or the
+    // position of the first chunk index greater than chunkIndex
+    private int positionOf(int slot, int chunkIndex)
+    {
+        int left = _slotStart[slot];
+        int right = _slotEnd[slot] - 1;
+        while (left <= right) {
+            int middle = left + (right - left) / 2;
+            int chunkIndex_m = _sortedChunks[middle];
             if (chunkIndex_m == chunkIndex) {
-                return i_middle;
+                return middle;
             } else if (chunkIndex_m < chunkIndex) {
-                i_left = i_middle + 1;
-            } else { //chunkIndex_m > chunkIndex
-                i_right = i_middle - 1;
+                left = middle + 1;
+            } else {
+                right = middle - 1;
+            }
+        }
+        return left;
+    }
+
+    private int scanCandidates(int slot, int position, int length,
+                               int skippedChunkIndex)
+    {
+        for (int i = position; i < _slotEnd[slot]; i++) {
+            int chunkIndex = _sortedChunks[i];
+            if (chunkIndex != skippedChunkIndex &&
+                chunkLengthFor(chunkIndex) == length) {
+                return chunkIndex;
             }
         }
-        /*
-         * return i_left as the insertion point - the first index with a chunk
-         * index greater than chunkIndex.
-         * i_left >= 0 and i_left <= chunks.size()
-         */
-        return - i_left - 1;
+        return -1;
+    }
+
+    private boolean isPreferredCandidate(int rolling, int length,
+                                         int preferredChunkIndex)
+    {
+        return preferredChunkIndex >= 0 && preferredChunkIndex < _size &&
+               _rollings[preferredChunkIndex] == rolling &&
+               chunkLengthFor(preferredChunkIndex) == length;
+    }
+
+    /**
+     * Builds the lookup index unless already built. firstCandidate builds it
+     * lazily which is not thread safe, hence this must be called before
+     * looking up candidates from multiple threads concurrently.
+     */
+    public void ensureIndex()
+    {
+        if (_sortedChunks == null) {
+            buildIndex();
+        }
     }
 
-    public Iterable<Chunk> getCandidateChunks(int rolling,
-                                              final int length,
-                                              final int preferredChunkIndex)
+    /**
+     * Candidate chunks are the chunks having both the supplied rolling
+     * checksum and length. preferredChunkIndex is always returned first if
+     * it is a candidate, followed by the rest of the candidates in ascending
+     * chunk index order. Iteration does not allocate any memory:
+     *
+     * for (int i = firstCandidate(r, l, p); i >= 0;
+     *      i = nextCandidate(r, l, p, i)) { ... }
+     *
+     * @return chunk index of the first candidate or -1 if there are none
+     */
+    public int firstCandidate(int rolling, int length, int preferredChunkIndex)
     {
-        final List<Chunk> chunks = _sums.get(rolling);
-        // Optimization to avoid allocating tons of empty iterators for non
-        // matching entries on large files:
-        if (chunks.isEmpty()) {
-            return EMPTY_ITERABLE;
+        ensureIndex();
+        if (isFiltered(rolling)) {
+            return -1;
         }
+        if (isPreferredCandidate(rolling, length, preferredChunkIndex)) {
+            return preferredChunkIndex;
+        }
+        int slot = slotOf(rolling);
+        if (slot < 0) {
+            return -1;
+        }
+        return scanCandidates(slot, _slotStart[slot], length,
+                              preferredChunkIndex);
+    }
 
-        // return an Iterable which filters out chunks with non matching length
-        // and starts with preferredIndex (or close to preferredIndex)
-        return new Iterable<Chunk>() {
-            int it_index = 0;
-            int initialIndex = closeIndexOf(chunks, preferredChunkIndex);
-            boolean isInitial = true;
-
-            @Override
-            public Iterator<Chunk> iterator() {
-                return new Iterator<Chunk>() {
-
-                    private int nextIndex() {
-                        for (int i = it_index; i < chunks.size(); i++) {
-                            if (i != initialIndex &&
-                                chunks.get(i).length() == length) {
-                                return i;
-                            }
-                        }
-                        return chunks.size();
-                    }
-
-                    @Override
-                    public boolean hasNext() {
-                        if (isInitial) {
-                            return true;
-                        }
-                        it_index = nextIndex();
-                        return it_index < chunks.size();
-                    }
-
-                    @Override
-                    public Chunk next() {
-                        try {
-                            Chunk c;
-                            if (isInitial) {
-                                c = chunks.get(initialIndex);
-                                isInitial = false;
-                            } else {
-                                c = chunks.get(it_index);
-                                it_index++;
-                            }
-                            return c;
-                        } catch (IndexOutOfBoundsException e) {
-                            throw new NoSuchElementException(e.getMessage());
-                        }
-                    }
-
-                    @Override
-                    public void remove() {
-                        throw new UnsupportedOperationException();
-                    }
-                };
+    /**
+     * @return chunk index of the candidate following chunkIndex or -1 if
+     *         there are no more candidates
+     */
+    public int nextCandidate(int rolling, int length, int preferredChunkIndex,
+                             int chunkIndex)
+    {
+        assert _sortedChunks != null;
+        assert _rollings[chunkIndex] == rolling;
+        int slot = slotOf(rolling);
+        assert slot >= 0;
+        if (chunkIndex == preferredChunkIndex) {
+            return scanCandidates(slot, _slotStart[slot], length,
+                                  preferredChunkIndex);
+        }
+        return scanCandidates(slot, positionOf(slot, chunkIndex) + 1, length,
+                              preferredChunkIndex);
+    }
+
+    /**
+     * @return true if the first header.digestLength() bytes of digest are
+     *         equal to the digest of chunk chunkIndex
+     */
+    public boolean isDigestEqual(int chunkIndex, byte[] digest)
+    {
+        assert digest.length >= _header._digestLength;
+        int offset = chunkIndex * _header._digestLength;
+        for (int i = 0; i < _header._digestLength; i++) {
+            if (_digests[offset + i] != digest[i]) {
+                return false;
             }
-        };
+        }
+        return true;
+    }
+
+    public byte[] digestOf(int chunkIndex)
+    {
+        int offset = chunkIndex * _header._digestLength;
+        return Arrays.copyOfRange(_digests, offset,
+                                  offset + _header._digestLength);
     }
 
     public Header header()
@@ -31,6 +31,7 @@ import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.security.RsyncAuthContext;
 import com.github.perlundq.yajsync.text.TextConversionException;
 import com.github.perlundq.yajsync.util.BitOps;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
 
 public class ClientSessionConfig extends SessionConfig
 {
@@ -42,19 +43,25 @@ public class ClientSessionConfig extends SessionConfig
     private static final Logger _log =
         Logger.getLogger(ClientSessionConfig.class.getName());
     private final boolean _isRecursive;
+    private final ChecksumAlgorithm _requestedChecksumAlgorithm;
     private boolean _isSafeFileList;
     private final PrintStream _out;
     private final PrintStream _err;
 
     /**
+     * @param requestedChecksumAlgorithm the checksum algorithm advertised to
+     *        the peer, the peer may still choose MD5
      * @throws IllegalArgumentException if charset is not supported
      */
     public ClientSessionConfig(ReadableByteChannel in, WritableByteChannel out,
                                Charset charset, boolean isRecursive,
+                               ChecksumAlgorithm requestedChecksumAlgorithm,
                                PrintStream stdout, PrintStream stderr)
     {
         super(in, out, charset);
+        assert requestedChecksumAlgorithm != null;
         _isRecursive = isRecursive;
+        _requestedChecksumAlgorithm = requestedChecksumAlgorithm;
         _out = stdout;
         _err = stderr;
     }
@@ -169,6 +176,29 @@ public class ClientSessionConfig extends SessionConfig
                                              "incremental recurse");
         }
         _isSafeFileList = (flags & RsyncCompatibilities.CF_SAFE_FLIST) != 0;
+        if ((flags & RsyncCompatibilities.CF_CHECKSUM_CHOICE) != 0) {
+            receiveChecksumAlgorithm();
+        }
+    }
+
+    /**
+     * @throws RsyncProtocolException if peer chose a checksum algorithm we
+     *         did not advertise
+     */
+    private void receiveChecksumAlgorithm() throws ChannelException
+    {
+        char capability = (char) _peerConnection.getByte();
+        ChecksumAlgorithm algorithm =
+            ChecksumAlgorithm.fromCapabilityOrNull(capability);
+        if (algorithm != _requestedChecksumAlgorithm) {
+            throw new RsyncProtocolException(String.format(
+                "peer chose checksum algorithm %s (%d), we requested %s",
+                algorithm, (int) capability, _requestedChecksumAlgorithm));
+        }
+        _checksumAlgorithm = algorithm;
+        if (_log.isLoggable(Level.FINER)) {
+            _log.finer("< (checksum algorithm) " + _checksumAlgorithm);
+        }
     }
 
     private void receiveChecksumSeed() throws ChannelException
@@ -0,0 +1,55 @@
+/*
+ * Policies for syncing received files to disk
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+/**
+ * NONE leaves it to the operating system when received files are written
+ * to disk. FILE syncs each file before it is moved into place. BATCH syncs
+ * a batch of files at a time on a separate thread, then moves them into
+ * place and finally syncs each of their directories once.
+ */
+public enum Durability
+{
+    NONE  ("none"),
+    FILE  ("file"),
+    BATCH ("batch");
+
+    private final String _name;
+
+    private Durability(String name)
+    {
+        _name = name;
+    }
+
+    @Override
+    public String toString()
+    {
+        return _name;
+    }
+
+    public static Durability fromNameOrNull(String name)
+    {
+        for (Durability durability : values()) {
+            if (durability._name.equalsIgnoreCase(name)) {
+                return durability;
+            }
+        }
+        return null;
+    }
+}
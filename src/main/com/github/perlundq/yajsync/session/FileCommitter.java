@@ -0,0 +1,320 @@
+/*
+ * Moving received files into place according to a durability policy
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.util.FileOps;
+import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+
+/**
+ * Moves completely received temporary files to their targets, syncing them
+ * to disk first as required by the Durability policy. A temporary file
+ * equal to its target (i.e. updated in place) is only synced.
+ *
+ * With Durability.BATCH the files are queued and committed in batches on a
+ * separate thread: first all files of the batch are synced, then they are
+ * moved into place and finally each directory is synced once. A queued
+ * file is owned by the committer until flush() returns, a file failing to
+ * be committed is removed and counted by numErrors().
+ *
+ * commit() may be called from any thread, flush() and close() only by the
+ * owner.
+ */
+class FileCommitter implements AutoCloseable
+{
+    private static final Logger _log =
+        Logger.getLogger(FileCommitter.class.getName());
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final int MAX_NUM_PENDING_BATCHES = 4;
+    private static final long IDLE_TIMEOUT_SECONDS = 10;
+    private final Durability _durability;
+    private final Set<Path> _pending =
+        Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    private final AtomicInteger _numErrors = new AtomicInteger();
+    // guarded by this
+    private List<Commit> _batch = new ArrayList<>();
+    private final LinkedList<Future<?>> _batches = new LinkedList<>();
+    private ThreadPoolExecutor _committer;  // created on demand
+
+    private static class Commit
+    {
+        private final Path _tempFile;
+        private final Path _target;
+        private IOException _error;
+
+        private Commit(Path tempFile, Path target)
+        {
+            _tempFile = tempFile;
+            _target = target;
+        }
+    }
+
+    public FileCommitter(Durability durability)
+    {
+        assert durability != null;
+        _durability = durability;
+    }
+
+    /**
+     * @throws IOException if tempFile could not be synced or moved, it is
+     *         then left as is. Never thrown for Durability.BATCH
+     */
+    public void commit(Path tempFile, Path target) throws IOException
+    {
+        switch (_durability) {
+        case FILE:
+            sync(tempFile);
+            move(tempFile, target);
+            break;
+        case BATCH:
+            _pending.add(tempFile);
+            List<Commit> batch = null;
+            synchronized (this) {
+                _batch.add(new Commit(tempFile, target));
+                if (_batch.size() >= MAX_BATCH_SIZE) {
+                    batch = _batch;
+                    _batch = new ArrayList<>();
+                }
+            }
+            if (batch != null) {
+                submit(batch);
+            }
+            break;
+        default:
+            move(tempFile, target);
+        }
+    }
+
+    /**
+     * @return true if tempFile is queued to be committed
+     */
+    public boolean isPending(Path tempFile)
+    {
+        return _pending.contains(tempFile);
+    }
+
+    /**
+     * Waits until all queued files are committed.
+     *
+     * @throws RuntimeInterruptException if interrupted while waiting
+     */
+    public void flush()
+    {
+        List<Commit> batch;
+        synchronized (this) {
+            batch = _batch;
+            _batch = new ArrayList<>();
+        }
+        if (!batch.isEmpty()) {
+            submit(batch);
+        }
+        while (true) {
+            Future<?> f;
+            synchronized (this) {
+                f = _batches.poll();
+            }
+            if (f == null) {
+                return;
+            }
+            await(f);
+        }
+    }
+
+    /**
+     * @return the number of files queued for a commit which failed
+     */
+    public int numErrors()
+    {
+        return _numErrors.get();
+    }
+
+    /**
+     * Commits all queued files and stops the committer thread.
+     */
+    @Override
+    public void close()
+    {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                if (_committer != null) {
+                    _committer.shutdown();
+                }
+            }
+        }
+    }
+
+    private void submit(final List<Commit> batch)
+    {
+        Future<?> oldest = null;
+        synchronized (this) {
+            if (_committer == null) {
+                _committer = newCommitter();
+            }
+            _batches.add(_committer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    commitBatch(batch);
+                }
+            }));
+            if (_batches.size() > MAX_NUM_PENDING_BATCHES) {
+                oldest = _batches.poll();
+            }
+        }
+        if (oldest != null) {
+            await(oldest);
+        }
+    }
+
+    private void commitBatch(List<Commit> batch)
+    {
+        for (Commit c : batch) {
+            try {
+                sync(c._tempFile);
+            } catch (IOException e) {
+                c._error = e;
+            }
+        }
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Commit c : batch) {
+            if (c._error == null) {
+                try {
+                    move(c._tempFile, c._target);
+                    dirs.add(c._target.toAbsolutePath().getParent());
+                } catch (IOException e) {
+                    c._error = e;
+                }
+            }
+            if (c._error != null) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format("failed to commit %s: %s",
+                                               c._target,
+                                               c._error.getMessage()));
+                }
+                _numErrors.incrementAndGet();
+                removeFailed(c);
+            }
+            _pending.remove(c._tempFile);
+        }
+        for (Path dir : dirs) {
+            syncDirectory(dir);
+        }
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine(String.format("committed batch of %d files in %d " +
+                                    "directories", batch.size(),
+                                    dirs.size()));
+        }
+    }
+
+    private static void removeFailed(Commit c)
+    {
+        if (c._tempFile.equals(c._target)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(c._tempFile);
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("failed to remove tempfile %s: %s",
+                                           c._tempFile, e.getMessage()));
+            }
+        }
+    }
+
+    private static void sync(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file,
+                                                    StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static void move(Path tempFile, Path target) throws IOException
+    {
+        if (!tempFile.equals(target) && !FileOps.atomicMove(tempFile, target)) {
+            throw new IOException(String.format(
+                "failed to move temporary file %s to %s", tempFile, target));
+        }
+    }
+
+    // a new or renamed entry is only durable once its directory is synced,
+    // this is not supported on all platforms though
+    private static void syncDirectory(Path dir)
+    {
+        try {
+            sync(dir);
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format("failed to sync directory %s: %s",
+                                        dir, e.getMessage()));
+            }
+        }
+    }
+
+    private static void await(Future<?> f)
+    {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static ThreadPoolExecutor newCommitter()
+    {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FileCommitter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ThreadPoolExecutor committer =
+            new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>(),
+                                   threadFactory);
+        committer.allowCoreThreadTimeOut(true);
+        return committer;
+    }
+}
@@ -38,11 +38,13 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.github.perlundq.yajsync.channels.BufferAllocator;
 import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.channels.Message;
 import com.github.perlundq.yajsync.channels.MessageCode;
@@ -57,6 +59,7 @@ import com.github.perlundq.yajsync.text.TextConversionException;
 import com.github.perlundq.yajsync.text.TextDecoder;
 import com.github.perlundq.yajsync.text.TextEncoder;
 import com.github.perlundq.yajsync.util.FileOps;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
 import com.github.perlundq.yajsync.util.MD5;
 import com.github.perlundq.yajsync.util.Rolling;
 import com.github.perlundq.yajsync.util.RuntimeInterruptException;
@@ -70,26 +73,37 @@ public class Generator implements RsyncTask
 
     private static final Logger _log =
         Logger.getLogger(Generator.class.getName());
-    private static final int OUTPUT_CHANNEL_BUF_SIZE = 8 * 1024;
     private static final Checksum.Header ZERO_SUM;
-    private static final int MIN_BLOCK_SIZE = 512;                              // TODO: make block size configurable
+    // checksums are generated for as many whole blocks as fit in this size
+    private static final int CHECKSUM_WINDOW_SIZE = 256 * 1024;
+    // smallest file size for which checksums are computed in parallel
+    private static final long PARALLEL_CHECKSUM_MIN_SIZE = 16 * 1024 * 1024;
     private final RsyncOutChannel _senderOutChannel;
     private final byte[] _checksumSeed;
 
     private final LinkedBlockingQueue<Job> _jobs = new LinkedBlockingQueue<>();
     private Deque<Runnable> _deferredFileAttrUpdates = new ArrayDeque<>();
+    private final AttributeUpdater _attributeUpdater = new AttributeUpdater();
     private final TextEncoder _characterEncoder;
     private final TextDecoder _characterDecoder;
     private final SimpleDateFormat _compatibleTimeFormatter =
         new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
     private final List<Filelist.Segment> _generated = new LinkedList<>();
     private final PrintStream _out;
+    private ChecksumAlgorithm _checksumAlgorithm = ChecksumAlgorithm.MD5;
+    private int _checksumParallelism = 1;
+    private ForkJoinPool _checksumPool;   // created on demand
+    private BlockLengthStrategy _blockLengthStrategy =
+        new SquareRootBlockLength();
     private boolean _isAlwaysItemize;
     private boolean _isRecursive;
     private boolean _isPreservePermissions;
     private boolean _isPreserveTimes;
     private boolean _isPreserveUser;
     private boolean _isIgnoreTimes;
+    private boolean _isInplace;
+    private boolean _isWholeFile;
+    private Path _partialDir;
     private boolean _isListOnly;
     private Filelist _fileList;  // effectively final
     private int _returnStatus ;
@@ -108,7 +122,7 @@ public class Generator implements RsyncTask
                      byte[] checksumSeed, PrintStream stdout)
     {
 
-        _senderOutChannel = new RsyncOutChannel(out, OUTPUT_CHANNEL_BUF_SIZE);
+        _senderOutChannel = new RsyncOutChannel(out);
         _checksumSeed = checksumSeed;
         _characterDecoder = TextDecoder.newStrict(charset);
         _characterEncoder = TextEncoder.newStrict(charset);
@@ -145,18 +159,21 @@ public class Generator implements RsyncTask
     public Generator setIsPreservePermissions(boolean isPreservePermissions)
     {
         _isPreservePermissions = isPreservePermissions;
+        _attributeUpdater.setIsPreservePermissions(isPreservePermissions);
         return this;
     }
 
     public Generator setIsPreserveTimes(boolean isPreserveTimes)
     {
         _isPreserveTimes = isPreserveTimes;
+        _attributeUpdater.setIsPreserveTimes(isPreserveTimes);
         return this;
     }
 
     public Generator setIsPreserveUser(boolean isPreserveUser)
     {
         _isPreserveUser = isPreserveUser;
+        _attributeUpdater.setIsPreserveUser(isPreserveUser);
         return this;
     }
 
@@ -166,6 +183,39 @@ public class Generator implements RsyncTask
         return this;
     }
 
+    /**
+     * The receiver updates the files in place, the data of a failed
+     * transfer is then requested without any checksums since the basis
+     * file has already been modified.
+     */
+    public Generator setIsInplace(boolean isInplace)
+    {
+        _isInplace = isInplace;
+        return this;
+    }
+
+    /**
+     * Request all files without any checksums, i.e. the sender sends the
+     * whole file as literal data instead of searching the basis file for
+     * matching blocks.
+     */
+    public Generator setIsWholeFile(boolean isWholeFile)
+    {
+        _isWholeFile = isWholeFile;
+        return this;
+    }
+
+    /**
+     * Use a partial file kept in partialDir by the Receiver, if there is
+     * one, as the basis file instead of the target file. Ignored when
+     * updating files in place.
+     */
+    public Generator setPartialDir(Path partialDir)
+    {
+        _partialDir = partialDir;
+        return this;
+    }
+
     public Generator setIsAlwaysItemize(boolean isAlwaysItemize)
     {
         _isAlwaysItemize = isAlwaysItemize;
@@ -178,6 +228,43 @@ public class Generator implements RsyncTask
         return this;
     }
 
+    public Generator setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm)
+    {
+        assert checksumAlgorithm != null;
+        _checksumAlgorithm = checksumAlgorithm;
+        return this;
+    }
+
+    /**
+     * @param checksumParallelism the number of threads used for computing
+     *        the block checksums of large files, 1 means that they are
+     *        computed by the generator thread itself
+     */
+    public Generator setChecksumParallelism(int checksumParallelism)
+    {
+        assert checksumParallelism > 0;
+        _checksumParallelism = checksumParallelism;
+        return this;
+    }
+
+    /**
+     * Size the channel buffer using allocator, shared by all tasks of the
+     * session.
+     */
+    public Generator setBufferAllocator(BufferAllocator allocator)
+    {
+        _senderOutChannel.setBufferAllocator(allocator);
+        return this;
+    }
+
+    public Generator setBlockLengthStrategy(
+        BlockLengthStrategy blockLengthStrategy)
+    {
+        assert blockLengthStrategy != null;
+        _blockLengthStrategy = blockLengthStrategy;
+        return this;
+    }
+
     @Override
     public boolean isInterruptible()
     {
@@ -282,6 +369,10 @@ public class Generator implements RsyncTask
             return _returnStatus == 0;
         } catch (RuntimeInterruptException e) {
             throw new InterruptedException();
+        } finally {
+            if (_checksumPool != null) {
+                _checksumPool.shutdownNow();
+            }
         }
     }
 
@@ -401,9 +492,23 @@ public class Generator implements RsyncTask
         appendJob(j);
     }
 
-    public void generateFile(final Filelist.Segment segment,
-                             final int fileIndex,
-                             final FileInfo fileInfo)
+    public void generateFile(Filelist.Segment segment,
+                             int fileIndex,
+                             FileInfo fileInfo)
+        throws InterruptedException
+    {
+        generateFile(segment, fileIndex, fileInfo, null);
+    }
+
+    /**
+     * Same as generateFile but uses redoBasis (if non-null) as the basis
+     * file, i.e. the data received by a previous attempt that failed
+     * verification. The Receiver must use the same basis.
+     */
+    void generateFile(final Filelist.Segment segment,
+                      final int fileIndex,
+                      final FileInfo fileInfo,
+                      final Path redoBasis)
         throws InterruptedException
     {
         Job j = new Job() {
@@ -412,7 +517,8 @@ public class Generator implements RsyncTask
                 try {
                     boolean isTransfer =
                         sendFileMetadata(fileIndex, fileInfo,
-                                          Checksum.MAX_DIGEST_LENGTH);
+                                         _checksumAlgorithm.digestLength(),
+                                         redoBasis);
                     if (!isTransfer) {
                         segment.remove(fileIndex);
                         removeAllFinishedSegmentsAndNotifySender();
@@ -490,7 +596,8 @@ public class Generator implements RsyncTask
                         isTransfer = sendFileMetadata(
                                          index,
                                          f,
-                                         Checksum.MIN_DIGEST_LENGTH);
+                                         Checksum.MIN_DIGEST_LENGTH,
+                                         null);
                     } else if (!_isRecursive && f.attrs().isDirectory()) {
                         sendDirectoryMetadata(index, f);
                     } else {
@@ -619,8 +726,30 @@ public class Generator implements RsyncTask
         }
     }
 
-    private static boolean isDataModified(RsyncFileAttributes old,
-                                          RsyncFileAttributes current)
+    /**
+     * @return the file in partialDir (resolved against the directory of
+     *         target if relative) for keeping partial data of target
+     */
+    static Path partialFileOf(Path target, Path partialDir)
+    {
+        return target.resolveSibling(partialDir).resolve(target.getFileName());
+    }
+
+    /**
+     * @return the partial file of target in partialDir if it exists, else
+     *         target
+     */
+    static Path basisOf(Path target, Path partialDir)
+    {
+        Path partialFile = partialFileOf(target, partialDir);
+        if (Files.isRegularFile(partialFile, LinkOption.NOFOLLOW_LINKS)) {
+            return partialFile;
+        }
+        return target;
+    }
+
+    static boolean isDataModified(RsyncFileAttributes old,
+                                  RsyncFileAttributes current)
     {
         assert old != null;
         return current == null ||
@@ -640,7 +769,8 @@ public class Generator implements RsyncTask
 
         RsyncFileAttributes existingAttrs =
             RsyncFileAttributes.statIfExists(fileInfo.path());                  // value: null if file does not exist else non-null, throws IOException for other errors
-        boolean isRemoved = removeExistingIfDifferentType(fileInfo, existingAttrs); // throws IOException if fails to remove existing
+        boolean isRemoved = AttributeUpdater.removeIfDifferentType(
+            fileInfo.path(), existingAttrs, fileInfo.attrs());                  // throws IOException if fails to remove existing
         if (isRemoved) {
             existingAttrs = null;
         }
@@ -650,7 +780,8 @@ public class Generator implements RsyncTask
 
     private boolean sendFileMetadata(int index,
                                      FileInfo fileInfo,
-                                     int digestLength)
+                                     int digestLength,
+                                     Path redoBasis)
         throws ChannelException,IOException
     {
         assert index >= 0;
@@ -663,7 +794,8 @@ public class Generator implements RsyncTask
 
         RsyncFileAttributes existingAttrs =
             RsyncFileAttributes.statIfExists(fileInfo.path());              // value: null if file does not exist else non-null, throws IOException for other errors
-        boolean isRemoved = removeExistingIfDifferentType(fileInfo, existingAttrs); // throws IOException if fails to remove existing
+        boolean isRemoved = AttributeUpdater.removeIfDifferentType(
+            fileInfo.path(), existingAttrs, fileInfo.attrs());                  // throws IOException if fails to remove existing
         if (isRemoved) {
             if (_log.isLoggable(Level.FINE)) {
                 _log.fine("(Generator) removed existing file of different " +
@@ -677,7 +809,8 @@ public class Generator implements RsyncTask
             _log.fine("(Generator) target attrs=" + fileInfo.attrs());
         }
 
-        return itemizeFile(index, fileInfo, existingAttrs, digestLength);
+        return itemizeFile(index, fileInfo, existingAttrs, digestLength,
+                           redoBasis);
     }
 
     private void sendChecksumHeader(Checksum.Header header)
@@ -686,47 +819,68 @@ public class Generator implements RsyncTask
         Connection.sendChecksumHeader(_senderOutChannel, header);
     }
 
-    // could we possibly adaptively correlate block checksum size with checksum
-    // match ratio? or inversely correlate channel speed or a combination
-    private int getBlockLengthFor(long fileSize)
+    private int getBlockLengthFor(Path path, long fileSize)
     {
         assert fileSize >= 0;
         if (fileSize == 0) {
             return 0;
         }
-        int blockLength = pow2SquareRoot(fileSize);
-        assert fileSize / blockLength <= Integer.MAX_VALUE;
-        return Math.max(MIN_BLOCK_SIZE, blockLength);
+        return _blockLengthStrategy.blockLengthFor(path, fileSize);
+    }
+
+    /**
+     * Reports the outcome of combining the data of fileInfo with its basis
+     * file using the checksum block length blockLength to the block length
+     * strategy. May be called from any thread.
+     */
+    void addMatchResult(FileInfo fileInfo, int blockLength,
+                        long numBytesLiteral, long numBytesMatched)
+    {
+        _blockLengthStrategy.addResult(fileInfo.path(), blockLength,
+                                       numBytesLiteral, numBytesMatched);
     }
 
     // reduce protocol overhead when sending lots of checksums
-    private static int getDigestLength(long fileSize, int block_length)
+    private int getDigestLength(long fileSize, int block_length)
     {
         int result = ((int) (10 + 2 * (long) Util.log2(fileSize) -
                             (long) Util.log2(block_length)) - 24) / 8;
-        result = Math.min(result, Checksum.MAX_DIGEST_LENGTH);
+        result = Math.min(result, _checksumAlgorithm.digestLength());
         return Math.max(result, Checksum.MIN_DIGEST_LENGTH);
     }
 
     private void sendItemizeAndChecksums(int index,
                                          FileInfo fileInfo,
                                          RsyncFileAttributes curAttrs,
+                                         Path basis,
+                                         long basisSize,
                                          int minDigestLength)
         throws ChannelException
     {
-        long currentSize = curAttrs.size();
-        int blockLength = getBlockLengthFor(currentSize);
-//        int blockLength = getCompatibleBlockLengthFor(currentSize);
-        int windowLength = blockLength;
+        long currentSize = basisSize;
+        int blockLength = getBlockLengthFor(fileInfo.path(), currentSize);
+        int numBlocksPerWindow = blockLength > 0
+                                 ? Math.max(1, CHECKSUM_WINDOW_SIZE /
+                                               blockLength)
+                                 : 0;
+        int windowLength = numBlocksPerWindow * blockLength;
         int digestLength = currentSize > 0
                            ? Math.max(minDigestLength,
                                       getDigestLength(currentSize, blockLength))
                            : 0;
 
-        try (FileView fv = new FileView(fileInfo.path(),
-                                        currentSize,
-                                        blockLength,
-                                        windowLength)) {   // throws FileViewOpenFailed
+        if (_checksumParallelism > 1 &&
+            currentSize >= PARALLEL_CHECKSUM_MIN_SIZE) {
+            sendItemizeAndParallelChecksums(index, fileInfo, curAttrs, basis,
+                                            currentSize, blockLength,
+                                            digestLength);
+            return;
+        }
+
+        try (FileView fv = FileView.open(basis,
+                                         currentSize,
+                                         windowLength,
+                                         windowLength)) {   // throws FileViewOpenFailed
 
             Checksum.Header header = new Checksum.Header(blockLength,
                                                          digestLength,
@@ -740,17 +894,28 @@ public class Generator implements RsyncTask
             sendItemizeInfo(index, curAttrs, fileInfo.attrs(), Item.TRANSFER);
             sendChecksumHeader(header);
 
-            MessageDigest md = MD5.newInstance();
+            MessageDigest md = _checksumAlgorithm.newInstance();
+            byte[] digest = new byte[md.getDigestLength()];
+
+            int[] rollings = new int[numBlocksPerWindow];
 
             while (fv.windowLength() > 0) {
-                int rolling = Rolling.compute(fv.array(),
-                                              fv.startOffset(),
-                                              fv.windowLength());
-                _senderOutChannel.putInt(rolling);
-                md.update(fv.array(), fv.startOffset(), fv.windowLength());
-                md.update(_checksumSeed);
-                byte[] md5 = md.digest();
-                _senderOutChannel.put(md5, 0, digestLength);
+                int numBlocks = Rolling.computeBlocks(fv.buffer(),
+                                                      fv.startOffset(),
+                                                      fv.windowLength(),
+                                                      blockLength,
+                                                      rollings);
+                int offset = fv.startOffset();
+                int endOffset = offset + fv.windowLength();
+                for (int i = 0; i < numBlocks; i++) {
+                    int length = Math.min(blockLength, endOffset - offset);
+                    _senderOutChannel.putInt(rollings[i]);
+                    md.update(fv.range(offset, length));
+                    md.update(_checksumSeed);
+                    MD5.digestInto(md, digest);
+                    _senderOutChannel.put(digest, 0, digestLength);
+                    offset += length;
+                }
                 fv.slide(fv.windowLength());
             }
         } catch (FileViewOpenFailed | Checksum.ChunkOverflow e) {
@@ -770,69 +935,52 @@ public class Generator implements RsyncTask
         }
     }
 
-    private void updateAttrsIfDiffer(Path path, RsyncFileAttributes curAttrs,
-                                     RsyncFileAttributes targetAttrs)
-        throws IOException
+    private void sendItemizeAndParallelChecksums(int index,
+                                                 FileInfo fileInfo,
+                                                 RsyncFileAttributes curAttrs,
+                                                 Path basis,
+                                                 long basisSize,
+                                                 int blockLength,
+                                                 int digestLength)
+        throws ChannelException
     {
-        if (_isPreservePermissions && (curAttrs == null ||
-                                       curAttrs.mode() != targetAttrs.mode())) {
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format(
-                    "(Generator) updating file permissions %o -> %o on %s",
-                    curAttrs == null ? 0 : curAttrs.mode(),
-                    targetAttrs.mode(), path));
-            }
-            FileOps.setFileMode(path, targetAttrs.mode(),
-                                LinkOption.NOFOLLOW_LINKS);
+        if (_checksumPool == null) {
+            _checksumPool = new ForkJoinPool(_checksumParallelism);
         }
-        if (_isPreserveTimes &&
-            (curAttrs == null ||
-             curAttrs.lastModifiedTime() != targetAttrs.lastModifiedTime()))
-        {
+
+        try (ParallelChecksums checksums =
+                new ParallelChecksums(_checksumPool, basis,
+                                      basisSize, blockLength,
+                                      digestLength, _checksumAlgorithm,
+                                      _checksumSeed)) {                        // throws IOException
+            Checksum.Header header = new Checksum.Header(blockLength,
+                                                         digestLength,
+                                                         basisSize);          // throws ChunkCountOverflow
             if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format(
-                    "(Generator) updating mtime %d -> %d on %s",
-                    curAttrs == null ? 0 : curAttrs.lastModifiedTime(),
-                    targetAttrs.lastModifiedTime(), path));
+                _log.fine(String.format("(Generator) generating file %s, " +
+                                        "index %d, checksum %s in parallel",
+                                        fileInfo, index, header));
             }
-            FileOps.setLastModifiedTime(path, targetAttrs.lastModifiedTime(),
-                                        LinkOption.NOFOLLOW_LINKS);
-        }
-        // NOTE: keep this one last in the method, in case we fail due to
-        //       insufficient permissions (the other ones are more likely to
-        //       succeed).
-        // NOTE: we cannot detect if we have the capabilities to change
-        //       ownership (knowing if UID 0 is not sufficient)
-        // TODO: fall back to changing uid (find out how rsync works) if name
-        //       change fails
-        if (_isPreserveUser && !targetAttrs.user().name().isEmpty() &&
-            (curAttrs == null ||
-             !curAttrs.user().name().equals(targetAttrs.user().name())))
-        {
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format(
-                    "(Generator) updating ownership %s -> %s on %s",
-                    curAttrs == null ? "" : curAttrs.user(),
-                    targetAttrs.user(), path));
+
+            sendItemizeInfo(index, curAttrs, fileInfo.attrs(), Item.TRANSFER);
+            sendChecksumHeader(header);
+            checksums.sendTo(_senderOutChannel);
+
+            if (checksums.ioErrorOrNull() != null &&
+                _log.isLoggable(Level.WARNING)) {
+                _log.warning("(Generator) Warning got I/O errors during " +
+                             "checksum generation. Errors ignored and data " +
+                             "filled with zeroes): " +
+                             checksums.ioErrorOrNull().getMessage());
             }
-            // NOTE: side effect of chown in Linux is that set user/group id bit
-            //       might be cleared.
-            FileOps.setOwner(path, targetAttrs.user(),
-                             LinkOption.NOFOLLOW_LINKS);
-        } else if (_isPreserveUser && targetAttrs.user().name().isEmpty() &&
-            (curAttrs == null ||
-             curAttrs.user().uid() != targetAttrs.user().uid()))
-        {
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format(
-                    "(Generator) updating uid %s -> %d on %s",
-                    curAttrs == null ? "" : curAttrs.user().uid(),
-                    targetAttrs.user().uid(), path));
+        } catch (IOException | Checksum.ChunkOverflow e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(Generator) received I/O error during checksum " +
+                    "generation (%s)", e.getMessage()));
             }
-            // NOTE: side effect of chown in Linux is that set user/group id bit
-            //       might be cleared.
-            FileOps.setUserId(path, targetAttrs.user().uid(),
-                              LinkOption.NOFOLLOW_LINKS);
+            sendItemizeInfo(index, null, fileInfo.attrs(), Item.TRANSFER);
+            sendChecksumHeader(ZERO_SUM);
         }
     }
 
@@ -845,7 +993,8 @@ public class Generator implements RsyncTask
             @Override
             public void run() {
                 try {
-                    updateAttrsIfDiffer(path, curAttrs, targetAttrs);
+                    _attributeUpdater.updateAttrsIfDiffer(path, curAttrs,
+                                                          targetAttrs);
                 } catch (IOException e) {
                     if (_log.isLoggable(Level.WARNING)) {
                         _log.warning(String.format(
@@ -862,18 +1011,31 @@ public class Generator implements RsyncTask
     private boolean itemizeFile(int index,
                                 FileInfo fileInfo,
                                 RsyncFileAttributes curAttrs,
-                                int digestLength)
+                                int digestLength,
+                                Path redoBasis)
         throws ChannelException
     {
         // NOTE: native opens the file first though even if its file size is zero
         if (isDataModified(fileInfo.attrs(), curAttrs) || _isIgnoreTimes) {
-            if (curAttrs == null) {
+            Path basis = fileInfo.path();
+            RsyncFileAttributes basisAttrs = curAttrs;
+            if (redoBasis != null) {
+                basis = redoBasis;
+                basisAttrs = RsyncFileAttributes.statOrNull(redoBasis);
+            } else if (_partialDir != null && !_isInplace) {
+                basis = basisOf(fileInfo.path(), _partialDir);
+                if (!basis.equals(fileInfo.path())) {
+                    basisAttrs = RsyncFileAttributes.statOrNull(basis);
+                }
+            }
+            if (basisAttrs == null || _isWholeFile ||
+                _isInplace && fileInfo.isTransferred()) {
                 sendItemizeInfo(index, curAttrs, fileInfo.attrs(),
                                 Item.TRANSFER);
                 sendChecksumHeader(ZERO_SUM);
             } else {
-                sendItemizeAndChecksums(index, fileInfo, curAttrs,
-                                        digestLength);
+                sendItemizeAndChecksums(index, fileInfo, curAttrs, basis,
+                                        basisAttrs.size(), digestLength);
             }
             return true;
         }
@@ -883,7 +1045,8 @@ public class Generator implements RsyncTask
         }
 
         try {
-            updateAttrsIfDiffer(fileInfo.path(), curAttrs, fileInfo.attrs());
+            _attributeUpdater.updateAttrsIfDiffer(fileInfo.path(), curAttrs,
+                                                  fileInfo.attrs());
         } catch (IOException e) {
             if (_log.isLoggable(Level.WARNING)) {
                 _log.warning(String.format(
@@ -954,49 +1117,6 @@ public class Generator implements RsyncTask
         }
     }
 
-    private boolean removeExistingIfDifferentType(
-                                              FileInfo fileInfo,
-                                              RsyncFileAttributes existingAttrs)
-        throws IOException
-    {
-        if (existingAttrs != null &&
-            existingAttrs.fileType() != fileInfo.attrs().fileType()) {
-            // TODO: BUG: this won't properly delete non-empty directories
-            Files.deleteIfExists(fileInfo.path());
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    // return the square root of num as the nearest lower number in base 2
-    /**
-     * @throws IllegalArgumentException if num is negative or result would
-     *         overflow an integer
-     */
-    private static int pow2SquareRoot(long num)
-    {
-        if (num < 0) {
-            throw new IllegalArgumentException(String.format(
-                "cannot compute square root of %d", num));
-        }
-
-        if (num == 0) {
-            return 0;
-        }
-        // sqrt(2**n) == 2**(n/2)
-        long nearestLowerBase2 = Long.highestOneBit(num);
-        int exponent = Long.numberOfTrailingZeros(nearestLowerBase2);
-        int sqrtExponent = exponent / 2;
-        long result = 1 << sqrtExponent;
-        if (result < 0 || result > Integer.MAX_VALUE) {
-            throw new IllegalArgumentException(String.format(
-                "square root of %d (%d) is either negative or larger than max" +
-                " int value (%d)", num, result, Integer.MAX_VALUE));
-        }
-        return (int) result;
-    }
-
     private void removeAllFinishedSegmentsAndNotifySender()
         throws ChannelException
     {
@@ -0,0 +1,492 @@
+/*
+ * Rsync local transfer copying file data directly between files
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.util.FileOps;
+import com.github.perlundq.yajsync.util.PathOps;
+
+/**
+ * A local transfer which does not use the rsync protocol at all. The
+ * source files are selected by SourceFiles just as for Sender, the target
+ * path is resolved by Receiver.isTargetSingleFile, files are skipped
+ * using Generator.isDataModified and attributes and file types are
+ * updated by AttributeUpdater just as by Generator. Modified files are
+ * then copied whole by a pool of threads directly from the source file
+ * into a temporary file (or the target file itself if in place) using
+ * FileChannel.transferTo.
+ *
+ * Module listings, the delta transfer algorithm and sparse files are not
+ * supported, RsyncLocal uses the protocol based transfer for those.
+ */
+class LocalCopy
+{
+    private static final Logger _log =
+        Logger.getLogger(LocalCopy.class.getName());
+
+    private static final int MAX_NUM_PENDING_PER_THREAD = 64;
+
+    // a file or directory and its path name relative to the target
+    private static class Entry
+    {
+        private final Path _path;
+        private final Path _relativePath;
+        private final RsyncFileAttributes _attrs;
+
+        private Entry(Path path, Path relativePath, RsyncFileAttributes attrs)
+        {
+            _path = path;
+            _relativePath = relativePath;
+            _attrs = attrs;
+        }
+
+        private boolean isDotDir()
+        {
+            return _attrs.isDirectory() &&
+                   _relativePath.equals(PathOps.EMPTY);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s %s", _path, _attrs);
+        }
+    }
+
+    private final AtomicInteger _numErrors = new AtomicInteger();
+    private final AtomicInteger _numTransferredFiles = new AtomicInteger();
+    private final AtomicLong _totalTransferredSize = new AtomicLong();
+    // directory attributes are set last since copying into a directory
+    // updates its mtime, sub directories before parent directories
+    private final Deque<Runnable> _deferredDirAttrUpdates = new ArrayDeque<>();
+    private final Statistics _stats = new Statistics();
+    private final AttributeUpdater _attributeUpdater = new AttributeUpdater();
+    private boolean _isRecursive;
+    private boolean _isTransferDirs;
+    private boolean _isIgnoreTimes;
+    private boolean _isInplace;
+    private boolean _isPreallocate;
+    private FileCommitter _committer = new FileCommitter(Durability.NONE);
+    private int _parallelism = 1;
+    private int _numFiles;
+    private long _totalFileSize;
+
+    public LocalCopy setIsRecursive(boolean isRecursive)
+    {
+        _isRecursive = isRecursive;
+        return this;
+    }
+
+    public LocalCopy setIsTransferDirs(boolean isTransferDirs)
+    {
+        _isTransferDirs = isTransferDirs;
+        return this;
+    }
+
+    public LocalCopy setIsPreservePermissions(boolean isPreservePermissions)
+    {
+        _attributeUpdater.setIsPreservePermissions(isPreservePermissions);
+        return this;
+    }
+
+    public LocalCopy setIsPreserveTimes(boolean isPreserveTimes)
+    {
+        _attributeUpdater.setIsPreserveTimes(isPreserveTimes);
+        return this;
+    }
+
+    public LocalCopy setIsPreserveUser(boolean isPreserveUser)
+    {
+        _attributeUpdater.setIsPreserveUser(isPreserveUser);
+        return this;
+    }
+
+    public LocalCopy setIsIgnoreTimes(boolean isIgnoreTimes)
+    {
+        _isIgnoreTimes = isIgnoreTimes;
+        return this;
+    }
+
+    public LocalCopy setIsInplace(boolean isInplace)
+    {
+        _isInplace = isInplace;
+        return this;
+    }
+
+    public LocalCopy setIsPreallocate(boolean isPreallocate)
+    {
+        _isPreallocate = isPreallocate;
+        return this;
+    }
+
+    public LocalCopy setDurability(Durability durability)
+    {
+        _committer = new FileCommitter(durability);
+        return this;
+    }
+
+    public LocalCopy setParallelism(int parallelism)
+    {
+        assert parallelism > 0;
+        _parallelism = parallelism;
+        return this;
+    }
+
+    public Statistics statistics()
+    {
+        return _stats;
+    }
+
+    /**
+     * @throws RsyncException if the target path cannot be used for the
+     *         source files
+     * @throws InterruptedException if interrupted while waiting for the
+     *         copying to finish, the copying is then cancelled
+     */
+    public boolean transfer(Iterable<Path> srcPaths, String targetPathName)
+        throws RsyncException, InterruptedException
+    {
+        List<Entry> initial = initialExpand(srcPaths);
+        _numFiles = initial.size();
+        if (initial.isEmpty()) {
+            return _numErrors.get() == 0;
+        }
+
+        Path targetPath;
+        try {
+            targetPath = Paths.get(targetPathName);
+        } catch (InvalidPathException e) {
+            throw new RsyncException(String.format(
+                "illegal target path name %s: %s", targetPathName, e));
+        }
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            _parallelism, _parallelism, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(_parallelism *
+                                             MAX_NUM_PENDING_PER_THREAD),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            if (isTargetSingleFile(targetPath, initial)) {
+                submitFile(executor, initial.get(0), targetPath);
+            } else {
+                createTargetDirectory(targetPath, initial);
+                copyAll(executor, initial, targetPath);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+            _committer.close();
+        }
+        _numErrors.addAndGet(_committer.numErrors());
+
+        for (Runnable r : _deferredDirAttrUpdates) {
+            r.run();
+        }
+
+        _stats.setNumFiles(_numFiles);
+        _stats.setNumTransferredFiles(_numTransferredFiles.get());
+        _stats.setTotalFileSize(_totalFileSize);
+        _stats.setTotalTransferredSize(_totalTransferredSize.get());
+        _stats.setTotalLiteralSize(_totalTransferredSize.get());
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine(String.format("LocalCopy returned %d errors",
+                                    _numErrors.get()));
+        }
+        return _numErrors.get() == 0;
+    }
+
+    private List<Entry> initialExpand(Iterable<Path> srcPaths)
+    {
+        Map<Path, RsyncFileAttributes> initial = new LinkedHashMap<>();
+        if (!SourceFiles.initialExpand(srcPaths, _isRecursive,
+                                       _isTransferDirs, initial)) {
+            _numErrors.incrementAndGet();
+        }
+        List<Entry> result = new LinkedList<>();
+        for (Map.Entry<Path, RsyncFileAttributes> e : initial.entrySet()) {
+            Path name = e.getKey().getFileName();
+            result.add(new Entry(e.getKey(),
+                                 name.equals(PathOps.DOT_DIR)
+                                     ? PathOps.EMPTY : name,
+                                 e.getValue()));
+        }
+        return result;
+    }
+
+    private static boolean isTargetSingleFile(Path targetPath,
+                                              List<Entry> initial)
+        throws RsyncException
+    {
+        return Receiver.isTargetSingleFile(targetPath,
+                                           statIfExists(targetPath),
+                                           initial, initial.get(0)._attrs);
+    }
+
+    private static RsyncFileAttributes statIfExists(Path path)
+        throws RsyncException
+    {
+        try {
+            return RsyncFileAttributes.statIfExists(path);
+        } catch (IOException e) {
+            throw new RsyncException(String.format("unable to stat %s: %s",
+                                                   path, e));
+        }
+    }
+
+    private static void createTargetDirectory(Path targetPath,
+                                              List<Entry> initial)
+        throws RsyncException
+    {
+        try {
+            Files.createDirectories(targetPath);
+        } catch (IOException e) {
+            throw new RsyncException(String.format(
+                "unable to create target directory %s for %s: %s",
+                targetPath, initial, e));
+        }
+    }
+
+    // directories are created by the calling thread before any of their
+    // files are copied
+    private void copyAll(ThreadPoolExecutor executor, List<Entry> initial,
+                         Path targetPath)
+        throws InterruptedException
+    {
+        Deque<Entry> directories = new ArrayDeque<>();
+        for (Entry entry : initial) {
+            Path target = targetPath.resolve(entry._relativePath);
+            if (entry._attrs.isDirectory()) {
+                if (mkdir(target, entry) &&
+                    (_isRecursive || entry.isDotDir())) {
+                    directories.push(entry);
+                }
+            } else if (entry._attrs.isRegularFile()) {
+                submitFile(executor, entry, target);
+            } else if (_log.isLoggable(Level.FINE)) {
+                _log.fine("(LocalCopy) Skipping " + entry._path);
+            }
+        }
+
+        while (!directories.isEmpty()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Entry directory = directories.pop();
+            for (Entry entry : expand(directory)) {
+                _numFiles++;
+                Path target = targetPath.resolve(entry._relativePath);
+                if (entry._attrs.isDirectory()) {
+                    if (mkdir(target, entry) && _isRecursive) {
+                        directories.push(entry);
+                    }
+                } else if (entry._attrs.isRegularFile()) {
+                    submitFile(executor, entry, target);
+                } else if (_log.isLoggable(Level.FINE)) {
+                    _log.fine("(LocalCopy) Skipping " + entry._path);
+                }
+            }
+        }
+    }
+
+    private List<Entry> expand(Entry directory)
+    {
+        Map<Path, RsyncFileAttributes> entries = new LinkedHashMap<>();
+        if (!SourceFiles.expand(directory._path, entries)) {
+            _numErrors.incrementAndGet();
+        }
+        List<Entry> result = new LinkedList<>();
+        for (Map.Entry<Path, RsyncFileAttributes> e : entries.entrySet()) {
+            result.add(new Entry(e.getKey(),
+                                 directory._relativePath.resolve(
+                                     e.getKey().getFileName()),
+                                 e.getValue()));
+        }
+        return result;
+    }
+
+    // returns false if the directory could not be created
+    private boolean mkdir(final Path path, final Entry entry)
+    {
+        try {
+            RsyncFileAttributes curAttrs = removeIfDifferentType(path, entry);
+            if (curAttrs == null) {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine("(LocalCopy) creating directory " + path);
+                }
+                Files.createDirectories(path);
+            }
+            final RsyncFileAttributes attrs = curAttrs;
+            _deferredDirAttrUpdates.addFirst(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        _attributeUpdater.updateAttrsIfDiffer(
+                            path, attrs, entry._attrs);
+                    } catch (IOException e) {
+                        if (_log.isLoggable(Level.WARNING)) {
+                            _log.warning(String.format(
+                                "(LocalCopy) received I/O error while " +
+                                "applying attributes on %s: %s",
+                                path, e.getMessage()));
+                        }
+                        _numErrors.incrementAndGet();
+                    }
+                }
+            });
+            return true;
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(LocalCopy) failed to create directory %s: %s",
+                    path, e.getMessage()));
+            }
+            _numErrors.incrementAndGet();
+            return false;
+        }
+    }
+
+    private void submitFile(ThreadPoolExecutor executor, final Entry entry,
+                            final Path target)
+    {
+        _totalFileSize += entry._attrs.size();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    copyFileIfModified(entry, target);
+                } catch (IOException e) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format(
+                            "(LocalCopy) failed to copy %s to %s: %s",
+                            entry._path, target, e.getMessage()));
+                    }
+                    _numErrors.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void copyFileIfModified(Entry entry, Path target)
+        throws IOException
+    {
+        RsyncFileAttributes curAttrs = removeIfDifferentType(target, entry);
+        if (curAttrs != null && !_isIgnoreTimes &&
+            !Generator.isDataModified(entry._attrs, curAttrs))
+        {
+            _attributeUpdater.updateAttrsIfDiffer(target, curAttrs,
+                                                  entry._attrs);
+            return;
+        }
+
+        if (_log.isLoggable(Level.INFO)) {
+            _log.info(target.toString());
+        }
+        if (_isInplace) {
+            try (FileChannel out =
+                    FileChannel.open(target, StandardOpenOption.CREATE,
+                                     StandardOpenOption.WRITE)) {
+                if (_isPreallocate) {
+                    FileOps.preallocate(out, entry._attrs.size());
+                }
+                copyData(entry, out);
+                out.truncate(entry._attrs.size());
+            }
+            _attributeUpdater.updateAttrsIfDiffer(target, null, entry._attrs);
+            _committer.commit(target, target);
+        } else {
+            Path tempFile = Files.createTempFile(target.getParent(),
+                                                 null, null);
+            try {
+                try (FileChannel out =
+                        FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                    if (_isPreallocate) {
+                        FileOps.preallocate(out, entry._attrs.size());
+                    }
+                    copyData(entry, out);
+                }
+                _attributeUpdater.updateAttrsIfDiffer(tempFile, null,
+                                                      entry._attrs);
+                _committer.commit(tempFile, target);
+            } finally {
+                if (!_committer.isPending(tempFile)) {
+                    Files.deleteIfExists(tempFile);
+                }
+            }
+        }
+        _numTransferredFiles.incrementAndGet();
+        _totalTransferredSize.addAndGet(entry._attrs.size());
+    }
+
+    // copies the size of entry as given by the file list
+    private static void copyData(Entry entry, FileChannel out)
+        throws IOException
+    {
+        long size = entry._attrs.size();
+        try (FileChannel in = FileChannel.open(entry._path,
+                                               StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < size) {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0) {
+                    throw new EOFException(String.format(
+                        "%s was truncated during transfer, read %d bytes " +
+                        "but expected %d", entry._path, position, size));
+                }
+                position += n;
+            }
+        }
+    }
+
+    // returns the attributes of the existing path or null if not existing
+    // (any more)
+    private static RsyncFileAttributes removeIfDifferentType(Path path,
+                                                             Entry entry)
+        throws IOException
+    {
+        RsyncFileAttributes curAttrs = RsyncFileAttributes.statIfExists(path);
+        if (AttributeUpdater.removeIfDifferentType(path, curAttrs,
+                                                   entry._attrs)) {
+            return null;
+        }
+        return curAttrs;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Parallel computation of block checksums
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.Writable;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
+import com.github.perlundq.yajsync.util.MD5;
+import com.github.perlundq.yajsync.util.Rolling;
+import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+
+/**
+ * Splits a file into ranges of whole blocks whose rolling and strong
+ * checksums are computed concurrently on a ForkJoinPool, see
+ * ParallelFileReader. The checksums are still sent in block order.
+ */
+class ParallelChecksums extends ParallelFileReader<ParallelChecksums.Range>
+{
+    private static final int RANGE_SIZE = 1024 * 1024;
+    private final int _blockLength;
+    private final int _digestLength;
+    private final ChecksumAlgorithm _checksumAlgorithm;
+    private final byte[] _checksumSeed;
+
+    class Range extends Part<Range>
+    {
+        private final byte[] _buf = new byte[_partLength];
+        private final int[] _rollings =
+            new int[Rolling.numBlocks(_partLength, _blockLength)];
+        private final byte[] _digests = new byte[_rollings.length *
+                                                 _digestLength];
+        private final MessageDigest _md = _checksumAlgorithm.newInstance();
+        private final byte[] _digest = new byte[_md.getDigestLength()];
+        private int _numBlocks;
+
+        @Override
+        public Range call()
+        {
+            read(this, _buf, _length);
+            _numBlocks = Rolling.computeBlocks(_buf, 0, _length, _blockLength,
+                                               _rollings);
+            for (int i = 0; i < _numBlocks; i++) {
+                int offset = i * _blockLength;
+                _md.update(_buf, offset, Math.min(_blockLength,
+                                                  _length - offset));
+                _md.update(_checksumSeed);
+                MD5.digestInto(_md, _digest);
+                System.arraycopy(_digest, 0, _digests, i * _digestLength,
+                                 _digestLength);
+            }
+            return this;
+        }
+
+        private void sendTo(Writable out) throws ChannelException
+        {
+            for (int i = 0; i < _numBlocks; i++) {
+                out.putInt(_rollings[i]);
+                out.put(_digests, i * _digestLength, _digestLength);
+            }
+        }
+    }
+
+    public ParallelChecksums(ForkJoinPool pool, Path path, long fileSize,
+                             int blockLength, int digestLength,
+                             ChecksumAlgorithm checksumAlgorithm,
+                             byte[] checksumSeed)
+        throws IOException
+    {
+        super(pool, path, fileSize,
+              Math.max(1, RANGE_SIZE / blockLength) * blockLength);
+        assert blockLength > 0;
+        assert digestLength > 0;
+        assert digestLength <= checksumAlgorithm.digestLength();
+
+        _blockLength = blockLength;
+        _digestLength = digestLength;
+        _checksumAlgorithm = checksumAlgorithm;
+        _checksumSeed = checksumSeed;
+    }
+
+    @Override
+    protected Range newPart()
+    {
+        return new Range();
+    }
+
+    /**
+     * Sends the rolling checksum and the digestLength first bytes of the
+     * strong checksum of each block, in block order.
+     *
+     * @throws RuntimeInterruptException if interrupted while waiting for
+     *         the checksums of a range
+     */
+    public void sendTo(final Writable out) throws ChannelException
+    {
+        consumeInOrder(new Consumer<Range>() {
+            @Override
+            public void consume(Range range) throws ChannelException {
+                range.sendTo(out);
+            }
+        });
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Parallel processing of the parts of a file, consumed in file order
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+
+/**
+ * Splits a file into parts of partLength bytes (the last one might be
+ * shorter) which are read and processed concurrently on a ForkJoinPool,
+ * and hands them to a Consumer in file order. At most two parts per thread
+ * of the pool are kept in memory, a consumed part is reused for a later
+ * one.
+ *
+ * Just like for FileView an I/O error does not abort the processing, the
+ * missing data is replaced by zeroes and the error is available from
+ * ioErrorOrNull() afterwards.
+ */
+abstract class ParallelFileReader<T extends ParallelFileReader.Part<T>>
+    implements AutoCloseable
+{
+    /**
+     * A part of the file, read and processed by call() which returns the
+     * part itself.
+     */
+    abstract static class Part<T> implements Callable<T>
+    {
+        protected long _position;
+        protected int _length;
+        protected IOException _readError;
+
+        protected void reset(long position, int length)
+        {
+            _position = position;
+            _length = length;
+            _readError = null;
+        }
+    }
+
+    interface Consumer<T>
+    {
+        void consume(T part) throws ChannelException;
+    }
+
+    protected final long _fileSize;
+    protected final int _partLength;
+    private final ForkJoinPool _pool;
+    private final FileChannel _channel;
+    private IOException _ioError;
+
+    protected ParallelFileReader(ForkJoinPool pool, Path path, long fileSize,
+                                 int partLength)
+        throws IOException
+    {
+        assert pool != null;
+        assert fileSize > 0;
+        assert partLength > 0;
+
+        _pool = pool;
+        _fileSize = fileSize;
+        _partLength = partLength;
+        _channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    protected abstract T newPart();
+
+    @Override
+    public void close()
+    {
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            if (_ioError == null) {
+                _ioError = e;
+            }
+        }
+    }
+
+    /**
+     * @return the first I/O error encountered by consumeInOrder or null
+     */
+    public IOException ioErrorOrNull()
+    {
+        return _ioError;
+    }
+
+    /**
+     * Reads length bytes of the file starting at part's position into
+     * buf[0, length). Any bytes which cannot be read are replaced by zeroes
+     * and the error is stored in part.
+     */
+    protected void read(Part<T> part, byte[] buf, int length)
+    {
+        ByteBuffer dst = ByteBuffer.wrap(buf, 0, length);
+        try {
+            while (dst.hasRemaining()) {
+                int numBytesRead = _channel.read(dst, part._position +
+                                                      dst.position());
+                if (numBytesRead < 0) {
+                    throw new EOFException(String.format(
+                        "File ended prematurely (%d)", numBytesRead));
+                }
+            }
+        } catch (IOException e) {
+            part._readError = e;
+            Arrays.fill(buf, dst.position(), length, (byte) 0);
+        }
+    }
+
+    /**
+     * Processes all parts of the file and hands each one to consumer, in
+     * file order.
+     *
+     * @throws RuntimeInterruptException if interrupted while waiting for a
+     *         part to be processed
+     */
+    protected void consumeInOrder(Consumer<T> consumer)
+        throws ChannelException
+    {
+        int maxNumPending = 2 * _pool.getParallelism();
+        Deque<ForkJoinTask<T>> pending = new ArrayDeque<>(maxNumPending);
+        Deque<T> unused = new ArrayDeque<>(maxNumPending);
+        long position = 0;
+
+        try {
+            while (position < _fileSize || !pending.isEmpty()) {
+                while (position < _fileSize && pending.size() < maxNumPending) {
+                    T part = unused.isEmpty() ? newPart() : unused.pop();
+                    int length = (int) Math.min(_partLength,
+                                                _fileSize - position);
+                    part.reset(position, length);
+                    pending.add(_pool.submit(part));
+                    position += length;
+                }
+                T part = pending.remove().get();
+                consumer.consume(part);
+                if (_ioError == null) {
+                    _ioError = part._readError;
+                }
+                unused.push(part);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (ForkJoinTask<T> task : pending) {
+                task.cancel(false);
+            }
+        }
+    }
+}
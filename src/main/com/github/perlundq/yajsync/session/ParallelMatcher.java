@@ -0,0 +1,292 @@
+/*
+ * Parallel search for matching blocks
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.Writable;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
+import com.github.perlundq.yajsync.util.MD5;
+import com.github.perlundq.yajsync.util.Rolling;
+import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+
+/**
+ * Splits a file into regions which are searched for blocks matching the
+ * peer's checksums concurrently on a ForkJoinPool, see
+ * ParallelFileReader. Each region is read
+ * together with the blockLength - 1 bytes following it so that a match may
+ * start at any offset of the region. The matches of all regions are then
+ * merged, in file order, into the same stream of literal data and match
+ * tokens as sent by Sender.sendMatchesAndData, skipping any match
+ * overlapping the previous one.
+ *
+ * If the peer updates its file in place a block is only matched at an
+ * offset not preceding its own offset, see Sender.setIsInplace.
+ */
+class ParallelMatcher extends ParallelFileReader<ParallelMatcher.Region>
+{
+    private static final int REGION_SIZE = 4 * 1024 * 1024;
+    private final Checksum _peerChecksum;
+    private final int _blockLength;
+    private final int _smallestChunkSize;
+    private final int _chunkSize;
+    private final ChecksumAlgorithm _checksumAlgorithm;
+    private final byte[] _checksumSeed;
+    private final boolean _isInplace;
+    private long _numBytesMatched;
+    private long _numBytesLiteral;
+    private long _sentPosition; // end of all data sent so far
+
+    // _length is the region length, excluding the overlap
+    class Region extends Part<Region>
+    {
+        private final byte[] _buf = new byte[_partLength + _blockLength - 1];
+        private final int[] _matchOffsets =
+            new int[Rolling.numBlocks(_partLength, _blockLength) + 1];
+        private final int[] _matchChunks = new int[_matchOffsets.length];
+        private final MessageDigest _md = _checksumAlgorithm.newInstance();
+        private final byte[] _digest = new byte[_md.getDigestLength()];
+        private int _numBytesRead;  // including the overlap
+        private int _numMatches;
+
+        @Override
+        protected void reset(long position, int length)
+        {
+            super.reset(position, length);
+            _numBytesRead = (int) Math.min(length + _blockLength - 1,
+                                           _fileSize - position);
+            _numMatches = 0;
+        }
+
+        @Override
+        public Region call()
+        {
+            read(this, _buf, _numBytesRead);
+            search();
+            return this;
+        }
+
+        // the window only shrinks below blockLength at the end of the file
+        private int windowLengthAt(int offset)
+        {
+            return Math.min(_blockLength, _numBytesRead - offset);
+        }
+
+        private void search()
+        {
+            int preferredIndex = 0;
+            int offset = 0;
+            int windowLength = windowLengthAt(offset);
+            int rolling = Rolling.compute(_buf, offset, windowLength);
+
+            while (offset < _length && windowLength >= _smallestChunkSize) {
+                int chunkIndex = matchOrNegative(offset, windowLength,
+                                                 rolling, preferredIndex);
+                if (chunkIndex >= 0) {
+                    _matchOffsets[_numMatches] = offset;
+                    _matchChunks[_numMatches] = chunkIndex;
+                    _numMatches++;
+                    preferredIndex = chunkIndex + 1;
+                    offset += windowLength;
+                    windowLength = windowLengthAt(offset);
+                    if (offset < _length &&
+                        windowLength >= _smallestChunkSize) {
+                        rolling = Rolling.compute(_buf, offset, windowLength);
+                    }
+                } else if (offset + windowLength < _numBytesRead) {
+                    rolling = Rolling.subtract(rolling, windowLength,
+                                               _buf[offset]);
+                    rolling = Rolling.add(rolling,
+                                          _buf[offset + windowLength]);
+                    offset++;
+                } else {
+                    rolling = Rolling.subtract(rolling, windowLength,
+                                               _buf[offset]);
+                    offset++;
+                    windowLength--;
+                }
+            }
+        }
+
+        private int matchOrNegative(int offset, int windowLength, int rolling,
+                                    int preferredIndex)
+        {
+            boolean isDigestComputed = false;
+            for (int chunkIndex = _peerChecksum.firstCandidate(rolling,
+                                                               windowLength,
+                                                               preferredIndex);
+                 chunkIndex >= 0;
+                 chunkIndex = _peerChecksum.nextCandidate(rolling,
+                                                          windowLength,
+                                                          preferredIndex,
+                                                          chunkIndex)) {
+                if (_isInplace &&
+                    (long) chunkIndex * _blockLength < _position + offset) {
+                    continue;
+                }
+                if (!isDigestComputed) {
+                    _md.update(_buf, offset, windowLength);
+                    _md.update(_checksumSeed);
+                    MD5.digestInto(_md, _digest);
+                    isDigestComputed = true;
+                }
+                if (_peerChecksum.isDigestEqual(chunkIndex, _digest)) {
+                    return chunkIndex;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * @param chunkSize the maximum length of each literal data token
+     */
+    public ParallelMatcher(ForkJoinPool pool, Path path, long fileSize,
+                           Checksum peerChecksum, int chunkSize,
+                           ChecksumAlgorithm checksumAlgorithm,
+                           byte[] checksumSeed, boolean isInplace)
+        throws IOException
+    {
+        super(pool, path, fileSize,
+              Math.max(REGION_SIZE, peerChecksum.header().blockLength()));
+        assert peerChecksum.header().blockLength() > 0;
+        assert chunkSize > 0;
+
+        _peerChecksum = peerChecksum;
+        _blockLength = peerChecksum.header().blockLength();
+        _smallestChunkSize = peerChecksum.header().smallestChunkSize();
+        _chunkSize = chunkSize;
+        _checksumAlgorithm = checksumAlgorithm;
+        _checksumSeed = checksumSeed;
+        _isInplace = isInplace;
+    }
+
+    @Override
+    protected Region newPart()
+    {
+        return new Region();
+    }
+
+    public long numBytesMatched()
+    {
+        return _numBytesMatched;
+    }
+
+    public long numBytesLiteral()
+    {
+        return _numBytesLiteral;
+    }
+
+    /**
+     * Sends all literal data and match tokens of the file in file order,
+     * excluding the terminating zero token, and updates fileDigest with the
+     * contents of the whole file. The data and tokens are compressed by
+     * deflater unless it is null.
+     *
+     * @throws RuntimeInterruptException if interrupted while waiting for
+     *         the matches of a region
+     */
+    public void sendTo(final Writable out, final TokenDeflater deflater,
+                       final MessageDigest fileDigest)
+        throws ChannelException
+    {
+        _peerChecksum.ensureIndex();
+        consumeInOrder(new Consumer<Region>() {
+            @Override
+            public void consume(Region region) throws ChannelException {
+                fileDigest.update(region._buf, 0, region._length);
+                _sentPosition = sendRegion(out, deflater, region,
+                                           _sentPosition);
+            }
+        });
+        assert _sentPosition == _fileSize;
+        assert _numBytesMatched + _numBytesLiteral == _fileSize;
+    }
+
+    // sentPosition is always within the region or its overlap since a
+    // region is at least one block long
+    private long sendRegion(Writable out, TokenDeflater deflater,
+                            Region region, long sentPosition)
+        throws ChannelException
+    {
+        for (int i = 0; i < region._numMatches; i++) {
+            long matchPosition = region._position + region._matchOffsets[i];
+            if (matchPosition < sentPosition) {
+                continue;
+            }
+            int chunkIndex = region._matchChunks[i];
+            int matchLength = chunkLengthOf(chunkIndex);
+            sendData(out, deflater, region,
+                     (int) (sentPosition - region._position),
+                     (int) (matchPosition - sentPosition));
+            if (deflater != null) {
+                deflater.putToken(out, chunkIndex,
+                                  ByteBuffer.wrap(region._buf,
+                                                  region._matchOffsets[i],
+                                                  matchLength));
+            } else {
+                out.putInt(- (chunkIndex + 1));
+            }
+            _numBytesMatched += matchLength;
+            sentPosition = matchPosition + matchLength;
+        }
+
+        long regionEnd = region._position + region._length;
+        if (sentPosition < regionEnd) {
+            sendData(out, deflater, region,
+                     (int) (sentPosition - region._position),
+                     (int) (regionEnd - sentPosition));
+            sentPosition = regionEnd;
+        }
+        return sentPosition;
+    }
+
+    private int chunkLengthOf(int chunkIndex)
+    {
+        Checksum.Header header = _peerChecksum.header();
+        if (chunkIndex == header.chunkCount() - 1 && header.remainder() > 0) {
+            return header.remainder();
+        }
+        return _blockLength;
+    }
+
+    private void sendData(Writable out, TokenDeflater deflater, Region region,
+                          int offset, int length)
+        throws ChannelException
+    {
+        _numBytesLiteral += length;
+        if (deflater != null) {
+            deflater.putData(out, ByteBuffer.wrap(region._buf, offset,
+                                                  length));
+            return;
+        }
+        int endOffset = offset + length;
+        while (offset < endOffset) {
+            int len = Math.min(_chunkSize, endOffset - offset);
+            out.putInt(len);
+            out.put(region._buf, offset, len);
+            offset += len;
+        }
+    }
+}
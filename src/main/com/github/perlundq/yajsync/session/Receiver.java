@@ -25,9 +25,9 @@ import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
-import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -41,6 +41,7 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.github.perlundq.yajsync.channels.BufferAllocator;
 import com.github.perlundq.yajsync.channels.ChannelEOFException;
 import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.channels.Message;
@@ -57,6 +58,7 @@ import com.github.perlundq.yajsync.text.TextConversionException;
 import com.github.perlundq.yajsync.text.TextDecoder;
 import com.github.perlundq.yajsync.util.Environment;
 import com.github.perlundq.yajsync.util.FileOps;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
 import com.github.perlundq.yajsync.util.MD5;
 import com.github.perlundq.yajsync.util.PathOps;
 import com.github.perlundq.yajsync.util.RuntimeInterruptException;
@@ -107,12 +109,18 @@ public class Receiver implements RsyncTask,MessageHandler
     private static final Logger _log =
         Logger.getLogger(Receiver.class.getName());
 
-    private static final int INPUT_CHANNEL_BUF_SIZE = 8 * 1024;
+    private static final int REPLICA_BUF_SIZE = 256 * 1024;
+    private static final int SPARSE_BLOCK_SIZE = 4096;
+    public static final int DEFAULT_WRITE_BEHIND_SIZE = 4 * 1024 * 1024;
     private final FileInfoCache _fileInfoCache = new FileInfoCache();
     private final Map<Integer, User> _uidUserMap = new HashMap<>();
     private final Generator _generator;
     private final RsyncInChannel _senderInChannel;
     private final Statistics _stats = new Statistics();
+    private final ByteBuffer _replicaBuf =
+        ByteBuffer.allocateDirect(REPLICA_BUF_SIZE);
+    private ByteBuffer _tokenBuf = ByteBuffer.allocate(0);
+    private TokenInflater _tokenInflater;  // null unless compressed
     private final TextDecoder _characterDecoder;
     private final String _targetPathName;
     private boolean _isSendFilterRules;
@@ -120,24 +128,34 @@ public class Receiver implements RsyncTask,MessageHandler
     private boolean _isExitEarlyIfEmptyList;
     private boolean _isRecursive;
     private boolean _isListOnly;
-    private boolean _isPreservePermissions;
     private boolean _isPreserveTimes;
     private boolean _isPreserveUser;
     private boolean _isDeferredWrite;
+    private boolean _isInplace;
+    private boolean _isSparse;
+    private boolean _isPreallocate;
+    private boolean _isPartial;
+    private Path _partialDir;
     private boolean _isInterruptible = true;
     private boolean _isExitAfterEOF;
     private boolean _isSafeFileList = true;
     private int _ioError;
     private PathResolver _pathResolver;
+    private final AttributeUpdater _attributeUpdater = new AttributeUpdater();
+    // the data received for files that failed verification, used as
+    // the basis file when they are requested again
+    private final Map<FileInfo, Path> _redoBasisFiles = new HashMap<>();
+    private ChecksumAlgorithm _checksumAlgorithm = ChecksumAlgorithm.MD5;
+    private WriteBehind _writeBehind =
+        new WriteBehind(DEFAULT_WRITE_BEHIND_SIZE);
+    private FileCommitter _committer = new FileCommitter(Durability.NONE);
 
     public Receiver(Generator generator,
                     ReadableByteChannel in,
                     Charset charset,
                     String targetPathName)
     {
-        _senderInChannel = new RsyncInChannel(in,
-                                              this,
-                                              INPUT_CHANNEL_BUF_SIZE);
+        _senderInChannel = new RsyncInChannel(in, this);
         _characterDecoder = TextDecoder.newStrict(charset);
         _generator = generator;
         _targetPathName = targetPathName;
@@ -181,19 +199,21 @@ public class Receiver implements RsyncTask,MessageHandler
 
     public Receiver setIsPreservePermissions(boolean isPreservePermissions)
     {
-        _isPreservePermissions = isPreservePermissions;
+        _attributeUpdater.setIsPreservePermissions(isPreservePermissions);
         return this;
     }
 
     public Receiver setIsPreserveTimes(boolean isPreserveTimes)
     {
         _isPreserveTimes = isPreserveTimes;
+        _attributeUpdater.setIsPreserveTimes(isPreserveTimes);
         return this;
     }
 
     public Receiver setIsPreserveUser(boolean isPreserveUser)
     {
         _isPreserveUser = isPreserveUser;
+        _attributeUpdater.setIsPreserveUser(isPreserveUser);
         return this;
     }
 
@@ -203,6 +223,106 @@ public class Receiver implements RsyncTask,MessageHandler
         return this;
     }
 
+    /**
+     * Write the data directly into the target files instead of into a
+     * temporary file which is then moved into place. Matching blocks at
+     * the same offset are not written at all. Implies no deferred write.
+     */
+    public Receiver setIsInplace(boolean isInplace)
+    {
+        _isInplace = isInplace;
+        return this;
+    }
+
+    /**
+     * Leave holes in the files instead of writing out blocks consisting
+     * only of zeroes. Ignored when updating files in place, the existing
+     * data must then be overwritten.
+     */
+    public Receiver setIsSparse(boolean isSparse)
+    {
+        _isSparse = isSparse;
+        return this;
+    }
+
+    /**
+     * Extend each file to its final size as given by the file list before
+     * any data is written to it. A file ending up with a different size is
+     * truncated.
+     */
+    public Receiver setIsPreallocate(boolean isPreallocate)
+    {
+        _isPreallocate = isPreallocate;
+        return this;
+    }
+
+    /**
+     * Keep the data received so far of a file if the transfer of it is
+     * interrupted. The partial file replaces the target file, unless a
+     * partial directory is set, so that it is used as the basis file on
+     * the next transfer.
+     */
+    public Receiver setIsPartial(boolean isPartial)
+    {
+        _isPartial = isPartial;
+        return this;
+    }
+
+    /**
+     * Keep partial files in partialDir instead, resolved against the
+     * directory of each target file if relative. A partial file found
+     * there is used as the basis file instead of the target file. Must be
+     * the same as for the Generator. Implies partial.
+     */
+    public Receiver setPartialDir(Path partialDir)
+    {
+        _partialDir = partialDir;
+        return this;
+    }
+
+    /**
+     * The peer Sender compresses literal data using rsync's compressed
+     * token format (-z).
+     */
+    public Receiver setIsCompress(boolean isCompress)
+    {
+        _tokenInflater = isCompress ? new TokenInflater() : null;
+        return this;
+    }
+
+    /**
+     * Write file data to disk on a separate thread, letting at most
+     * numBytes of received data be buffered while waiting to be written. 0
+     * means that all data is written synchronously. Defaults to 4 MB.
+     */
+    public Receiver setWriteBehindSize(int numBytes)
+    {
+        assert numBytes >= 0;
+        _writeBehind = new WriteBehind(numBytes);
+        return this;
+    }
+
+    /**
+     * Size the channel buffer using allocator, shared by all tasks of the
+     * session.
+     */
+    public Receiver setBufferAllocator(BufferAllocator allocator)
+    {
+        _senderInChannel.setBufferAllocator(allocator);
+        return this;
+    }
+
+    /**
+     * Sync received files to disk as given by durability before they are
+     * moved into place. Defaults to Durability.NONE.
+     */
+    public Receiver setDurability(Durability durability)
+    {
+        assert durability != null;
+        _committer = new FileCommitter(durability);
+        return this;
+    }
+
     public Receiver setIsExitAfterEOF(boolean isExitAfterEOF)
     {
         _isExitAfterEOF = isExitAfterEOF;
@@ -239,6 +359,13 @@ public class Receiver implements RsyncTask,MessageHandler
         return this;
     }
 
+    public Receiver setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm)
+    {
+        assert checksumAlgorithm != null;
+        _checksumAlgorithm = checksumAlgorithm;
+        return this;
+    }
+
     @Override
     public boolean isInterruptible()
     {
@@ -257,12 +384,14 @@ public class Receiver implements RsyncTask,MessageHandler
         try {
             if (_log.isLoggable(Level.FINE)) {
                 _log.fine(String.format("Receiver.receive(targetPathName=%s, " +
-                                        "isDeferredWrite=%s," +
+                                        "isDeferredWrite=%s, " +
+                                        "isInplace=%s, isSparse=%s," +
                                         " isListOnly=%s, isPreserveTimes=%s, " +
                                         "isRecursive=%s, sendFilterRules=%s, " +
                                         "receiveStatistics=%s, " +
                                         "exitEarlyIfEmptyList=%s",
                                         _targetPathName, _isDeferredWrite,
+                                        _isInplace, _isSparse,
                                         _isListOnly, _isPreserveTimes,
                                         _isRecursive, _isSendFilterRules,
                                         _isReceiveStatistics,
@@ -306,6 +435,10 @@ public class Receiver implements RsyncTask,MessageHandler
             Filelist.Segment segment = fileList.newSegment(builder);
             _generator.generateSegment(segment);
             receiveFiles(fileList, segment);
+            _committer.flush();
+            if (_committer.numErrors() > 0) {
+                _ioError |= IoError.GENERAL;
+            }
             _stats.setNumFiles(fileList.numFiles());
             if (_isReceiveStatistics) {
                 receiveStatistics();
@@ -335,7 +468,19 @@ public class Receiver implements RsyncTask,MessageHandler
         } catch (PathResolverException e) { // getPathResolver
             throw new RsyncException(e);
         } finally {
-            _generator.stop();
+            try {
+                // before the Generator sets the attributes of directories
+                _committer.close();
+            } finally {
+                _generator.stop();
+                _writeBehind.close();
+                for (Path redoBasis : _redoBasisFiles.values()) {
+                    deleteTempFile(redoBasis);
+                }
+                if (_tokenInflater != null) {
+                    _tokenInflater.end();
+                }
+            }
         }
     }
 
@@ -404,26 +549,15 @@ public class Receiver implements RsyncTask,MessageHandler
      */
     private PathResolver getPathResolver(final Path targetPath,
                                          final List<FileInfoStub> stubs)
-        throws PathResolverException
+        throws PathResolverException, RsyncException
     {
         assert stubs.size() > 0;
         try {
             RsyncFileAttributes attrs =
                 RsyncFileAttributes.statIfExists(targetPath);                   // throws IOException
-
-            boolean isTargetExisting = attrs != null;
-            boolean isTargetExistingDir =
-                isTargetExisting && attrs.isDirectory();
-            boolean isTargetExistingFile =
-                isTargetExisting && attrs.isRegularFile();
-            boolean isSourceSingleFile =
-                stubs.size() == 1 && stubs.get(0)._attrs.isRegularFile();
-            boolean isTargetNonExistingFile =
-                !isTargetExisting && !targetPath.endsWith(PathOps.DOT_DIR);
-
-            if (isSourceSingleFile && isTargetNonExistingFile ||
-                isSourceSingleFile && isTargetExistingFile)
-            {                                                                       // -> targetPath
+            if (isTargetSingleFile(targetPath, attrs, stubs,
+                                   stubs.get(0)._attrs))
+            {                                                                   // -> targetPath
                 return new PathResolver() {
                     @Override public Path relativePathOf(String pathName) {
                         return Paths.get(stubs.get(0)._pathName);
@@ -433,61 +567,98 @@ public class Receiver implements RsyncTask,MessageHandler
                     }
                 };
             }
-            if (isTargetExistingDir || !isTargetExisting) {                         // -> targetPath/*
-                if (!isTargetExisting) {
-                    Files.createDirectories(targetPath);
-                }
-                return new PathResolver() {
-                    @Override public Path relativePathOf(String pathName) {
-                        Path relativePath = Paths.get(pathName);                    // throws InvalidPathException
-                        if (relativePath.isAbsolute()) {
-                            throw new RsyncSecurityException(relativePath +
-                                " is absolute");
-                        }
-                        Path normalizedRelativePath =
-                            PathOps.normalizeStrict(relativePath);
-                        return normalizedRelativePath;
+            if (attrs == null) {                                                // -> targetPath/*
+                Files.createDirectories(targetPath);
+            }
+            return new PathResolver() {
+                @Override public Path relativePathOf(String pathName) {
+                    Path relativePath = Paths.get(pathName);                    // throws InvalidPathException
+                    if (relativePath.isAbsolute()) {
+                        throw new RsyncSecurityException(relativePath +
+                            " is absolute");
                     }
-                    @Override public Path fullPathOf(Path relativePath) {
-                        Path fullPath =
-                            targetPath.resolve(relativePath).normalize();
-                        if (!fullPath.startsWith(targetPath.normalize())) {
-                            throw new RsyncSecurityException(String.format(
-                                "%s is outside of receiver destination dir %s",
-                                fullPath, targetPath));
-                        }
-                        return fullPath;
+                    Path normalizedRelativePath =
+                        PathOps.normalizeStrict(relativePath);
+                    return normalizedRelativePath;
+                }
+                @Override public Path fullPathOf(Path relativePath) {
+                    Path fullPath =
+                        targetPath.resolve(relativePath).normalize();
+                    if (!fullPath.startsWith(targetPath.normalize())) {
+                        throw new RsyncSecurityException(String.format(
+                            "%s is outside of receiver destination dir %s",
+                            fullPath, targetPath));
                     }
-                };
-            }
-
-            if (isTargetExisting && !attrs.isDirectory() && !attrs.isRegularFile()) {
-                throw new PathResolverException(String.format(
-                    "refusing to overwrite existing target path %s which is " +
-                    "neither a file nor a directory (%s)", targetPath, attrs));
-            }
-            if (isTargetExistingFile && stubs.size() >= 2) {
-                throw new PathResolverException(String.format(
-                    "refusing to copy source files %s into file %s " +
-                    "(%s)", stubs, targetPath, attrs));
-            }
-            if (isTargetExistingFile && stubs.size() == 1 &&
-                stubs.get(0)._attrs.isDirectory()) {
-                throw new PathResolverException(String.format(
-                    "refusing to recursively copy directory %s into " +
-                    "non-directory %s (%s)", stubs.get(0), targetPath, attrs));
-            }
-
-            throw new AssertionError(String.format(
-                "BUG: stubs=%s targetPath=%s attrs=%s",
-                stubs, targetPath, attrs));
-
+                    return fullPath;
+                }
+            };
         } catch (IOException e) {
             throw new PathResolverException(String.format(
                 "unable to stat %s: %s", targetPath, e));
         }
     }
 
+    /**
+     * Decides how the initial source files are mapped to targetPath, see
+     * getPathResolver. Also used by LocalCopy.
+     *
+     * @param targetAttrs the attributes of targetPath or null if it does
+     *        not exist
+     * @param firstSourceAttrs the attributes of the first of sources
+     * @return true if the single source file is to be copied to
+     *         targetPath, false if all sources are to be copied into the
+     *         (possibly not yet existing) directory targetPath
+     * @throws RsyncException if targetPath cannot be used for sources
+     */
+    static boolean isTargetSingleFile(Path targetPath,
+                                      RsyncFileAttributes targetAttrs,
+                                      List<?> sources,
+                                      RsyncFileAttributes firstSourceAttrs)
+        throws RsyncException
+    {
+        assert sources.size() > 0;
+        boolean isTargetExisting = targetAttrs != null;
+        boolean isTargetExistingDir =
+            isTargetExisting && targetAttrs.isDirectory();
+        boolean isTargetExistingFile =
+            isTargetExisting && targetAttrs.isRegularFile();
+        boolean isSourceSingleFile =
+            sources.size() == 1 && firstSourceAttrs.isRegularFile();
+        boolean isTargetNonExistingFile =
+            !isTargetExisting && !targetPath.endsWith(PathOps.DOT_DIR);
+
+        if (isSourceSingleFile && isTargetNonExistingFile ||
+            isSourceSingleFile && isTargetExistingFile)
+        {
+            return true;
+        }
+        if (isTargetExistingDir || !isTargetExisting) {
+            return false;
+        }
+        if (!targetAttrs.isDirectory() && !targetAttrs.isRegularFile()) {
+            throw new RsyncException(String.format(
+                "refusing to overwrite existing target path %s which is " +
+                "neither a file nor a directory (%s)", targetPath,
+                targetAttrs));
+        }
+        if (isTargetExistingFile && sources.size() >= 2) {
+            throw new RsyncException(String.format(
+                "refusing to copy source files %s into file %s " +
+                "(%s)", sources, targetPath, targetAttrs));
+        }
+        if (isTargetExistingFile && sources.size() == 1 &&
+            firstSourceAttrs.isDirectory()) {
+            throw new RsyncException(String.format(
+                "refusing to recursively copy directory %s into " +
+                "non-directory %s (%s)", sources.get(0), targetPath,
+                targetAttrs));
+        }
+
+        throw new AssertionError(String.format(
+            "BUG: sources=%s targetPath=%s attrs=%s",
+            sources, targetPath, targetAttrs));
+    }
+
     private void receiveStatistics() throws ChannelException
     {
         long totalWritten = receiveAndDecodeLong(3);
@@ -737,15 +908,23 @@ public class Receiver implements RsyncTask,MessageHandler
                     _log.fine("received peer checksum " + checksumHeader);
                 }
 
+                Path redoBasis = _redoBasisFiles.remove(fileInfo);
                 Path tempFile = null;
+                boolean isReceived = false;
                 try {
+                    if (_isInplace) {
+                        matchData(segment, index, fileInfo, checksumHeader,
+                                  fileInfo.path(), null);
+                        continue;
+                    }
                     tempFile = Files.createTempFile(fileInfo.path().getParent(),
                                                     null, null);
                     if (_log.isLoggable(Level.FINE)) {
                         _log.fine("created tempfile " + tempFile);
                     }
                     matchData(segment, index, fileInfo, checksumHeader,
-                              tempFile);
+                              tempFile, redoBasis);
+                    isReceived = true;
                 } catch (IOException e) {
                     if (_log.isLoggable(Level.WARNING)) {
                         _log.warning(String.format(
@@ -753,25 +932,24 @@ public class Receiver implements RsyncTask,MessageHandler
                             fileInfo.path().getParent(), e.getMessage()));
                     }
                     discardData(checksumHeader);
-                    _senderInChannel.skip(Checksum.MAX_DIGEST_LENGTH);
+                    _senderInChannel.skip(_checksumAlgorithm.digestLength());
                     _ioError |= IoError.GENERAL;
                     // TODO: send error message to peer
                     _generator.purgeFile(segment, index);
                 } finally {
-                    try {
-                        // TODO: save temporary file when md5sum mismatches
-                        // as next replica to use for this file, it should often
-                        // be closer to what the sender has than our previous
-                        // replica
-                        if (tempFile != null) {
-                            Files.deleteIfExists(tempFile);
-                        }
-                    } catch (IOException e) {
-                        if (_log.isLoggable(Level.WARNING)) {
-                            _log.warning(String.format(
-                                "Warning: failed to remove tempfile %s: %s",
-                                tempFile, e.getMessage()));
-                        }
+                    if (tempFile != null && !isReceived &&
+                        (_isPartial || _partialDir != null)) {
+                        keepPartialFile(tempFile, fileInfo.path());
+                    }
+                    // kept by matchData if it is to be received again
+                    if (tempFile != null &&
+                        !tempFile.equals(_redoBasisFiles.get(fileInfo)) &&
+                        !_committer.isPending(tempFile)) {
+                        deleteTempFile(tempFile);
+                    }
+                    if (redoBasis != null &&
+                        !_committer.isPending(redoBasis)) {
+                        deleteTempFile(redoBasis);
                     }
                 }
             }
@@ -811,91 +989,124 @@ public class Receiver implements RsyncTask,MessageHandler
         return isIdentical;
     }
 
-    private void moveTempfileToTarget(Path tempFile, Path target)
+    private void deleteTempFile(Path tempFile)
     {
-        boolean isOK = FileOps.atomicMove(tempFile, target);
-        if (!isOK) {
+        try {
+            Files.deleteIfExists(tempFile);
+        } catch (IOException e) {
             if (_log.isLoggable(Level.WARNING)) {
-                _log.warning(String.format("Error: when moving temporary file" +
-                                           " %s to %s", tempFile, target));
+                _log.warning(String.format(
+                    "Warning: failed to remove tempfile %s: %s",
+                    tempFile, e.getMessage()));
             }
-            _ioError |= IoError.GENERAL;
         }
     }
 
-    private void updateAttrsIfDiffer(Path path, RsyncFileAttributes targetAttrs)
-        throws IOException
+    // tempFile is left as is if it could not be moved
+    private void keepPartialFile(Path tempFile, Path target)
     {
-        RsyncFileAttributes curAttrs = RsyncFileAttributes.stat(path);
-
-        if (_isPreservePermissions && curAttrs.mode() != targetAttrs.mode()) {
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format(
-                    "updating file permissions %o -> %o on %s",
-                    curAttrs.mode(), targetAttrs.mode(), path));
+        try {
+            if (Files.size(tempFile) == 0) {
+                return;
             }
-            FileOps.setFileMode(path, targetAttrs.mode(),
-                                LinkOption.NOFOLLOW_LINKS);
-        }
-        if (_isPreserveTimes && curAttrs.lastModifiedTime() != targetAttrs.lastModifiedTime()) {
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format(
-                    "updating mtime %d -> %d on %s",
-                    curAttrs.lastModifiedTime(),
-                    targetAttrs.lastModifiedTime(), path));
+            Path partialFile = target;
+            if (_partialDir != null) {
+                partialFile = Generator.partialFileOf(target, _partialDir);
+                Files.createDirectories(partialFile.getParent());
+            }
+            if (FileOps.atomicMove(tempFile, partialFile)) {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine(String.format("kept partial file %s as %s",
+                                            tempFile, partialFile));
+                }
+            } else if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("failed to keep partial file %s " +
+                                           "as %s", tempFile, partialFile));
+            }
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("failed to keep partial file %s: " +
+                                           "%s", tempFile, e.getMessage()));
             }
-            FileOps.setLastModifiedTime(path, targetAttrs.lastModifiedTime(),
-                                        LinkOption.NOFOLLOW_LINKS);
         }
-        if (_isPreserveUser && !targetAttrs.user().name().isEmpty() &&
-            !curAttrs.user().name().equals(targetAttrs.user().name())) {
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format("updating ownership %s -> %s on %s",
-                                        curAttrs.user(), targetAttrs.user(),
-                                        path));
+    }
+
+    private void removePartialFile(Path target)
+    {
+        Path partialFile = Generator.partialFileOf(target, _partialDir);
+        if (_committer.isPending(partialFile)) {  // it is the new target
+            return;
+        }
+        try {
+            if (Files.deleteIfExists(partialFile) &&
+                !_partialDir.isAbsolute()) {
+                Files.delete(partialFile.getParent());
             }
-            // FIXME: side effect of chown in Linux is that set user/group id
-            //        bit are cleared.
-            FileOps.setOwner(path, targetAttrs.user(),
-                             LinkOption.NOFOLLOW_LINKS);
-        } else if (_isPreserveUser && targetAttrs.user().name().isEmpty() &&
-             curAttrs.user().uid() != targetAttrs.user().uid())
-        {
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format("updating uid %d -> %d on %s",
-                                        curAttrs.user().uid(),
-                                        targetAttrs.user().uid(), path));
+        } catch (DirectoryNotEmptyException e) {
+            // still in use by other partial files
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("failed to remove partial file " +
+                                           "%s: %s", partialFile,
+                                           e.getMessage()));
             }
-            // NOTE: side effect of chown in Linux is that set user/group id bit
-            //       might be cleared.
-            FileOps.setUserId(path, targetAttrs.user().uid(),
-                              LinkOption.NOFOLLOW_LINKS);
         }
     }
 
+    // tempFile equal to target only syncs it, if required
+    private void moveTempfileToTarget(Path tempFile, Path target)
+    {
+        try {
+            _committer.commit(tempFile, target);
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("Error: when moving temporary file" +
+                                           " %s to %s: %s", tempFile, target,
+                                           e.getMessage()));
+            }
+            _ioError |= IoError.GENERAL;
+        }
+    }
+
+    // redoBasis is the basis file if fileInfo is received again, else null
     private void matchData(Filelist.Segment segment, int index,
                            FileInfo fileInfo, Checksum.Header checksumHeader,
-                           Path tempFile)
+                           Path tempFile, Path redoBasis)
         throws ChannelException, InterruptedException
     {
-        MessageDigest md = MD5.newInstance();
+        MessageDigest md = _checksumAlgorithm.newInstance();
+        long numBytesLiteral = _stats.totalLiteralSize();
+        long numBytesMatched = _stats.totalMatchedSize();
         Path resultFile = mergeDataFromPeerAndReplica(fileInfo,
                                                       tempFile,
+                                                      redoBasis,
                                                       checksumHeader,
                                                       md);
+        if (checksumHeader.blockLength() > 0) {
+            _generator.addMatchResult(fileInfo, checksumHeader.blockLength(),
+                                      _stats.totalLiteralSize() -
+                                          numBytesLiteral,
+                                      _stats.totalMatchedSize() -
+                                          numBytesMatched);
+        }
         if (isRemoteAndLocalFileIdentical(resultFile, md, fileInfo)) {
             try {
-                if (_isPreservePermissions || _isPreserveTimes ||
-                    _isPreserveUser)
-                {
-                    updateAttrsIfDiffer(resultFile, fileInfo.attrs());
+                if (_attributeUpdater.isPreservingAny()) {
+                    _attributeUpdater.updateAttrsIfDiffer(
+                        resultFile, RsyncFileAttributes.stat(resultFile),
+                        fileInfo.attrs());
                 }
-                if (!_isDeferredWrite || !resultFile.equals(fileInfo.path())) {
+                if (!resultFile.equals(fileInfo.path())) {
                     if (_log.isLoggable(Level.FINE)) {
                         _log.fine(String.format("moving %s -> %s",
                                                 resultFile, fileInfo.path()));
                     }
                     moveTempfileToTarget(resultFile, fileInfo.path());
+                } else if (_isInplace) {
+                    moveTempfileToTarget(resultFile, resultFile);
+                }
+                if (_partialDir != null && !_isInplace) {
+                    removePartialFile(fileInfo.path());
                 }
             } catch (IOException e) {
                 _ioError |= IoError.GENERAL;
@@ -922,8 +1133,17 @@ public class Receiver implements RsyncTask,MessageHandler
                 }
                 _generator.purgeFile(segment, index);
             } else {
-                _generator.generateFile(segment, index, fileInfo);
+                // NOTE: Generator checks isTransferred in in place mode
                 fileInfo.setIsTransferred();
+                // the received data is most likely closer to what the sender
+                // has than the previous basis file
+                if (!_isInplace && tempFile.equals(resultFile)) {
+                    _redoBasisFiles.put(fileInfo, tempFile);
+                    _generator.generateFile(segment, index, fileInfo,
+                                            tempFile);
+                } else {
+                    _generator.generateFile(segment, index, fileInfo);
+                }
             }
         }
     }
@@ -1244,7 +1464,9 @@ public class Receiver implements RsyncTask,MessageHandler
         long sizeLiteral = 0;
         long sizeMatch = 0;
         while (true) {
-            int token = _senderInChannel.getInt();
+            int token = _tokenInflater == null
+                            ? _senderInChannel.getInt()
+                            : _tokenInflater.skip(_senderInChannel);
             if (token == 0) {
                 break;
             } else if (token > 0) {
@@ -1262,6 +1484,7 @@ public class Receiver implements RsyncTask,MessageHandler
 
     private Path mergeDataFromPeerAndReplica(FileInfo fileInfo,
                                              Path tempFile,
+                                             Path redoBasis,
                                              Checksum.Header checksumHeader,
                                              MessageDigest md)
                                              throws ChannelException
@@ -1271,30 +1494,43 @@ public class Receiver implements RsyncTask,MessageHandler
         assert checksumHeader != null;
         assert md != null;
 
+        if (_isInplace) {
+            return mergeDataInplace(fileInfo, checksumHeader, md);
+        }
+
+        // the same basis file as used by the Generator
+        Path basis = fileInfo.path();
+        if (redoBasis != null) {
+            basis = redoBasis;
+        } else if (_partialDir != null) {
+            basis = Generator.basisOf(fileInfo.path(), _partialDir);
+        }
+
         try (FileChannel outFile = FileChannel.open(tempFile,
                                                     StandardOpenOption.WRITE)) {
             try (FileChannel replica =
-                   FileChannel.open(fileInfo.path(), StandardOpenOption.READ)) {
-                RsyncFileAttributes attrs =
-                    RsyncFileAttributes.stat(fileInfo.path());
+                   FileChannel.open(basis, StandardOpenOption.READ)) {
+                RsyncFileAttributes attrs = RsyncFileAttributes.stat(basis);
                 if (attrs.isRegularFile()) {
-                    boolean isIntact = combineDataToFile(replica, outFile,
-                                                         checksumHeader, md);
+                    boolean isIntact = combineDataToTempFile(
+                        replica, outFile, fileInfo.attrs().size(),
+                        checksumHeader, md);
                     if (isIntact) {
-                        if (!attrs.equals(RsyncFileAttributes.statOrNull(fileInfo.path()))) {
+                        if (!attrs.equals(RsyncFileAttributes.statOrNull(basis))) {
                             if (_log.isLoggable(Level.WARNING)) {
                                 _log.warning(String.format(
                                     "%s modified during verification",
-                                    fileInfo.path()));
+                                    basis));
                             }
                             md.update((byte) 0);
                         }
-                        return fileInfo.path();
+                        return basis;
                     }
                     return tempFile;
                 } // else discard later
             } catch (NoSuchFileException e) {  // replica.open
-                combineDataToFile(null, outFile, checksumHeader, md);
+                combineDataToTempFile(null, outFile, fileInfo.attrs().size(),
+                                      checksumHeader, md);
                 return tempFile;
             }
         } catch (IOException e) {        // outFile.open
@@ -1304,24 +1540,118 @@ public class Receiver implements RsyncTask,MessageHandler
         return null;
     }
 
+    // the target file is both replica and outFile, Sender makes sure that
+    // a block is never referenced once it might have been overwritten
+    private Path mergeDataInplace(FileInfo fileInfo,
+                                  Checksum.Header checksumHeader,
+                                  MessageDigest md)
+        throws ChannelException
+    {
+        try (FileChannel file = FileChannel.open(fileInfo.path(),
+                                                 StandardOpenOption.CREATE,
+                                                 StandardOpenOption.READ,
+                                                 StandardOpenOption.WRITE)) {
+            if (_isPreallocate) {
+                FileOps.preallocate(file, fileInfo.attrs().size());
+            }
+            combineDataToFile(file, file, checksumHeader, md);
+            try {
+                file.truncate(file.position());
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format("failed to truncate %s: %s",
+                                               fileInfo.path(),
+                                               e.getMessage()));
+                }
+            }
+            return fileInfo.path();
+        } catch (IOException e) {
+            // discard below
+        }
+        discardData(checksumHeader);
+        return null;
+    }
+
+    // preallocated space not filled with data is truncated, also if the
+    // transfer fails so that a partial file is not padded with zeroes
+    private boolean combineDataToTempFile(FileChannel replica,
+                                          FileChannel outFile,
+                                          long size,
+                                          Checksum.Header checksumHeader,
+                                          MessageDigest md)
+        throws IOException, ChannelException
+    {
+        if (!_isPreallocate) {
+            return combineDataToFile(replica, outFile, checksumHeader, md);
+        }
+        FileOps.preallocate(outFile, size);
+        boolean isOK = false;
+        try {
+            boolean isIntact = combineDataToFile(replica, outFile,
+                                                 checksumHeader, md);
+            outFile.truncate(outFile.position());
+            isOK = true;
+            return isIntact;
+        } finally {
+            if (!isOK) {
+                try {
+                    outFile.truncate(outFile.position());
+                } catch (IOException e) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format(
+                            "failed to truncate preallocated file: %s",
+                            e.getMessage()));
+                    }
+                }
+            }
+        }
+    }
+
     // replica may be null
-    private boolean combineDataToFile(FileChannel replica,
-                                      FileChannel outFile,
-                                      Checksum.Header checksumHeader,
-                                      MessageDigest md)
+    boolean combineDataToFile(FileChannel replica,
+                              FileChannel outFile,
+                              Checksum.Header checksumHeader,
+                              MessageDigest md)
         throws IOException, ChannelException
     {
         assert outFile != null;
         assert checksumHeader != null;
         assert md != null;
 
-        boolean isIntact = _isDeferredWrite && replica != null;
+        boolean isIntact;
+        _writeBehind.open(outFile);
+        try {
+            isIntact = combineData(replica, outFile, checksumHeader, md);
+        } finally {
+            _writeBehind.finish();
+        }
+        IOException e = _writeBehind.ioErrorOrNull();
+        if (e != null) {
+            // same as for a synchronous write error
+            throw new RuntimeException(e);
+        }
+        return isIntact;
+    }
+
+    // all data written to outFile is passed through _writeBehind
+    private boolean combineData(FileChannel replica,
+                                FileChannel outFile,
+                                Checksum.Header checksumHeader,
+                                MessageDigest md)
+        throws IOException, ChannelException
+    {
+        boolean isIntact = _isDeferredWrite && !_isInplace && replica != null;
         long sizeLiteral = 0;
         long sizeMatch = 0;
         int expectedIndex = 0;
+        // consecutive matching blocks are copied as one range of replica
+        long runOffset = 0;
+        long runLength = 0;
 
         while (true) {
-            final int token = _senderInChannel.getInt();
+            final int token = _tokenInflater == null
+                                  ? _senderInChannel.getInt()
+                                  : _tokenInflater.next(_senderInChannel);
             if (token == 0) {
                 break;
             }
@@ -1349,10 +1679,21 @@ public class Receiver implements RsyncTask,MessageHandler
                     //
                     // i.e. generator sent file info to sender and sender
                     // replies with a match but now our replica is gone
+                    if (_tokenInflater != null) {
+                        // the following literal data may still refer to
+                        // the block, the file is received again anyway
+                        seeZeroToken(sizeForChecksumBlock(blockIndex,
+                                                          checksumHeader));
+                    }
                     continue;
                 }
 
                 sizeMatch += sizeForChecksumBlock(blockIndex, checksumHeader);
+                if (_tokenInflater != null) {
+                    seeToken(replica,
+                             (long) blockIndex * checksumHeader.blockLength(),
+                             sizeForChecksumBlock(blockIndex, checksumHeader));
+                }
 
                 if (isIntact) {
                     if (blockIndex == expectedIndex) { // if not identical to previous index we could possible try to see if the checksum are identical as a fallback attempt
@@ -1368,8 +1709,19 @@ public class Receiver implements RsyncTask,MessageHandler
                     copyBlockRange(expectedIndex, checksumHeader, replica,
                                    outFile, md);
                 }
-                matchReplica(blockIndex, checksumHeader, replica, outFile, md);
+                long offset = (long) blockIndex * checksumHeader.blockLength();
+                int size = sizeForChecksumBlock(blockIndex, checksumHeader);
+                if (runLength > 0 && runOffset + runLength == offset) {
+                    runLength += size;
+                } else {
+                    copyReplicaRange(replica, runOffset, runLength, outFile,
+                                     md);
+                    runOffset = offset;
+                    runLength = size;
+                }
             } else if (token > 0) { // receive non-matched literal data from peer:
+                copyReplicaRange(replica, runOffset, runLength, outFile, md);
+                runLength = 0;
                 if (isIntact) {
                     if (_log.isLoggable(Level.FINE)) {
                         _log.fine(String.format("defer-write disabled since " +
@@ -1382,11 +1734,14 @@ public class Receiver implements RsyncTask,MessageHandler
                 }
                 int length = token;
                 sizeLiteral += length;
-                if (outFile != null) {
+                if (_tokenInflater != null) {
+                    copyInflatedData(outFile, md);
+                } else if (outFile != null) {
                     copyRemoteBlocks(outFile, length, md);
                 }
             }
         }
+        copyReplicaRange(replica, runOffset, runLength, outFile, md);
 
         if (isIntact && expectedIndex != checksumHeader.chunkCount()) { // rare truncation of multiples of checksum blocks
             if (_log.isLoggable(Level.FINE)) {
@@ -1404,7 +1759,8 @@ public class Receiver implements RsyncTask,MessageHandler
         }
 
         if (_log.isLoggable(Level.FINE)) {
-            if (_isDeferredWrite && replica != null && !isIntact) {
+            if (_isDeferredWrite && !_isInplace && replica != null &&
+                !isIntact) {
                 _log.fine("deferred write disabled");
             }
             _log.fine(String.format("total bytes = %d, num matched bytes = " +
@@ -1426,19 +1782,65 @@ public class Receiver implements RsyncTask,MessageHandler
         // TODO: possibly skip writing out to file if replica is not OK
         int bytesReceived = 0;
         while (bytesReceived < length) {
-            int chunkSize = Math.min(INPUT_CHANNEL_BUF_SIZE,
+            int chunkSize = Math.min(_senderInChannel.bufferSize(),
                                      length - bytesReceived);
             ByteBuffer literalData = _senderInChannel.get(chunkSize);
             bytesReceived += chunkSize;
             if (outFile != null) {
                 literalData.mark();
-                writeOut(outFile, literalData);
+                writeData(literalData);
                 literalData.reset();
             }
             md.update(literalData);
         }
     }
 
+    private void copyInflatedData(FileChannel outFile, MessageDigest md)
+    {
+        ByteBuffer literalData = _tokenInflater.data();
+        if (outFile != null) {
+            literalData.mark();
+            writeData(literalData);
+            literalData.reset();
+        }
+        md.update(literalData);
+    }
+
+    // the data of each matching block is part of the history of the
+    // compressed token stream
+    private void seeToken(FileChannel replica, long offset, int length)
+        throws IOException
+    {
+        if (_tokenBuf.capacity() < length) {
+            _tokenBuf = ByteBuffer.allocate(length);
+        }
+        _tokenBuf.clear();
+        _tokenBuf.limit(length);
+        while (_tokenBuf.hasRemaining()) {
+            int n = replica.read(_tokenBuf, offset + _tokenBuf.position());
+            if (n <= 0) {
+                throw new IllegalStateException(String.format(
+                    "truncated read from replica (%s), read %d bytes but " +
+                    "expected %d", replica, _tokenBuf.position(), length));
+            }
+        }
+        _tokenBuf.flip();
+        _tokenInflater.seeToken(_tokenBuf);
+    }
+
+    // adds a block of zeroes in place of the data of a matching block that
+    // is not available, keeping the history of _tokenInflater in sync
+    private void seeZeroToken(int length)
+    {
+        if (_tokenBuf.capacity() < length) {
+            _tokenBuf = ByteBuffer.allocate(length);
+        }
+        Arrays.fill(_tokenBuf.array(), 0, length, (byte) 0);
+        _tokenBuf.clear();
+        _tokenBuf.limit(length);
+        _tokenInflater.seeToken(_tokenBuf);
+    }
+
     private void verifyBlockRange(int endIndex,
                                   Checksum.Header checksumHeader,
                                   FileChannel replica,
@@ -1455,37 +1857,159 @@ public class Receiver implements RsyncTask,MessageHandler
                                 MessageDigest md)
         throws IOException
     {
-        for (int i = 0; i < endIndex; i++) {
-            matchReplica(i, checksumHeader, replica, outFile, md);
+        if (endIndex > 0) {
+            long length = (long) (endIndex - 1) * checksumHeader.blockLength() +
+                          sizeForChecksumBlock(endIndex - 1, checksumHeader);
+            copyReplicaRange(replica, 0, length, outFile, md);
         }
     }
 
-    private void matchReplica(int blockIndex,
-                              Checksum.Header checksumHeader,
-                              FileChannel replica,
-                              FileChannel outFile,
-                              MessageDigest md)
+    /**
+     * Copies replica[offset, offset + length) to the current position of
+     * outFile (unless null) using FileChannel.transferTo on the write
+     * behind thread, i.e. without passing the data through the JVM heap if
+     * supported by the OS, and updates md by reading the same range again
+     * into a reusable buffer. Sparse files are instead written from the
+     * buffer.
+     */
+    private void copyReplicaRange(FileChannel replica,
+                                  long offset,
+                                  long length,
+                                  FileChannel outFile,
+                                  MessageDigest md)
         throws IOException
     {
-        ByteBuffer replicaBuf =
-            ByteBuffer.allocate(sizeForChecksumBlock(blockIndex,
-                                                     checksumHeader));
-        long fileOffset = (long) blockIndex * checksumHeader.blockLength();
-        int bytesRead = replica.read(replicaBuf, fileOffset);
-        if (replicaBuf.hasRemaining()) {
-            throw new IllegalStateException(String.format(
-                "truncated read from replica (%s), read %d " +
-                    "bytes but expected %d more bytes",
-                    replica, bytesRead, replicaBuf.remaining()));
+        if (replica == outFile) {
+            moveReplicaRange(replica, offset, length, md);
+            return;
+        }
+        boolean isSparseCopy = outFile != null && isWriteSparse();
+        if (outFile != null && !isSparseCopy && length > 0) {
+            _writeBehind.transferFrom(replica, offset, length);
         }
-        replicaBuf.flip();
 
-        // TODO: clean this up, not good
-        if (outFile != null) {
-            writeOut(outFile, replicaBuf);
-            replicaBuf.rewind();
+        long numBytesDigested = 0;
+        while (numBytesDigested < length) {
+            _replicaBuf.clear();
+            _replicaBuf.limit((int) Math.min(_replicaBuf.capacity(),
+                                             length - numBytesDigested));
+            int n = replica.read(_replicaBuf, offset + numBytesDigested);
+            if (n <= 0) {
+                throw new IllegalStateException(String.format(
+                    "truncated read from replica (%s), read %d " +
+                        "bytes but expected %d more bytes",
+                        replica, numBytesDigested, length - numBytesDigested));
+            }
+            _replicaBuf.flip();
+            if (isSparseCopy) {
+                writeData(_replicaBuf);
+                _replicaBuf.rewind();
+            }
+            md.update(_replicaBuf);
+            numBytesDigested += n;
         }
-        md.update(replicaBuf);
+    }
+
+    /**
+     * The in place version of copyReplicaRange where replica and outFile
+     * is the same file. The range is only written if it is not already at
+     * the current position of file, in which case offset is always greater
+     * than the position. Overlapping ranges are copied in the forward
+     * direction so no data is overwritten before it is read.
+     */
+    private void moveReplicaRange(FileChannel file,
+                                  long offset,
+                                  long length,
+                                  MessageDigest md)
+        throws IOException
+    {
+        long position = _writeBehind.position();
+        assert length == 0 || offset >= position;
+        long numBytesMoved = 0;
+        while (numBytesMoved < length) {
+            _replicaBuf.clear();
+            _replicaBuf.limit((int) Math.min(_replicaBuf.capacity(),
+                                             length - numBytesMoved));
+            int n = file.read(_replicaBuf, offset + numBytesMoved);
+            if (n <= 0) {
+                throw new IllegalStateException(String.format(
+                    "truncated read from replica (%s), read %d " +
+                        "bytes but expected %d more bytes",
+                        file, numBytesMoved, length - numBytesMoved));
+            }
+            _replicaBuf.flip();
+            if (offset != position) {
+                _writeBehind.write(_replicaBuf);
+                _replicaBuf.rewind();
+            }
+            md.update(_replicaBuf);
+            numBytesMoved += n;
+        }
+        if (offset == position) {
+            _writeBehind.skip(length);
+        }
+    }
+
+    private boolean isWriteSparse()
+    {
+        return _isSparse && !_isInplace;
+    }
+
+    /**
+     * Writes src to the current position of outFile. Sparse files skip all
+     * blocks of zeroes, aligned to SPARSE_BLOCK_SIZE within the file, by
+     * only advancing the position of outFile.
+     */
+    private void writeData(ByteBuffer src)
+    {
+        if (!isWriteSparse()) {
+            _writeBehind.write(src);
+            return;
+        }
+        long position = _writeBehind.position();
+        int start = src.position();
+        int dataStart = start;      // start of data not yet written
+        int offset = start;
+        while (offset < src.limit()) {
+            int end = (int) Math.min(src.limit(),
+                offset + SPARSE_BLOCK_SIZE -
+                (position + offset - start) % SPARSE_BLOCK_SIZE);
+            if (isZeroes(src, offset, end)) {
+                if (dataStart < offset) {
+                    _writeBehind.write(slice(src, dataStart, offset));
+                }
+                _writeBehind.skip(end - offset);
+                dataStart = end;
+            }
+            offset = end;
+        }
+        if (dataStart < offset) {
+            _writeBehind.write(slice(src, dataStart, offset));
+        }
+        src.position(src.limit());
+    }
+
+    private static ByteBuffer slice(ByteBuffer src, int start, int end)
+    {
+        ByteBuffer result = src.duplicate();
+        result.limit(end).position(start);
+        return result.slice();
+    }
+
+    private static boolean isZeroes(ByteBuffer buf, int start, int end)
+    {
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            if (buf.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < end; i++) {
+            if (buf.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private int sizeForChecksumBlock(int blockIndex,
@@ -1498,23 +2022,6 @@ public class Receiver implements RsyncTask,MessageHandler
         return checksumHeader.blockLength();
     }
 
-    // FIXME: handle out of space sitation without a stack trace
-    private void writeOut(FileChannel outFile, ByteBuffer src)
-    {
-        try {
-            outFile.write(src); // NOTE: might notably fail due to running out of disk space
-            if (src.hasRemaining()) {
-                throw new IllegalStateException(String.format(
-                    "truncated write to outFile (%s), returned %d bytes, " +
-                    "expected %d more bytes",
-                    outFile, src.position(), src.remaining()));
-            }
-        } catch (IOException e) {
-            // native exists immediately if this happens, and so do we:
-            throw new RuntimeException(e);
-        }
-    }
-
     // FIXME: code duplication with Receiver
     public void readAllMessagesUntilEOF() throws ChannelException
     {
@@ -0,0 +1,59 @@
+/*
+ * rsync compatible checksum block length
+ *
+ * Copyright (C) 1996-2011 by Andrew Tridgell, Wayne Davison, and others
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.nio.file.Path;
+
+/**
+ * The same block length as chosen by native rsync (sum_sizes_sqroot() of
+ * generator.c, protocol 30): the square root of the file size rounded down
+ * to a multiple of 8, at least 700 bytes and at most 128 KB.
+ */
+public class RsyncBlockLength extends BlockLengthStrategy
+{
+    private static final int BLOCK_SIZE = 700;
+
+    @Override
+    public int blockLengthFor(Path path, long fileSize)
+    {
+        assert fileSize > 0;
+        if (fileSize <= (long) BLOCK_SIZE * BLOCK_SIZE) {
+            return BLOCK_SIZE;
+        }
+
+        int c = 1;
+        for (long l = fileSize >>> 2; l != 0; l >>>= 2) {
+            c <<= 1;
+        }
+        if (c < 0 || c >= Checksum.MAX_CHECKSUM_BLOCK_LENGTH) {
+            return Checksum.MAX_CHECKSUM_BLOCK_LENGTH;
+        }
+
+        int blockLength = 0;
+        do {
+            blockLength |= c;
+            if (fileSize < (long) blockLength * blockLength) {
+                blockLength &= ~c;
+            }
+            c >>= 1;
+        } while (c >= 8);   // round to multiple of 8
+        return Math.max(blockLength, BLOCK_SIZE);
+    }
+}
@@ -28,13 +28,26 @@ import java.nio.file.Paths;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
 
+import com.github.perlundq.yajsync.channels.BufferAllocator;
+import com.github.perlundq.yajsync.channels.BufferSizing;
 import com.github.perlundq.yajsync.session.ClientSessionConfig.AuthProvider;
 import com.github.perlundq.yajsync.text.Text;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
 
 public class RsyncClientSession
 {
     private boolean _isDeferredWrite;
+    private boolean _isInplace;
+    private boolean _isSparse;
+    private boolean _isPreallocate;
+    private boolean _isWholeFile;
+    private boolean _isPartial;
+    private Path _partialDir;
+    private boolean _isCompress;
+    private int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private String _skipCompress;
     private boolean _isModuleListing;
     private boolean _isPreserveTimes;
     private boolean _isRecursiveTransfer;
@@ -46,6 +59,14 @@ public class RsyncClientSession
     private boolean _isPreserveUser;
     private boolean _isIgnoreTimes;
     private boolean _isTransferDirs;
+    private ChecksumAlgorithm _checksumAlgorithm = ChecksumAlgorithm.XXH128;
+    private int _checksumParallelism = 1;
+    private int _matchParallelism = 1;
+    private int _writeBehindSize = Receiver.DEFAULT_WRITE_BEHIND_SIZE;
+    private Durability _durability = Durability.NONE;
+    private BlockLengthStrategy _blockLengthStrategy =
+        new SquareRootBlockLength();
+    private BufferSizing _bufferSizing = BufferSizing.DEFAULT;
 
     public RsyncClientSession() {}
 
@@ -85,6 +106,64 @@ public class RsyncClientSession
         return this;
     }
 
+    public RsyncClientSession setIsInplace(boolean isInplace)
+    {
+        _isInplace = isInplace;
+        return this;
+    }
+
+    public RsyncClientSession setIsSparse(boolean isSparse)
+    {
+        _isSparse = isSparse;
+        return this;
+    }
+
+    public RsyncClientSession setIsPreallocate(boolean isPreallocate)
+    {
+        _isPreallocate = isPreallocate;
+        return this;
+    }
+
+    public RsyncClientSession setIsWholeFile(boolean isWholeFile)
+    {
+        _isWholeFile = isWholeFile;
+        return this;
+    }
+
+    public RsyncClientSession setIsPartial(boolean isPartial)
+    {
+        _isPartial = isPartial;
+        return this;
+    }
+
+    public RsyncClientSession setPartialDir(Path partialDir)
+    {
+        _partialDir = partialDir;
+        return this;
+    }
+
+    public RsyncClientSession setIsCompress(boolean isCompress)
+    {
+        _isCompress = isCompress;
+        return this;
+    }
+
+    public RsyncClientSession setCompressionLevel(int compressionLevel)
+    {
+        _compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * @param skipCompress slash separated list of file suffixes to send
+     *        uncompressed, or null for the default list
+     */
+    public RsyncClientSession setSkipCompress(String skipCompress)
+    {
+        _skipCompress = skipCompress;
+        return this;
+    }
+
     public RsyncClientSession setIsRecursiveTransfer(boolean isRecursiveTransfer)
     {
         _isRecursiveTransfer = isRecursiveTransfer;
@@ -109,6 +188,54 @@ public class RsyncClientSession
         return this;
     }
 
+    /**
+     * Set the checksum algorithm to request from the peer. Peers not
+     * supporting it (e.g. native rsync) will silently fall back to MD5.
+     */
+    public RsyncClientSession setChecksumAlgorithm(
+        ChecksumAlgorithm checksumAlgorithm)
+    {
+        _checksumAlgorithm = checksumAlgorithm;
+        return this;
+    }
+
+    public RsyncClientSession setChecksumParallelism(int checksumParallelism)
+    {
+        _checksumParallelism = checksumParallelism;
+        return this;
+    }
+
+    public RsyncClientSession setMatchParallelism(int matchParallelism)
+    {
+        _matchParallelism = matchParallelism;
+        return this;
+    }
+
+    public RsyncClientSession setWriteBehindSize(int writeBehindSize)
+    {
+        _writeBehindSize = writeBehindSize;
+        return this;
+    }
+
+    public RsyncClientSession setDurability(Durability durability)
+    {
+        _durability = durability;
+        return this;
+    }
+
+    public RsyncClientSession setBlockLengthStrategy(
+        BlockLengthStrategy blockLengthStrategy)
+    {
+        _blockLengthStrategy = blockLengthStrategy;
+        return this;
+    }
+
+    public RsyncClientSession setBufferSizing(BufferSizing bufferSizing)
+    {
+        _bufferSizing = bufferSizing;
+        return this;
+    }
+
     public Statistics statistics()
     {
         return _statistics;
@@ -145,6 +272,15 @@ public class RsyncClientSession
         if (_isRecursiveTransfer) {
             sb.append("r");
         }
+        if (_isSparse) {
+            sb.append("S");
+        }
+        if (_isWholeFile) {
+            sb.append("W");
+        }
+        if (_isCompress) {
+            sb.append("z");
+        }
         sb.append("e");
         sb.append(".");
         if (_isRecursiveTransfer) {
@@ -154,7 +290,28 @@ public class RsyncClientSession
         sb.append("s");
         sb.append("f");
         // revisit if we add support for --iconv
+        if (_checksumAlgorithm != ChecksumAlgorithm.MD5) {
+            sb.append(_checksumAlgorithm.capability()); // ignored by rsync
+        }
         serverArgs.add(sb.toString());
+        if (_isInplace) {
+            serverArgs.add("--inplace");
+        }
+        if (_isPreallocate) {
+            serverArgs.add("--preallocate");
+        }
+        if (_partialDir != null) {
+            serverArgs.add("--partial-dir=" + _partialDir);
+        } else if (_isPartial) {
+            serverArgs.add("--partial");
+        }
+        if (_isCompress &&
+            _compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+            serverArgs.add("--compress-level=" + _compressionLevel);
+        }
+        if (_isCompress && _skipCompress != null) {
+            serverArgs.add("--skip-compress=" + _skipCompress);
+        }
 
         serverArgs.add("."); // arg delimiter
 
@@ -193,6 +350,7 @@ public class RsyncClientSession
                                                           out,
                                                           _charset,
                                                           _isRecursiveTransfer,
+                                                          _checksumAlgorithm,
                                                           stdout,
                                                           stderr);
 
@@ -205,6 +363,7 @@ public class RsyncClientSession
             return true;
         }
 
+        BufferAllocator bufferAllocator = new BufferAllocator(_bufferSizing);
         if (_isSender) {
             List<Path> srcPaths = toListOfPaths(srcArgs);
             Sender sender = Sender.newClientInstance(in,
@@ -215,7 +374,16 @@ public class RsyncClientSession
                 setIsRecursive(_isRecursiveTransfer).
                 setIsPreserveUser(_isPreserveUser).
                 setIsInterruptible(isChannelsInterruptible).
-                setIsSafeFileList(cfg.isSafeFileList());
+                setIsSafeFileList(cfg.isSafeFileList()).
+                setChecksumAlgorithm(cfg.checksumAlgorithm()).
+                setIsInplace(_isInplace).
+                setIsCompress(_isCompress).
+                setCompressionLevel(_compressionLevel).
+                setMatchParallelism(_matchParallelism).
+                setBufferAllocator(bufferAllocator);
+            if (_skipCompress != null) {
+                sender.setSkipCompress(_skipCompress);
+            }
             boolean isTransferDirs = _isTransferDirs ||
                                      _isModuleListing && !_isRecursiveTransfer;
             sender.setIsTransferDirs(isTransferDirs);
@@ -234,7 +402,14 @@ public class RsyncClientSession
                     setIsIgnoreTimes(_isIgnoreTimes).
                     setIsAlwaysItemize(_verbosity > 1).
                     setIsListOnly(_isModuleListing).
-                    setIsInterruptible(isChannelsInterruptible);
+                    setIsInplace(_isInplace).
+                    setIsWholeFile(_isWholeFile).
+                    setPartialDir(_partialDir).
+                    setIsInterruptible(isChannelsInterruptible).
+                    setChecksumAlgorithm(cfg.checksumAlgorithm()).
+                    setChecksumParallelism(_checksumParallelism).
+                    setBlockLengthStrategy(_blockLengthStrategy).
+                    setBufferAllocator(bufferAllocator);
             Receiver receiver = new Receiver(generator, in, _charset, dstArg).
                 setIsSendFilterRules(true).
                 setIsReceiveStatistics(true).
@@ -245,9 +420,19 @@ public class RsyncClientSession
                 setIsPreserveUser(_isPreserveUser).
                 setIsListOnly(_isModuleListing).
                 setIsDeferredWrite(_isDeferredWrite).
+                setIsInplace(_isInplace).
+                setIsSparse(_isSparse).
+                setIsPreallocate(_isPreallocate).
+                setIsPartial(_isPartial).
+                setPartialDir(_partialDir).
+                setIsCompress(_isCompress).
                 setIsInterruptible(isChannelsInterruptible).
                 setIsExitAfterEOF(true).
-                setIsSafeFileList(cfg.isSafeFileList());
+                setIsSafeFileList(cfg.isSafeFileList()).
+                setChecksumAlgorithm(cfg.checksumAlgorithm()).
+                setWriteBehindSize(_writeBehindSize).
+                setDurability(_durability).
+                setBufferAllocator(bufferAllocator);
             boolean isOK = RsyncTaskExecutor.exec(executor, generator,
                                                          receiver);
             _statistics = receiver.statistics();
@@ -27,4 +27,8 @@ final class RsyncCompatibilities
     public static final byte CF_SYMLINK_TIMES = 1 << 1;
     public static final byte CF_SYMLINK_ICONV = 1 << 2;
     public static final byte CF_SAFE_FLIST    = 1 << 3;
+    // yajsync extension, only ever sent to a client which has advertised a
+    // checksum algorithm capability (native rsync uses this bit for
+    // CF_VARINT_FLIST_FLAGS which we never request)
+    public static final byte CF_CHECKSUM_CHOICE = (byte) (1 << 7);
 }
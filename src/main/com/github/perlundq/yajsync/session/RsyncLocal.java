@@ -24,12 +24,17 @@ import java.nio.channels.Pipe;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
 
+import com.github.perlundq.yajsync.channels.BufferAllocator;
+import com.github.perlundq.yajsync.channels.BufferSizing;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.util.BitOps;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
 
 public class RsyncLocal
 {
+    public static final int DEFAULT_COPY_PARALLELISM = 4;
     private int _verbosity;
     private boolean _isRecursiveTransfer;
     private boolean _isPreservePermissions;
@@ -37,10 +42,29 @@ public class RsyncLocal
     private boolean _isPreserveUser;
     private boolean _isIgnoreTimes;
     private boolean _isDeferredWrite;
+    private boolean _isInplace;
+    private boolean _isSparse;
+    private boolean _isPreallocate;
+    private boolean _isWholeFile = true;
+    private boolean _isPartial;
+    private Path _partialDir;
+    private boolean _isCompress;
+    private int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private String _skipCompress = Sender.DEFAULT_SKIP_COMPRESS;
+    private boolean _isDirectCopy = true;
     private Charset _charset = Charset.forName(Text.UTF8_NAME);
     private Statistics _statistics = new Statistics();
     private boolean _isTransferDirs = false;
     private boolean _isModuleListing = false;
+    private ChecksumAlgorithm _checksumAlgorithm = ChecksumAlgorithm.XXH128;
+    private int _checksumParallelism = 1;
+    private int _matchParallelism = 1;
+    private int _writeBehindSize = Receiver.DEFAULT_WRITE_BEHIND_SIZE;
+    private Durability _durability = Durability.NONE;
+    private int _copyParallelism = DEFAULT_COPY_PARALLELISM;
+    private BlockLengthStrategy _blockLengthStrategy =
+        new SquareRootBlockLength();
+    private BufferSizing _bufferSizing = BufferSizing.DEFAULT;
 
     public RsyncLocal() {}
 
@@ -89,11 +113,111 @@ public class RsyncLocal
         _isDeferredWrite = isDeferredWrite;
     }
 
+    public void setIsInplace(boolean isInplace)
+    {
+        _isInplace = isInplace;
+    }
+
+    public void setIsSparse(boolean isSparse)
+    {
+        _isSparse = isSparse;
+    }
+
+    public void setIsPreallocate(boolean isPreallocate)
+    {
+        _isPreallocate = isPreallocate;
+    }
+
+    public void setIsWholeFile(boolean isWholeFile)
+    {
+        _isWholeFile = isWholeFile;
+    }
+
+    public void setIsPartial(boolean isPartial)
+    {
+        _isPartial = isPartial;
+    }
+
+    public void setPartialDir(Path partialDir)
+    {
+        _partialDir = partialDir;
+    }
+
+    /**
+     * Compress file data passed between the sender and the receiver, only
+     * used if files are not copied directly (see setIsDirectCopy).
+     */
+    public void setIsCompress(boolean isCompress)
+    {
+        _isCompress = isCompress;
+    }
+
+    public void setCompressionLevel(int compressionLevel)
+    {
+        _compressionLevel = compressionLevel;
+    }
+
+    public void setSkipCompress(String skipCompress)
+    {
+        _skipCompress = skipCompress;
+    }
+
+    /**
+     * Copy whole files directly between the files instead of passing them
+     * through the rsync protocol, which is then only used for module
+     * listings, the delta transfer algorithm, sparse and partial files.
+     * Enabled by default, disabling it is mostly useful for testing.
+     */
+    public void setIsDirectCopy(boolean isDirectCopy)
+    {
+        _isDirectCopy = isDirectCopy;
+    }
+
     public void setIsTransferDirs(boolean isTransferDirs)
     {
         _isTransferDirs = isTransferDirs;
     }
 
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm)
+    {
+        _checksumAlgorithm = checksumAlgorithm;
+    }
+
+    public void setChecksumParallelism(int checksumParallelism)
+    {
+        _checksumParallelism = checksumParallelism;
+    }
+
+    public void setMatchParallelism(int matchParallelism)
+    {
+        _matchParallelism = matchParallelism;
+    }
+
+    public void setWriteBehindSize(int writeBehindSize)
+    {
+        _writeBehindSize = writeBehindSize;
+    }
+
+    public void setDurability(Durability durability)
+    {
+        _durability = durability;
+    }
+
+    public void setCopyParallelism(int copyParallelism)
+    {
+        _copyParallelism = copyParallelism;
+    }
+
+    public void setBlockLengthStrategy(BlockLengthStrategy blockLengthStrategy)
+    {
+        _blockLengthStrategy = blockLengthStrategy;
+    }
+
+    public void setBufferSizing(BufferSizing bufferSizing)
+    {
+        _bufferSizing = bufferSizing;
+    }
+
     private Pipe[] pipePair()
     {
         try {
@@ -110,14 +234,34 @@ public class RsyncLocal
                             String destinationPathName)
         throws RsyncException, InterruptedException
     {
+        boolean isTransferDirs = _isTransferDirs ||
+                                 _isModuleListing && !_isRecursiveTransfer;
+        if (_isDirectCopy && _isWholeFile && !_isModuleListing &&
+            !_isSparse && !_isPartial && _partialDir == null)
+        {
+            LocalCopy localCopy = new LocalCopy().
+                setIsRecursive(_isRecursiveTransfer).
+                setIsTransferDirs(isTransferDirs).
+                setIsPreservePermissions(_isPreservePermissions).
+                setIsPreserveTimes(_isPreserveTimes).
+                setIsPreserveUser(_isPreserveUser).
+                setIsIgnoreTimes(_isIgnoreTimes).
+                setIsInplace(_isInplace).
+                setIsPreallocate(_isPreallocate).
+                setDurability(_durability).
+                setParallelism(_copyParallelism);
+            boolean isOK = localCopy.transfer(srcPaths, destinationPathName);
+            _statistics = localCopy.statistics();
+            return isOK;
+        }
+
         byte[] checksumSeed =
             BitOps.toLittleEndianBuf((int) System.currentTimeMillis());
         Pipe[] pipePair = pipePair();
         Pipe toSender = pipePair[0];
         Pipe toReceiver = pipePair[1];
+        BufferAllocator bufferAllocator = new BufferAllocator(_bufferSizing);
 
-        boolean isTransferDirs = _isTransferDirs ||
-                                 _isModuleListing && !_isRecursiveTransfer;
         Sender sender = new Sender(toSender.source(),
                                    toReceiver.sink(),
                                    srcPaths,
@@ -126,7 +270,14 @@ public class RsyncLocal
             setIsPreserveUser(_isPreserveUser).
             setIsExitEarlyIfEmptyList(true).
             setIsRecursive(_isRecursiveTransfer).
-            setIsTransferDirs(isTransferDirs);
+            setIsTransferDirs(isTransferDirs).
+            setChecksumAlgorithm(_checksumAlgorithm).
+            setIsInplace(_isInplace).
+            setIsCompress(_isCompress).
+            setCompressionLevel(_compressionLevel).
+            setSkipCompress(_skipCompress).
+            setMatchParallelism(_matchParallelism).
+            setBufferAllocator(bufferAllocator);
         Generator generator = new Generator(toSender.sink(), _charset,
                                             checksumSeed, out).
             setIsRecursive(_isRecursiveTransfer).
@@ -135,7 +286,14 @@ public class RsyncLocal
             setIsPreserveUser(_isPreserveUser).
             setIsIgnoreTimes(_isIgnoreTimes).
             setIsListOnly(_isModuleListing).
-            setIsAlwaysItemize(_verbosity > 1);
+            setIsAlwaysItemize(_verbosity > 1).
+            setIsInplace(_isInplace).
+            setIsWholeFile(_isWholeFile).
+            setPartialDir(_partialDir).
+            setChecksumAlgorithm(_checksumAlgorithm).
+            setChecksumParallelism(_checksumParallelism).
+            setBlockLengthStrategy(_blockLengthStrategy).
+            setBufferAllocator(bufferAllocator);
         Receiver receiver = new Receiver(generator,
                                          toReceiver.source(),
                                          _charset,
@@ -146,7 +304,17 @@ public class RsyncLocal
             setIsPreserveTimes(_isPreserveTimes).
             setIsPreserveUser(_isPreserveUser).
             setIsListOnly(_isModuleListing).
-            setIsDeferredWrite(_isDeferredWrite);
+            setIsDeferredWrite(_isDeferredWrite).
+            setIsInplace(_isInplace).
+            setIsSparse(_isSparse).
+            setIsPreallocate(_isPreallocate).
+            setIsPartial(_isPartial).
+            setPartialDir(_partialDir).
+            setIsCompress(_isCompress).
+            setChecksumAlgorithm(_checksumAlgorithm).
+            setWriteBehindSize(_writeBehindSize).
+            setDurability(_durability).
+            setBufferAllocator(bufferAllocator);
 
         boolean isOK = RsyncTaskExecutor.exec(executor, sender,
                                                      generator, receiver);
@@ -24,12 +24,21 @@ import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.concurrent.ExecutorService;
 
+import com.github.perlundq.yajsync.channels.BufferAllocator;
+import com.github.perlundq.yajsync.channels.BufferSizing;
 import com.github.perlundq.yajsync.text.Text;
 
 public class RsyncServerSession
 {
     private Charset _charset = Charset.forName(Text.UTF8_NAME);
     private boolean _isDeferredWrite;
+    private int _checksumParallelism = 1;
+    private int _matchParallelism = 1;
+    private int _writeBehindSize = Receiver.DEFAULT_WRITE_BEHIND_SIZE;
+    private Durability _durability = Durability.NONE;
+    private BlockLengthStrategy _blockLengthStrategy =
+        new SquareRootBlockLength();
+    private BufferSizing _bufferSizing = BufferSizing.DEFAULT;
 
     public RsyncServerSession() {}
 
@@ -43,6 +52,36 @@ public class RsyncServerSession
         _isDeferredWrite = isDeferredWrite;
     }
 
+    public void setChecksumParallelism(int checksumParallelism)
+    {
+        _checksumParallelism = checksumParallelism;
+    }
+
+    public void setMatchParallelism(int matchParallelism)
+    {
+        _matchParallelism = matchParallelism;
+    }
+
+    public void setWriteBehindSize(int writeBehindSize)
+    {
+        _writeBehindSize = writeBehindSize;
+    }
+
+    public void setDurability(Durability durability)
+    {
+        _durability = durability;
+    }
+
+    public void setBlockLengthStrategy(BlockLengthStrategy blockLengthStrategy)
+    {
+        _blockLengthStrategy = blockLengthStrategy;
+    }
+
+    public void setBufferSizing(BufferSizing bufferSizing)
+    {
+        _bufferSizing = bufferSizing;
+    }
+
     public boolean transfer(ExecutorService executor,
                             ReadableByteChannel in,
                             WritableByteChannel out,
@@ -61,6 +100,7 @@ public class RsyncServerSession
             return true;
         }
 
+        BufferAllocator bufferAllocator = new BufferAllocator(_bufferSizing);
         if (cfg.isSender()) {
             Sender sender = Sender.newServerInstance(in,
                                                      out,
@@ -71,7 +111,14 @@ public class RsyncServerSession
                 setIsPreserveUser(cfg.isPreserveUser()).
                 setIsInterruptible(isChannelsInterruptible).
                 setIsSafeFileList(cfg.isSafeFileList()).
-                setIsTransferDirs(cfg.isTransferDirs());
+                setIsTransferDirs(cfg.isTransferDirs()).
+                setChecksumAlgorithm(cfg.checksumAlgorithm()).
+                setIsInplace(cfg.isInplace()).
+                setIsCompress(cfg.isCompress()).
+                setCompressionLevel(cfg.compressionLevel()).
+                setSkipCompress(cfg.skipCompress()).
+                setMatchParallelism(_matchParallelism).
+                setBufferAllocator(bufferAllocator);
             return RsyncTaskExecutor.exec(executor, sender);
         } else {
             Generator generator =
@@ -83,7 +130,14 @@ public class RsyncServerSession
                     setIsPreserveUser(cfg.isPreserveUser()).
                     setIsIgnoreTimes(cfg.isIgnoreTimes()).
                     setIsAlwaysItemize(cfg.verbosity() > 1).
-                    setIsInterruptible(isChannelsInterruptible);
+                    setIsInplace(cfg.isInplace()).
+                    setIsWholeFile(cfg.isWholeFile()).
+                    setPartialDir(cfg.partialDir()).
+                    setIsInterruptible(isChannelsInterruptible).
+                    setChecksumAlgorithm(cfg.checksumAlgorithm()).
+                    setChecksumParallelism(_checksumParallelism).
+                    setBlockLengthStrategy(_blockLengthStrategy).
+                    setBufferAllocator(bufferAllocator);
             Receiver receiver =
                 Receiver.newServerInstance(generator, in, cfg.charset(),
                                            cfg.getReceiverDestination().toString()).
@@ -92,8 +146,18 @@ public class RsyncServerSession
                     setIsPreserveTimes(cfg.isPreserveTimes()).
                     setIsPreserveUser(cfg.isPreserveUser()).
                     setIsDeferredWrite(_isDeferredWrite).
+                    setIsInplace(cfg.isInplace()).
+                    setIsSparse(cfg.isSparse()).
+                    setIsPreallocate(cfg.isPreallocate()).
+                    setIsPartial(cfg.isPartial()).
+                    setPartialDir(cfg.partialDir()).
+                    setIsCompress(cfg.isCompress()).
                     setIsInterruptible(isChannelsInterruptible).
-                    setIsSafeFileList(cfg.isSafeFileList());
+                    setIsSafeFileList(cfg.isSafeFileList()).
+                    setChecksumAlgorithm(cfg.checksumAlgorithm()).
+                    setWriteBehindSize(_writeBehindSize).
+                    setDurability(_durability).
+                    setBufferAllocator(bufferAllocator);
 
             return RsyncTaskExecutor.exec(executor, generator,
                                                     receiver);
@@ -26,18 +26,22 @@ import java.nio.ByteOrder;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.Deflater;
 
 import com.github.perlundq.yajsync.channels.AutoFlushableRsyncDuplexChannel;
+import com.github.perlundq.yajsync.channels.BufferAllocator;
 import com.github.perlundq.yajsync.channels.ChannelEOFException;
 import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.channels.Message;
@@ -57,6 +61,7 @@ import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.text.TextConversionException;
 import com.github.perlundq.yajsync.text.TextDecoder;
 import com.github.perlundq.yajsync.text.TextEncoder;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
 import com.github.perlundq.yajsync.util.MD5;
 import com.github.perlundq.yajsync.util.PathOps;
 import com.github.perlundq.yajsync.util.Rolling;
@@ -67,10 +72,18 @@ public class Sender implements RsyncTask,MessageHandler
     private static final Logger _log =
         Logger.getLogger(Sender.class.getName());
 
-    private static final int INPUT_CHANNEL_BUF_SIZE = 8 * 1024;
-    private static final int OUTPUT_CHANNEL_BUF_SIZE = 8 * 1024;
     private static final int PARTIAL_FILE_LIST_SIZE = 500;
-    private static final int CHUNK_SIZE = 8 * 1024;
+    // the same as rsync
+    private static final int CHUNK_SIZE = 32 * 1024;
+    // literal data of at least DIRECT_MIN_SIZE bytes is sent in chunks of
+    // DIRECT_CHUNK_SIZE bytes, each one as a message of its own and without
+    // copying it into the output buffer:
+    private static final int DIRECT_MIN_SIZE = 64 * 1024;
+    private static final int DIRECT_CHUNK_SIZE = 256 * 1024;
+    private static final long PARALLEL_MATCH_MIN_SIZE = 16 * 1024 * 1024;
+    // the default of rsync 3.0.9
+    public static final String DEFAULT_SKIP_COMPRESS =
+        "7z/avi/bz2/deb/gz/iso/jpeg/jpg/mov/mp3/mp4/ogg/rpm/tbz/tgz/z/zip";
     private final byte[] _checksumSeed;
     private final FileInfoCache _fileInfoCache = new FileInfoCache();
     private final AutoFlushableRsyncDuplexChannel _duplexChannel;
@@ -89,6 +102,14 @@ public class Sender implements RsyncTask,MessageHandler
     private boolean _isInterruptible = true;
     private boolean _isExitAfterEOF = false;
     private boolean _isTransferDirs = false;
+    private boolean _isInplace = false;
+    private ChecksumAlgorithm _checksumAlgorithm = ChecksumAlgorithm.MD5;
+    private int _matchParallelism = 1;
+    private ForkJoinPool _matchPool;      // created on demand
+    private TokenDeflater _tokenDeflater; // null unless compressing
+    private int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private Set<String> _skipCompressSuffixes =
+        parseSkipCompress(DEFAULT_SKIP_COMPRESS);
     private int _ioError;
 
     public Sender(ReadableByteChannel in,
@@ -98,11 +119,8 @@ public class Sender implements RsyncTask,MessageHandler
                   byte[] checksumSeed)
     {
         _duplexChannel = new AutoFlushableRsyncDuplexChannel(
-                             new RsyncInChannel(in,
-                                                this,
-                                                INPUT_CHANNEL_BUF_SIZE),
-                             new RsyncOutChannel(out,
-                                                 OUTPUT_CHANNEL_BUF_SIZE));
+                             new RsyncInChannel(in, this),
+                             new RsyncOutChannel(out));
         _sourceFiles = sourceFiles;
         _characterEncoder = TextEncoder.newStrict(charset);
         _characterDecoder = TextDecoder.newStrict(charset);
@@ -189,6 +207,79 @@ public class Sender implements RsyncTask,MessageHandler
         return this;
     }
 
+    public Sender setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm)
+    {
+        assert checksumAlgorithm != null;
+        _checksumAlgorithm = checksumAlgorithm;
+        return this;
+    }
+
+    /**
+     * The peer updates its files in place, i.e. a block of the peer's file
+     * may only be matched at its own offset or any later offset of our
+     * file, otherwise the peer would already have overwritten it.
+     */
+    public Sender setIsInplace(boolean isInplace)
+    {
+        _isInplace = isInplace;
+        return this;
+    }
+
+    /**
+     * @param matchParallelism the number of threads used for searching
+     *        large files for blocks matching the peer's checksums, 1 means
+     *        that they are searched by the sender thread itself
+     */
+    public Sender setMatchParallelism(int matchParallelism)
+    {
+        assert matchParallelism > 0;
+        _matchParallelism = matchParallelism;
+        return this;
+    }
+
+    /**
+     * Size the channel buffers using allocator, shared by all tasks of the
+     * session.
+     */
+    public Sender setBufferAllocator(BufferAllocator allocator)
+    {
+        _duplexChannel.setBufferAllocator(allocator);
+        return this;
+    }
+
+    /**
+     * Compress literal data using rsync's compressed token format (-z).
+     */
+    public Sender setIsCompress(boolean isCompress)
+    {
+        _tokenDeflater = isCompress ? new TokenDeflater() : null;
+        return this;
+    }
+
+    /**
+     * @param compressionLevel a zlib compression level 0-9 or -1 for the
+     *        default level
+     */
+    public Sender setCompressionLevel(int compressionLevel)
+    {
+        assert compressionLevel >= Deflater.DEFAULT_COMPRESSION &&
+               compressionLevel <= Deflater.BEST_COMPRESSION;
+        _compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * @param suffixes slash separated list of file name suffixes (without
+     *        the dot) of files which are already compressed and hence sent
+     *        with compression level 0, matched case insensitively
+     */
+    public Sender setSkipCompress(String suffixes)
+    {
+        assert suffixes != null;
+        _skipCompressSuffixes = parseSkipCompress(suffixes);
+        return this;
+    }
+
     @Override
     public boolean isInterruptible()
     {
@@ -297,6 +388,12 @@ public class Sender implements RsyncTask,MessageHandler
             _stats.setTotalRead(_duplexChannel.numBytesRead());
             _stats.setTotalWritten(_duplexChannel.numBytesWritten());
             _stats.setNumFiles(fileList.numFiles());
+            if (_matchPool != null) {
+                _matchPool.shutdownNow();
+            }
+            if (_tokenDeflater != null) {
+                _tokenDeflater.end();
+            }
         }
     }
 
@@ -540,22 +637,36 @@ public class Sender implements RsyncTask,MessageHandler
                     Checksum checksum = receiveChecksumsFor(header);
 
                     boolean isNew = header.blockLength() == 0;
-                    int blockSize = isNew ? FileView.DEFAULT_BLOCK_SIZE
+                    int blockSize = isNew ? DIRECT_CHUNK_SIZE
                                           : header.blockLength();
                     int blockFactor = isNew ? 1 : 10;
                     long fileSize = fileInfo.attrs().size();
 
                     byte[] fileMD5sum = null;
-                    try (FileView fv = new FileView(fileInfo.path(),
-                                                    fileInfo.attrs().size(),
-                                                    blockSize,
-                                                    blockSize * blockFactor)) {
+                    try (FileView fv = FileView.open(fileInfo.path(),
+                                                     fileInfo.attrs().size(),
+                                                     blockSize,
+                                                     blockSize * blockFactor)) {
+
+                        ParallelMatcher matcher = null;
+                        if (!isNew && _matchParallelism > 1 &&
+                            fileSize >= PARALLEL_MATCH_MIN_SIZE) {
+                            matcher = openMatcherOrNull(fileInfo, checksum,
+                                                        fileSize);
+                        }
 
                         sendIndexAndIflags(index, iFlags);
                         sendChecksumHeader(header);
+                        if (_tokenDeflater != null) {
+                            _tokenDeflater.setLevel(
+                                compressionLevelOf(fileInfo.path()));
+                        }
 
                         if (isNew) {
                             fileMD5sum = skipMatchSendData(fv, fileSize);
+                        } else if (matcher != null) {
+                            fileMD5sum = sendMatchesAndData(matcher, fileInfo,
+                                                            fileSize);
                         } else {
                             fileMD5sum = sendMatchesAndData(fv, checksum,
                                                             fileSize);
@@ -623,37 +734,25 @@ public class Sender implements RsyncTask,MessageHandler
         return ioError;
     }
 
-    // NOTE: doesn't do any check of the validity of files or normalization -
-    // it's up to the caller to do so, e.g. ServerSessionConfig.parseArguments
     private boolean initialExpand(Filelist.SegmentBuilder builder,
                                   Iterable<Path> files)
     {
-        boolean isOK = true;
+        Map<Path, RsyncFileAttributes> initial = new LinkedHashMap<>();
+        boolean isOK = SourceFiles.initialExpand(files, _isRecursive,
+                                                 _isTransferDirs, initial);
 
-        for (Path p : files) {
+        for (Map.Entry<Path, RsyncFileAttributes> e : initial.entrySet()) {
+            Path p = e.getKey();
             try {
-                if (_log.isLoggable(Level.FINE)) {
-                    _log.fine("expanding " + p);
-                }
-
-                RsyncFileAttributes attrs = RsyncFileAttributes.stat(p);
                 byte[] nameBytes =
                     _characterEncoder.encode(p.getFileName().toString());       // throws TextConversionException
 
-                FileInfo fileInfo = new FileInfo(p, p.getFileName(), nameBytes, attrs);          // throws IllegalArgumentException but that cannot happen
+                FileInfo fileInfo = new FileInfo(p, p.getFileName(), nameBytes, e.getValue());   // throws IllegalArgumentException but that cannot happen
                 if (builder.contains(fileInfo)) { // O(n) not a problem unless a really large initial list of files
                     if (_log.isLoggable(Level.WARNING)) {
                         _log.warning("pruning duplicate " + fileInfo);
                     }
-                    isOK = false;  // should we possibly not treat this as an error? (if so also change print statement to debug)
-                    continue;
-                }
-                if (!_isRecursive && !_isTransferDirs &&
-                    fileInfo.attrs().isDirectory())
-                {
-                    if (_log.isLoggable(Level.INFO)) {
-                        _log.info("skipping directory " + fileInfo);
-                    }
+                    isOK = false;
                     continue;
                 }
                 if (_log.isLoggable(Level.FINE)) {
@@ -665,14 +764,7 @@ public class Sender implements RsyncTask,MessageHandler
                     isOK = isOK && isExpandOK;
                     _nextSegmentIndex++; // we have to add it to be compliant with native, but don't try expanding it again later
                 }
-            } catch (IOException e) {
-                if (_log.isLoggable(Level.WARNING)) {
-                    _log.warning(String.format(
-                        "Failed to add %s to initial file list: %s",
-                        p, e.getMessage()));
-                }
-                isOK = false;
-            } catch (TextConversionException e) {
+            } catch (TextConversionException ex) {
                 if (_log.isLoggable(Level.WARNING)) {
                     _log.warning(String.format("Failed to encode %s using %s",
                                                p, _characterEncoder.charset()));
@@ -689,62 +781,29 @@ public class Sender implements RsyncTask,MessageHandler
         assert builder != null;
         assert directory != null;
 
-        boolean isOK = true;
         final Path localPart = getLocalPathOf(directory);                       // throws RuntimeException if unable to get local path prefix of directory, but that should never happen
-
-        // the JVM adds a lot of overhead when doing mostly directory traversals
-        // and reading of file attributes
-        try (DirectoryStream<Path> stream =
-                Files.newDirectoryStream(directory.path())) {
-
-            for (Path entry : stream) {
-                if (!PathOps.isPathPreservable(entry.getFileName())) {          // TODO: add option to continue anyway
-                    if (_log.isLoggable(Level.WARNING)) {
-                        _log.warning(String.format(
-                            "Skipping %s - unable to preserve file name",
-                            entry.getFileName()));
-                    }
-                    isOK = false;
-                    continue;
-                }
-
-                RsyncFileAttributes attrs;
-                try {
-                    attrs = RsyncFileAttributes.stat(entry);
-                } catch (IOException e) {
-                    if (_log.isLoggable(Level.WARNING)) {
-                        _log.warning(String.format("Failed to stat %s: %s",
-                                                   entry, e.getMessage()));
-                    }
-                    isOK = false;
-                    continue;
-                }
-
-                Path relativePath = localPart.relativize(entry);
-                String relativePathName =
-                    Text.withSlashAsPathSepator(relativePath.toString());
-                byte[] pathNameBytes =
-                    _characterEncoder.encodeOrNull(relativePathName);
-                if (pathNameBytes != null) {
-                    FileInfo fi = new FileInfo(entry, relativePath,
-                                               pathNameBytes, attrs);    // throws IllegalArgumentException but that cannot happen
-                    builder.add(fi);
-                } else {
-                    if (_log.isLoggable(Level.WARNING)) {
-                        _log.warning(String.format(
-                            "Failed to encode %s using %s",
-                            relativePathName, _characterEncoder.charset()));
-                    }
-                    isOK = false;
+        Map<Path, RsyncFileAttributes> entries = new LinkedHashMap<>();
+        boolean isOK = SourceFiles.expand(directory.path(), entries);
+
+        for (Map.Entry<Path, RsyncFileAttributes> e : entries.entrySet()) {
+            Path entry = e.getKey();
+            Path relativePath = localPart.relativize(entry);
+            String relativePathName =
+                Text.withSlashAsPathSepator(relativePath.toString());
+            byte[] pathNameBytes =
+                _characterEncoder.encodeOrNull(relativePathName);
+            if (pathNameBytes != null) {
+                FileInfo fi = new FileInfo(entry, relativePath,
+                                           pathNameBytes, e.getValue());        // throws IllegalArgumentException but that cannot happen
+                builder.add(fi);
+            } else {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "Failed to encode %s using %s",
+                        relativePathName, _characterEncoder.charset()));
                 }
+                isOK = false;
             }
-        } catch (IOException e) {
-            if (_log.isLoggable(Level.WARNING)) {
-                _log.warning(String.format("Got I/O error during expansion " +
-                                           "of %s: %s",
-                                           directory.path(), e.getMessage()));
-            }
-            isOK = false;
         }
         return isOK;
     }
@@ -969,9 +1028,22 @@ public class Sender implements RsyncTask,MessageHandler
         Connection.sendChecksumHeader(_duplexChannel, header);
     }
 
+    /**
+     * @throws RsyncProtocolException if the digest length of the header is
+     *         larger than what the negotiated checksum algorithm provides
+     */
     private Checksum.Header receiveChecksumHeader() throws ChannelException
     {
-        return Connection.receiveChecksumHeader(_duplexChannel);
+        Checksum.Header header =
+            Connection.receiveChecksumHeader(_duplexChannel);
+        if (header.digestLength() > _checksumAlgorithm.digestLength()) {
+            throw new RsyncProtocolException(String.format(
+                "Error: received invalid checksum digest length from " +
+                "peer: %d (expected <= %d for %s)",
+                header.digestLength(), _checksumAlgorithm.digestLength(),
+                _checksumAlgorithm));
+        }
+        return header;
     }
 
     private static int lengthOfLargestCommonPrefix(byte[] left, byte[] right)
@@ -999,36 +1071,46 @@ public class Sender implements RsyncTask,MessageHandler
         throws ChannelException
     {
         Checksum checksum = new Checksum(header);
+        byte[] md5sum = new byte[header.digestLength()];
         for (int i = 0; i < header.chunkCount(); i++) {
             int rolling = _duplexChannel.getInt();
-            byte[] md5sum = new byte[header.digestLength()];
             _duplexChannel.get(md5sum, 0, md5sum.length);
             checksum.addChunkInformation(rolling, md5sum);
         }
         return checksum;
     }
 
+    // each window is used for both the file checksum and the data sent,
+    // i.e. they match even if the file is modified concurrently
     private byte[] skipMatchSendData(FileView view, long fileSize)
         throws ChannelException
     {
-        MessageDigest fileDigest = MD5.newInstance();
+        MessageDigest fileDigest = _checksumAlgorithm.newInstance();
         long bytesSent = 0;
         while (view.windowLength() > 0) {
-            sendDataFrom(view.array(), view.startOffset(), view.windowLength());
-            bytesSent += view.windowLength();
-            fileDigest.update(view.array(), view.startOffset(),
-                              view.windowLength());
-            view.slide(view.windowLength());
+            int windowLength = view.windowLength();
+            fileDigest.update(view.range(view.startOffset(), windowLength));
+            sendDataFrom(view, view.startOffset(), windowLength);
+            bytesSent += windowLength;
+            view.slide(windowLength);
         }
         _stats.setTotalLiteralSize(_stats.totalLiteralSize() + fileSize);
-        _duplexChannel.putInt(0);
+        sendEndOfData();
         assert bytesSent == fileSize;
         return fileDigest.digest();
     }
 
-    private byte[] sendMatchesAndData(FileView fv,
-                                      Checksum peerChecksum,
-                                      long fileSize)
+    /*
+     * NOTE: this is the hot loop of the sender, it does not allocate anything
+     * per byte nor per match. As long as the window is of full block length
+     * and the next byte is already prefetched we roll directly over the raw
+     * buffer of fv and only slide fv once per run of non-candidate offsets.
+     * The buffer of fv might change when sliding, buf must be updated after
+     * each slide.
+     */
+    byte[] sendMatchesAndData(FileView fv,
+                              Checksum peerChecksum,
+                              long fileSize)
         throws ChannelException
     {
         assert fv != null;
@@ -1036,101 +1118,127 @@ public class Sender implements RsyncTask,MessageHandler
         assert peerChecksum.header().blockLength() > 0;
         assert fileSize > 0;
 
-        MessageDigest fileDigest = MD5.newInstance();
-        MessageDigest chunkDigest = MD5.newInstance();
+        MessageDigest fileDigest = _checksumAlgorithm.newInstance();
+        MessageDigest chunkDigest = _checksumAlgorithm.newInstance();
+        byte[] localChunkMd5sum = new byte[chunkDigest.getDigestLength()];
+        ByteBuffer buf = fv.buffer();
+        int blockLength = peerChecksum.header().blockLength();
+        int smallestChunkSize = peerChecksum.header().smallestChunkSize();
 
-        int rolling = Rolling.compute(fv.array(), fv.startOffset(),
+        int rolling = Rolling.compute(buf, fv.startOffset(),
                                       fv.windowLength());
         int preferredIndex = 0;
         long sizeLiteral = 0;
         long sizeMatch = 0;
-        byte[] localChunkMd5sum = null;
         fv.setMarkRelativeToStart(0);
 
-        while (fv.windowLength() >= peerChecksum.header().smallestChunkSize()) {
+        while (fv.windowLength() >= smallestChunkSize) {
 
             if (_log.isLoggable(Level.FINEST)) {
                 _log.finest(fv.toString());
             }
 
-            for (Checksum.Chunk chunk : peerChecksum.getCandidateChunks(
-                                                            rolling,
-                                                            fv.windowLength(),
-                                                            preferredIndex)) {
-
-                if (localChunkMd5sum == null) {
-                    chunkDigest.update(fv.array(),
-                                       fv.startOffset(),
-                                       fv.windowLength());
+            int windowLength = fv.windowLength();
+            boolean isDigestComputed = false;
+            int chunkIndex;
+            for (chunkIndex = peerChecksum.firstCandidate(rolling,
+                                                          windowLength,
+                                                          preferredIndex);
+                 chunkIndex >= 0;
+                 chunkIndex = peerChecksum.nextCandidate(rolling,
+                                                         windowLength,
+                                                         preferredIndex,
+                                                         chunkIndex)) {
+                if (_isInplace &&
+                    (long) chunkIndex * blockLength <
+                        sizeLiteral + sizeMatch + fv.numBytesMarked()) {
+                    continue;
+                }
+                if (!isDigestComputed) {
+                    chunkDigest.update(fv.range(fv.startOffset(),
+                                                windowLength));
                     chunkDigest.update(_checksumSeed);
-                    localChunkMd5sum = Arrays.copyOf(
-                                                chunkDigest.digest(),
-                                                chunk.md5Checksum().length);
+                    MD5.digestInto(chunkDigest, localChunkMd5sum);
+                    isDigestComputed = true;
                 }
-
-                if (Arrays.equals(localChunkMd5sum, chunk.md5Checksum())) {
-                    if (_log.isLoggable(Level.FINER)) {
-                        _log.finer(String.format(
-                            "match %s == %s %s",
-                            MD5.md5DigestToString(localChunkMd5sum),
-                            MD5.md5DigestToString(chunk.md5Checksum()),
-                            fv));
-                    }
-                    sizeMatch += fv.windowLength();
-                    sendDataFrom(fv.array(), fv.markOffset(),
-                                 fv.numBytesMarked());
-                    sizeLiteral += fv.numBytesMarked();
-                    fileDigest.update(fv.array(),
-                                      fv.markOffset(),
-                                      fv.totalBytes());
-
-                    _duplexChannel.putInt(- (chunk.chunkIndex() + 1));
-                    preferredIndex = chunk.chunkIndex() + 1;
-                    // we have sent all literal data until start of this
-                    // chunk which in turn is matching peer's checksum,
-                    // reset cursor:
-                    fv.setMarkRelativeToStart(fv.windowLength());
-                    // slide start to 1 byte left of mark offset,
-                    // will be subtracted immediately after break of loop
-                    fv.slide(fv.windowLength() - 1);
-                    // TODO: optimize away an unnecessary expensive
-                    // compact operation here while we only have 1 byte to
-                    // compact, before reading in more data (if we're at the last block)
-                    rolling = Rolling.compute(fv.array(),
-                                              fv.startOffset(),
-                                              fv.windowLength());
-                    localChunkMd5sum = null;
+                if (peerChecksum.isDigestEqual(chunkIndex, localChunkMd5sum)) {
                     break;
                 }
             }
 
-            rolling = Rolling.subtract(rolling,
-                                       fv.windowLength(),
-                                       fv.valueAt(fv.startOffset()));
+            if (chunkIndex >= 0) {
+                if (_log.isLoggable(Level.FINER)) {
+                    _log.finer(String.format(
+                        "match %s == %s %s",
+                        MD5.md5DigestToString(localChunkMd5sum),
+                        MD5.md5DigestToString(
+                            peerChecksum.digestOf(chunkIndex)),
+                        fv));
+                }
+                sizeMatch += windowLength;
+                sendDataFrom(fv, fv.firstOffset(), fv.numBytesMarked());
+                sizeLiteral += fv.numBytesMarked();
+                fileDigest.update(fv.range(fv.firstOffset(), fv.totalBytes()));
+                sendToken(chunkIndex, fv.range(fv.startOffset(),
+                                               windowLength));
+                preferredIndex = chunkIndex + 1;
+                // we have sent all literal data until start of this chunk
+                // which in turn is matching peer's checksum, reset cursor
+                // and continue right after the chunk:
+                fv.setMarkRelativeToStart(windowLength);
+                fv.slide(windowLength);
+                buf = fv.buffer();
+                rolling = Rolling.compute(buf, fv.startOffset(),
+                                          fv.windowLength());
+                continue;
+            }
 
+            // make room for more data by sending all literal data up until
+            // the start of the window (all offsets before it are tested)
             if (fv.isFull()) {
                 if (_log.isLoggable(Level.FINER)) {
                     _log.finer("view is full " + fv);
                 }
-                sendDataFrom(fv.array(), fv.firstOffset(), fv.totalBytes());
-                sizeLiteral += fv.totalBytes();
-                fileDigest.update(fv.array(), fv.firstOffset(),
-                                  fv.totalBytes());
-                fv.setMarkRelativeToStart(fv.windowLength()); // or clearMark()
-                fv.slide(fv.windowLength());
-            } else {
-                fv.slide(1);
+                sendDataFrom(fv, fv.firstOffset(), fv.numBytesMarked());
+                sizeLiteral += fv.numBytesMarked();
+                fileDigest.update(fv.range(fv.firstOffset(),
+                                           fv.numBytesMarked()));
+                fv.setMarkRelativeToStart(0);
             }
 
-            if (fv.windowLength() == peerChecksum.header().blockLength()) { // i.e. not at the end of the file
-                rolling = Rolling.add(rolling, fv.valueAt(fv.endOffset()));
+            int numPrefetched = fv.numBytesPrefetched() - windowLength;
+            if (windowLength == blockLength && numPrefetched > 0) {
+                int startOffset = fv.startOffset();
+                int endOffset = startOffset + Math.min(windowLength,
+                                                       numPrefetched);
+                int offset = startOffset;
+                do {
+                    rolling = Rolling.subtract(rolling, windowLength,
+                                               buf.get(offset));
+                    rolling = Rolling.add(rolling,
+                                          buf.get(offset + windowLength));
+                    offset++;
+                } while (offset < endOffset &&
+                         peerChecksum.firstCandidate(rolling,
+                                                     windowLength,
+                                                     preferredIndex) < 0);
+                fv.slide(offset - startOffset);
+                buf = fv.buffer();
+            } else {
+                rolling = Rolling.subtract(rolling, windowLength,
+                                           buf.get(fv.startOffset()));
+                fv.slide(1);
+                buf = fv.buffer();
+                if (fv.windowLength() == blockLength) { // i.e. not at the end of the file
+                    rolling = Rolling.add(rolling, buf.get(fv.endOffset()));
+                }
             }
         }
 
-        sendDataFrom(fv.array(), fv.firstOffset(), fv.totalBytes());
+        sendDataFrom(fv, fv.firstOffset(), fv.totalBytes());
         sizeLiteral += fv.totalBytes();
-        fileDigest.update(fv.array(), fv.firstOffset(), fv.totalBytes());
-        _duplexChannel.putInt(0);
+        fileDigest.update(fv.range(fv.firstOffset(), fv.totalBytes()));
+        sendEndOfData();
 
         if (_log.isLoggable(Level.FINE)) {
             _log.fine(String.format("%d%% match: matched %d bytes, sent %d" +
@@ -1147,26 +1255,147 @@ public class Sender implements RsyncTask,MessageHandler
         return fileDigest.digest();
     }
 
+    private ParallelMatcher openMatcherOrNull(FileInfo fileInfo,
+                                              Checksum peerChecksum,
+                                              long fileSize)
+    {
+        if (_matchPool == null) {
+            _matchPool = new ForkJoinPool(_matchParallelism);
+        }
+        try {
+            return new ParallelMatcher(_matchPool, fileInfo.path(), fileSize,
+                                       peerChecksum, CHUNK_SIZE,
+                                       _checksumAlgorithm, _checksumSeed,
+                                       _isInplace);
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "Error: cannot open %s for parallel matching, falling " +
+                    "back to sequential matching: %s",
+                    fileInfo, e.getMessage()));
+            }
+            return null;
+        }
+    }
 
-    private void sendDataFrom(byte[] buf, int startOffset, int length)
+    /*
+     * The same as sendMatchesAndData(FileView, ...) above but with the
+     * search for matches done concurrently by matcher. Any I/O error is
+     * handled like a FileViewReadError, by corrupting the file checksum.
+     */
+    private byte[] sendMatchesAndData(ParallelMatcher matcher,
+                                      FileInfo fileInfo,
+                                      long fileSize)
         throws ChannelException
     {
-        assert buf != null;
+        MessageDigest fileDigest = _checksumAlgorithm.newInstance();
+        try {
+            matcher.sendTo(_duplexChannel, _tokenDeflater, fileDigest);
+        } finally {
+            matcher.close();
+        }
+        sendEndOfData();
+
+        long sizeMatch = matcher.numBytesMatched();
+        long sizeLiteral = matcher.numBytesLiteral();
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine(String.format("%d%% match: matched %d bytes, sent %d" +
+                                    " bytes (file size %d bytes) in parallel",
+                                    Math.round(100 * ((float) sizeMatch /
+                                                      (sizeMatch +
+                                                       sizeLiteral))),
+                                    sizeMatch, sizeLiteral, fileSize));
+        }
+        _stats.setTotalLiteralSize(_stats.totalLiteralSize() + sizeLiteral);
+        _stats.setTotalMatchedSize(_stats.totalMatchedSize() + sizeMatch);
+
+        byte[] fileMD5sum = fileDigest.digest();
+        if (matcher.ioErrorOrNull() != null) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "Error: general I/O error on %s (ignored and skipped): " +
+                    "%s", fileInfo, matcher.ioErrorOrNull().getMessage()));
+            }
+            fileMD5sum[0]++;
+        }
+        return fileMD5sum;
+    }
+
+    private void sendDataFrom(FileView fv, int startOffset, int length)
+        throws ChannelException
+    {
+        assert fv != null;
         assert startOffset >= 0;
         assert length >= 0;
-        assert startOffset + length <= buf.length;
 
+        if (_tokenDeflater != null) {
+            _tokenDeflater.putData(_duplexChannel,
+                                   fv.range(startOffset, length));
+            return;
+        }
         int endOffset = startOffset + length - 1;
         int currentOffset = startOffset;
+        if (length >= DIRECT_MIN_SIZE) {
+            while (currentOffset <= endOffset) {
+                int len = Math.min(DIRECT_CHUNK_SIZE,
+                                   endOffset - currentOffset + 1);
+                _duplexChannel.putIntAndData(len, fv.range(currentOffset,
+                                                           len));
+                currentOffset += len;
+            }
+            return;
+        }
         while (currentOffset <= endOffset) {
             int len = Math.min(CHUNK_SIZE, endOffset - currentOffset + 1);
             assert len > 0;
             _duplexChannel.putInt(len);
-            _duplexChannel.put(buf, currentOffset, len);
+            _duplexChannel.put(fv.range(currentOffset, len));
             currentOffset += len;
         }
     }
 
+    private void sendToken(int chunkIndex, ByteBuffer chunkData)
+        throws ChannelException
+    {
+        if (_tokenDeflater != null) {
+            _tokenDeflater.putToken(_duplexChannel, chunkIndex, chunkData);
+        } else {
+            _duplexChannel.putInt(- (chunkIndex + 1));
+        }
+    }
+
+    private void sendEndOfData() throws ChannelException
+    {
+        if (_tokenDeflater != null) {
+            _tokenDeflater.putEnd(_duplexChannel);
+        } else {
+            _duplexChannel.putInt(0);
+        }
+    }
+
+    private int compressionLevelOf(Path path)
+    {
+        String name = path.getFileName().toString().toLowerCase();
+        for (String suffix : _skipCompressSuffixes) {
+            if (name.endsWith(suffix)) {
+                return Deflater.NO_COMPRESSION;
+            }
+        }
+        return _compressionLevel;
+    }
+
+    // the suffixes are returned with a leading dot
+    private static Set<String> parseSkipCompress(String suffixes)
+    {
+        Set<String> result = new HashSet<>();
+        for (String suffix : suffixes.split("/")) {
+            if (!suffix.isEmpty()) {
+                result.add("." + suffix.toLowerCase());
+            }
+        }
+        return result;
+    }
+
     private void sendIntMessage(MessageCode code, int value)
         throws ChannelException
     {
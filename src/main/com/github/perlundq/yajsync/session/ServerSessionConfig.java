@@ -23,6 +23,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
@@ -31,6 +32,7 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import com.github.perlundq.yajsync.channels.ChannelEOFException;
 import com.github.perlundq.yajsync.channels.ChannelException;
@@ -40,6 +42,7 @@ import com.github.perlundq.yajsync.text.TextConversionException;
 import com.github.perlundq.yajsync.util.ArgumentParser;
 import com.github.perlundq.yajsync.util.ArgumentParsingError;
 import com.github.perlundq.yajsync.util.BitOps;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
 import com.github.perlundq.yajsync.util.Consts;
 import com.github.perlundq.yajsync.util.MemoryPolicy;
 import com.github.perlundq.yajsync.util.Option;
@@ -64,6 +67,15 @@ public class ServerSessionConfig extends SessionConfig
     private int _verbosity = 0;
     private boolean _isSafeFileList;
     private boolean _isTransferDirs = false;
+    private boolean _isInplace = false;
+    private boolean _isSparse = false;
+    private boolean _isPreallocate = false;
+    private boolean _isWholeFile = false;
+    private boolean _isPartial = false;
+    private Path _partialDir;
+    private boolean _isCompress = false;
+    private int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private String _skipCompress = Sender.DEFAULT_SKIP_COMPRESS;
 
 
     /**
@@ -327,6 +339,88 @@ public class ServerSessionConfig extends SessionConfig
                 _isTransferDirs = true;
                 }}));
 
+        argsParser.add(Option.newWithoutArgument(
+            Option.Policy.OPTIONAL,
+            "inplace", "", "",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isInplace = true;
+                }}));
+
+        argsParser.add(Option.newWithoutArgument(
+            Option.Policy.OPTIONAL,
+            "sparse", "S", "",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isSparse = true;
+                }}));
+
+        argsParser.add(Option.newWithoutArgument(
+            Option.Policy.OPTIONAL,
+            "preallocate", "", "",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isPreallocate = true;
+                }}));
+
+        argsParser.add(Option.newWithoutArgument(
+            Option.Policy.OPTIONAL,
+            "whole-file", "W", "",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isWholeFile = true;
+                }}));
+
+        argsParser.add(Option.newWithoutArgument(
+            Option.Policy.OPTIONAL,
+            "partial", "", "",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isPartial = true;
+                }}));
+
+        argsParser.add(Option.newStringOption(
+            Option.Policy.OPTIONAL,
+            "partial-dir", "", "",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError
+                {
+                    _partialDir = parsePartialDir((String) option.getValue());
+                }}));
+
+        argsParser.add(Option.newWithoutArgument(
+            Option.Policy.OPTIONAL,
+            "compress", "z", "",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isCompress = true;
+                }}));
+
+        argsParser.add(Option.newIntegerOption(
+            Option.Policy.OPTIONAL,
+            "compress-level", "", "",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError
+                {
+                    _compressionLevel = (int) option.getValue();
+                    if (_compressionLevel < Deflater.NO_COMPRESSION ||
+                        _compressionLevel > Deflater.BEST_COMPRESSION) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid compression level %d",
+                            _compressionLevel));
+                    }
+                }}));
+
+        argsParser.add(Option.newStringOption(
+            Option.Policy.OPTIONAL,
+            "skip-compress", "", "",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _skipCompress = (String) option.getValue();
+                }}));
+
         // FIXME: let ModuleProvider mutate this argsParser instance before
         // calling parse (e.g. adding specific options or removing options)
 
@@ -410,6 +504,16 @@ public class ServerSessionConfig extends SessionConfig
             if (str.contains("s")) { // CF_SYMLINK_ICONV
             }
             _isSafeFileList = str.contains("f");
+            // the checksum algorithms a yajsync client supports besides MD5,
+            // in order of preference
+            for (char c : str.toCharArray()) {
+                ChecksumAlgorithm algorithm =
+                    ChecksumAlgorithm.fromCapabilityOrNull(c);
+                if (algorithm != null) {
+                    _checksumAlgorithm = algorithm;
+                    break;
+                }
+            }
         } else {
             throw new RsyncProtocolException(
                 String.format("Protocol not supported - got %s from peer",
@@ -426,10 +530,19 @@ public class ServerSessionConfig extends SessionConfig
         if (_isIncrementalRecurse) {
             flags |= RsyncCompatibilities.CF_INC_RECURSE;
         }
+        if (_checksumAlgorithm != ChecksumAlgorithm.MD5) {
+            flags |= RsyncCompatibilities.CF_CHECKSUM_CHOICE;
+        }
         if (_log.isLoggable(Level.FINER)) {
             _log.finer("> (we support) " + flags);
         }
         _peerConnection.putByte(flags);
+        if (_checksumAlgorithm != ChecksumAlgorithm.MD5) {
+            if (_log.isLoggable(Level.FINER)) {
+                _log.finer("> (checksum algorithm) " + _checksumAlgorithm);
+            }
+            _peerConnection.putByte((byte) _checksumAlgorithm.capability());
+        }
     }
 
     private void sendChecksumSeed() throws ChannelException
@@ -522,4 +635,74 @@ public class ServerSessionConfig extends SessionConfig
     {
         return _isTransferDirs;
     }
+
+    public boolean isInplace()
+    {
+        return _isInplace;
+    }
+
+    public boolean isSparse()
+    {
+        return _isSparse;
+    }
+
+    public boolean isPreallocate()
+    {
+        return _isPreallocate;
+    }
+
+    public boolean isWholeFile()
+    {
+        return _isWholeFile;
+    }
+
+    public boolean isPartial()
+    {
+        return _isPartial;
+    }
+
+    /**
+     * @return the partial directory or null if not set
+     */
+    public Path partialDir()
+    {
+        return _partialDir;
+    }
+
+    public boolean isCompress()
+    {
+        return _isCompress;
+    }
+
+    public int compressionLevel()
+    {
+        return _compressionLevel;
+    }
+
+    /**
+     * @return the slash separated list of file suffixes sent uncompressed
+     */
+    public String skipCompress()
+    {
+        return _skipCompress;
+    }
+
+    // the peer must not be able to make us write outside of the module,
+    // the partial directory is resolved against the directory of each file
+    private static Path parsePartialDir(String pathName)
+        throws ArgumentParsingError
+    {
+        try {
+            Path path = Paths.get(pathName).normalize();
+            if (!path.isAbsolute() && !path.toString().isEmpty() &&
+                !path.startsWith("..")) {
+                return path;
+            }
+        } catch (InvalidPathException e) {
+            // throw below
+        }
+        throw new ArgumentParsingError(String.format(
+            "invalid partial directory %s - must be a relative path below " +
+            "the directory of each file", pathName));
+    }
 }
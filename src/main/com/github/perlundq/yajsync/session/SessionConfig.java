@@ -36,6 +36,7 @@ import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.text.TextConversionException;
 import com.github.perlundq.yajsync.text.TextDecoder;
 import com.github.perlundq.yajsync.text.TextEncoder;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
 import com.github.perlundq.yajsync.util.Consts;
 import com.github.perlundq.yajsync.util.MemoryPolicy;
 import com.github.perlundq.yajsync.util.OverflowException;
@@ -54,6 +55,7 @@ public abstract class SessionConfig
     protected TextEncoder _characterEncoder;
     protected TextDecoder _characterDecoder;
     protected byte[] _checksumSeed; // always stored in little endian
+    protected ChecksumAlgorithm _checksumAlgorithm = ChecksumAlgorithm.MD5;
 
     private Charset _charset;
 
@@ -81,6 +83,11 @@ public abstract class SessionConfig
         return _checksumSeed;
     }
 
+    public ChecksumAlgorithm checksumAlgorithm()
+    {
+        return _checksumAlgorithm;
+    }
+
     public SessionStatus status()
     {
         assert _status != null;
@@ -0,0 +1,142 @@
+/*
+ * Expansion of source files
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.util.PathOps;
+
+/**
+ * Selects the source files of a transfer, used by both Sender and
+ * LocalCopy so that a local copy selects exactly the same files as a
+ * transfer using the rsync protocol. Errors are logged and reported as a
+ * false return value, the remaining files are still added.
+ */
+final class SourceFiles
+{
+    private static final Logger _log =
+        Logger.getLogger(SourceFiles.class.getName());
+
+    private SourceFiles() {}
+
+    /**
+     * Adds each of paths to result unless it has the same file name as a
+     * previous one, or is a directory and neither isRecursive nor
+     * isTransferDirs.
+     *
+     * NOTE: doesn't do any check of the validity of paths or normalization -
+     * it's up to the caller to do so, e.g. ServerSessionConfig.parseArguments
+     */
+    static boolean initialExpand(Iterable<Path> paths,
+                                 boolean isRecursive,
+                                 boolean isTransferDirs,
+                                 Map<Path, RsyncFileAttributes> result)
+    {
+        boolean isOK = true;
+        Set<Path> names = new HashSet<>();
+
+        for (Path p : paths) {
+            try {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine("expanding " + p);
+                }
+                RsyncFileAttributes attrs = RsyncFileAttributes.stat(p);
+                if (!names.add(p.getFileName())) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format("pruning duplicate %s %s",
+                                                   p, attrs));
+                    }
+                    isOK = false;  // should we possibly not treat this as an error? (if so also change print statement to debug)
+                    continue;
+                }
+                if (!isRecursive && !isTransferDirs && attrs.isDirectory()) {
+                    if (_log.isLoggable(Level.INFO)) {
+                        _log.info(String.format("skipping directory %s %s",
+                                                p, attrs));
+                    }
+                    continue;
+                }
+                result.put(p, attrs);
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "Failed to add %s to initial file list: %s",
+                        p, e.getMessage()));
+                }
+                isOK = false;
+            }
+        }
+        return isOK;
+    }
+
+    /**
+     * Adds all entries of directory with preservable file names to result,
+     * in directory order.
+     */
+    static boolean expand(Path directory,
+                          Map<Path, RsyncFileAttributes> result)
+    {
+        boolean isOK = true;
+
+        // the JVM adds a lot of overhead when doing mostly directory traversals
+        // and reading of file attributes
+        try (DirectoryStream<Path> stream =
+                Files.newDirectoryStream(directory)) {
+
+            for (Path entry : stream) {
+                if (!PathOps.isPathPreservable(entry.getFileName())) {          // TODO: add option to continue anyway
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format(
+                            "Skipping %s - unable to preserve file name",
+                            entry.getFileName()));
+                    }
+                    isOK = false;
+                    continue;
+                }
+
+                try {
+                    result.put(entry, RsyncFileAttributes.stat(entry));
+                } catch (IOException e) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format("Failed to stat %s: %s",
+                                                   entry, e.getMessage()));
+                    }
+                    isOK = false;
+                }
+            }
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("Got I/O error during expansion " +
+                                           "of %s: %s",
+                                           directory, e.getMessage()));
+            }
+            isOK = false;
+        }
+        return isOK;
+    }
+}
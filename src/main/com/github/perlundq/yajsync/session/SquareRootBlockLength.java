@@ -0,0 +1,68 @@
+/*
+ * Square root checksum block length
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.nio.file.Path;
+
+/**
+ * The default strategy: the largest power of two not greater than the
+ * square root of the file size, but at least MIN_BLOCK_LENGTH.
+ */
+public class SquareRootBlockLength extends BlockLengthStrategy
+{
+    static final int MIN_BLOCK_LENGTH = 512;
+
+    @Override
+    public int blockLengthFor(Path path, long fileSize)
+    {
+        assert fileSize > 0;
+        int blockLength = pow2SquareRoot(fileSize);
+        assert fileSize / blockLength <= Integer.MAX_VALUE;
+        return Math.min(Checksum.MAX_CHECKSUM_BLOCK_LENGTH,
+                        Math.max(MIN_BLOCK_LENGTH, blockLength));
+    }
+
+    // return the square root of num as the nearest lower number in base 2
+    /**
+     * @throws IllegalArgumentException if num is negative or result would
+     *         overflow an integer
+     */
+    private static int pow2SquareRoot(long num)
+    {
+        if (num < 0) {
+            throw new IllegalArgumentException(String.format(
+                "cannot compute square root of %d", num));
+        }
+
+        if (num == 0) {
+            return 0;
+        }
+        // sqrt(2**n) == 2**(n/2)
+        long nearestLowerBase2 = Long.highestOneBit(num);
+        int exponent = Long.numberOfTrailingZeros(nearestLowerBase2);
+        int sqrtExponent = exponent / 2;
+        long result = 1 << sqrtExponent;
+        if (result < 0 || result > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                "square root of %d (%d) is either negative or larger than max" +
+                " int value (%d)", num, result, Integer.MAX_VALUE));
+        }
+        return (int) result;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Sending literal data and matching block tokens compressed with zlib
+ *
+ * Copyright (C) 1996-2011 by Andrew Tridgell, Wayne Davison, and others
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.Writable;
+
+/**
+ * Encodes the data of a file in the compressed token format of rsync's
+ * -z (token.c, send_deflated_token) instead of as plain integer tokens
+ * followed by literal data. Literal data is deflated as one raw zlib
+ * stream per file and sent in chunks of at most 16383 bytes, each stream
+ * being flushed (Z_SYNC_FLUSH) before a matching block token. Runs of
+ * consecutive block tokens are sent as one token relative to the
+ * previous one.
+ *
+ * The data of a matching block is added to the compressor's history
+ * without being sent, just like the receiver adds it to the
+ * decompressor's history. rsync uses a patched zlib for this
+ * (Z_INSERT_ONLY), here the data is instead set as a dictionary directly
+ * following the flush, which appends it to the window of a raw stream in
+ * the same way.
+ *
+ * Not thread safe.
+ */
+class TokenDeflater
+{
+    // flag bytes of the compressed token stream
+    static final int END_FLAG = 0;
+    static final int TOKEN_LONG = 0x20;
+    static final int TOKENRUN_LONG = 0x21;
+    static final int DEFLATED_DATA = 0x40;
+    static final int TOKEN_REL = 0x80;
+    static final int TOKENRUN_REL = 0xc0;
+
+    static final int MAX_DATA_COUNT = 16383;
+    // protocol 30 adds the data of a block to the history in chunks of at
+    // most this size, all of them starting at the beginning of the block
+    static final int MAX_HISTORY_CHUNK = 0xffff;
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+    private static final int TOKEN_END = -1;
+    private static final int TOKEN_DATA = -2;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Deflater _deflater =
+        new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    // 2 bytes of DEFLATED_DATA header followed by the deflated data
+    private final byte[] _obuf = new byte[MAX_DATA_COUNT + 2];
+    private final byte[] _inBuf = new byte[Math.max(CHUNK_SIZE,
+                                                    MAX_HISTORY_CHUNK)];
+    private int _level = Deflater.DEFAULT_COMPRESSION;
+    private int _lastToken = TOKEN_END;
+    private int _runStart;
+    private int _lastRunEnd;
+    private boolean _isFlushPending;
+
+    /**
+     * Sets the compression level used from the start of the next file.
+     */
+    public void setLevel(int level)
+    {
+        assert level == Deflater.DEFAULT_COMPRESSION ||
+               level >= Deflater.NO_COMPRESSION &&
+               level <= Deflater.BEST_COMPRESSION;
+        _level = level;
+    }
+
+    public void putData(Writable out, ByteBuffer data) throws ChannelException
+    {
+        if (data.hasRemaining()) {
+            send(out, TOKEN_DATA, data, null);
+        }
+    }
+
+    /**
+     * @param blockData the data of the matching block, it is consumed
+     */
+    public void putToken(Writable out, int blockIndex, ByteBuffer blockData)
+        throws ChannelException
+    {
+        assert blockIndex >= 0;
+        send(out, blockIndex, EMPTY, blockData);
+    }
+
+    public void putEnd(Writable out) throws ChannelException
+    {
+        send(out, TOKEN_END, EMPTY, null);
+    }
+
+    public void end()
+    {
+        _deflater.end();
+    }
+
+    private void send(Writable out, int token, ByteBuffer data,
+                      ByteBuffer blockData)
+        throws ChannelException
+    {
+        if (_lastToken == TOKEN_END) {      // start of a new file
+            _deflater.reset();
+            _deflater.setLevel(_level);
+            _lastRunEnd = 0;
+            _runStart = token;
+            _isFlushPending = false;
+        } else if (_lastToken == TOKEN_DATA) {
+            _runStart = token;
+        } else if (data.hasRemaining() || token != _lastToken + 1 ||
+                   token >= _runStart + 65536) {
+            putRun(out);
+            _lastRunEnd = _lastToken;
+            _runStart = token;
+        }
+        _lastToken = token;
+
+        if (data.hasRemaining() || _isFlushPending) {
+            deflate(out, data, token != TOKEN_DATA);
+            _isFlushPending = token == TOKEN_DATA;
+        }
+
+        if (token == TOKEN_END) {
+            out.putByte((byte) END_FLAG);
+        } else if (token != TOKEN_DATA) {
+            addToHistory(blockData);
+        }
+    }
+
+    private void putRun(Writable out) throws ChannelException
+    {
+        int r = _runStart - _lastRunEnd;
+        int n = _lastToken - _runStart;
+        if (r >= 0 && r <= 63) {
+            out.putByte((byte) ((n == 0 ? TOKEN_REL : TOKENRUN_REL) + r));
+        } else {
+            out.putByte((byte) (n == 0 ? TOKEN_LONG : TOKENRUN_LONG));
+            out.putInt(_runStart);
+        }
+        if (n != 0) {
+            out.putByte((byte) n);
+            out.putByte((byte) (n >> 8));
+        }
+    }
+
+    // the 4 last bytes of a flush are always 0, 0, 0xff, 0xff and are not
+    // sent, they are kept in _obuf in case more data follows them
+    private void deflate(Writable out, ByteBuffer data, boolean isFlush)
+        throws ChannelException
+    {
+        int flush = Deflater.NO_FLUSH;
+        int position = 2;
+        int available = 0;
+        do {
+            if (_deflater.needsInput() && data.hasRemaining()) {
+                setInput(data, Math.min(data.remaining(), CHUNK_SIZE));
+            }
+            if (available == 0) {
+                position = 2;
+                available = MAX_DATA_COUNT;
+                if (flush != Deflater.NO_FLUSH) {
+                    System.arraycopy(_obuf, MAX_DATA_COUNT - 2, _obuf, 2, 4);
+                    position += 4;
+                    available -= 4;
+                }
+            }
+            if (!data.hasRemaining() && isFlush) {
+                flush = Deflater.SYNC_FLUSH;
+            }
+            int n = _deflater.deflate(_obuf, position, available, flush);
+            position += n;
+            available -= n;
+            if (!data.hasRemaining() || available == 0) {
+                int length = MAX_DATA_COUNT - available;
+                if (flush != Deflater.NO_FLUSH) {
+                    length -= 4;
+                }
+                if (length > 0) {
+                    _obuf[0] = (byte) (DEFLATED_DATA + (length >> 8));
+                    _obuf[1] = (byte) length;
+                    out.put(_obuf, 0, length + 2);
+                }
+            }
+        } while (data.hasRemaining() || available == 0);
+    }
+
+    private void setInput(ByteBuffer data, int length)
+    {
+        if (data.hasArray()) {
+            _deflater.setInput(data.array(),
+                               data.arrayOffset() + data.position(), length);
+        } else {
+            data.duplicate().get(_inBuf, 0, length);
+            _deflater.setInput(_inBuf, 0, length);
+        }
+        data.position(data.position() + length);
+    }
+
+    private void addToHistory(ByteBuffer blockData)
+    {
+        int length = blockData.remaining();
+        do {
+            int n = Math.min(length, MAX_HISTORY_CHUNK);
+            length -= n;
+            if (blockData.hasArray()) {
+                _deflater.setDictionary(blockData.array(),
+                                        blockData.arrayOffset() +
+                                        blockData.position(), n);
+            } else {
+                blockData.duplicate().get(_inBuf, 0, n);
+                _deflater.setDictionary(_inBuf, 0, n);
+            }
+        } while (length > 0);
+        blockData.position(blockData.limit());
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Receiving literal data and matching block tokens compressed with zlib
+ *
+ * Copyright (C) 1996-2011 by Andrew Tridgell, Wayne Davison, and others
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.Readable;
+
+/**
+ * Decodes the compressed token format sent by TokenDeflater and rsync's
+ * -z (token.c, recv_deflated_token), returning the same tokens as the
+ * uncompressed format. After a matching block token the caller must add
+ * the data of the block to the history of the decompressor using
+ * seeToken, it is fed to the decompressor as a fake stored block.
+ *
+ * Not thread safe.
+ */
+class TokenInflater
+{
+    private enum State { INIT, IDLE, INFLATING, INFLATED, RUNNING }
+
+    private static final byte[] SYNC_TRAILER = { 0, 0, (byte) 0xff,
+                                                 (byte) 0xff };
+    private static final int OUT_BUF_SIZE = 32 * 1024 + 64;
+    private final Inflater _inflater = new Inflater(true);
+    private final byte[] _cbuf = new byte[TokenDeflater.MAX_DATA_COUNT];
+    private final byte[] _dbuf = new byte[OUT_BUF_SIZE];
+    private final byte[] _hbuf =
+        new byte[5 + TokenDeflater.MAX_HISTORY_CHUNK];
+    private final ByteBuffer _data = ByteBuffer.wrap(_dbuf);
+    private State _state = State.INIT;
+    private int _savedFlag = -1;
+    private int _token;
+    private int _run;
+
+    /**
+     * @return a positive number of bytes of literal data available from
+     *         data(), -(index + 1) for a matching block or 0 at the end of
+     *         the file
+     * @throws RsyncProtocolException if the data cannot be decompressed
+     */
+    public int next(Readable in) throws ChannelException
+    {
+        return next(in, false);
+    }
+
+    /**
+     * Same as next but skips any literal data without decompressing it,
+     * for discarding the rest of a file.
+     */
+    public int skip(Readable in) throws ChannelException
+    {
+        return next(in, true);
+    }
+
+    /**
+     * @return the literal data returned by the last call to next, valid
+     *         until the next call to any method
+     */
+    public ByteBuffer data()
+    {
+        return _data;
+    }
+
+    /**
+     * Adds the data of the last matching block to the history, data is
+     * consumed.
+     */
+    public void seeToken(ByteBuffer data)
+    {
+        int length = data.remaining();
+        do {
+            int n = Math.min(length, TokenDeflater.MAX_HISTORY_CHUNK);
+            length -= n;
+            _hbuf[0] = 0;
+            _hbuf[1] = (byte) n;
+            _hbuf[2] = (byte) (n >> 8);
+            _hbuf[3] = (byte) ~n;
+            _hbuf[4] = (byte) (~n >> 8);
+            data.duplicate().get(_hbuf, 5, n);
+            _inflater.setInput(_hbuf, 0, 5 + n);
+            do {
+                if (inflate() == 0 && !_inflater.needsInput()) {
+                    throw new RsyncProtocolException(
+                        "decompressor stalled on matching block data");
+                }
+            } while (!_inflater.needsInput());
+        } while (length > 0);
+        data.position(data.limit());
+    }
+
+    public void end()
+    {
+        _inflater.end();
+    }
+
+    private int next(Readable in, boolean isSkip) throws ChannelException
+    {
+        while (true) {
+            switch (_state) {
+            case INIT:
+                _inflater.reset();
+                _state = State.IDLE;
+                _token = 0;
+                break;
+            case IDLE:
+            case INFLATED:
+                int flag;
+                if (_savedFlag >= 0) {
+                    flag = _savedFlag;
+                    _savedFlag = -1;
+                } else {
+                    flag = in.getByte() & 0xff;
+                }
+                if ((flag & 0xc0) == TokenDeflater.DEFLATED_DATA) {
+                    int n = ((flag & 0x3f) << 8) + (in.getByte() & 0xff);
+                    if (isSkip) {
+                        in.skip(n);
+                    } else {
+                        in.get(_cbuf, 0, n);
+                        _inflater.setInput(_cbuf, 0, n);
+                        _state = State.INFLATING;
+                    }
+                    break;
+                }
+                if (_state == State.INFLATED) {
+                    int n = inflate();
+                    if (n > 0) {
+                        _savedFlag = flag;
+                        return n;
+                    }
+                    // the sender does not send the end of its flush
+                    _inflater.setInput(SYNC_TRAILER);
+                    if (inflate() != 0 || !_inflater.needsInput()) {
+                        throw new RsyncProtocolException(
+                            "decompressor lost sync");
+                    }
+                    _state = State.IDLE;
+                }
+                if (flag == TokenDeflater.END_FLAG) {
+                    _state = State.INIT;
+                    return 0;
+                }
+                if ((flag & TokenDeflater.TOKEN_REL) != 0) {
+                    _token += flag & 0x3f;
+                    flag >>= 6;
+                } else if (flag == TokenDeflater.TOKEN_LONG ||
+                           flag == TokenDeflater.TOKENRUN_LONG) {
+                    _token = in.getInt();
+                } else {
+                    throw new RsyncProtocolException(String.format(
+                        "received invalid compressed token flag %d",
+                        flag));
+                }
+                if ((flag & 1) != 0) {
+                    _run = (in.getByte() & 0xff) + ((in.getByte() & 0xff) << 8);
+                    _state = State.RUNNING;
+                }
+                return -1 - _token;
+            case INFLATING:
+                int n = inflate();
+                if (_inflater.needsInput()) {
+                    _state = State.INFLATED;
+                } else if (n == 0) {
+                    throw new RsyncProtocolException(
+                        "decompressor stalled on literal data");
+                }
+                if (n > 0) {
+                    return n;
+                }
+                break;
+            case RUNNING:
+                _token++;
+                if (--_run == 0) {
+                    _state = State.IDLE;
+                }
+                return -1 - _token;
+            default:
+                throw new IllegalStateException(_state.toString());
+            }
+        }
+    }
+
+    private int inflate()
+    {
+        try {
+            int n = _inflater.inflate(_dbuf);
+            _data.clear();
+            _data.limit(n);
+            return n;
+        } catch (DataFormatException e) {
+            throw new RsyncProtocolException(String.format(
+                "failed to decompress data from peer: %s", e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Bounded write-behind of received file data
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+
+/**
+ * Writes the data of one file at a time, in order, on a separate writer
+ * thread so that the caller may continue receiving data from the peer
+ * while the previous data is being written to disk. Data is copied into a
+ * pool of buffers which limits the number of bytes in flight, the caller
+ * blocks whenever the pool is exhausted. Ranges of another file are copied
+ * by the writer thread using FileChannel.transferTo.
+ *
+ * A limit of zero bytes in flight makes all writes synchronous instead.
+ *
+ * An I/O error does not abort the caller, the rest of the file is ignored
+ * and the error is available from ioErrorOrNull() after finish().
+ *
+ * Not thread safe, all methods must be called from the same thread.
+ */
+class WriteBehind implements AutoCloseable
+{
+    private static final int BUF_SIZE = 256 * 1024;
+    private static final int MAX_NUM_PENDING_TASKS = 1024;
+    private static final long IDLE_TIMEOUT_SECONDS = 10;
+    private final int _maxNumBuffers;
+    private final BlockingQueue<ByteBuffer> _freeBuffers;
+    private final Semaphore _pendingTasks =
+        new Semaphore(MAX_NUM_PENDING_TASKS);
+    private ThreadPoolExecutor _writer;  // created on demand
+    private int _numBuffers;
+    private FileChannel _target;
+    private ByteBuffer _buf;             // data not yet handed to the writer
+    private long _bufPosition;           // file position of _buf
+    private long _position;
+    private volatile IOException _ioError;
+
+    private abstract class Task implements Runnable
+    {
+        protected abstract void write() throws IOException;
+
+        protected void done() {}
+
+        @Override
+        public void run()
+        {
+            try {
+                if (_ioError == null) {
+                    write();
+                }
+            } catch (IOException e) {
+                _ioError = e;
+            } catch (RuntimeException e) {
+                _ioError = new IOException(e);
+            } finally {
+                done();
+                if (_maxNumBuffers > 0) {
+                    _pendingTasks.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param maxNumBytesInFlight the maximum number of bytes not yet
+     *        written, rounded up to at least two buffers of 256 KB. 0 means
+     *        that all data is written synchronously
+     */
+    public WriteBehind(int maxNumBytesInFlight)
+    {
+        assert maxNumBytesInFlight >= 0;
+        _maxNumBuffers = maxNumBytesInFlight == 0
+                         ? 0
+                         : Math.max(2, (maxNumBytesInFlight + BUF_SIZE - 1) /
+                                       BUF_SIZE);
+        _freeBuffers = new ArrayBlockingQueue<>(Math.max(1, _maxNumBuffers));
+    }
+
+    /**
+     * Stops the writer thread once all pending data is written.
+     */
+    @Override
+    public void close()
+    {
+        if (_writer != null) {
+            _writer.shutdown();
+        }
+    }
+
+    /**
+     * Starts writing at the current position of target. target must not be
+     * accessed by anyone else until finish() is called.
+     */
+    public void open(FileChannel target) throws IOException
+    {
+        assert _target == null;
+        assert _buf == null;
+        _position = target.position();
+        _target = target;
+        _ioError = null;
+    }
+
+    /**
+     * Waits until all data is written, ranges skipped at the end are left
+     * as a hole, and sets the position of the target to position().
+     *
+     * @throws RuntimeInterruptException if interrupted while waiting
+     */
+    public void finish()
+    {
+        assert _target != null;
+        flushBuffer();
+        final FileChannel target = _target;
+        final long position = _position;
+        submit(new Task() {
+            @Override
+            protected void write() throws IOException {
+                if (target.size() < position) {
+                    writeFully(target, ByteBuffer.allocate(1), position - 1);
+                }
+                target.position(position);
+            }
+        });
+        if (_maxNumBuffers > 0) {
+            try {
+                _pendingTasks.acquire(MAX_NUM_PENDING_TASKS);
+                _pendingTasks.release(MAX_NUM_PENDING_TASKS);
+            } catch (InterruptedException e) {
+                throw new RuntimeInterruptException(e);
+            }
+        }
+        _target = null;
+    }
+
+    /**
+     * @return the first I/O error of the current file or null
+     */
+    public IOException ioErrorOrNull()
+    {
+        return _ioError;
+    }
+
+    /**
+     * @return the position of the target following all data written so far
+     */
+    public long position()
+    {
+        return _position;
+    }
+
+    /**
+     * Writes all remaining data of src.
+     *
+     * @throws RuntimeInterruptException if interrupted while waiting for a
+     *         free buffer
+     */
+    public void write(ByteBuffer src)
+    {
+        assert _target != null;
+        if (_maxNumBuffers == 0) {
+            final ByteBuffer data = src.duplicate();
+            final long position = _position;
+            _position += src.remaining();
+            src.position(src.limit());
+            submit(new Task() {
+                @Override
+                protected void write() throws IOException {
+                    writeFully(_target, data, position);
+                }
+            });
+            return;
+        }
+
+        while (src.hasRemaining()) {
+            if (_buf == null) {
+                _buf = takeBuffer();
+                _bufPosition = _position;
+            }
+            int length = Math.min(_buf.remaining(), src.remaining());
+            ByteBuffer data = src.duplicate();
+            data.limit(data.position() + length);
+            _buf.put(data);
+            src.position(src.position() + length);
+            _position += length;
+            if (!_buf.hasRemaining()) {
+                flushBuffer();
+            }
+        }
+    }
+
+    /**
+     * Copies src[offset, offset + length) using FileChannel.transferTo. src
+     * must not be closed until finish() returns.
+     */
+    public void transferFrom(final FileChannel src, final long offset,
+                             final long length)
+    {
+        assert _target != null;
+        flushBuffer();
+        final FileChannel target = _target;
+        final long position = _position;
+        _position += length;
+        submit(new Task() {
+            @Override
+            protected void write() throws IOException {
+                target.position(position);
+                long numBytesCopied = 0;
+                while (numBytesCopied < length) {
+                    long n = src.transferTo(offset + numBytesCopied,
+                                            length - numBytesCopied, target);
+                    if (n <= 0) {
+                        throw new EOFException(String.format(
+                            "truncated read from %s, read %d bytes but " +
+                            "expected %d more bytes",
+                            src, numBytesCopied, length - numBytesCopied));
+                    }
+                    numBytesCopied += n;
+                }
+            }
+        });
+    }
+
+    /**
+     * Skips length bytes without writing them, leaving either the existing
+     * data or a hole.
+     */
+    public void skip(long length)
+    {
+        assert _target != null;
+        flushBuffer();
+        _position += length;
+    }
+
+    private ByteBuffer takeBuffer()
+    {
+        ByteBuffer buf = _freeBuffers.poll();
+        if (buf != null) {
+            return buf;
+        }
+        if (_numBuffers < _maxNumBuffers) {
+            _numBuffers++;
+            return ByteBuffer.allocateDirect(BUF_SIZE);
+        }
+        try {
+            return _freeBuffers.take();
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptException(e);
+        }
+    }
+
+    private void flushBuffer()
+    {
+        if (_buf == null) {
+            return;
+        }
+        final ByteBuffer buf = _buf;
+        final FileChannel target = _target;
+        final long position = _bufPosition;
+        _buf = null;
+        buf.flip();
+        submit(new Task() {
+            @Override
+            protected void write() throws IOException {
+                writeFully(target, buf, position);
+            }
+
+            @Override
+            protected void done() {
+                buf.clear();
+                _freeBuffers.add(buf);
+            }
+        });
+    }
+
+    private void submit(Task task)
+    {
+        if (_maxNumBuffers == 0) {
+            task.run();
+            return;
+        }
+        try {
+            _pendingTasks.acquire();
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptException(e);
+        }
+        if (_writer == null) {
+            _writer = newWriter();
+        }
+        _writer.execute(task);
+    }
+
+    private static ThreadPoolExecutor newWriter()
+    {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "WriteBehind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ThreadPoolExecutor writer =
+            new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>(),
+                                   threadFactory);
+        writer.allowCoreThreadTimeOut(true);
+        return writer;
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer src,
+                                   long position)
+        throws IOException
+    {
+        while (src.hasRemaining()) {
+            position += target.write(src, position);
+        }
+    }
+}
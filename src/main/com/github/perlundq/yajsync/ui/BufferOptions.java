@@ -0,0 +1,107 @@
+/*
+ * Command line options sizing the channel buffers of a session
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.ui;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import com.github.perlundq.yajsync.channels.BufferSizing;
+import com.github.perlundq.yajsync.util.ArgumentParsingError;
+import com.github.perlundq.yajsync.util.Option;
+
+/**
+ * --buffer-size, --max-buffer-size and --session-buffer-limit, shared by
+ * YajSyncClient and YajSyncServer. The values are checked by BufferSizing.
+ */
+class BufferOptions
+{
+    private int _size = BufferSizing.DEFAULT_SIZE;
+    private int _maxSize = BufferSizing.DEFAULT_MAX_SIZE;
+    private long _maxSessionSize = BufferSizing.DEFAULT_MAX_SESSION_SIZE;
+    private BufferSizing _sizing = BufferSizing.DEFAULT;
+
+    public BufferSizing sizing()
+    {
+        return _sizing;
+    }
+
+    private void update(Option option) throws ArgumentParsingError
+    {
+        try {
+            _sizing = new BufferSizing(_size, _maxSize, _maxSessionSize);
+        } catch (IllegalArgumentException e) {
+            throw new ArgumentParsingError(String.format("%s: %s",
+                                                         option.name(),
+                                                         e.getMessage()));
+        }
+    }
+
+    public List<Option> options()
+    {
+        List<Option> options = new LinkedList<>();
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "buffer-size", "",
+                                            String.format("initial size in " +
+                                                          "bytes of each " +
+                                                          "channel buffer " +
+                                                          "(default %d)",
+                                                          _size),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _size = (int) option.getValue();
+                    update(option);
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "max-buffer-size", "",
+                                            String.format("max size in " +
+                                                          "bytes a channel " +
+                                                          "buffer grows to " +
+                                                          "with its " +
+                                                          "throughput, the " +
+                                                          "buffer size or " +
+                                                          "less disables " +
+                                                          "growth " +
+                                                          "(default %d)",
+                                                          _maxSize),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _maxSize = (int) option.getValue();
+                    update(option);
+                }}));
+
+        options.add(Option.newLongOption(Option.Policy.OPTIONAL,
+                                         "session-buffer-limit", "",
+                                         String.format("max total size in " +
+                                                       "bytes the channel " +
+                                                       "buffers of a " +
+                                                       "session grow to " +
+                                                       "(default %d)",
+                                                       _maxSessionSize),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _maxSessionSize = (long) option.getValue();
+                    update(option);
+                }}));
+        return options;
+    }
+}
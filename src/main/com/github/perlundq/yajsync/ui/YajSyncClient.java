@@ -29,33 +29,42 @@ import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
+import com.github.perlundq.yajsync.channels.BufferSizing;
 import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.channels.net.ChannelFactory;
 import com.github.perlundq.yajsync.channels.net.DuplexByteChannel;
 import com.github.perlundq.yajsync.channels.net.SSLChannelFactory;
 import com.github.perlundq.yajsync.channels.net.StandardChannelFactory;
+import com.github.perlundq.yajsync.session.BlockLengthStrategy;
 import com.github.perlundq.yajsync.session.ClientSessionConfig;
+import com.github.perlundq.yajsync.session.Durability;
+import com.github.perlundq.yajsync.session.Receiver;
 import com.github.perlundq.yajsync.session.RsyncClientSession;
 import com.github.perlundq.yajsync.session.RsyncException;
 import com.github.perlundq.yajsync.session.RsyncLocal;
+import com.github.perlundq.yajsync.session.Sender;
+import com.github.perlundq.yajsync.session.SquareRootBlockLength;
 import com.github.perlundq.yajsync.session.Statistics;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.util.ArgumentParser;
 import com.github.perlundq.yajsync.util.ArgumentParsingError;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
 import com.github.perlundq.yajsync.util.Consts;
 import com.github.perlundq.yajsync.util.Environment;
+import com.github.perlundq.yajsync.util.ExecutorMode;
 import com.github.perlundq.yajsync.util.Option;
 import com.github.perlundq.yajsync.util.PathOps;
 import com.github.perlundq.yajsync.util.Util;
@@ -236,6 +245,15 @@ public class YajSyncClient implements ClientSessionConfig.AuthProvider
         Logger.getLogger(YajSyncClient.class.getName());
 
     private boolean _isDeferredWrite;
+    private boolean _isInplace;
+    private boolean _isSparse;
+    private boolean _isPreallocate;
+    private Boolean _isWholeFile;  // null - only for local transfers
+    private boolean _isPartial;
+    private Path _partialDir;
+    private boolean _isCompress;
+    private int _compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private String _skipCompress;
     private boolean _isModuleListing;
     private boolean _isPreservePermissions;
     private boolean _isPreserveTimes;
@@ -251,6 +269,16 @@ public class YajSyncClient implements ClientSessionConfig.AuthProvider
     private Statistics _statistics;
     private String _address;
     private Charset _charset = Charset.forName(Text.UTF8_NAME);
+    private ChecksumAlgorithm _checksumAlgorithm = ChecksumAlgorithm.XXH128;
+    private int _checksumParallelism = 1;
+    private int _matchParallelism = 1;
+    private int _writeBehindSize = Receiver.DEFAULT_WRITE_BEHIND_SIZE;
+    private final BufferOptions _bufferOptions = new BufferOptions();
+    private Durability _durability = Durability.NONE;
+    private int _copyParallelism = RsyncLocal.DEFAULT_COPY_PARALLELISM;
+    private ExecutorMode _executorMode = ExecutorMode.PLATFORM;
+    private BlockLengthStrategy _blockLengthStrategy =
+        new SquareRootBlockLength();
     private String _dstArg;
     private String _moduleName;
     private String _userName;
@@ -324,6 +352,180 @@ public class YajSyncClient implements ClientSessionConfig.AuthProvider
                     }
                 }}));
 
+        String blockSizeStrategyHelp = String.format(
+            "(receiver only) how to choose the checksum block size: %s, %s " +
+            "or %s, the latter tunes it per file extension or directory " +
+            "(default %s)",
+            BlockLengthStrategy.SQUARE_ROOT, BlockLengthStrategy.RSYNC,
+            BlockLengthStrategy.ADAPTIVE, BlockLengthStrategy.SQUARE_ROOT);
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "block-size-strategy", "",
+                                   blockSizeStrategyHelp,
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String name = (String) option.getValue();
+                    _blockLengthStrategy =
+                        BlockLengthStrategy.newInstanceOrNull(name);
+                    if (_blockLengthStrategy == null) {
+                        throw new ArgumentParsingError(String.format(
+                            "unknown block size strategy %s", name));
+                    }
+                }}));
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "checksum-choice", "",
+                                   String.format("block and file checksum " +
+                                                 "algorithm: md5, xxh64 or " +
+                                                 "xxh128, peers not " +
+                                                 "supporting it use md5 " +
+                                                 "(default %s)",
+                                                 _checksumAlgorithm),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String name = (String) option.getValue();
+                    _checksumAlgorithm =
+                        ChecksumAlgorithm.fromNameOrNull(name);
+                    if (_checksumAlgorithm == null) {
+                        throw new ArgumentParsingError(String.format(
+                            "unknown checksum algorithm %s", name));
+                    }
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "checksum-threads", "",
+                                    String.format("(receiver only) number " +
+                                                  "of threads computing " +
+                                                  "block checksums of large " +
+                                                  "files (default %d)",
+                                                  _checksumParallelism),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _checksumParallelism = (int) option.getValue();
+                    if (_checksumParallelism < 1) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid number of checksum threads %d",
+                            _checksumParallelism));
+                    }
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "match-threads", "",
+                                    String.format("(sender only) number of " +
+                                                  "threads searching large " +
+                                                  "files for matching " +
+                                                  "blocks (default %d)",
+                                                  _matchParallelism),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _matchParallelism = (int) option.getValue();
+                    if (_matchParallelism < 1) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid number of match threads %d",
+                            _matchParallelism));
+                    }
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "write-behind", "",
+                                    String.format("(receiver only) max " +
+                                                  "number of bytes of " +
+                                                  "received file data " +
+                                                  "waiting to be written " +
+                                                  "by a separate thread, 0 " +
+                                                  "writes synchronously " +
+                                                  "(default %d)",
+                                                  _writeBehindSize),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _writeBehindSize = (int) option.getValue();
+                    if (_writeBehindSize < 0) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid write behind size %d",
+                            _writeBehindSize));
+                    }
+                }}));
+
+        options.addAll(_bufferOptions.options());
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "durability", "",
+                                   String.format("(receiver only) sync " +
+                                                 "received files to disk: " +
+                                                 "%s, %s (each file before " +
+                                                 "it is moved into place) " +
+                                                 "or %s (in batches on a " +
+                                                 "separate thread) " +
+                                                 "(default %s)",
+                                                 Durability.NONE,
+                                                 Durability.FILE,
+                                                 Durability.BATCH,
+                                                 _durability),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String name = (String) option.getValue();
+                    _durability = Durability.fromNameOrNull(name);
+                    if (_durability == null) {
+                        throw new ArgumentParsingError(String.format(
+                            "unknown durability %s", name));
+                    }
+                }}));
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "executor", "",
+                                   String.format("threads running the " +
+                                                 "transfer: %s or %s " +
+                                                 "(requires Java 21) " +
+                                                 "(default %s)",
+                                                 ExecutorMode.PLATFORM,
+                                                 ExecutorMode.VIRTUAL,
+                                                 _executorMode),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String name = (String) option.getValue();
+                    _executorMode = ExecutorMode.fromNameOrNull(name);
+                    if (_executorMode == null) {
+                        throw new ArgumentParsingError(String.format(
+                            "unknown executor %s", name));
+                    } else if (!_executorMode.isSupported()) {
+                        throw new ArgumentParsingError(String.format(
+                            "executor %s is not supported by this JVM (%s)",
+                            _executorMode,
+                            System.getProperty("java.version")));
+                    }
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "copy-threads", "",
+                                    String.format("(local only) number of " +
+                                                  "threads copying whole " +
+                                                  "files (default %d)",
+                                                  _copyParallelism),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _copyParallelism = (int) option.getValue();
+                    if (_copyParallelism < 1) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid number of copy threads %d",
+                            _copyParallelism));
+                    }
+                }}));
+
         options.add(
             Option.newWithoutArgument(Option.Policy.OPTIONAL,
                                       "dirs", "d",
@@ -447,6 +649,137 @@ public class YajSyncClient implements ClientSessionConfig.AuthProvider
                     _isDeferredWrite = true;
                 }}));
 
+        String inplaceHelp = String.format(
+            "update destination files in place instead of writing into a " +
+            "tempfile which is then moved into place, the file is left " +
+            "inconsistent if the transfer is interrupted. Implies no " +
+            "--defer-write (default %s)", _isInplace);
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "inplace", "", inplaceHelp,
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isInplace = true;
+                }}));
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "sparse", "S",
+                                      String.format("(receiver only) leave " +
+                                                    "holes for blocks of " +
+                                                    "zeroes (default %s)",
+                                                    _isSparse),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isSparse = true;
+                }}));
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "preallocate", "",
+                                      String.format("(receiver only) extend " +
+                                                    "files to their final " +
+                                                    "size before writing " +
+                                                    "(default %s)",
+                                                    _isPreallocate),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isPreallocate = true;
+                }}));
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "whole-file", "W",
+                                      "copy files whole without the " +
+                                      "delta transfer algorithm " +
+                                      "(default for local transfers)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isWholeFile = true;
+                }}));
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "no-whole-file", "",
+                                      "always use the delta transfer " +
+                                      "algorithm (default for remote " +
+                                      "transfers)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isWholeFile = false;
+                }}));
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "partial", "",
+                                      "keep partially transferred files",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isPartial = true;
+                }}));
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "partial-dir", "",
+                                   "put partially transferred files into " +
+                                   "DIR, relative to the directory of each " +
+                                   "file (implies --partial)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String pathName = (String) option.getValue();
+                    try {
+                        _partialDir = Paths.get(pathName);
+                    } catch (InvalidPathException e) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid partial directory %s: %s", pathName,
+                            e.getMessage()));
+                    }
+                    _isPartial = true;
+                }}));
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "compress", "z",
+                                      "compress file data during the " +
+                                      "transfer",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isCompress = true;
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "compress-level", "",
+                                    "explicitly set compression level 0-9 " +
+                                    "(implies --compress)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _compressionLevel = (int) option.getValue();
+                    if (_compressionLevel < Deflater.NO_COMPRESSION ||
+                        _compressionLevel > Deflater.BEST_COMPRESSION) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid compression level %d",
+                            _compressionLevel));
+                    }
+                    _isCompress = true;
+                }}));
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "skip-compress", "",
+                                   String.format("skip compressing files " +
+                                                 "with a suffix in LIST, " +
+                                                 "separated by slashes " +
+                                                 "(default %s)",
+                                                 Sender.DEFAULT_SKIP_COMPRESS),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _skipCompress = (String) option.getValue();
+                }}));
+
         options.add(Option.newWithoutArgument(Option.Policy.OPTIONAL,
                                               "tls", "",
                                               String.format("tunnel all data " +
@@ -456,12 +789,6 @@ public class YajSyncClient implements ClientSessionConfig.AuthProvider
             new Option.ContinuingHandler() {
             @Override public void handleAndContinue(Option option) {
                 _isTLS = true;
-                // SSLChannel.read and SSLChannel.write depends on
-                // ByteBuffer.array and ByteBuffer.arrayOffset. Disable direct
-                // allocation if the resulting ByteBuffer won't have an array.
-                if (!Environment.hasAllocateDirectArray()) {
-                    Environment.setAllocateDirect(false);
-                }
             }
         }));
 
@@ -607,7 +934,7 @@ public class YajSyncClient implements ClientSessionConfig.AuthProvider
         Level logLevel = Util.getLogLevelForNumber(Util.WARNING_LOG_LEVEL_NUM +
                                                    _verbosity);
         Util.setRootLogLevel(logLevel);
-        ExecutorService executor = Executors.newCachedThreadPool();
+        ExecutorService executor = _executorMode.newExecutor();
 
         try {
             boolean isOK;
@@ -637,6 +964,15 @@ public class YajSyncClient implements ClientSessionConfig.AuthProvider
         RsyncClientSession session = new RsyncClientSession();
         session.setCharset(_charset);
         session.setIsDeferredWrite(_isDeferredWrite);
+        session.setIsInplace(_isInplace);
+        session.setIsSparse(_isSparse);
+        session.setIsPreallocate(_isPreallocate);
+        session.setIsWholeFile(_isWholeFile != null && _isWholeFile);
+        session.setIsPartial(_isPartial);
+        session.setPartialDir(_partialDir);
+        session.setIsCompress(_isCompress);
+        session.setCompressionLevel(_compressionLevel);
+        session.setSkipCompress(_skipCompress);
         session.setIsModuleListing(_isModuleListing);
         session.setIsPreservePermissions(_isPreservePermissions);
         session.setIsPreserveTimes(_isPreserveTimes);
@@ -645,11 +981,16 @@ public class YajSyncClient implements ClientSessionConfig.AuthProvider
         session.setIsRecursiveTransfer(_isRecursiveTransfer);
         session.setIsSender(_isSender);
         session.setIsTransferDirs(_isTransferDirs);
+        session.setChecksumAlgorithm(_checksumAlgorithm);
+        session.setChecksumParallelism(_checksumParallelism);
+        session.setMatchParallelism(_matchParallelism);
+        session.setWriteBehindSize(_writeBehindSize);
+        session.setBufferSizing(_bufferOptions.sizing());
+        session.setDurability(_durability);
+        session.setBlockLengthStrategy(_blockLengthStrategy);
 
         ChannelFactory socketFactory = _isTLS ? new SSLChannelFactory()
                                               : new StandardChannelFactory();
-        boolean isInterruptible = !_isTLS;
-
         try (DuplexByteChannel sock = socketFactory.open(_address,
                                                          _remotePort)) {
             if (_log.isLoggable(Level.FINE)) {
@@ -662,7 +1003,7 @@ public class YajSyncClient implements ClientSessionConfig.AuthProvider
                                         _dstArg,
                                         this,           // ClientSessionConfig.AuthProvider
                                         _moduleName,
-                                        isInterruptible,
+                                        true,           // isInterruptible
                                         _out,
                                         _err);
         } catch (UnknownHostException | UnresolvedAddressException e) {
@@ -714,7 +1055,26 @@ public class YajSyncClient implements ClientSessionConfig.AuthProvider
         localTransfer.setIsPreserveUser(_isPreserveUser);
         localTransfer.setIsIgnoreTimes(_isIgnoreTimes);
         localTransfer.setIsDeferredWrite(_isDeferredWrite);
+        localTransfer.setIsInplace(_isInplace);
+        localTransfer.setIsSparse(_isSparse);
+        localTransfer.setIsPreallocate(_isPreallocate);
+        localTransfer.setIsWholeFile(_isWholeFile == null || _isWholeFile);
+        localTransfer.setIsPartial(_isPartial);
+        localTransfer.setPartialDir(_partialDir);
+        localTransfer.setIsCompress(_isCompress);
+        localTransfer.setCompressionLevel(_compressionLevel);
+        if (_skipCompress != null) {
+            localTransfer.setSkipCompress(_skipCompress);
+        }
         localTransfer.setIsTransferDirs(_isTransferDirs);
+        localTransfer.setChecksumAlgorithm(_checksumAlgorithm);
+        localTransfer.setChecksumParallelism(_checksumParallelism);
+        localTransfer.setMatchParallelism(_matchParallelism);
+        localTransfer.setWriteBehindSize(_writeBehindSize);
+        localTransfer.setBufferSizing(_bufferOptions.sizing());
+        localTransfer.setDurability(_durability);
+        localTransfer.setCopyParallelism(_copyParallelism);
+        localTransfer.setBlockLengthStrategy(_blockLengthStrategy);
         List<Path> srcPaths = new LinkedList<>();
         for (String pathName : _srcArgs) {
             srcPaths.add(Paths.get(pathName));                                  // throws InvalidPathException
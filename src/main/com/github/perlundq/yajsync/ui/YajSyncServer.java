@@ -31,26 +31,31 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.github.perlundq.yajsync.channels.BufferSizing;
 import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.net.ChannelSelector;
 import com.github.perlundq.yajsync.channels.net.DuplexByteChannel;
 import com.github.perlundq.yajsync.channels.net.SSLServerChannelFactory;
 import com.github.perlundq.yajsync.channels.net.ServerChannel;
 import com.github.perlundq.yajsync.channels.net.ServerChannelFactory;
 import com.github.perlundq.yajsync.channels.net.StandardServerChannelFactory;
+import com.github.perlundq.yajsync.session.BlockLengthStrategy;
+import com.github.perlundq.yajsync.session.Durability;
 import com.github.perlundq.yajsync.session.ModuleException;
 import com.github.perlundq.yajsync.session.ModuleProvider;
 import com.github.perlundq.yajsync.session.Modules;
+import com.github.perlundq.yajsync.session.Receiver;
 import com.github.perlundq.yajsync.session.RsyncServerSession;
+import com.github.perlundq.yajsync.session.SquareRootBlockLength;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.util.ArgumentParser;
 import com.github.perlundq.yajsync.util.ArgumentParsingError;
 import com.github.perlundq.yajsync.util.Consts;
-import com.github.perlundq.yajsync.util.Environment;
+import com.github.perlundq.yajsync.util.ExecutorMode;
 import com.github.perlundq.yajsync.util.Option;
 import com.github.perlundq.yajsync.util.Util;
 
@@ -59,6 +64,7 @@ public class YajSyncServer
     private static final Logger _log =
         Logger.getLogger(YajSyncServer.class.getName());
     private static final int THREAD_FACTOR = 4;
+    private static final int DEFAULT_GREETING_TIMEOUT = 60;
 
     private boolean _isDeferredWrite;
     private boolean _isTLS;
@@ -66,10 +72,21 @@ public class YajSyncServer
     private int _numThreads = Runtime.getRuntime().availableProcessors() *
                               THREAD_FACTOR;
     private int _port = Consts.DEFAULT_LISTEN_PORT;
+    private int _greetingTimeout = DEFAULT_GREETING_TIMEOUT;
+    private int _checksumParallelism = 1;
+    private int _matchParallelism = 1;
+    private int _writeBehindSize = Receiver.DEFAULT_WRITE_BEHIND_SIZE;
+    private final BufferOptions _bufferOptions = new BufferOptions();
+    private Durability _durability = Durability.NONE;
+    private ExecutorMode _executorMode = ExecutorMode.PLATFORM;
+    // shared by all sessions
+    private BlockLengthStrategy _blockLengthStrategy =
+        new SquareRootBlockLength();
     private int _verbosity;
     private InetAddress _address = InetAddress.getLoopbackAddress();
     private ModuleProvider _moduleProvider = ModuleProvider.getDefault();
-    private ExecutorService _executor;
+    private ExecutorService _executor;      // sessions
+    private ExecutorService _taskExecutor;  // the tasks of each session
     private PrintStream _out = System.out;
     private PrintStream _err = System.err;
 
@@ -157,14 +174,174 @@ public class YajSyncServer
 
         options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
                                             "threads", "",
-                                            String.format("size of thread " +
-                                                          "pool (default %d)",
+                                            String.format("max number of " +
+                                                          "sessions running " +
+                                                          "concurrently, " +
+                                                          "not applied to " +
+                                                          "virtual threads " +
+                                                          "(default %d)",
                                                           _numThreads),
             new Option.ContinuingHandler() {
                 @Override public void handleAndContinue(Option option) {
                     _numThreads = (int) option.getValue();
                 }}));
 
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "greeting-timeout", "",
+                                            String.format("seconds a client " +
+                                                          "may stay idle " +
+                                                          "before sending " +
+                                                          "its greeting, 0 " +
+                                                          "for no limit " +
+                                                          "(default %d)",
+                                                          _greetingTimeout),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _greetingTimeout = (int) option.getValue();
+                    if (_greetingTimeout < 0) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid greeting timeout %d", _greetingTimeout));
+                    }
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "checksum-threads", "",
+                                            String.format("number of " +
+                                                          "threads per " +
+                                                          "session computing" +
+                                                          " block checksums " +
+                                                          "of large files " +
+                                                          "(default %d)",
+                                                          _checksumParallelism),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _checksumParallelism = (int) option.getValue();
+                    if (_checksumParallelism < 1) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid number of checksum threads %d",
+                            _checksumParallelism));
+                    }
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "match-threads", "",
+                                            String.format("number of " +
+                                                          "threads per " +
+                                                          "session searching" +
+                                                          " large files for " +
+                                                          "matching blocks " +
+                                                          "(default %d)",
+                                                          _matchParallelism),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _matchParallelism = (int) option.getValue();
+                    if (_matchParallelism < 1) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid number of match threads %d",
+                            _matchParallelism));
+                    }
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "write-behind", "",
+                                            String.format("max number of " +
+                                                          "bytes per " +
+                                                          "session of " +
+                                                          "received file " +
+                                                          "data waiting to " +
+                                                          "be written by a " +
+                                                          "separate thread," +
+                                                          " 0 writes " +
+                                                          "synchronously " +
+                                                          "(default %d)",
+                                                          _writeBehindSize),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _writeBehindSize = (int) option.getValue();
+                    if (_writeBehindSize < 0) {
+                        throw new ArgumentParsingError(String.format(
+                            "invalid write behind size %d",
+                            _writeBehindSize));
+                    }
+                }}));
+
+        options.addAll(_bufferOptions.options());
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "durability", "",
+                                   String.format("sync received files to " +
+                                                 "disk: %s, %s (each file " +
+                                                 "before it is moved into " +
+                                                 "place) or %s (in batches " +
+                                                 "on a separate thread) " +
+                                                 "(default %s)",
+                                                 Durability.NONE,
+                                                 Durability.FILE,
+                                                 Durability.BATCH,
+                                                 _durability),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String name = (String) option.getValue();
+                    _durability = Durability.fromNameOrNull(name);
+                    if (_durability == null) {
+                        throw new ArgumentParsingError(String.format(
+                            "unknown durability %s", name));
+                    }
+                }}));
+
+        options.add(Option.newStringOption(Option.Policy.OPTIONAL,
+                                           "executor", "",
+                                           String.format("threads running " +
+                                                         "sessions: %s or " +
+                                                         "%s (requires " +
+                                                         "Java 21) " +
+                                                         "(default %s)",
+                                                         ExecutorMode.PLATFORM,
+                                                         ExecutorMode.VIRTUAL,
+                                                         _executorMode),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String name = (String) option.getValue();
+                    _executorMode = ExecutorMode.fromNameOrNull(name);
+                    if (_executorMode == null) {
+                        throw new ArgumentParsingError(String.format(
+                            "unknown executor %s", name));
+                    } else if (!_executorMode.isSupported()) {
+                        throw new ArgumentParsingError(String.format(
+                            "executor %s is not supported by this JVM (%s)",
+                            _executorMode,
+                            System.getProperty("java.version")));
+                    }
+                }}));
+
+        String blockSizeStrategyHelp = String.format(
+            "how to choose the checksum block size when receiving: %s, %s " +
+            "or %s, the latter tunes it per file extension or directory " +
+            "(default %s)",
+            BlockLengthStrategy.SQUARE_ROOT, BlockLengthStrategy.RSYNC,
+            BlockLengthStrategy.ADAPTIVE, BlockLengthStrategy.SQUARE_ROOT);
+        options.add(Option.newStringOption(Option.Policy.OPTIONAL,
+                                           "block-size-strategy", "",
+                                           blockSizeStrategyHelp,
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String name = (String) option.getValue();
+                    _blockLengthStrategy =
+                        BlockLengthStrategy.newInstanceOrNull(name);
+                    if (_blockLengthStrategy == null) {
+                        throw new ArgumentParsingError(String.format(
+                            "unknown block size strategy %s", name));
+                    }
+                }}));
+
         String deferredWriteHelp = String.format(
             "receiver defers writing into target tempfile as long as " +
             "possible to reduce I/O, at the cost of highly increased risk of the " +
@@ -188,20 +365,12 @@ public class YajSyncServer
             new Option.ContinuingHandler() {
                 @Override public void handleAndContinue(Option option) {
                     _isTLS = true;
-                    // SSLChannel.read and SSLChannel.write depends on
-                    // ByteBuffer.array and ByteBuffer.arrayOffset. Disable
-                    // direct allocation if the resulting ByteBuffer won't have
-                    // an array.
-                    if (!Environment.hasAllocateDirectArray()) {
-                        Environment.setAllocateDirect(false);
-                    }
                 }}));
 
         return options;
     }
 
-    private Callable<Boolean> createCallable(final DuplexByteChannel sock,
-                                             final boolean isInterruptible)
+    private Callable<Boolean> createCallable(final DuplexByteChannel sock)
     {
         return new Callable<Boolean>() {
             @Override
@@ -229,11 +398,17 @@ public class YajSyncServer
                     RsyncServerSession session = new RsyncServerSession();
                     session.setCharset(_charset);
                     session.setIsDeferredWrite(_isDeferredWrite);
-                    isOK = session.transfer(_executor,
+                    session.setChecksumParallelism(_checksumParallelism);
+                    session.setMatchParallelism(_matchParallelism);
+                    session.setWriteBehindSize(_writeBehindSize);
+                    session.setBufferSizing(_bufferOptions.sizing());
+                    session.setDurability(_durability);
+                    session.setBlockLengthStrategy(_blockLengthStrategy);
+                    isOK = session.transfer(_taskExecutor,
                                                 sock,    // in
                                                 sock,    // out
                                                 modules,
-                                                isInterruptible);
+                                                true);   // isInterruptible
 //                    showStatistics(session.statistics());
                 } catch (ModuleException e) {
                     if (_log.isLoggable(Level.SEVERE)) {
@@ -303,31 +478,68 @@ public class YajSyncServer
         //socketFactory.setSocketTimeout(60);
         socketFactory.setReuseAddress(true);
         //socketFactory.setKeepAlive(true);
-        boolean isInterruptible = !_isTLS;
-        _executor = Executors.newFixedThreadPool(_numThreads);
+        // a session never waits for a thread used by its own tasks, the
+        // number of task threads is still bounded by the number of sessions
+        _executor = _executorMode.newExecutor(_numThreads);
+        _taskExecutor = _executorMode.newExecutor();
+
+        // rsync clients send their greeting (or start the TLS handshake)
+        // first, a connection is not given a session thread until then
+        ChannelSelector selector = new ChannelSelector(
+            new ChannelSelector.Listener() {
+                @Override public void readable(DuplexByteChannel sock) {
+                    _executor.submit(createCallable(sock));
+                }},
+            TimeUnit.SECONDS.toMillis(_greetingTimeout));
+        Thread selectorThread = new Thread(selector, "ChannelSelector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
 
         try (ServerChannel listenSock = socketFactory.open(_address, _port)) {  // throws IOException
             while (true) {
                 DuplexByteChannel sock = listenSock.accept();                   // throws IOException
-                Callable<Boolean> c = createCallable(sock, isInterruptible);
-                _executor.submit(c);                                            // NOTE: result discarded
+                register(selector, sock);
             }
         } finally {
             if (_log.isLoggable(Level.INFO)) {
                 _log.info("shutting down...");
             }
+            selector.close();
             _executor.shutdown();
             _moduleProvider.close();
             while (!_executor.awaitTermination(5, TimeUnit.MINUTES)) {
                 _log.info("some sessions are still running, waiting for them " +
                           "to finish before exiting");
             }
+            _taskExecutor.shutdown();
             if (_log.isLoggable(Level.INFO)) {
                 _log.info("done");
             }
         }
     }
 
+    private static void register(ChannelSelector selector,
+                                 DuplexByteChannel sock)
+    {
+        try {
+            selector.register(sock);
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("failed to register %s: %s",
+                                           sock, e.getMessage()));
+            }
+            try {
+                sock.close();
+            } catch (IOException ee) {
+                if (_log.isLoggable(Level.SEVERE)) {
+                    _log.severe(String.format(
+                        "Got error during close of socket %s: %s",
+                        sock, ee.getMessage()));
+                }
+            }
+        }
+    }
+
     public static void main(String[] args)
         throws IOException, InterruptedException
     {
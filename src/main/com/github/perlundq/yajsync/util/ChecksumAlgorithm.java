@@ -0,0 +1,98 @@
+/*
+ * Strong checksum algorithms used for block and whole file digests
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.security.MessageDigest;
+
+/**
+ * MD5 is what native rsync (protocol 30) uses and is therefore always
+ * supported. The xxHash variants are only used between yajsync peers, they
+ * are advertised using their capability character which native rsync
+ * ignores.
+ */
+public enum ChecksumAlgorithm
+{
+    MD5     ("md5",    '\0', 16),
+    XXH64   ("xxh64",  '1',  XXHash64.DIGEST_LENGTH),
+    XXH128  ("xxh128", '2',  XXHash128.DIGEST_LENGTH);
+
+    private final String _name;
+    private final char _capability;
+    private final int _digestLength;
+
+    private ChecksumAlgorithm(String name, char capability, int digestLength)
+    {
+        _name = name;
+        _capability = capability;
+        _digestLength = digestLength;
+    }
+
+    @Override
+    public String toString()
+    {
+        return _name;
+    }
+
+    /**
+     * @return the character used for advertising this algorithm in the
+     *         client capability string or '\0' if it is implied
+     */
+    public char capability()
+    {
+        return _capability;
+    }
+
+    public int digestLength()
+    {
+        return _digestLength;
+    }
+
+    public MessageDigest newInstance()
+    {
+        switch (this) {
+        case XXH64:
+            return new XXHash64();
+        case XXH128:
+            return new XXHash128();
+        default:
+            return com.github.perlundq.yajsync.util.MD5.newInstance();
+        }
+    }
+
+    public static ChecksumAlgorithm fromNameOrNull(String name)
+    {
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm._name.equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    public static ChecksumAlgorithm fromCapabilityOrNull(char capability)
+    {
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm._capability != '\0' &&
+                algorithm._capability == capability) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+}
@@ -22,6 +22,7 @@ public final class Consts
 {
     public static final int DEFAULT_LISTEN_PORT = 873; // TODO: move out
     public static final int DEFAULT_UMASK = 0022;
+    public static final long DEFAULT_MMAP_THRESHOLD = -1; // i.e. disabled
     public static final int MAX_BUF_SIZE = 1024;
     public static final int SIZE_BYTE = 1;
     public static final int SIZE_CHAR = 2;
@@ -32,6 +32,7 @@ import com.github.perlundq.yajsync.text.Text;
 public final class Environment
 {
     private static final String PROPERTY_KEY_ALLOCATE_DIRECT = "allocate.direct";  // not present unless manually defined
+    private static final String PROPERTY_KEY_MMAP_THRESHOLD = "mmap.threshold";  // not present unless manually defined
     private static final String PROPERTY_KEY_USER_UID = "user.uid";     // not present unless manually defined
     private static final String PROPERTY_KEY_GROUP_UID = "user.gid";    // not present unless manually defined
     private static final String PROPERTY_KEY_USER_NAME = "user.name";
@@ -158,6 +159,25 @@ public final class Environment
         return Boolean.valueOf(value);
     }
 
+    public static void setMmapThreshold(long threshold)
+    {
+        System.setProperty(PROPERTY_KEY_MMAP_THRESHOLD,
+                           Long.toString(threshold));
+    }
+
+    /**
+     * @return the minimum size of a file for it to be read using memory
+     *         mapped I/O, a negative value means never
+     */
+    public static long getMmapThreshold()
+    {
+        String value = System.getProperty(PROPERTY_KEY_MMAP_THRESHOLD);
+        if (value == null) {
+            return Consts.DEFAULT_MMAP_THRESHOLD;
+        }
+        return Long.parseLong(value);
+    }
+
     public static boolean hasAllocateDirectArray()
     {
         return ByteBuffer.allocateDirect(1).hasArray();
@@ -0,0 +1,118 @@
+/*
+ * Choice of threads used for running rsync tasks
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * PLATFORM runs tasks (sessions, Sender, Generator and Receiver) on
+ * ordinary threads. VIRTUAL runs each task on a new virtual thread, which
+ * is cheap enough for thousands of concurrent sessions since a virtual
+ * thread blocked on a socket does not occupy an operating system thread.
+ * VIRTUAL requires Java 21 or later at runtime, it is looked up
+ * reflectively as the code is compiled for Java 7.
+ */
+public enum ExecutorMode
+{
+    PLATFORM ("platform"),
+    VIRTUAL  ("virtual");
+
+    private final String _name;
+
+    private ExecutorMode(String name)
+    {
+        _name = name;
+    }
+
+    @Override
+    public String toString()
+    {
+        return _name;
+    }
+
+    public static ExecutorMode fromNameOrNull(String name)
+    {
+        for (ExecutorMode mode : values()) {
+            if (mode._name.equalsIgnoreCase(name)) {
+                return mode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the running JVM supports this mode
+     */
+    public boolean isSupported()
+    {
+        if (this == PLATFORM) {
+            return true;
+        }
+        try {
+            newVirtualThreadPerTaskExecutor().shutdown();
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return an executor running each task on an idle thread or a new one
+     * @throws UnsupportedOperationException if this mode is not supported
+     */
+    public ExecutorService newExecutor()
+    {
+        if (this == VIRTUAL) {
+            return newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * @return an executor running at most maxNumThreads tasks concurrently
+     *         for PLATFORM, VIRTUAL runs all tasks concurrently
+     * @throws UnsupportedOperationException if this mode is not supported
+     */
+    public ExecutorService newExecutor(int maxNumThreads)
+    {
+        assert maxNumThreads > 0;
+        if (this == VIRTUAL) {
+            return newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newFixedThreadPool(maxNumThreads);
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        try {
+            Method m = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedOperationException(
+                "virtual threads require Java 21 or later", e);
+        } catch (InvocationTargetException e) {
+            // e.g. a preview version of virtual threads not enabled
+            throw new UnsupportedOperationException(e.getCause());
+        }
+    }
+}
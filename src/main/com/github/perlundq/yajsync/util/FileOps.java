@@ -19,10 +19,15 @@
 package com.github.perlundq.yajsync.util;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.HashSet;
@@ -276,6 +281,53 @@ public class FileOps
         }
     }
 
+    /**
+     * Deletes path and, if it is a directory, everything below it. Symbolic
+     * links are deleted but never followed.
+     */
+    public static void deleteRecursively(Path path) throws IOException
+    {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                                             BasicFileAttributes attrs)
+                throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir,
+                                                      IOException e)
+                throws IOException
+            {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Extends file to size by writing a zero byte last, unless it already
+     * is at least that large. There is no portable way to allocate the
+     * blocks of a file in Java, but setting the final size up front saves
+     * the file system from growing the file on every write.
+     */
+    public static void preallocate(FileChannel file, long size)
+        throws IOException
+    {
+        if (file.size() < size) {
+            ByteBuffer buf = ByteBuffer.allocate(1);
+            while (buf.hasRemaining()) {
+                file.write(buf, size - 1);
+            }
+        }
+    }
+
     private static Set<PosixFilePermission> modeToPosixFilePermissions(int mode)
     {
         Set<PosixFilePermission> result = new HashSet<>();
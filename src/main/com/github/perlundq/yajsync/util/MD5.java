@@ -18,6 +18,7 @@
  */
 package com.github.perlundq.yajsync.util;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -36,6 +37,20 @@ public final class MD5
         }
     }
 
+    /**
+     * Complete the digest computation of md and store the result into the
+     * beginning of result, without allocating a new array.
+     */
+    public static void digestInto(MessageDigest md, byte[] result)
+    {
+        assert result.length >= md.getDigestLength();
+        try {
+            md.digest(result, 0, result.length);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);              // result is large enough so this should not happen
+        }
+    }
+
     public static String md5DigestToString(byte[] digestBuf)
     {
         StringBuffer sb = new StringBuffer();
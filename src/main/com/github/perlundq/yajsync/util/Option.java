@@ -99,6 +99,14 @@ public class Option
                           handler);
     }
 
+    public static Option newLongOption(Policy policy,
+                                       String longName, String shortName,
+                                       String shortHelp, Handler handler)
+    {
+        return new Option(Long.class, policy, longName, shortName, shortHelp,
+                          handler);
+    }
+
     public static Option newHelpOption(Handler handler)
     {
         return Option.newWithoutArgument(Option.Policy.OPTIONAL,
@@ -119,6 +127,8 @@ public class Option
                 }
             } else if (_type == Integer.class) {
                 _value = (int) Integer.valueOf(str);
+            } else if (_type == Long.class) {
+                _value = (long) Long.valueOf(str);
             } else if (_type == String.class) {
                 if (str.isEmpty()) {
                     throw new ArgumentParsingError(String.format(
@@ -19,36 +19,100 @@
  */
 package com.github.perlundq.yajsync.util;
 
+import java.nio.ByteBuffer;
+
 public class Rolling
 {
     private final static int CHAR_OFFSET = 0; // currently unused
 
     private Rolling() {}
 
+    /*
+     * high16 is the sum of (length - i) * buf[offset + i], which equals
+     * length * low16 - sum(i * buf[offset + i]). Computing it like this
+     * leaves two independent reductions without any loop carried
+     * dependency between them, which the JIT may unroll and vectorize
+     * (RollingBenchmark shows no measurable difference to the previous
+     * loop though). All arithmetic is modulo 2^32 so overflow is harmless.
+     */
     public static int compute(byte[] buf, int offset, int length)
     {
         int low16 = 0;
-        int high16 = 0;
+        int weighted = 0;
+        for (int i = 0; i < length; i++) {
+            int value = buf[offset + i] + CHAR_OFFSET;
+            low16 += value;
+            weighted += i * value;
+        }
+        return toInt(low16, length * low16 - weighted);
+    }
 
-        int idx;
-        for (idx = 0; idx < length - 4; idx += 4) {
-            high16 += 4 * (buf[offset + idx + 0]  + low16) +
-                    3 * (buf[offset + idx + 1]) +
-                    2 * (buf[offset + idx + 2]) +
-                    1 * (buf[offset + idx + 3]) +
-                    10 * CHAR_OFFSET;
-            low16 += buf[offset + idx + 0] +
-                   buf[offset + idx + 1] +
-                   buf[offset + idx + 2] +
-                   buf[offset + idx + 3] +
-                   4 * CHAR_OFFSET;
+    // same loop as above, for buffers without an accessible array (direct
+    // or memory mapped)
+    public static int compute(ByteBuffer buf, int offset, int length)
+    {
+        if (buf.hasArray()) {
+            return compute(buf.array(), buf.arrayOffset() + offset, length);
         }
-        for (; idx < length; idx++) {
-            low16 += buf[offset + idx] + CHAR_OFFSET;
-            high16 += low16;
+        int low16 = 0;
+        int weighted = 0;
+        for (int i = 0; i < length; i++) {
+            int value = buf.get(offset + i) + CHAR_OFFSET;
+            low16 += value;
+            weighted += i * value;
         }
+        return toInt(low16, length * low16 - weighted);
+    }
 
-        return toInt(low16, high16);
+    /**
+     * Computes the rolling checksum of each consecutive block of
+     * blockLength bytes in buf[offset, offset + length) and stores them in
+     * result. The last block is shorter than blockLength if length is not a
+     * multiple of blockLength.
+     *
+     * This is only a convenience loop calling compute for each block, it
+     * is not measurably faster than doing so directly.
+     *
+     * @return the number of checksums stored in result
+     */
+    public static int computeBlocks(byte[] buf, int offset, int length,
+                                    int blockLength, int[] result)
+    {
+        assert blockLength > 0;
+        assert length >= 0;
+        assert result.length >= numBlocks(length, blockLength);
+
+        int numBlocks = 0;
+        for (int end = offset + length; offset < end; offset += blockLength) {
+            result[numBlocks++] = compute(buf, offset,
+                                          Math.min(blockLength, end - offset));
+        }
+        return numBlocks;
+    }
+
+    /**
+     * Same as computeBlocks(byte[], int, int, int, int[]) but for offsets
+     * of buf.
+     */
+    public static int computeBlocks(ByteBuffer buf, int offset, int length,
+                                    int blockLength, int[] result)
+    {
+        assert blockLength > 0;
+        assert length >= 0;
+        assert result.length >= numBlocks(length, blockLength);
+
+        int numBlocks = 0;
+        for (int end = offset + length; offset < end; offset += blockLength) {
+            result[numBlocks++] = compute(buf, offset,
+                                          Math.min(blockLength, end - offset));
+        }
+        return numBlocks;
+    }
+
+    public static int numBlocks(int length, int blockLength)
+    {
+        assert blockLength > 0;
+        return (int) (((long) length + blockLength - 1) / blockLength);
     }
 
     public static int add(int checksum, byte value)
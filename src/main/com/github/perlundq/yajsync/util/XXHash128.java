@@ -0,0 +1,496 @@
+/*
+ * XXH3 128 bit message digest
+ *
+ * Copyright (C) 2012-2020 Yann Collet
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * Streaming XXH3 128 bit hash (seed 0, default secret) exposed as a
+ * MessageDigest. The digest is the canonical big endian representation,
+ * i.e. the high 64 bits followed by the low 64 bits.
+ *
+ * Inputs up to 240 bytes are buffered and hashed with the dedicated short
+ * input routines, longer inputs are consumed in 64 byte stripes. The last
+ * (up to) 256 bytes are always kept buffered since the long hash treats
+ * the very last stripe differently.
+ */
+public final class XXHash128 extends MessageDigest implements Cloneable
+{
+    public static final String NAME = "XXH128";
+    public static final int DIGEST_LENGTH = 16;
+
+    private static final long PRIME32_1 = 0x9E3779B1L;
+    private static final long PRIME32_2 = 0x85EBCA77L;
+    private static final long PRIME32_3 = 0xC2B2AE3DL;
+    private static final long PRIME64_1 = XXHash64.PRIME64_1;
+    private static final long PRIME64_2 = XXHash64.PRIME64_2;
+    private static final long PRIME64_3 = XXHash64.PRIME64_3;
+    private static final long PRIME64_4 = XXHash64.PRIME64_4;
+    private static final long PRIME64_5 = XXHash64.PRIME64_5;
+    private static final long PRIME_MX1 = 0x165667919E3779F9L;
+    private static final long PRIME_MX2 = 0x9FB21C651E98DF25L;
+
+    private static final byte[] SECRET = hexToBytes(
+        "b8fe6c3923a44bbe7c01812cf721ad1cded46de9839097db7240a4a4b7b3671f" +
+        "cb79e64eccc0e578825ad07dccff7221b8084674f743248ee03590e6813a264c" +
+        "3c2852bb91c300cb88d0658b1b532ea371644897a20df94e3819ef46a9deacd8" +
+        "a8fa763fe39c343ff9dcbbc7c70b4f1d8a51e04bcdb45931c89f7ec9d9787364" +
+        "eac5ac8334d3ebc3c581a0fffa1363eb170ddd51b7f0da49d316552629d4689e" +
+        "2b16be587d47a1fc8ff8b8d17ad031ce45cb3a8f95160428afd7fbcabb4b407e");
+    private static final int SECRET_LENGTH = 192;
+    // the secret read as a little endian long at every possible offset
+    private static final long[] SECRET_LONGS = new long[SECRET_LENGTH - 7];
+    static {
+        for (int i = 0; i < SECRET_LONGS.length; i++) {
+            SECRET_LONGS[i] = BitOps.toBigEndianLong(SECRET, i);
+        }
+    }
+    private static final int SECRET_LENGTH_MIN = 136;
+    private static final int SECRET_LIMIT = SECRET_LENGTH - 64;
+    private static final int SECRET_CONSUME_RATE = 8;
+    private static final int SECRET_MERGEACCS_START = 11;
+    private static final int SECRET_LASTACC_START = 7;
+    private static final int MIDSIZE_STARTOFFSET = 3;
+    private static final int MIDSIZE_LASTOFFSET = 17;
+    private static final int MIDSIZE_MAX = 240;
+    private static final int STRIPE_LENGTH = 64;
+    private static final int STRIPES_PER_BLOCK =
+        (SECRET_LENGTH - STRIPE_LENGTH) / SECRET_CONSUME_RATE;
+    private static final int BUFFER_SIZE = 256;
+    private static final int BUFFER_STRIPES = BUFFER_SIZE / STRIPE_LENGTH;
+
+    private long[] _acc = new long[8];
+    private byte[] _buf = new byte[BUFFER_SIZE];
+    private int _bufLength;
+    private int _numStripesInBlock;
+    private long _totalLength;
+
+    public XXHash128()
+    {
+        super(NAME);
+        engineReset();
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException
+    {
+        XXHash128 copy = (XXHash128) super.clone();
+        copy._acc = _acc.clone();
+        copy._buf = _buf.clone();
+        return copy;
+    }
+
+    @Override
+    protected int engineGetDigestLength()
+    {
+        return DIGEST_LENGTH;
+    }
+
+    @Override
+    protected void engineReset()
+    {
+        _acc[0] = PRIME32_3;
+        _acc[1] = PRIME64_1;
+        _acc[2] = PRIME64_2;
+        _acc[3] = PRIME64_3;
+        _acc[4] = PRIME64_4;
+        _acc[5] = PRIME32_2;
+        _acc[6] = PRIME64_5;
+        _acc[7] = PRIME32_1;
+        _bufLength = 0;
+        _numStripesInBlock = 0;
+        _totalLength = 0;
+    }
+
+    @Override
+    protected void engineUpdate(byte input)
+    {
+        if (_bufLength == BUFFER_SIZE) {
+            consumeStripes(_acc, _buf, 0, BUFFER_STRIPES);
+            _bufLength = 0;
+        }
+        _buf[_bufLength++] = input;
+        _totalLength++;
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length)
+    {
+        if (length <= 0) {
+            return;
+        }
+        _totalLength += length;
+
+        if (_bufLength > 0) {
+            if (_bufLength == BUFFER_SIZE) {
+                consumeStripes(_acc, _buf, 0, BUFFER_STRIPES);
+                _bufLength = 0;
+            } else {
+                int n = Math.min(length, BUFFER_SIZE - _bufLength);
+                System.arraycopy(input, offset, _buf, _bufLength, n);
+                _bufLength += n;
+                offset += n;
+                length -= n;
+                if (length == 0) {
+                    return;
+                }
+                consumeStripes(_acc, _buf, 0, BUFFER_STRIPES);
+                _bufLength = 0;
+            }
+        }
+
+        // always leave at least one byte of input buffered
+        if (length > BUFFER_SIZE) {
+            int numStripes = (length - 1) / STRIPE_LENGTH;
+            consumeStripes(_acc, input, offset, numStripes);
+            offset += numStripes * STRIPE_LENGTH;
+            length -= numStripes * STRIPE_LENGTH;
+            // the last stripe may need the bytes preceding the buffer
+            System.arraycopy(input, offset - STRIPE_LENGTH,
+                             _buf, BUFFER_SIZE - STRIPE_LENGTH, STRIPE_LENGTH);
+        }
+        System.arraycopy(input, offset, _buf, 0, length);
+        _bufLength = length;
+    }
+
+    @Override
+    protected byte[] engineDigest()
+    {
+        byte[] result = new byte[DIGEST_LENGTH];
+        storeDigest(result, 0);
+        return result;
+    }
+
+    @Override
+    protected int engineDigest(byte[] buf, int offset, int length)
+        throws DigestException
+    {
+        if (length < DIGEST_LENGTH) {
+            throw new DigestException(String.format(
+                "digest buffer too small (%d < %d)", length, DIGEST_LENGTH));
+        }
+        storeDigest(buf, offset);
+        return DIGEST_LENGTH;
+    }
+
+    private void storeDigest(byte[] buf, int offset)
+    {
+        if (_totalLength <= MIDSIZE_MAX) {
+            hashShort(_buf, _bufLength, buf, offset);
+        } else {
+            hashLongTail(buf, offset);
+        }
+        engineReset();
+    }
+
+    /**
+     * Accumulate numStripes 64 byte stripes of input into acc, scrambling
+     * the accumulators whenever a block of stripes has been completed.
+     */
+    private void consumeStripes(long[] acc, byte[] input, int offset,
+                                int numStripes)
+    {
+        ByteBuffer in = littleEndian(input);
+        int numStripesInBlock = _numStripesInBlock;
+        while (numStripes > 0) {
+            int n = Math.min(numStripes,
+                             STRIPES_PER_BLOCK - numStripesInBlock);
+            accumulate(acc, in, offset, numStripesInBlock * SECRET_CONSUME_RATE,
+                       n);
+            offset += n * STRIPE_LENGTH;
+            numStripes -= n;
+            numStripesInBlock += n;
+            if (numStripesInBlock == STRIPES_PER_BLOCK) {
+                scrambleAcc(acc, SECRET_LIMIT);
+                numStripesInBlock = 0;
+            }
+        }
+        _numStripesInBlock = numStripesInBlock;
+    }
+
+    // accumulate512 of numStripes consecutive stripes, unrolled and kept in
+    // locals since this is where all time is spent for large inputs
+    private static void accumulate(long[] acc, ByteBuffer in, int offset,
+                                   int secretOffset, int numStripes)
+    {
+        long a0 = acc[0];
+        long a1 = acc[1];
+        long a2 = acc[2];
+        long a3 = acc[3];
+        long a4 = acc[4];
+        long a5 = acc[5];
+        long a6 = acc[6];
+        long a7 = acc[7];
+        for (int i = 0; i < numStripes; i++) {
+            long d0 = in.getLong(offset);
+            long d1 = in.getLong(offset + 8);
+            long d2 = in.getLong(offset + 16);
+            long d3 = in.getLong(offset + 24);
+            long d4 = in.getLong(offset + 32);
+            long d5 = in.getLong(offset + 40);
+            long d6 = in.getLong(offset + 48);
+            long d7 = in.getLong(offset + 56);
+            long k0 = d0 ^ SECRET_LONGS[secretOffset];
+            long k1 = d1 ^ SECRET_LONGS[secretOffset + 8];
+            long k2 = d2 ^ SECRET_LONGS[secretOffset + 16];
+            long k3 = d3 ^ SECRET_LONGS[secretOffset + 24];
+            long k4 = d4 ^ SECRET_LONGS[secretOffset + 32];
+            long k5 = d5 ^ SECRET_LONGS[secretOffset + 40];
+            long k6 = d6 ^ SECRET_LONGS[secretOffset + 48];
+            long k7 = d7 ^ SECRET_LONGS[secretOffset + 56];
+            a0 += d1 + (k0 & 0xFFFFFFFFL) * (k0 >>> 32);
+            a1 += d0 + (k1 & 0xFFFFFFFFL) * (k1 >>> 32);
+            a2 += d3 + (k2 & 0xFFFFFFFFL) * (k2 >>> 32);
+            a3 += d2 + (k3 & 0xFFFFFFFFL) * (k3 >>> 32);
+            a4 += d5 + (k4 & 0xFFFFFFFFL) * (k4 >>> 32);
+            a5 += d4 + (k5 & 0xFFFFFFFFL) * (k5 >>> 32);
+            a6 += d7 + (k6 & 0xFFFFFFFFL) * (k6 >>> 32);
+            a7 += d6 + (k7 & 0xFFFFFFFFL) * (k7 >>> 32);
+            offset += STRIPE_LENGTH;
+            secretOffset += SECRET_CONSUME_RATE;
+        }
+        acc[0] = a0;
+        acc[1] = a1;
+        acc[2] = a2;
+        acc[3] = a3;
+        acc[4] = a4;
+        acc[5] = a5;
+        acc[6] = a6;
+        acc[7] = a7;
+    }
+
+    private void hashLongTail(byte[] result, int offset)
+    {
+        long[] acc = _acc;
+        if (_bufLength >= STRIPE_LENGTH) {
+            consumeStripes(acc, _buf, 0, (_bufLength - 1) / STRIPE_LENGTH);
+            accumulate(acc, littleEndian(_buf), _bufLength - STRIPE_LENGTH,
+                       SECRET_LIMIT - SECRET_LASTACC_START, 1);
+        } else {
+            byte[] lastStripe = new byte[STRIPE_LENGTH];
+            int catchupLength = STRIPE_LENGTH - _bufLength;
+            System.arraycopy(_buf, BUFFER_SIZE - catchupLength,
+                             lastStripe, 0, catchupLength);
+            System.arraycopy(_buf, 0, lastStripe, catchupLength, _bufLength);
+            accumulate(acc, littleEndian(lastStripe), 0,
+                       SECRET_LIMIT - SECRET_LASTACC_START, 1);
+        }
+        long low = mergeAccs(acc, SECRET_MERGEACCS_START,
+                             _totalLength * PRIME64_1);
+        long high = mergeAccs(acc,
+                              SECRET_LENGTH - STRIPE_LENGTH -
+                              SECRET_MERGEACCS_START,
+                              ~(_totalLength * PRIME64_2));
+        XXHash64.putLongAsBigEndian(result, offset, high);
+        XXHash64.putLongAsBigEndian(result, offset + 8, low);
+    }
+
+    private static void scrambleAcc(long[] acc, int secretOffset)
+    {
+        for (int i = 0; i < 8; i++) {
+            long a = acc[i];
+            a ^= a >>> 47;
+            a ^= secret64(secretOffset + 8 * i);
+            acc[i] = a * PRIME32_1;
+        }
+    }
+
+    private static long mergeAccs(long[] acc, int secretOffset, long start)
+    {
+        long result = start;
+        for (int i = 0; i < 4; i++) {
+            result += mul128Fold64(
+                acc[2 * i] ^ secret64(secretOffset + 16 * i),
+                acc[2 * i + 1] ^ secret64(secretOffset + 16 * i + 8));
+        }
+        return avalanche(result);
+    }
+
+    private static void hashShort(byte[] in, int len, byte[] result,
+                                  int offset)
+    {
+        long low;
+        long high;
+        if (len == 0) {
+            low = XXHash64.avalanche(secret64(64) ^ secret64(72));
+            high = XXHash64.avalanche(secret64(80) ^ secret64(88));
+        } else if (len <= 3) {
+            int c1 = in[0] & 0xFF;
+            int c2 = in[len >> 1] & 0xFF;
+            int c3 = in[len - 1] & 0xFF;
+            int combinedl = (c1 << 16) | (c2 << 24) | c3 | (len << 8);
+            int combinedh = Integer.rotateLeft(Integer.reverseBytes(combinedl),
+                                               13);
+            long bitflipl = (secret32(0) ^ secret32(4)) & 0xFFFFFFFFL;
+            long bitfliph = (secret32(8) ^ secret32(12)) & 0xFFFFFFFFL;
+            low = XXHash64.avalanche((combinedl & 0xFFFFFFFFL) ^ bitflipl);
+            high = XXHash64.avalanche((combinedh & 0xFFFFFFFFL) ^ bitfliph);
+        } else if (len <= 8) {
+            long inputLow = BitOps.toBigEndianInt(in, 0) & 0xFFFFFFFFL;
+            long inputHigh = BitOps.toBigEndianInt(in, len - 4) & 0xFFFFFFFFL;
+            long input64 = inputLow + (inputHigh << 32);
+            long bitflip = secret64(16) ^ secret64(24);
+            long keyed = input64 ^ bitflip;
+            long m = PRIME64_1 + (len << 2);
+            low = keyed * m;
+            high = multiplyHighUnsigned(keyed, m);
+            high += low << 1;
+            low ^= high >>> 3;
+            low ^= low >>> 35;
+            low *= PRIME_MX2;
+            low ^= low >>> 28;
+            high = avalanche(high);
+        } else if (len <= 16) {
+            long bitflipl = secret64(32) ^ secret64(40);
+            long bitfliph = secret64(48) ^ secret64(56);
+            long inputLow = BitOps.toBigEndianLong(in, 0);
+            long inputHigh = BitOps.toBigEndianLong(in, len - 8);
+            long k = inputLow ^ inputHigh ^ bitflipl;
+            long mLow = k * PRIME64_1;
+            long mHigh = multiplyHighUnsigned(k, PRIME64_1);
+            mLow += (long) (len - 1) << 54;
+            inputHigh ^= bitfliph;
+            mHigh += inputHigh +
+                     (inputHigh & 0xFFFFFFFFL) * (PRIME32_2 - 1);
+            mLow ^= Long.reverseBytes(mHigh);
+            low = mLow * PRIME64_2;
+            high = multiplyHighUnsigned(mLow, PRIME64_2) + mHigh * PRIME64_2;
+            low = avalanche(low);
+            high = avalanche(high);
+        } else {
+            long accLow = len * PRIME64_1;
+            long accHigh = 0;
+            if (len <= 128) {
+                int numRounds = (len - 1) / 32;
+                for (int i = numRounds; i >= 0; i--) {
+                    long[] acc = mix32B(accLow, accHigh,
+                                        in, 16 * i, len - 16 * (i + 1),
+                                        32 * i);
+                    accLow = acc[0];
+                    accHigh = acc[1];
+                }
+            } else {
+                int numRounds = len / 32;
+                for (int i = 0; i < 4; i++) {
+                    long[] acc = mix32B(accLow, accHigh,
+                                        in, 32 * i, 32 * i + 16, 32 * i);
+                    accLow = acc[0];
+                    accHigh = acc[1];
+                }
+                accLow = avalanche(accLow);
+                accHigh = avalanche(accHigh);
+                for (int i = 4; i < numRounds; i++) {
+                    long[] acc = mix32B(accLow, accHigh,
+                                        in, 32 * i, 32 * i + 16,
+                                        MIDSIZE_STARTOFFSET + 32 * (i - 4));
+                    accLow = acc[0];
+                    accHigh = acc[1];
+                }
+                long[] acc = mix32B(accLow, accHigh, in, len - 16, len - 32,
+                                    SECRET_LENGTH_MIN - MIDSIZE_LASTOFFSET -
+                                    16);
+                accLow = acc[0];
+                accHigh = acc[1];
+            }
+            low = avalanche(accLow + accHigh);
+            high = -avalanche(accLow * PRIME64_1 + accHigh * PRIME64_4 +
+                              len * PRIME64_2);
+        }
+        XXHash64.putLongAsBigEndian(result, offset, high);
+        XXHash64.putLongAsBigEndian(result, offset + 8, low);
+    }
+
+    private static long[] mix32B(long accLow, long accHigh, byte[] in,
+                                 int offset1, int offset2, int secretOffset)
+    {
+        accLow += mix16B(in, offset1, secretOffset);
+        accLow ^= BitOps.toBigEndianLong(in, offset2) +
+                  BitOps.toBigEndianLong(in, offset2 + 8);
+        accHigh += mix16B(in, offset2, secretOffset + 16);
+        accHigh ^= BitOps.toBigEndianLong(in, offset1) +
+                   BitOps.toBigEndianLong(in, offset1 + 8);
+        return new long[] { accLow, accHigh };
+    }
+
+    private static long mix16B(byte[] in, int offset, int secretOffset)
+    {
+        return mul128Fold64(
+            BitOps.toBigEndianLong(in, offset) ^ secret64(secretOffset),
+            BitOps.toBigEndianLong(in, offset + 8) ^
+            secret64(secretOffset + 8));
+    }
+
+    private static long mul128Fold64(long a, long b)
+    {
+        return (a * b) ^ multiplyHighUnsigned(a, b);
+    }
+
+    private static long multiplyHighUnsigned(long a, long b)
+    {
+        long aLow = a & 0xFFFFFFFFL;
+        long aHigh = a >>> 32;
+        long bLow = b & 0xFFFFFFFFL;
+        long bHigh = b >>> 32;
+        long lowLow = aLow * bLow;
+        long highLow = aHigh * bLow;
+        long lowHigh = aLow * bHigh;
+        long highHigh = aHigh * bHigh;
+        long cross = (lowLow >>> 32) + (highLow & 0xFFFFFFFFL) + lowHigh;
+        return highHigh + (highLow >>> 32) + (cross >>> 32);
+    }
+
+    private static long avalanche(long h)
+    {
+        h ^= h >>> 37;
+        h *= PRIME_MX1;
+        return h ^ (h >>> 32);
+    }
+
+    // absolute ByteBuffer.getLong reads a whole long at once which is
+    // considerably faster than composing it byte by byte
+    private static ByteBuffer littleEndian(byte[] buf)
+    {
+        return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long secret64(int offset)
+    {
+        return SECRET_LONGS[offset];
+    }
+
+    private static int secret32(int offset)
+    {
+        return BitOps.toBigEndianInt(SECRET, offset);
+    }
+
+    private static byte[] hexToBytes(String hex)
+    {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(hex.substring(2 * i,
+                                                              2 * i + 2),
+                                                16);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * xxHash64 message digest
+ *
+ * Copyright (C) 2012-2020 Yann Collet
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * Streaming xxHash64 (seed 0) exposed as a MessageDigest. The digest is
+ * the 64 bit hash value in big endian (canonical) byte order.
+ */
+public final class XXHash64 extends MessageDigest implements Cloneable
+{
+    public static final String NAME = "XXH64";
+    public static final int DIGEST_LENGTH = 8;
+
+    static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    static final long PRIME64_3 = 0x165667B19E3779F9L;
+    static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_LENGTH = 32;
+
+    private byte[] _buf = new byte[STRIPE_LENGTH];
+    private int _bufLength;
+    private long _totalLength;
+    private long _v1;
+    private long _v2;
+    private long _v3;
+    private long _v4;
+
+    public XXHash64()
+    {
+        super(NAME);
+        engineReset();
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException
+    {
+        XXHash64 copy = (XXHash64) super.clone();
+        copy._buf = _buf.clone();
+        return copy;
+    }
+
+    @Override
+    protected int engineGetDigestLength()
+    {
+        return DIGEST_LENGTH;
+    }
+
+    @Override
+    protected void engineReset()
+    {
+        _bufLength = 0;
+        _totalLength = 0;
+        _v1 = PRIME64_1 + PRIME64_2;
+        _v2 = PRIME64_2;
+        _v3 = 0;
+        _v4 = -PRIME64_1;
+    }
+
+    @Override
+    protected void engineUpdate(byte input)
+    {
+        _buf[_bufLength++] = input;
+        _totalLength++;
+        if (_bufLength == STRIPE_LENGTH) {
+            consumeStripes(_buf, 0, STRIPE_LENGTH);
+            _bufLength = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length)
+    {
+        _totalLength += length;
+
+        if (_bufLength > 0) {
+            int n = Math.min(length, STRIPE_LENGTH - _bufLength);
+            System.arraycopy(input, offset, _buf, _bufLength, n);
+            _bufLength += n;
+            offset += n;
+            length -= n;
+            if (_bufLength < STRIPE_LENGTH) {
+                return;
+            }
+            consumeStripes(_buf, 0, STRIPE_LENGTH);
+            _bufLength = 0;
+        }
+
+        int numBytesStriped = length - length % STRIPE_LENGTH;
+        consumeStripes(input, offset, numBytesStriped);
+        System.arraycopy(input, offset + numBytesStriped, _buf, 0,
+                         length - numBytesStriped);
+        _bufLength = length - numBytesStriped;
+    }
+
+    @Override
+    protected byte[] engineDigest()
+    {
+        byte[] result = new byte[DIGEST_LENGTH];
+        storeDigest(result, 0);
+        return result;
+    }
+
+    @Override
+    protected int engineDigest(byte[] buf, int offset, int length)
+        throws DigestException
+    {
+        if (length < DIGEST_LENGTH) {
+            throw new DigestException(String.format(
+                "digest buffer too small (%d < %d)", length, DIGEST_LENGTH));
+        }
+        storeDigest(buf, offset);
+        return DIGEST_LENGTH;
+    }
+
+    private void storeDigest(byte[] buf, int offset)
+    {
+        putLongAsBigEndian(buf, offset, finish());
+        engineReset();
+    }
+
+    private void consumeStripes(byte[] input, int offset, int length)
+    {
+        // absolute ByteBuffer.getLong reads a whole long at once which is
+        // considerably faster than composing it byte by byte
+        ByteBuffer in = ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN);
+        long v1 = _v1;
+        long v2 = _v2;
+        long v3 = _v3;
+        long v4 = _v4;
+        for (int end = offset + length; offset < end;
+             offset += STRIPE_LENGTH) {
+            v1 = round(v1, in.getLong(offset));
+            v2 = round(v2, in.getLong(offset + 8));
+            v3 = round(v3, in.getLong(offset + 16));
+            v4 = round(v4, in.getLong(offset + 24));
+        }
+        _v1 = v1;
+        _v2 = v2;
+        _v3 = v3;
+        _v4 = v4;
+    }
+
+    private long finish()
+    {
+        long h;
+        if (_totalLength >= STRIPE_LENGTH) {
+            h = Long.rotateLeft(_v1, 1) + Long.rotateLeft(_v2, 7) +
+                Long.rotateLeft(_v3, 12) + Long.rotateLeft(_v4, 18);
+            h = mergeRound(h, _v1);
+            h = mergeRound(h, _v2);
+            h = mergeRound(h, _v3);
+            h = mergeRound(h, _v4);
+        } else {
+            h = PRIME64_5;
+        }
+        h += _totalLength;
+
+        int i = 0;
+        for (; i + 8 <= _bufLength; i += 8) {
+            h ^= round(0, BitOps.toBigEndianLong(_buf, i));
+            h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (i + 4 <= _bufLength) {
+            h ^= (BitOps.toBigEndianInt(_buf, i) & 0xFFFFFFFFL) * PRIME64_1;
+            h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+            i += 4;
+        }
+        for (; i < _bufLength; i++) {
+            h ^= (_buf[i] & 0xFFL) * PRIME64_5;
+            h = Long.rotateLeft(h, 11) * PRIME64_1;
+        }
+        return avalanche(h);
+    }
+
+    private static long round(long acc, long input)
+    {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long acc, long value)
+    {
+        acc ^= round(0, value);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    static long avalanche(long h)
+    {
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        return h ^ (h >>> 32);
+    }
+
+    static void putLongAsBigEndian(byte[] buf, int offset, long value)
+    {
+        for (int i = 0; i < 8; i++) {
+            buf[offset + i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+}
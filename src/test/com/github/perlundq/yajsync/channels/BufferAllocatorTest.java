@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferAllocatorTest
+{
+    private static final int K = 1024;
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testSizeTooSmall()
+    {
+        new BufferSizing(BufferSizing.MIN_SIZE - 1, BufferSizing.MAX_SIZE, 0);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testMaxSizeTooLarge()
+    {
+        new BufferSizing(BufferSizing.MIN_SIZE, BufferSizing.MAX_SIZE + 1, 0);
+    }
+
+    @Test
+    public void testNotAdaptive()
+    {
+        BufferSizing sizing = new BufferSizing(64 * K, 16 * K, 0);
+        assertEquals(64 * K, sizing.maxSize());
+        assertFalse(sizing.isAdaptive());
+    }
+
+    @Test
+    public void testLimitedByMaxSize()
+    {
+        BufferAllocator allocator =
+            new BufferAllocator(new BufferSizing(16 * K, 48 * K, 1024 * K));
+        allocator.reserve(16 * K);
+        ByteBuffer buf = allocator.largerOrNull(16 * K, 64 * K);
+        assertEquals(48 * K, buf.capacity());
+        assertEquals(48 * K, allocator.numBytesAllocated());
+        assertNull(allocator.largerOrNull(48 * K, 64 * K));
+    }
+
+    @Test
+    public void testLimitedBySessionSize()
+    {
+        BufferAllocator allocator =
+            new BufferAllocator(new BufferSizing(16 * K, 1024 * K, 64 * K));
+        allocator.reserve(16 * K);
+        allocator.reserve(16 * K);
+        ByteBuffer buf = allocator.largerOrNull(16 * K, 128 * K);
+        assertEquals(48 * K, buf.capacity());
+        assertEquals(64 * K, allocator.numBytesAllocated());
+        assertNull(allocator.largerOrNull(16 * K, 128 * K));
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BufferReplacementTest
+{
+    private static final int K = 1024;
+    private static final int NUM_OPS = 500;
+
+    // grows the buffer at every opportunity
+    private static class EagerGrowth extends BufferGrowth
+    {
+        private final BufferAllocator _allocator;
+        private int _numGrown;
+
+        EagerGrowth(BufferAllocator allocator)
+        {
+            super(allocator, null, null);
+            _allocator = allocator;
+        }
+
+        @Override
+        ByteBuffer largerOrNull(int currentSize, long numBytesTransferred)
+        {
+            ByteBuffer buf = _allocator.largerOrNull(currentSize,
+                                                     2L * currentSize);
+            if (buf != null) {
+                _numGrown++;
+            }
+            return buf;
+        }
+    }
+
+    private static class MessageCollector implements MessageHandler
+    {
+        private final List<String> _messages = new ArrayList<>();
+
+        @Override
+        public void handleMessage(Message message)
+        {
+            ByteBuffer payload = message.payload();
+            byte[] text = new byte[payload.remaining()];
+            payload.get(text);
+            _messages.add(new String(text, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String messageText(int i)
+    {
+        return "message " + i + "\n";
+    }
+
+    private static Message message(int i)
+    {
+        byte[] text = messageText(i).getBytes(StandardCharsets.UTF_8);
+        return new Message(MessageCode.INFO, ByteBuffer.wrap(text));
+    }
+
+    private static byte[] dataOf(Random random, int maxLength)
+    {
+        byte[] data = new byte[random.nextInt(maxLength)];
+        random.nextBytes(data);
+        return data;
+    }
+
+    // op i is an int, data of at most maxLength bytes or a message, every
+    // fourth op also flushes
+    private static void writeOps(TaggedOutputChannel out, int from, int to,
+                                 int maxLength)
+        throws ChannelException
+    {
+        for (int i = from; i < to; i++) {
+            Random random = new Random(i);
+            switch (random.nextInt(3)) {
+            case 0:
+                out.putInt(i);
+                break;
+            case 1:
+                out.put(ByteBuffer.wrap(dataOf(random, maxLength)));
+                break;
+            default:
+                out.putMessage(message(i));
+            }
+            if (i % 4 == 3) {
+                out.flush();
+            }
+        }
+    }
+
+    // reads what op from until op to wrote, adding the text of its
+    // messages to expectedMessages
+    private static void readOps(PrefetchedTaggedInputChannel in, int from,
+                                int to, int maxLength,
+                                List<String> expectedMessages)
+        throws ChannelException
+    {
+        for (int i = from; i < to; i++) {
+            Random random = new Random(i);
+            switch (random.nextInt(3)) {
+            case 0:
+                assertEquals(i, in.getInt());
+                break;
+            case 1:
+                byte[] expected = dataOf(random, maxLength);
+                byte[] data = new byte[expected.length];
+                in.get(expected.length).get(data);
+                assertArrayEquals(expected, data);
+                break;
+            default:
+                expectedMessages.add(messageText(i));
+            }
+        }
+    }
+
+    // all data between two flushes fits in the smallest buffer, i.e. the
+    // stream must not depend on the size of the buffer
+    @Test
+    public void testOutputGrowth() throws Exception
+    {
+        int maxLength = K;
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        TaggedOutputChannel reference =
+            new TaggedOutputChannel(Channels.newChannel(expected), 1024 * K);
+        writeOps(reference, 0, NUM_OPS, maxLength);
+        reference.flush();
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        TaggedOutputChannel out =
+            new TaggedOutputChannel(Channels.newChannel(result), 16 * K);
+        writeOps(out, 0, 3, maxLength);
+        assertTrue(out.numBytesBuffered() > 0);
+        BufferAllocator allocator =
+            new BufferAllocator(new BufferSizing(8 * K, 1024 * K,
+                                               16 * 1024 * K));
+        EagerGrowth growth = new EagerGrowth(allocator);
+        out.setBufferAllocator(allocator, growth);
+        assertEquals(8 * K, out.bufferSize());
+        writeOps(out, 3, NUM_OPS, maxLength);
+        out.flush();
+
+        assertArrayEquals(expected.toByteArray(), result.toByteArray());
+        assertTrue(growth._numGrown > 0);
+        assertEquals(1024 * K, out.bufferSize());
+        assertEquals(out.bufferSize(), allocator.numBytesAllocated());
+    }
+
+    @Test
+    public void testInputGrowth() throws Exception
+    {
+        int maxLength = 8 * K;
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        TaggedOutputChannel out = new TaggedOutputChannel(
+            Channels.newChannel(os));
+        writeOps(out, 0, NUM_OPS, maxLength);
+        out.putInt(-1);     // makes the reader handle all messages
+        out.flush();
+
+        MessageCollector collector = new MessageCollector();
+        PrefetchedTaggedInputChannel in = new PrefetchedTaggedInputChannel(
+            Channels.newChannel(new ByteArrayInputStream(os.toByteArray())),
+            collector, 8 * K);
+        List<String> expectedMessages = new ArrayList<>();
+        readOps(in, 0, 2, maxLength, expectedMessages);
+        assertTrue(in.numBytesPrefetched() > 0);
+        BufferAllocator allocator =
+            new BufferAllocator(new BufferSizing(16 * K, 1024 * K,
+                                               16 * 1024 * K));
+        EagerGrowth growth = new EagerGrowth(allocator);
+        in.setBufferAllocator(allocator, growth);
+        assertEquals(16 * K, in.bufferSize());
+        readOps(in, 2, NUM_OPS, maxLength, expectedMessages);
+        assertEquals(-1, in.getInt());
+
+        assertEquals(expectedMessages, collector._messages);
+        assertEquals(0, in.numBytesPrefetched());
+        assertTrue(growth._numGrown > 0);
+        assertTrue(in.bufferSize() > 16 * K);
+        assertEquals(in.bufferSize(), allocator.numBytesAllocated());
+    }
+}
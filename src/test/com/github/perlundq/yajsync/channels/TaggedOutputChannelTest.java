@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TaggedOutputChannelTest
+{
+    private Path _dst;
+
+    @Before
+    public void setup() throws IOException
+    {
+        _dst = Files.createTempFile("yajsync-test", null);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(_dst);
+    }
+
+    private static ByteBuffer message(int i, byte... data)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(8 + data.length).
+            order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(new MessageHeader(MessageCode.DATA,
+                                     4 + data.length).toTag());
+        buf.putInt(i);
+        buf.put(data);
+        return buf;
+    }
+
+    private static byte[] expected()
+    {
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        buf.put((ByteBuffer) message(7).flip());
+        buf.put((ByteBuffer) message(3, (byte) 1, (byte) 2, (byte) 3).flip());
+        buf.put((ByteBuffer) message(5, (byte) 21, (byte) 22, (byte) 23,
+                                     (byte) 24, (byte) 25).flip());
+        buf.put((ByteBuffer) message(9).flip());
+        buf.flip();
+        byte[] result = new byte[buf.remaining()];
+        buf.get(result);
+        return result;
+    }
+
+    private static void write(TaggedOutputChannel out)
+        throws ChannelException
+    {
+        out.putInt(7);
+        out.putIntAndData(3, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        out.putIntAndData(5, ByteBuffer.wrap(new byte[] { 21, 22, 23, 24,
+                                                          25 }));
+        out.putInt(9);
+        out.flush();
+    }
+
+    @Test
+    public void testGatheringWrite() throws Exception
+    {
+        try (FileChannel dst = FileChannel.open(_dst,
+                                                StandardOpenOption.WRITE)) {
+            TaggedOutputChannel out = new TaggedOutputChannel(dst);
+            write(out);
+            assertEquals(expected().length, out.numBytesWritten());
+        }
+        assertArrayEquals(expected(), Files.readAllBytes(_dst));
+    }
+
+    @Test
+    public void testWithoutGatheringWrite() throws Exception
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        TaggedOutputChannel out =
+            new TaggedOutputChannel(Channels.newChannel(os));
+        write(out);
+        assertEquals(expected().length, out.numBytesWritten());
+        assertArrayEquals(expected(), os.toByteArray());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.Test;
+
+public class ChannelSelectorTest
+{
+    private static final int NUM_CONNECTIONS = 100;
+
+    @Test(timeout=10000)
+    public void testOnlyReadableChannelsAreDispatched() throws Exception
+    {
+        final BlockingQueue<DuplexByteChannel> readable =
+            new LinkedBlockingQueue<>();
+        ChannelSelector selector = new ChannelSelector(
+            new ChannelSelector.Listener() {
+                @Override public void readable(DuplexByteChannel sock) {
+                    readable.add(sock);
+                }});
+        Thread thread = new Thread(selector);
+        thread.start();
+
+        List<SocketChannel> clients = new ArrayList<>();
+        try (ServerSocketChannel listenSock = ServerSocketChannel.open()) {
+            listenSock.bind(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 0));
+            for (int i = 0; i < NUM_CONNECTIONS; i++) {
+                clients.add(SocketChannel.open(listenSock.getLocalAddress()));
+                selector.register(
+                    new StandardSocketChannel(listenSock.accept()));
+            }
+
+            for (int i = 0; i < NUM_CONNECTIONS; i += 2) {
+                clients.get(i).write(ByteBuffer.wrap(new byte[] { (byte) i }));
+            }
+            for (int i = 0; i < NUM_CONNECTIONS; i += 2) {
+                DuplexByteChannel sock = readable.take();
+                assertTrue(sock.socketChannel().isBlocking());
+                ByteBuffer buf = ByteBuffer.allocate(1);
+                assertEquals(1, sock.read(buf));
+                assertEquals(0, buf.get(0) % 2);
+                sock.close();
+            }
+            assertNull(readable.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            selector.close();
+            thread.join();
+            for (SocketChannel client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    @Test(timeout=10000)
+    public void testIdleChannelsAreClosed() throws Exception
+    {
+        final BlockingQueue<DuplexByteChannel> readable =
+            new LinkedBlockingQueue<>();
+        ChannelSelector selector = new ChannelSelector(
+            new ChannelSelector.Listener() {
+                @Override public void readable(DuplexByteChannel sock) {
+                    readable.add(sock);
+                }},
+            200);
+        Thread thread = new Thread(selector);
+        thread.start();
+
+        try (ServerSocketChannel listenSock = ServerSocketChannel.open()) {
+            listenSock.bind(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel idle =
+                     SocketChannel.open(listenSock.getLocalAddress());
+                 SocketChannel active =
+                     SocketChannel.open(listenSock.getLocalAddress());
+                 SocketChannel idleTLS =
+                     SocketChannel.open(listenSock.getLocalAddress())) {
+                selector.register(
+                    new StandardSocketChannel(listenSock.accept()));
+                selector.register(
+                    new StandardSocketChannel(listenSock.accept()));
+                selector.register(
+                    new SSLChannel(listenSock.accept(),
+                                   SSLContext.getDefault().createSSLEngine()));
+                active.write(ByteBuffer.wrap(new byte[] { 1 }));
+                try (DuplexByteChannel sock = readable.take()) {
+                    ByteBuffer buf = ByteBuffer.allocate(1);
+                    assertEquals(1, sock.read(buf));
+                }
+                // the peers of idle and idleTLS are closed by the selector
+                assertEquals(-1, idle.read(ByteBuffer.allocate(1)));
+                assertEquals(-1, idleTLS.read(ByteBuffer.allocate(1)));
+                assertNull(readable.poll(100, TimeUnit.MILLISECONDS));
+            }
+        } finally {
+            selector.close();
+            thread.join();
+        }
+    }
+}
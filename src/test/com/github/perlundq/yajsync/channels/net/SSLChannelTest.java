@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SSLChannelTest
+{
+    private static final char[] PASSWORD = "yajsync".toCharArray();
+    private static final int DATA_SIZE = 8 * 1024 * 1024 + 17;
+
+    @ClassRule
+    public static final TemporaryFolder _tempDir = new TemporaryFolder();
+    private static SSLContext _context;
+
+    private ServerSocketChannel _listenSock;
+    private ExecutorService _executor;
+    private SSLEngine _clientEngine;
+
+    // the JDK has no API for creating a certificate, keytool is used instead
+    @BeforeClass
+    public static void createContext() throws Exception
+    {
+        File keyStoreFile = new File(_tempDir.getRoot(), "keystore.jks");
+        File keytool = new File(new File(System.getProperty("java.home"),
+                                         "bin"), "keytool");
+        assumeTrue(keytool.canExecute());
+        Process process = new ProcessBuilder(
+            keytool.getPath(), "-genkeypair", "-alias", "yajsync",
+            "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost",
+            "-validity", "1", "-storetype", "JKS",
+            "-keystore", keyStoreFile.getPath(),
+            "-storepass", new String(PASSWORD),
+            "-keypass", new String(PASSWORD)).redirectErrorStream(true).
+            start();
+        try (InputStream is = process.getInputStream()) {
+            while (is.read() != -1) {
+                // discard any output
+            }
+        }
+        assertEquals(0, process.waitFor());
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream is = new FileInputStream(keyStoreFile)) {
+            keyStore.load(is, PASSWORD);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+            KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+            TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        _context = SSLContext.getInstance("TLS");
+        _context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+    }
+
+    @Before
+    public void setUp() throws IOException
+    {
+        _listenSock = ServerSocketChannel.open();
+        _listenSock.bind(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), 0));
+        _executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        _executor.shutdownNow();
+        _listenSock.close();
+    }
+
+    private SSLChannel connect(SSLContext context) throws IOException
+    {
+        InetSocketAddress address =
+            (InetSocketAddress) _listenSock.getLocalAddress();
+        SSLEngine engine = context.createSSLEngine(address.getHostString(),
+                                                   address.getPort());
+        engine.setUseClientMode(true);
+        _clientEngine = engine;
+        return new SSLChannel(SocketChannel.open(address), engine);
+    }
+
+    private SSLChannel accept(SSLContext context) throws IOException
+    {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new SSLChannel(_listenSock.accept(), engine);
+    }
+
+    private static byte[] randomData(long seed)
+    {
+        byte[] data = new byte[DATA_SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private Future<Void> writeAsync(final SSLChannel sock, final byte[] data,
+                                    final boolean isDirect)
+    {
+        return _executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                ByteBuffer buf = isDirect ? ByteBuffer.allocateDirect(50000)
+                                          : ByteBuffer.allocate(50000);
+                for (int offset = 0; offset < data.length; ) {
+                    buf.clear();
+                    int length = Math.min(buf.remaining(),
+                                          data.length - offset);
+                    buf.put(data, offset, length);
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        sock.write(buf);
+                    }
+                    offset += length;
+                }
+                return null;
+            }
+        });
+    }
+
+    private Future<byte[]> readAsync(final SSLChannel sock, final int size)
+    {
+        return _executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                return readFully(sock, size, false);
+            }
+        });
+    }
+
+    private static byte[] readFully(SSLChannel sock, int size,
+                                    boolean isDirect) throws IOException
+    {
+        byte[] result = new byte[size];
+        ByteBuffer buf = isDirect ? ByteBuffer.allocateDirect(33333)
+                                  : ByteBuffer.allocate(1000);
+        int offset = 0;
+        while (offset < size) {
+            buf.clear();
+            buf.limit(Math.min(buf.capacity(), size - offset));
+            int n = sock.read(buf);
+            if (n < 0) {
+                fail("unexpected EOF after " + offset + " bytes");
+            }
+            buf.flip();
+            buf.get(result, offset, n);
+            offset += n;
+        }
+        return result;
+    }
+
+    private void transfer(boolean isDirect) throws Exception
+    {
+        byte[] clientData = randomData(0);
+        byte[] serverData = randomData(1);
+        // not a resource, it is closed before server
+        SSLChannel client = connect(_context);
+        try (SSLChannel server = accept(_context)) {
+            try {
+                // reading and writing concurrently in both directions
+                Future<Void> clientWrite = writeAsync(client, clientData,
+                                                      isDirect);
+                Future<Void> serverWrite = writeAsync(server, serverData,
+                                                      isDirect);
+                assertArrayEquals(serverData,
+                                  readFully(client, DATA_SIZE, isDirect));
+                assertArrayEquals(clientData,
+                                  readFully(server, DATA_SIZE, !isDirect));
+                clientWrite.get();
+                serverWrite.get();
+            } finally {
+                client.close();
+            }
+            assertEquals(-1, server.read(ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test(timeout=60000)
+    public void testTransferHeapBuffers() throws Exception
+    {
+        transfer(false);
+    }
+
+    @Test(timeout=60000)
+    public void testTransferDirectBuffers() throws Exception
+    {
+        transfer(true);
+    }
+
+    // the key update of the client requires an answer from the server,
+    // whose writer is blocked on the client until the client has written
+    // all of its data and starts reading
+    @Test(timeout=60000)
+    public void testKeyUpdateWhileWriterIsBlocked() throws Exception
+    {
+        byte[] clientData = randomData(0);
+        byte[] serverData = randomData(1);
+        try (SSLChannel client = connect(_context);
+             SSLChannel server = accept(_context)) {
+            Future<byte[]> serverRead = readAsync(server, DATA_SIZE);
+            Future<Void> serverWrite = writeAsync(server, serverData, false);
+            int half = DATA_SIZE / 2;
+            ByteBuffer buf = ByteBuffer.wrap(clientData, 0, half);
+            while (buf.hasRemaining()) {
+                client.write(buf);
+            }
+            assumeTrue("TLSv1.3".equals(
+                _clientEngine.getSession().getProtocol()));
+            _clientEngine.beginHandshake();     // sends a key update
+            buf = ByteBuffer.wrap(clientData, half, DATA_SIZE - half);
+            while (buf.hasRemaining()) {
+                client.write(buf);
+            }
+            assertArrayEquals(clientData, serverRead.get());
+            assertArrayEquals(serverData, readFully(client, DATA_SIZE, false));
+            serverWrite.get();
+        }
+    }
+
+    @Test(timeout=60000)
+    public void testNonBlocking() throws Exception
+    {
+        byte[] data = randomData(2);
+        try (SSLChannel client = connect(_context);
+             SSLChannel server = accept(_context)) {
+            client.socketChannel().configureBlocking(false);
+            Future<Void> serverWrite = writeAsync(server, data, false);
+            byte[] result = new byte[DATA_SIZE];
+            ByteBuffer buf = ByteBuffer.wrap(result);
+            int numZeroReads = 0;
+            while (buf.hasRemaining()) {
+                int n = client.read(buf);
+                assertTrue(n >= 0);
+                if (n == 0) {
+                    numZeroReads++;
+                    Thread.sleep(1);
+                }
+            }
+            serverWrite.get();
+            assertTrue(numZeroReads > 0);
+            assertArrayEquals(data, result);
+
+            Future<byte[]> serverRead = readAsync(server, DATA_SIZE);
+            ByteBuffer reply = ByteBuffer.wrap(data);
+            while (reply.hasRemaining()) {
+                if (client.write(reply) == 0) {
+                    Thread.sleep(1);
+                }
+            }
+            while (!client.flush()) {
+                Thread.sleep(1);
+            }
+            assertArrayEquals(data, serverRead.get());
+        }
+    }
+
+    @Test(timeout=60000)
+    public void testInterruptedRead() throws Exception
+    {
+        try (SSLChannel client = connect(_context);
+             SSLChannel server = accept(_context)) {
+            Future<Void> serverWrite = writeAsync(server, new byte[1], false);
+            assertEquals(1, readFully(client, 1, false).length);
+            serverWrite.get();
+
+            Thread.currentThread().interrupt();
+            try {
+                client.read(ByteBuffer.allocate(1));
+                fail("read should have been interrupted");
+            } catch (ClosedByInterruptException e) {
+                assertTrue(Thread.interrupted());
+            }
+            assertFalse(client.isOpen());
+        }
+    }
+
+    @Test(timeout=60000)
+    public void testSessionResumption() throws Exception
+    {
+        byte[][] sessionIds = new byte[2][];
+        for (int i = 0; i < sessionIds.length; i++) {
+            try (SSLChannel client = connect(_context);
+                 SSLChannel server = accept(_context)) {
+                // TLS 1.3 always creates a new session id, even if resumed
+                _clientEngine.setEnabledProtocols(new String[] { "TLSv1.2" });
+                Future<Void> serverWrite = writeAsync(server, new byte[1],
+                                                      false);
+                assertEquals(1, readFully(client, 1, false).length);
+                serverWrite.get();
+                sessionIds[i] = _clientEngine.getSession().getId();
+            }
+        }
+        assertTrue(sessionIds[0].length > 0);
+        assertTrue(Arrays.equals(sessionIds[0], sessionIds[1]));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.util.Environment;
+
+public class FileViewTest
+{
+    private static final int FILE_SIZE = 300 * 1000;
+    private static final int WINDOW_LENGTH = 700;
+    private static final int BUFFER_SIZE = WINDOW_LENGTH * 10;
+    // small enough for the file to be mapped in many regions
+    private static final int MAP_SIZE = 3 * BUFFER_SIZE;
+
+    private Path _file;
+    private byte[] _content;
+
+    @Before
+    public void setup() throws IOException
+    {
+        _content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(_content);
+        _file = Files.createTempFile("yajsync-test", null);
+        Files.write(_file, _content);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(_file);
+    }
+
+    private FileView buffered(long fileSize) throws FileViewOpenFailed
+    {
+        return new BufferedFileView(_file, fileSize, WINDOW_LENGTH,
+                                    BUFFER_SIZE);
+    }
+
+    private FileView mapped(long fileSize) throws FileViewOpenFailed
+    {
+        return new MappedFileView(_file, fileSize, WINDOW_LENGTH, BUFFER_SIZE,
+                                  MAP_SIZE);
+    }
+
+    // slide like Sender does, randomly matching and sliding over prefetched
+    // data, and verify that all marked and window bytes match the file
+    private void scan(FileView fv, byte[] expected) throws FileViewReadError
+    {
+        Random random = new Random(1);
+        long position = 0;
+        try {
+            fv.setMarkRelativeToStart(0);
+            while (fv.windowLength() > 0) {
+                assertEquals(Math.min(WINDOW_LENGTH,
+                                      expected.length - position),
+                             fv.windowLength());
+                long firstPosition = position - fv.numBytesMarked();
+                for (int i = 0; i < fv.totalBytes(); i++) {
+                    assertEquals(expected[(int) firstPosition + i],
+                                 fv.valueAt(fv.firstOffset() + i));
+                }
+                int slideAmount;
+                int numPrefetched = fv.numBytesPrefetched() -
+                                    fv.windowLength();
+                if (random.nextInt(20) == 0) {          // a match
+                    slideAmount = fv.windowLength();
+                    fv.setMarkRelativeToStart(slideAmount);
+                } else {
+                    if (fv.isFull()) {
+                        fv.setMarkRelativeToStart(0);
+                    }
+                    slideAmount = numPrefetched > 0
+                                  ? 1 + random.nextInt(Math.min(numPrefetched,
+                                                                fv.windowLength()))
+                                  : 1;
+                }
+                fv.slide(slideAmount);
+                position += slideAmount;
+            }
+        } finally {
+            fv.close();
+        }
+        assertEquals(expected.length, position);
+    }
+
+    @Test
+    public void testBufferedFileView() throws FileViewReadError
+    {
+        scan(buffered(FILE_SIZE), _content);
+    }
+
+    @Test
+    public void testMappedFileView() throws FileViewReadError
+    {
+        scan(mapped(FILE_SIZE), _content);
+    }
+
+    @Test
+    public void testEmptyFile() throws FileViewReadError
+    {
+        try (FileView fv = mapped(0)) {
+            assertEquals(0, fv.windowLength());
+        }
+    }
+
+    @Test
+    public void testOpen() throws FileViewReadError
+    {
+        try (FileView fv = FileView.open(_file, FILE_SIZE, WINDOW_LENGTH,
+                                         BUFFER_SIZE)) {
+            assertEquals(BufferedFileView.class, fv.getClass());
+        }
+        Environment.setMmapThreshold(FILE_SIZE);
+        try (FileView fv = FileView.open(_file, FILE_SIZE, WINDOW_LENGTH,
+                                         BUFFER_SIZE)) {
+            assertEquals(MappedFileView.class, fv.getClass());
+        } finally {
+            System.clearProperty("mmap.threshold");
+        }
+    }
+
+    // a file which is shorter than expected is read as if it was filled with
+    // zeroes and the error is deferred until close
+    private void testShortFile(FileView fv)
+    {
+        byte[] expected = new byte[FILE_SIZE + MAP_SIZE + 1];
+        System.arraycopy(_content, 0, expected, 0, FILE_SIZE);
+        try {
+            scan(fv, expected);
+            fail();
+        } catch (FileViewReadError e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBufferedFileViewShortFile() throws FileViewOpenFailed
+    {
+        testShortFile(buffered(FILE_SIZE + MAP_SIZE + 1));
+    }
+
+    @Test
+    public void testMappedFileViewShortFile() throws FileViewOpenFailed
+    {
+        testShortFile(mapped(FILE_SIZE + MAP_SIZE + 1));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+public class BlockLengthStrategyTest
+{
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testSquareRoot()
+    {
+        BlockLengthStrategy strategy = new SquareRootBlockLength();
+        Path path = Paths.get("file");
+        assertEquals(512, strategy.blockLengthFor(path, 1));
+        assertEquals(512, strategy.blockLengthFor(path, 300000));
+        assertEquals(1024, strategy.blockLengthFor(path, MB));
+        assertEquals(1024, strategy.blockLengthFor(path, 4 * MB - 1));
+        assertEquals(32768, strategy.blockLengthFor(path, 1024 * MB));
+        assertEquals(Checksum.MAX_CHECKSUM_BLOCK_LENGTH,
+                     strategy.blockLengthFor(path, 1L << 40));
+    }
+
+    // reference values from native rsync
+    @Test
+    public void testRsync()
+    {
+        BlockLengthStrategy strategy = new RsyncBlockLength();
+        Path path = Paths.get("file");
+        assertEquals(700, strategy.blockLengthFor(path, 1));
+        assertEquals(700, strategy.blockLengthFor(path, 700 * 700));
+        assertEquals(1024, strategy.blockLengthFor(path, MB));
+        assertEquals(10000, strategy.blockLengthFor(path, 100000000));
+        assertEquals(32768, strategy.blockLengthFor(path, 1024 * MB));
+        assertEquals(Checksum.MAX_CHECKSUM_BLOCK_LENGTH,
+                     strategy.blockLengthFor(path, 1L << 40));
+        for (long size = 1; size < 1L << 36; size = size * 3 + 1) {
+            int blockLength = strategy.blockLengthFor(path, size);
+            assertEquals(0, blockLength % 4);
+            assertTrue(blockLength >= 700);
+            assertTrue(blockLength <= Checksum.MAX_CHECKSUM_BLOCK_LENGTH);
+        }
+    }
+
+    @Test
+    public void testAdaptive()
+    {
+        BlockLengthStrategy strategy = new AdaptiveBlockLength();
+        Path log = Paths.get("/var/log/syslog.log");
+        Path img = Paths.get("/images/disk.IMG");
+        Path noext = Paths.get("/data/blob");
+        long size = 64 * MB;
+        int base = new SquareRootBlockLength().blockLengthFor(log, size);
+
+        assertEquals(base, strategy.blockLengthFor(log, size));
+
+        // nearly identical, larger blocks
+        for (int i = 0; i < 10; i++) {
+            strategy.addResult(log, base, 0, size);
+        }
+        assertEquals(base * 8, strategy.blockLengthFor(log, size));
+        assertEquals(base * 8, strategy.blockLengthFor(
+            Paths.get("/other/dir/messages.LOG"), size));
+        assertEquals(base, strategy.blockLengthFor(img, size));
+
+        // scattered changes, smaller blocks
+        for (int i = 0; i < 10; i++) {
+            strategy.addResult(img, base, size / 4 * 3, size / 4);
+        }
+        assertEquals(base / 8, strategy.blockLengthFor(img, size));
+        assertEquals(base * 8, strategy.blockLengthFor(log, size));
+
+        // files without extension are tuned per directory
+        strategy.addResult(noext, base, size / 4 * 3, size / 4);
+        assertEquals(base / 2, strategy.blockLengthFor(noext, size));
+        assertEquals(base / 2,
+                     strategy.blockLengthFor(Paths.get("/data/other"), size));
+        assertEquals(base, strategy.blockLengthFor(Paths.get("/x/blob"), size));
+
+        // never smaller than the minimum
+        assertEquals(SquareRootBlockLength.MIN_BLOCK_LENGTH,
+                     strategy.blockLengthFor(img, 1000));
+    }
+
+    @Test
+    public void testLookup()
+    {
+        assertTrue(BlockLengthStrategy.newInstanceOrNull("sqrt")
+                   instanceof SquareRootBlockLength);
+        assertTrue(BlockLengthStrategy.newInstanceOrNull("rsync")
+                   instanceof RsyncBlockLength);
+        assertTrue(BlockLengthStrategy.newInstanceOrNull("adaptive")
+                   instanceof AdaptiveBlockLength);
+        assertNull(BlockLengthStrategy.newInstanceOrNull("fixed"));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChecksumTest
+{
+    private static final int BLOCK_LENGTH = 512;
+    private static final int DIGEST_LENGTH = 4;
+
+    private static byte[] digestFor(int i)
+    {
+        return new byte[] { (byte) i, (byte) (i >> 8), 1, 2 };
+    }
+
+    // chunk i gets rolling checksum rollings[i], the last chunk is 100 bytes
+    private static Checksum newChecksum(int... rollings)
+        throws Checksum.ChunkOverflow
+    {
+        long fileSize = (long) (rollings.length - 1) * BLOCK_LENGTH + 100;
+        Checksum checksum = new Checksum(new Checksum.Header(BLOCK_LENGTH,
+                                                             DIGEST_LENGTH,
+                                                             fileSize));
+        for (int i = 0; i < rollings.length; i++) {
+            checksum.addChunkInformation(rollings[i], digestFor(i));
+        }
+        return checksum;
+    }
+
+    @Test
+    public void testNoCandidates() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(1, 2, 3);
+        assertEquals(-1, checksum.firstCandidate(4, BLOCK_LENGTH, 0));
+        assertEquals(-1, checksum.firstCandidate(0, BLOCK_LENGTH, 0));
+    }
+
+    @Test
+    public void testCandidatesInOrder() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(7, 0, 7, 5, 7, 0);
+        assertEquals(0, checksum.firstCandidate(7, BLOCK_LENGTH, -1));
+        assertEquals(2, checksum.nextCandidate(7, BLOCK_LENGTH, -1, 0));
+        assertEquals(4, checksum.nextCandidate(7, BLOCK_LENGTH, -1, 2));
+        assertEquals(-1, checksum.nextCandidate(7, BLOCK_LENGTH, -1, 4));
+        assertEquals(1, checksum.firstCandidate(0, BLOCK_LENGTH, 0));
+        assertEquals(-1, checksum.nextCandidate(0, BLOCK_LENGTH, 0, 1));
+    }
+
+    @Test
+    public void testPreferredCandidateFirst() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(7, 7, 7, 7);
+        assertEquals(2, checksum.firstCandidate(7, BLOCK_LENGTH, 2));
+        assertEquals(0, checksum.nextCandidate(7, BLOCK_LENGTH, 2, 2));
+        assertEquals(1, checksum.nextCandidate(7, BLOCK_LENGTH, 2, 0));
+        assertEquals(-1, checksum.nextCandidate(7, BLOCK_LENGTH, 2, 1));
+    }
+
+    @Test
+    public void testCandidateLengthMustMatch() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(7, 7, 7);
+        assertEquals(2, checksum.firstCandidate(7, 100, 0));
+        assertEquals(-1, checksum.nextCandidate(7, 100, 0, 2));
+        assertEquals(0, checksum.firstCandidate(7, BLOCK_LENGTH, 2));
+    }
+
+    @Test
+    public void testDigest() throws Checksum.ChunkOverflow
+    {
+        Checksum checksum = newChecksum(1, 2, 3);
+        byte[] longer = { 1, 0, 1, 2, 9, 9 };
+        assertTrue(checksum.isDigestEqual(1, longer));
+        assertFalse(checksum.isDigestEqual(2, longer));
+    }
+
+    @Test
+    public void testManyChunks() throws Checksum.ChunkOverflow
+    {
+        int[] rollings = new int[10000];
+        for (int i = 0; i < rollings.length; i++) {
+            rollings[i] = (i % 1000) * 65536;
+        }
+        Checksum checksum = newChecksum(rollings);
+        for (int r = 0; r < 1000; r++) {
+            int count = 0;
+            for (int i = checksum.firstCandidate(r * 65536, BLOCK_LENGTH, -1);
+                 i >= 0;
+                 i = checksum.nextCandidate(r * 65536, BLOCK_LENGTH, -1, i)) {
+                assertEquals(r, i % 1000);
+                count++;
+            }
+            assertEquals(r == 999 ? 9 : 10, count);
+        }
+    }
+}
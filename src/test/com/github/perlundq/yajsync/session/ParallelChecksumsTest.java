@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.channels.BufferedOutputChannel;
+import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
+import com.github.perlundq.yajsync.util.Rolling;
+
+public class ParallelChecksumsTest
+{
+    private static final byte[] SEED = { 1, 2, 3, 4 };
+    private static final int BLOCK_LENGTH = 700;
+    private static final int DIGEST_LENGTH = 5;
+    private static final int FILE_SIZE = 3 * 1024 * 1024 + 123;
+
+    private ForkJoinPool _pool;
+    private Path _file;
+    private byte[] _content;
+
+    @Before
+    public void setup() throws IOException
+    {
+        _pool = new ForkJoinPool(3);
+        _content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(_content);
+        _file = Files.createTempFile("yajsync-test", null);
+        Files.write(_file, _content);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        _pool.shutdownNow();
+        Files.deleteIfExists(_file);
+    }
+
+    // what Generator sends when computing the checksums itself
+    private static byte[] expected(byte[] content, long fileSize)
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        MessageDigest md = ChecksumAlgorithm.XXH64.newInstance();
+        byte[] buf = Arrays.copyOf(content, (int) fileSize);
+        for (int offset = 0; offset < fileSize; offset += BLOCK_LENGTH) {
+            int length = (int) Math.min(BLOCK_LENGTH, fileSize - offset);
+            int rolling = Rolling.compute(buf, offset, length);
+            for (int i = 0; i < 4; i++) {
+                os.write(rolling >>> (8 * i));
+            }
+            md.update(buf, offset, length);
+            md.update(SEED);
+            os.write(md.digest(), 0, DIGEST_LENGTH);
+        }
+        return os.toByteArray();
+    }
+
+    private byte[] actual(ParallelChecksums checksums) throws ChannelException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BufferedOutputChannel out =
+            new BufferedOutputChannel(Channels.newChannel(os));
+        checksums.sendTo(out);
+        out.flush();
+        return os.toByteArray();
+    }
+
+    private ParallelChecksums open(long fileSize) throws IOException
+    {
+        return new ParallelChecksums(_pool, _file, fileSize, BLOCK_LENGTH,
+                                     DIGEST_LENGTH, ChecksumAlgorithm.XXH64,
+                                     SEED);
+    }
+
+    @Test
+    public void testEqualsSequential() throws Exception
+    {
+        try (ParallelChecksums checksums = open(FILE_SIZE)) {
+            assertArrayEquals(expected(_content, FILE_SIZE),
+                              actual(checksums));
+            assertNull(checksums.ioErrorOrNull());
+        }
+    }
+
+    // data missing from the file is replaced by zeroes and the error
+    // deferred
+    @Test
+    public void testShortFile() throws Exception
+    {
+        long fileSize = FILE_SIZE + 2 * 1024 * 1024;
+        try (ParallelChecksums checksums = open(fileSize)) {
+            assertArrayEquals(expected(_content, fileSize),
+                              actual(checksums));
+            assertNotNull(checksums.ioErrorOrNull());
+        }
+    }
+
+    @Test
+    public void testRangeIsOneBlock() throws Exception
+    {
+        int blockLength = 2 * 1024 * 1024 + 1;
+        try (ParallelChecksums checksums =
+                new ParallelChecksums(_pool, _file, FILE_SIZE, blockLength,
+                                      DIGEST_LENGTH, ChecksumAlgorithm.MD5,
+                                      SEED)) {
+            byte[] result = actual(checksums);
+            assertEquals(2 * (4 + DIGEST_LENGTH), result.length);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.channels.BufferedOutputChannel;
+import com.github.perlundq.yajsync.util.ChecksumAlgorithm;
+import com.github.perlundq.yajsync.util.Rolling;
+
+public class ParallelMatcherTest
+{
+    private static final byte[] SEED = { 1, 2, 3, 4 };
+    private static final int BLOCK_LENGTH = 700;
+    private static final int DIGEST_LENGTH = 5;
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int FILE_SIZE = 9 * 1024 * 1024 + 123;
+    private static final ChecksumAlgorithm ALGORITHM = ChecksumAlgorithm.XXH64;
+
+    private ForkJoinPool _pool;
+    private Path _file;
+    private byte[] _content;
+
+    @Before
+    public void setup() throws IOException
+    {
+        _pool = new ForkJoinPool(3);
+        _content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(_content);
+        _file = Files.createTempFile("yajsync-test", null);
+        Files.write(_file, _content);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        _pool.shutdownNow();
+        Files.deleteIfExists(_file);
+    }
+
+    // the checksums Generator sends for basis
+    private static Checksum checksumOf(byte[] basis) throws Exception
+    {
+        Checksum checksum =
+            new Checksum(new Checksum.Header(BLOCK_LENGTH, DIGEST_LENGTH,
+                                             basis.length));
+        MessageDigest md = ALGORITHM.newInstance();
+        for (int offset = 0; offset < basis.length; offset += BLOCK_LENGTH) {
+            int length = Math.min(BLOCK_LENGTH, basis.length - offset);
+            md.update(basis, offset, length);
+            md.update(SEED);
+            checksum.addChunkInformation(Rolling.compute(basis, offset, length),
+                                         md.digest());
+        }
+        return checksum;
+    }
+
+    // what Receiver does when combining the data with its basis file
+    private static byte[] combine(byte[] tokens, byte[] basis)
+    {
+        ByteBuffer in = ByteBuffer.wrap(tokens).order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        while (in.hasRemaining()) {
+            int token = in.getInt();
+            assertTrue(token != 0);
+            if (token > 0) {
+                assertTrue(token <= CHUNK_SIZE);
+                os.write(tokens, in.position(), token);
+                in.position(in.position() + token);
+            } else {
+                int offset = (-token - 1) * BLOCK_LENGTH;
+                os.write(basis, offset,
+                         Math.min(BLOCK_LENGTH, basis.length - offset));
+            }
+        }
+        return os.toByteArray();
+    }
+
+    // what Receiver does when updating basis in place
+    private static byte[] combineInplace(byte[] tokens, byte[] basis)
+    {
+        ByteBuffer in = ByteBuffer.wrap(tokens).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] file = Arrays.copyOf(basis, Math.max(basis.length, FILE_SIZE));
+        int position = 0;
+        while (in.hasRemaining()) {
+            int token = in.getInt();
+            if (token > 0) {
+                in.get(file, position, token);
+                position += token;
+            } else {
+                int offset = (-token - 1) * BLOCK_LENGTH;
+                int length = Math.min(BLOCK_LENGTH, basis.length - offset);
+                assertTrue(offset >= position);
+                System.arraycopy(file, offset, file, position, length);
+                position += length;
+            }
+        }
+        return Arrays.copyOf(file, position);
+    }
+
+    private ParallelMatcher open(long fileSize, byte[] basis) throws Exception
+    {
+        return open(fileSize, basis, false);
+    }
+
+    private ParallelMatcher open(long fileSize, byte[] basis,
+                                 boolean isInplace)
+        throws Exception
+    {
+        return new ParallelMatcher(_pool, _file, fileSize, checksumOf(basis),
+                                   CHUNK_SIZE, ALGORITHM, SEED, isInplace);
+    }
+
+    private static byte[] send(ParallelMatcher matcher, MessageDigest md)
+        throws Exception
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BufferedOutputChannel out =
+            new BufferedOutputChannel(Channels.newChannel(os));
+        matcher.sendTo(out, null, md);
+        out.flush();
+        return os.toByteArray();
+    }
+
+    private void assertCombinesTo(byte[] content, byte[] basis)
+        throws Exception
+    {
+        MessageDigest md = ALGORITHM.newInstance();
+        try (ParallelMatcher matcher = open(content.length, basis)) {
+            byte[] tokens = send(matcher, md);
+            assertArrayEquals(content, combine(tokens, basis));
+            assertEquals(content.length, matcher.numBytesMatched() +
+                                         matcher.numBytesLiteral());
+            assertNull(matcher.ioErrorOrNull());
+        }
+        assertArrayEquals(ALGORITHM.newInstance().digest(content),
+                          md.digest());
+    }
+
+    @Test
+    public void testIdenticalFileIsAllMatches() throws Exception
+    {
+        try (ParallelMatcher matcher = open(FILE_SIZE, _content)) {
+            byte[] tokens = send(matcher, ALGORITHM.newInstance());
+            assertArrayEquals(_content, combine(tokens, _content));
+            assertEquals(FILE_SIZE, matcher.numBytesMatched());
+            assertEquals(0, matcher.numBytesLiteral());
+        }
+    }
+
+    // basis has bytes inserted, removed and modified around the region
+    // boundaries
+    @Test
+    public void testModifiedBasis() throws Exception
+    {
+        int regionSize = 4 * 1024 * 1024;
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(_content, 0, regionSize - 10);
+        os.write(new byte[] { 1, 2, 3 });
+        os.write(_content, regionSize - 10, regionSize + 500);
+        os.write(_content, 2 * regionSize + 1000, 5000);
+        byte[] modified = new byte[3 * BLOCK_LENGTH];
+        new Random(1).nextBytes(modified);
+        os.write(modified);
+        os.write(_content, 2 * regionSize + 6000 + modified.length,
+                 FILE_SIZE - 2 * regionSize - 6000 - modified.length);
+        byte[] basis = os.toByteArray();
+
+        assertCombinesTo(_content, basis);
+        try (ParallelMatcher matcher = open(FILE_SIZE, basis)) {
+            send(matcher, ALGORITHM.newInstance());
+            assertTrue(matcher.numBytesLiteral() < 20 * BLOCK_LENGTH);
+        }
+    }
+
+    @Test
+    public void testUnrelatedBasis() throws Exception
+    {
+        byte[] basis = new byte[FILE_SIZE / 2];
+        new Random(2).nextBytes(basis);
+        assertCombinesTo(_content, basis);
+    }
+
+    // the first half of the file is found after the second half in basis,
+    // only the first half may be matched when basis is updated in place
+    @Test
+    public void testInplace() throws Exception
+    {
+        int half = FILE_SIZE / 2;
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(_content, half, FILE_SIZE - half);
+        os.write(_content, 0, half);
+        byte[] basis = os.toByteArray();
+
+        try (ParallelMatcher matcher = open(FILE_SIZE, basis, true)) {
+            byte[] tokens = send(matcher, ALGORITHM.newInstance());
+            assertArrayEquals(_content, combineInplace(tokens, basis));
+            assertTrue(matcher.numBytesMatched() > half - BLOCK_LENGTH);
+            assertTrue(matcher.numBytesMatched() <= half);
+        }
+    }
+
+    // data missing from the file is replaced by zeroes and the error
+    // deferred
+    @Test
+    public void testShortFile() throws Exception
+    {
+        long fileSize = FILE_SIZE + 1024 * 1024;
+        try (ParallelMatcher matcher = open(fileSize, _content)) {
+            byte[] tokens = send(matcher, ALGORITHM.newInstance());
+            byte[] result = combine(tokens, _content);
+            assertEquals(fileSize, result.length);
+            assertNotNull(matcher.ioErrorOrNull());
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.channels.BufferedOutputChannel;
+import com.github.perlundq.yajsync.channels.SimpleInputChannel;
+
+public class TokenDeflaterTest
+{
+    private static final int BLOCK_LENGTH = 700;
+    private static final int LARGE_BLOCK_LENGTH = 100000;
+
+    // a file as sent: literal data (>= 0) and matching blocks (< 0)
+    private static final int[] SCRIPT = {
+        5000, -1, -2, -3, 100, -4, -4, -10, -11, 40000, -200, -1, -2,
+        70000, -3, -5, -7, -9, 1, -300 };
+
+    // two files as sent by send_deflated_token of rsync 3.1 token.c
+    // (deflate level 6, zlib 1.2.13) for FIXTURE_SCRIPT, with literal data
+    // from fixtureLiteral and blocks of BLOCK_LENGTH from fixtureBasis.
+    // Contains DEFLATED_DATA, TOKEN_REL, TOKENRUN_REL, TOKEN_LONG and
+    // TOKENRUN_LONG, and literal data referring to matched blocks
+    private static final int[] FIXTURE_SCRIPT = {
+        5000, -1, -2, -3, 100, -4, -101, -102, -103, 40000, -200, -1, -2, 1,
+        -300 };
+    private static final String FIXTURE_TEXT =
+        "all work and no play makes jack a dull boy\n";
+    private static final String FIXTURE =
+        "40a6ecd7c10ac2301004d0bb5fb1bf369b78b1b1118b48ffde5ec46acb32f434" +
+        "e09e42c3bb0c990d0d5ab367bf0f86b1dad8edd630db15c379b20bcab26df5b1" +
+        "10eff30949f5687514af05eb15bf9b1be19f0fcd584949ba73a2ef7573e63b45" +
+        "8068aca4248d469b298268aca4240d469b2882433456529232777c5404d15849" +
+        "491a8c36f55f281a2b2949993b3e12a2b19292f4c8936f5d04d15849497ae0c9" +
+        "f7254463fd1d7d01c002004005a247fb0500812164000000020042b9ecdd418a" +
+        "dc401005d1b31adfff0e46b3b192699b98cc4d2c62d385c46bf087c45d5f2a18" +
+        "d123c1e8825e674d1a2b0ae9f57f0f69ac28a4d79f1169ac28a4d78d81345614" +
+        "d2ebd6531a2b4ae9b18358634519bdb64a69ac28a4d7c70bd2585148af0f8ca4" +
+        "b1a290febcf24d218d1585f4fa2c581a2b0ae9f56d83345614d2eb6b2769ac28" +
+        "a4e71789ce585148af6f94a5b1a2905ecf0848634521dd9dfaf83b08d2585148" +
+        "17956fdc94c68a42baa87c6310a4b1a2905ebaff23a4b1a2906e2adf7b10a4b1" +
+        "a294e29dfee7ed80355694d145e51b83208d15857451f9c6a848634521bd74ff" +
+        "6795c68a42baa87c6354a4b1a2902e2adf10d258514817956f0c82345614d245" +
+        "e51b37a5b1a2905ebaffd7779db1a2902e2adfb8298d15851455beff6c07a4b1" +
+        "a2902e2adfb8298d158594eff43f0f82345614d245e51b37a5b1a294febcf28d" +
+        "41b0c68a327ae9fecf87345614d245e51b83208d15857451f9c6a848634521bd" +
+        "74ff6795c68a42ba3af4f31a1569ac28a497eeffacd258514817956f8c8a3456" +
+        "1452bed3fffc2b208d15857451f9c620486345215d54be71531a2b0ae9a5fb3f" +
+        "17d258514857877e5eab345614d2eb1fbc90c68a42baa87ce3a6345614d245e5" +
+        "1b83208d1585f4d2fd9faf496345215d54be3108d25851482fddfff990c68a42" +
+        "baa87ce3421a2b0ae9a2f28d5191c68a427ae9fecf2a8d15857475e8e73d2ace" +
+        "5851482fddff59a5b1a2902e2adf181569ac28a47ca7fff957401a2b0ae9a2f2" +
+        "8d4190c68a42ba3af4f35aa5b1a290de4e7ffdfe258d15857475e8e73d08ce58" +
+        "514a37877e5e17d658514617956f0c82345614d245e51b83208d1585f4d2fd9f" +
+        "af496345215d54be71218d1585f4d0fdbf3ea4b1a2906e2adffb421a2b0ae9ea" +
+        "d0cf6b54a4b1a2941ebaffb35a6345195d54be312ad25851487f58f9be0969ac" +
+        "28a48bca3706411a2b0a29dfe9ff633b70fc07fc0120c7000000210000000001" +
+        "004003520000202b0100000040a6ecd7c10ac2301004d0bb5fb1bf369b78b1b1" +
+        "118b48ffde5ec46acb32f434e09e42c3bb0c990d0d5ab367bf0f86b1dad8edd6" +
+        "30db15c379b20bcab26df5b110eff30949f5687514af05eb15bf9b1be19f0fcd" +
+        "584949ba73a2ef7573e63b458068aca4248d469b298268aca4240d469b288243" +
+        "3456529232777c5404d15849491a8c36f55f281a2b2949993b3e12a2b19292f4" +
+        "c8936f5d04d15849497ae0c9f7254463fd1d7d01c002004005a247fb05008121" +
+        "64000000020042b9ecdd418adc401005d1b31adfff0e46b3b192699b98cc4d2c" +
+        "62d385c46bf087c45d5f2a18d123c1e8825e674d1a2b0ae9f57f0f69ac28a4d7" +
+        "9f1169ac28a4d78d81345614d2ebd6531a2b4ae9b18358634519bdb64a69ac28" +
+        "a4d7c70bd2585148af0f8ca4b1a290febcf24d218d1585f4fa2c581a2b0ae9f5" +
+        "6d83345614d2eb6b2769ac28a4e71789ce585148af6f94a5b1a2905ecf084863" +
+        "4521dd9dfaf83b08d258514817956fdc94c68a42baa87c6310a4b1a2905ebaff" +
+        "23a4b1a2906e2adf7b10a4b1a294e29dfee7ed80355694d145e51b83208d1585" +
+        "7451f9c6a848634521bd74ff6795c68a42baa87c6354a4b1a2902e2adf10d258" +
+        "514817956f0c82345614d245e51b37a5b1a2905ebaffd7779db1a2902e2adfb8" +
+        "298d15851455beff6c07a4b1a2902e2adfb8298d158594eff43f0f82345614d2" +
+        "45e51b37a5b1a294febcf28d41b0c68a327ae9fecf87345614d245e51b83208d" +
+        "15857451f9c6a848634521bd74ff6795c68a42ba3af4f31a1569ac28a497eeff" +
+        "acd258514817956f8c8a34561452bed3fffc2b208d15857451f9c62048634521" +
+        "5d54be71531a2b0ae9a5fb3f17d258514857877e5eab345614d2eb1fbc90c68a" +
+        "42baa87ce3a6345614d245e51b83208d1585f4d2fd9faf496345215d54be3108" +
+        "d25851482fddfff990c68a42baa87ce3421a2b0ae9a2f28d5191c68a427ae9fe" +
+        "cf2a8d15857475e8e73d2ace5851482fddff59a5b1a2902e2adf181569ac28a4" +
+        "7ca7fff957401a2b0ae9a2f28d4190c68a42ba3af4f35aa5b1a290de4e7ffdfe" +
+        "258d15857475e8e73d08ce58514a37877e5e17d658514617956f0c82345614d2" +
+        "45e51b83208d1585f4d2fd9faf496345215d54be71218d1585f4d0fdbf3ea4b1" +
+        "a2906e2adffb421a2b0ae9ead0cf6b54a4b1a2941ebaffb35a6345195d54be31" +
+        "2ad25851487f58f9be0969ac28a48bca3706411a2b0a29dfe9ff633b70fc07fc" +
+        "0120c7000000210000000001004003520000202b01000000";
+
+    private static byte[] basisOf(int blockLength, int numBlocks)
+    {
+        byte[] basis = new byte[blockLength * numBlocks];
+        Random random = new Random(1);
+        for (int i = 0; i < basis.length; i++) {
+            basis[i] = (byte) ('a' + random.nextInt(4));
+        }
+        return basis;
+    }
+
+    private static byte[] fixtureBasis()
+    {
+        byte[] basis = new byte[BLOCK_LENGTH * 300];
+        for (int i = 0; i < basis.length; i++) {
+            long hash = i * 2654435761L & 0xffffffffL;
+            basis[i] = (byte) ('a' + (hash >>> 30));
+        }
+        return basis;
+    }
+
+    private static byte[] fixtureLiteral(byte[] basis, int k, int length)
+    {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i / 64 % 8 != 7
+                ? FIXTURE_TEXT.charAt((i + k) % FIXTURE_TEXT.length())
+                : basis[(k * 1000 + i) % basis.length]);
+        }
+        return data;
+    }
+
+    private static byte[] fixtureFile(byte[] basis)
+    {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        int k = 0;
+        for (int op : FIXTURE_SCRIPT) {
+            if (op >= 0) {
+                byte[] data = fixtureLiteral(basis, k++, op);
+                file.write(data, 0, data.length);
+            } else {
+                file.write(basis, (-op - 1) * BLOCK_LENGTH, BLOCK_LENGTH);
+            }
+        }
+        return file.toByteArray();
+    }
+
+    private static byte[] fromHex(String hex)
+    {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(hex.substring(2 * i,
+                                                              2 * i + 2),
+                                                16);
+        }
+        return result;
+    }
+
+    private static ByteBuffer blockOf(byte[] basis, int blockLength,
+                                      int index)
+    {
+        return ByteBuffer.wrap(basis, index * blockLength, blockLength);
+    }
+
+    // sends SCRIPT twice (i.e. as two files) and returns the expected
+    // content of each file
+    private static byte[] send(TokenDeflater deflater,
+                               BufferedOutputChannel out, byte[] basis,
+                               int blockLength, Random random)
+        throws Exception
+    {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int op : SCRIPT) {
+            if (op >= 0) {
+                byte[] data = new byte[op];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = (byte) (i % 3 == 0 ? random.nextInt()
+                                                 : 'x' + i % 7);
+                }
+                expected.write(data);
+                deflater.putData(out, ByteBuffer.wrap(data));
+            } else {
+                int index = -op - 1;
+                ByteBuffer block = blockOf(basis, blockLength, index);
+                expected.write(basis, index * blockLength, blockLength);
+                deflater.putToken(out, index, block);
+                assertEquals(0, block.remaining());
+            }
+        }
+        deflater.putEnd(out);
+        return expected.toByteArray();
+    }
+
+    private static byte[] receive(TokenInflater inflater,
+                                  SimpleInputChannel in, byte[] basis,
+                                  int blockLength, boolean isSkip)
+        throws Exception
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        while (true) {
+            int token = isSkip ? inflater.skip(in) : inflater.next(in);
+            if (token == 0) {
+                return result.toByteArray();
+            } else if (token > 0) {
+                ByteBuffer data = inflater.data();
+                assertEquals(token, data.remaining());
+                result.write(data.array(), data.position(), token);
+            } else {
+                int index = -token - 1;
+                result.write(basis, index * blockLength, blockLength);
+                if (!isSkip) {
+                    inflater.seeToken(blockOf(basis, blockLength, index));
+                }
+            }
+        }
+    }
+
+    private static void roundTrip(int level, int blockLength)
+        throws Exception
+    {
+        byte[] basis = basisOf(blockLength, 300);
+        TokenDeflater deflater = new TokenDeflater();
+        deflater.setLevel(level);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BufferedOutputChannel out =
+            new BufferedOutputChannel(Channels.newChannel(os));
+        Random random = new Random(0);
+        byte[] expected1 = send(deflater, out, basis, blockLength, random);
+        byte[] expected2 = send(deflater, out, basis, blockLength, random);
+        out.flush();
+        deflater.end();
+
+        TokenInflater inflater = new TokenInflater();
+        SimpleInputChannel in = new SimpleInputChannel(
+            Channels.newChannel(new ByteArrayInputStream(os.toByteArray())));
+        assertArrayEquals(expected1,
+                          receive(inflater, in, basis, blockLength, false));
+        assertArrayEquals(expected2,
+                          receive(inflater, in, basis, blockLength, false));
+        inflater.end();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        roundTrip(Deflater.DEFAULT_COMPRESSION, BLOCK_LENGTH);
+    }
+
+    @Test
+    public void testRoundTripNoCompression() throws Exception
+    {
+        roundTrip(Deflater.NO_COMPRESSION, BLOCK_LENGTH);
+    }
+
+    @Test
+    public void testRoundTripLargeBlocks() throws Exception
+    {
+        roundTrip(Deflater.BEST_SPEED, LARGE_BLOCK_LENGTH);
+    }
+
+    @Test
+    public void testCompresses() throws Exception
+    {
+        byte[] text = new byte[1000000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 26);
+        }
+        TokenDeflater deflater = new TokenDeflater();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BufferedOutputChannel out =
+            new BufferedOutputChannel(Channels.newChannel(os));
+        deflater.putData(out, ByteBuffer.wrap(text));
+        deflater.putEnd(out);
+        out.flush();
+        deflater.end();
+        assertTrue(os.size() < text.length / 100);
+    }
+
+    @Test
+    public void testSkipThenNext() throws Exception
+    {
+        byte[] basis = basisOf(BLOCK_LENGTH, 300);
+        TokenDeflater deflater = new TokenDeflater();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BufferedOutputChannel out =
+            new BufferedOutputChannel(Channels.newChannel(os));
+        Random random = new Random(0);
+        byte[] expected1 = send(deflater, out, basis, BLOCK_LENGTH, random);
+        byte[] expected2 = send(deflater, out, basis, BLOCK_LENGTH, random);
+        out.flush();
+        deflater.end();
+
+        TokenInflater inflater = new TokenInflater();
+        SimpleInputChannel in = new SimpleInputChannel(
+            Channels.newChannel(new ByteArrayInputStream(os.toByteArray())));
+        byte[] skipped = receive(inflater, in, basis, BLOCK_LENGTH, true);
+        assertTrue(skipped.length < expected1.length);
+        assertArrayEquals(expected2,
+                          receive(inflater, in, basis, BLOCK_LENGTH, false));
+        inflater.end();
+    }
+
+    // Receiver uses zeroes in place of the blocks of a basis file that has
+    // vanished, the file is wrong but the following ones must be intact
+    @Test
+    public void testZeroBlocksThenNext() throws Exception
+    {
+        byte[] basis = basisOf(BLOCK_LENGTH, 300);
+        TokenDeflater deflater = new TokenDeflater();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BufferedOutputChannel out =
+            new BufferedOutputChannel(Channels.newChannel(os));
+        Random random = new Random(0);
+        byte[] expected1 = send(deflater, out, basis, BLOCK_LENGTH, random);
+        byte[] expected2 = send(deflater, out, basis, BLOCK_LENGTH, random);
+        out.flush();
+        deflater.end();
+
+        TokenInflater inflater = new TokenInflater();
+        SimpleInputChannel in = new SimpleInputChannel(
+            Channels.newChannel(new ByteArrayInputStream(os.toByteArray())));
+        byte[] zeroes = new byte[basis.length];
+        assertEquals(expected1.length,
+                     receive(inflater, in, zeroes, BLOCK_LENGTH,
+                             false).length);
+        assertArrayEquals(expected2,
+                          receive(inflater, in, basis, BLOCK_LENGTH, false));
+        inflater.end();
+    }
+
+    @Test
+    public void testDecodeRsyncFixture() throws Exception
+    {
+        byte[] basis = fixtureBasis();
+        byte[] expected = fixtureFile(basis);
+        TokenInflater inflater = new TokenInflater();
+        SimpleInputChannel in = new SimpleInputChannel(
+            Channels.newChannel(new ByteArrayInputStream(fromHex(FIXTURE))));
+        assertArrayEquals(expected,
+                          receive(inflater, in, basis, BLOCK_LENGTH, false));
+        assertArrayEquals(expected,
+                          receive(inflater, in, basis, BLOCK_LENGTH, false));
+        inflater.end();
+    }
+}
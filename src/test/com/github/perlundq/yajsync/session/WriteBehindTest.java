@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBehindTest
+{
+    private static final int SIZE = 3 * 1024 * 1024 + 17;
+
+    private Path _src;
+    private Path _dst;
+    private byte[] _content;
+
+    @Before
+    public void setup() throws IOException
+    {
+        _content = new byte[SIZE];
+        new Random(0).nextBytes(_content);
+        _src = Files.createTempFile("yajsync-test", null);
+        _dst = Files.createTempFile("yajsync-test", null);
+        Files.write(_src, _content);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(_src);
+        Files.deleteIfExists(_dst);
+    }
+
+    // writes src in small pieces, every third range copied from _src and
+    // the last range skipped, and returns the expected result
+    private byte[] writeTo(WriteBehind writeBehind, FileChannel src,
+                           FileChannel dst)
+        throws IOException
+    {
+        byte[] expected = Arrays.copyOf(_content, SIZE);
+        writeBehind.open(dst);
+        int offset = 0;
+        for (int i = 0; offset < SIZE - 10000; i++) {
+            int length = Math.min(1000 + i * 37, SIZE - 10000 - offset);
+            if (i % 3 == 2) {
+                writeBehind.transferFrom(src, offset, length);
+            } else {
+                writeBehind.write(ByteBuffer.wrap(_content, offset, length));
+            }
+            offset += length;
+        }
+        writeBehind.skip(SIZE - offset);
+        Arrays.fill(expected, offset, SIZE, (byte) 0);
+        writeBehind.finish();
+        assertEquals(SIZE, writeBehind.position());
+        assertEquals(SIZE, dst.position());
+        return expected;
+    }
+
+    private void testWrite(int maxNumBytesInFlight) throws IOException
+    {
+        try (WriteBehind writeBehind = new WriteBehind(maxNumBytesInFlight);
+             FileChannel src = FileChannel.open(_src);
+             FileChannel dst = FileChannel.open(_dst,
+                                                StandardOpenOption.WRITE)) {
+            byte[] expected = writeTo(writeBehind, src, dst);
+            assertNull(writeBehind.ioErrorOrNull());
+            assertArrayEquals(expected, Files.readAllBytes(_dst));
+            // the writer is reused for the next file
+            dst.position(0);
+            writeTo(writeBehind, src, dst);
+            assertNull(writeBehind.ioErrorOrNull());
+            assertArrayEquals(expected, Files.readAllBytes(_dst));
+        }
+    }
+
+    @Test
+    public void testAsynchronous() throws IOException
+    {
+        testWrite(1024 * 1024);
+    }
+
+    @Test
+    public void testSingleBuffer() throws IOException
+    {
+        testWrite(1);
+    }
+
+    @Test
+    public void testSynchronous() throws IOException
+    {
+        testWrite(0);
+    }
+
+    // copying a range beyond the end of the source fails once finished
+    @Test
+    public void testDeferredError() throws IOException
+    {
+        try (WriteBehind writeBehind = new WriteBehind(1024 * 1024);
+             FileChannel src = FileChannel.open(_src);
+             FileChannel dst = FileChannel.open(_dst,
+                                                StandardOpenOption.WRITE)) {
+            writeBehind.open(dst);
+            writeBehind.transferFrom(src, SIZE - 10, 20);
+            writeBehind.write(ByteBuffer.wrap(_content));
+            writeBehind.finish();
+            assertNotNull(writeBehind.ioErrorOrNull());
+
+            writeBehind.open(dst);
+            assertNull(writeBehind.ioErrorOrNull());
+            writeBehind.finish();
+        }
+    }
+}
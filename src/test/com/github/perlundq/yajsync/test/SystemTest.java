@@ -9,30 +9,44 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.security.Principal;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.session.Generator;
 import com.github.perlundq.yajsync.session.Module;
 import com.github.perlundq.yajsync.session.ModuleException;
 import com.github.perlundq.yajsync.session.ModuleProvider;
 import com.github.perlundq.yajsync.session.Modules;
+import com.github.perlundq.yajsync.session.Receiver;
 import com.github.perlundq.yajsync.session.RestrictedPath;
+import com.github.perlundq.yajsync.session.RsyncException;
+import com.github.perlundq.yajsync.session.RsyncTaskExecutor;
+import com.github.perlundq.yajsync.session.Sender;
 import com.github.perlundq.yajsync.session.Statistics;
 import com.github.perlundq.yajsync.ui.YajSyncClient;
 import com.github.perlundq.yajsync.ui.YajSyncServer;
@@ -302,6 +316,83 @@ public class SystemTest
         }
     }
 
+    // a channel placed between the sender and the receiver of a transfer
+    private static abstract class FilterChannel implements ReadableByteChannel
+    {
+        protected ReadableByteChannel _channel;
+
+        @Override
+        public boolean isOpen()
+        {
+            return _channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            _channel.close();
+        }
+    }
+
+    // reaches end of file after limit bytes, as if the peer disconnected
+    private static class TruncatedChannel extends FilterChannel
+    {
+        private long _remaining;
+
+        TruncatedChannel(long limit)
+        {
+            _remaining = limit;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException
+        {
+            if (_remaining == 0) {
+                return -1;
+            }
+            ByteBuffer slice = dst.slice();
+            slice.limit((int) Math.min(slice.limit(), _remaining));
+            int n = _channel.read(slice);
+            if (n > 0) {
+                dst.position(dst.position() + n);
+                _remaining -= n;
+            }
+            return n;
+        }
+    }
+
+    // inverts the last byte of the first occurrence of pattern
+    private static class CorruptingChannel extends FilterChannel
+    {
+        private final byte[] _pattern;
+        private int _numMatched;
+        private boolean _isCorrupted;
+
+        CorruptingChannel(byte[] pattern)
+        {
+            _pattern = pattern;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException
+        {
+            int n = _channel.read(dst);
+            for (int i = dst.position() - Math.max(n, 0);
+                 i < dst.position() && !_isCorrupted; i++) {
+                if (dst.get(i) == _pattern[_numMatched]) {
+                    _numMatched++;
+                } else {
+                    _numMatched = dst.get(i) == _pattern[0] ? 1 : 0;
+                }
+                if (_numMatched == _pattern.length) {
+                    dst.put(i, (byte) ~dst.get(i));
+                    _isCorrupted = true;
+                }
+            }
+            return n;
+        }
+    }
+
     private final PrintStream _nullOut =
         new PrintStream(new OutputStream() {
             @Override
@@ -338,6 +429,46 @@ public class SystemTest
         return new ReturnStatus(rc, client.statistics());
     }
 
+    // a local transfer whose receiver reads everything from the sender via
+    // filter, rc is 0 if it succeeded
+    private ReturnStatus filteredCopy(Path src, Path dst, FilterChannel filter,
+                                      String partialDir)
+        throws IOException, InterruptedException
+    {
+        Pipe toSender = Pipe.open();
+        Pipe toReceiver = Pipe.open();
+        filter._channel = toReceiver.source();
+        byte[] checksumSeed = { 1, 2, 3, 4 };
+        Sender sender = new Sender(toSender.source(), toReceiver.sink(),
+                                   Arrays.asList(src),
+                                   StandardCharsets.UTF_8, checksumSeed).
+            setIsExitEarlyIfEmptyList(true);
+        Generator generator = new Generator(toSender.sink(),
+                                            StandardCharsets.UTF_8,
+                                            checksumSeed, _nullOut);
+        Receiver receiver = new Receiver(generator, filter,
+                                         StandardCharsets.UTF_8,
+                                         dst.toString()).
+            setIsExitEarlyIfEmptyList(true);
+        if (partialDir != null) {
+            receiver.setPartialDir(Paths.get(partialDir));
+        }
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            boolean isOK = RsyncTaskExecutor.exec(executor, sender,
+                                                  generator, receiver);
+            return new ReturnStatus(isOK ? 0 : 1, receiver.statistics());
+        } catch (RsyncException e) {
+            return new ReturnStatus(-1, receiver.statistics());
+        } finally {
+            executor.shutdownNow();
+            toSender.sink().close();
+            toSender.source().close();
+            toReceiver.sink().close();
+            toReceiver.source().close();
+        }
+    }
+
     private ReturnStatus recursiveCopyTrailingSlash(Path src, Path dst)
     {
         YajSyncClient client = newClient();
@@ -510,6 +641,84 @@ public class SystemTest
         assertTrue(status.stats.totalMatchedSize() == 0);
     }
 
+    @Test
+    public void testCopyTreeTwiceCopyThreads() throws IOException
+    {
+        Path src = _tempDir.newFolder().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        Path srcDir = src.resolve("dir");
+        Files.createDirectory(srcDir);
+        int numFiles = 20;
+        long fileSize = 0;
+        for (int i = 0; i < numFiles; i++) {
+            Path file = (i % 2 == 0 ? src : srcDir).resolve("file" + i);
+            FileUtil.writeToFiles(FileUtil.generateBytes(i, 1000 * i), file);
+            fileSize += 1000 * i;
+        }
+        ReturnStatus status = fileCopy(src.resolve("."), dst, "--recursive",
+                                       "--times", "--copy-threads=4");
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isDirectoriesIdentical(src, dst));
+        assertTrue(status.stats.numTransferredFiles() == numFiles);
+        assertTrue(status.stats.totalLiteralSize() == fileSize);
+        ReturnStatus status2 = fileCopy(src.resolve("."), dst, "--recursive",
+                                        "--times", "--copy-threads=4");
+        assertTrue(status2.rc == 0);
+        assertTrue(status2.stats.numTransferredFiles() == 0);
+    }
+
+    @Test
+    public void testCopyTreeDurabilityBatch() throws IOException
+    {
+        Path src = _tempDir.newFolder().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        Path dst2 = Paths.get(src.toString() + ".copy2");
+        Path srcDir = src.resolve("dir");
+        Files.createDirectory(srcDir);
+        int numFiles = 600;
+        for (int i = 0; i < numFiles; i++) {
+            Path file = (i % 2 == 0 ? src : srcDir).resolve("file" + i);
+            FileUtil.writeToFiles(FileUtil.generateBytes(i, i), file);
+        }
+        ReturnStatus status = fileCopy(src.resolve("."), dst, "--recursive",
+                                       "--times", "--durability=batch");
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isDirectoriesIdentical(src, dst));
+        assertTrue(status.stats.numTransferredFiles() == numFiles);
+        ReturnStatus status2 = fileCopy(src.resolve("."), dst2, "--recursive",
+                                        "--times", "--no-whole-file",
+                                        "--durability=batch");
+        assertTrue(status2.rc == 0);
+        assertTrue(FileUtil.isDirectoriesIdentical(src, dst2));
+        assertTrue(status2.stats.numTransferredFiles() == numFiles);
+    }
+
+    @Test
+    public void testCopyTreeReplaceNonEmptyDir() throws IOException
+    {
+        Path src = _tempDir.newFolder().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        Path dst2 = Paths.get(src.toString() + ".copy2");
+        FileUtil.writeToFiles(FileUtil.generateBytes(0x19, 1000),
+                              src.resolve("file"));
+        Files.createDirectory(src.resolve("dir"));
+        for (Path d : new Path[] { dst, dst2 }) {
+            Path dir = d.resolve("file").resolve("dir");
+            Files.createDirectories(dir);
+            FileUtil.writeToFiles(FileUtil.generateBytes(0x20, 100),
+                                  dir.resolve("file"));
+            FileUtil.writeToFiles(FileUtil.generateBytes(0x21, 100),
+                                  d.resolve("dir"));
+        }
+        ReturnStatus status = fileCopy(src.resolve("."), dst, "--recursive");
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isDirectoriesIdentical(src, dst));
+        ReturnStatus status2 = fileCopy(src.resolve("."), dst2, "--recursive",
+                                        "--no-whole-file");
+        assertTrue(status2.rc == 0);
+        assertTrue(FileUtil.isDirectoriesIdentical(src, dst2));
+    }
+
     @Test
     public void testCopyFileMultipleBlockSize() throws IOException
     {
@@ -604,7 +813,7 @@ public class SystemTest
         assertTrue(status.stats.numTransferredFiles() == numFiles);
         assertTrue(status.stats.totalLiteralSize() == fileSize);
         assertTrue(status.stats.totalMatchedSize() == 0);
-        ReturnStatus status2 = fileCopy(src, dst);
+        ReturnStatus status2 = fileCopy(src, dst, "--no-whole-file");
         assertTrue(status2.rc == 0);
         assertTrue(FileUtil.isContentIdentical(src, dst));
         assertTrue(status2.stats.numFiles() == numDirs + numFiles);
@@ -641,6 +850,225 @@ public class SystemTest
         assertTrue(status2.stats.totalMatchedSize() == 0);
     }
 
+    @Test
+    public void testCopyFileTwiceWholeFile() throws IOException
+    {
+        Path src = _tempDir.newFile().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        int fileSize = 557;
+        byte[] content = FileUtil.generateBytes(0x18, fileSize);
+        FileUtil.writeToFiles(content, src);
+        Files.setLastModifiedTime(src, FileTime.fromMillis(0));
+        ReturnStatus status = fileCopy(src, dst);
+        assertTrue(status.rc == 0);
+        ReturnStatus status2 = fileCopy(src, dst, "--whole-file");
+        assertTrue(status2.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        assertTrue(status2.stats.numTransferredFiles() == 1);
+        assertTrue(status2.stats.totalLiteralSize() == fileSize);
+        assertTrue(status2.stats.totalMatchedSize() == 0);
+    }
+
+    @Test
+    public void testCopyFilePartialDir() throws IOException
+    {
+        Path src = _tempDir.newFile().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        Path partialDir = src.resolveSibling(".partial");
+        Path partialFile = partialDir.resolve(dst.getFileName());
+        int fileSize = 300000;
+        int partialSize = fileSize / 2;
+        byte[] content = new byte[fileSize];
+        new Random(0).nextBytes(content);
+        FileUtil.writeToFiles(content, src);
+        Files.createDirectory(partialDir);
+        FileUtil.writeToFiles(Arrays.copyOf(content, partialSize),
+                              partialFile);
+        ReturnStatus status = fileCopy(src, dst, "--no-whole-file",
+                                       "--partial-dir=.partial");
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        assertTrue(status.stats.numTransferredFiles() == 1);
+        assertTrue(status.stats.totalMatchedSize() > 0);
+        assertTrue(status.stats.totalLiteralSize() < fileSize - partialSize +
+                                                     partialSize / 10);
+        assertFalse(FileUtil.exists(partialDir));
+    }
+
+    @Test(timeout=60000)
+    public void testCopyFileInterruptedPartialDir()
+        throws IOException, InterruptedException
+    {
+        Path src = _tempDir.newFile().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        Path partialDir = src.resolveSibling(".partial");
+        Path partialFile = partialDir.resolve(dst.getFileName());
+        int fileSize = 300000;
+        byte[] content = new byte[fileSize];
+        new Random(0).nextBytes(content);
+        FileUtil.writeToFiles(content, src);
+        ReturnStatus interrupted = filteredCopy(src, dst,
+                                                new TruncatedChannel(
+                                                    fileSize / 2),
+                                                ".partial");
+        assertFalse(interrupted.rc == 0);
+        assertFalse(FileUtil.exists(dst));
+        assertTrue(FileUtil.exists(partialFile));
+        long partialSize = Files.size(partialFile);
+        assertTrue(partialSize > 0 && partialSize < fileSize);
+        assertTrue(Arrays.equals(Arrays.copyOf(content, (int) partialSize),
+                                 Files.readAllBytes(partialFile)));
+
+        ReturnStatus status = fileCopy(src, dst, "--no-whole-file",
+                                       "--partial-dir=.partial");
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        assertTrue(status.stats.numTransferredFiles() == 1);
+        assertTrue(status.stats.totalMatchedSize() > 0);
+        assertTrue(status.stats.totalLiteralSize() < fileSize - partialSize +
+                                                     partialSize / 10);
+        assertFalse(FileUtil.exists(partialDir));
+    }
+
+    @Test(timeout=60000)
+    public void testCopyFileRedo() throws IOException, InterruptedException
+    {
+        Path src = _tempDir.newFile().toPath();
+        Path dstDir = _tempDir.newFolder().toPath();
+        Path dst = dstDir.resolve("copy");
+        int fileSize = 300000;
+        byte[] content = new byte[fileSize];
+        new Random(0).nextBytes(content);
+        FileUtil.writeToFiles(content, src);
+        // corrupts the literal data of the first pass only
+        CorruptingChannel filter = new CorruptingChannel(
+            Arrays.copyOfRange(content, fileSize / 2, fileSize / 2 + 8));
+        ReturnStatus status = filteredCopy(src, dst, filter, null);
+        assertTrue(filter._isCorrupted);
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        // the redo pass matches all but one block of the failed data
+        assertTrue(status.stats.numTransferredFiles() == 2);
+        assertTrue(status.stats.totalMatchedSize() > fileSize * 9 / 10);
+        assertTrue(status.stats.totalLiteralSize() < fileSize +
+                                                     fileSize / 100);
+        // neither the redo basis nor any temporary file is left behind
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dstDir)) {
+            for (Path p : stream) {
+                assertTrue(p.equals(dst));
+            }
+        }
+    }
+
+    @Test
+    public void testCopyFilePreallocate() throws IOException
+    {
+        Path src = _tempDir.newFile().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        Path dst2 = Paths.get(src.toString() + ".copy2");
+        int fileSize = 300000;
+        byte[] content = new byte[fileSize];
+        new Random(0).nextBytes(content);
+        FileUtil.writeToFiles(content, src);
+        FileUtil.writeToFiles(Arrays.copyOf(content, fileSize / 2), dst);
+        ReturnStatus status = fileCopy(src, dst, "--no-whole-file",
+                                       "--preallocate");
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        assertTrue(status.stats.numTransferredFiles() == 1);
+        ReturnStatus status2 = fileCopy(src, dst2, "--preallocate");
+        assertTrue(status2.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst2));
+        assertTrue(status2.stats.numTransferredFiles() == 1);
+    }
+
+    @Test
+    public void testCopyFileCompress() throws IOException
+    {
+        Path src = _tempDir.newFile().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        Path dst2 = Paths.get(src.toString() + ".copy.gz");
+        int fileSize = 300000;
+        byte[] content = new byte[fileSize];
+        new Random(0).nextBytes(content);
+        byte[] text = "all work and no play makes jack a dull boy\n".getBytes();
+        for (int i = fileSize / 3; i < fileSize; i++) {
+            content[i] = text[i % text.length];
+        }
+        byte[] basis = Arrays.copyOf(content, fileSize);
+        for (int i = fileSize / 6; i < fileSize / 6 + 20000; i++) {
+            basis[i] = (byte) ~basis[i];
+        }
+        FileUtil.writeToFiles(content, src);
+        FileUtil.writeToFiles(basis, dst);
+        ReturnStatus status = fileCopy(src, dst, "--no-whole-file",
+                                       "--ignore-times", "-z");
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        assertTrue(status.stats.numTransferredFiles() == 1);
+        assertTrue(status.stats.totalMatchedSize() > 0);
+        assertTrue(status.stats.totalLiteralSize() +
+                   status.stats.totalMatchedSize() == fileSize);
+        ReturnStatus status2 = fileCopy(src, dst2, "--no-whole-file",
+                                        "--compress-level=9");
+        assertTrue(status2.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst2));
+        assertTrue(status2.stats.totalLiteralSize() == fileSize);
+    }
+
+    @Test
+    public void testCopyFileInplace() throws IOException
+    {
+        Path src = _tempDir.newFile().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        int fileSize = 300000;
+        int half = fileSize / 2;
+        byte[] content = new byte[fileSize];
+        new Random(0).nextBytes(content);
+        byte[] basis = new byte[fileSize + 1000];
+        System.arraycopy(content, half, basis, 0, fileSize - half);
+        System.arraycopy(content, 0, basis, fileSize - half, half);
+        FileUtil.writeToFiles(content, src);
+        FileUtil.writeToFiles(basis, dst);
+        Object fileKey =
+            Files.readAttributes(dst, BasicFileAttributes.class).fileKey();
+        ReturnStatus status = fileCopy(src, dst, "--inplace",
+                                       "--no-whole-file");
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        assertTrue(fileKey.equals(Files.readAttributes(
+            dst, BasicFileAttributes.class).fileKey()));
+        assertTrue(status.stats.numTransferredFiles() == 1);
+        assertTrue(status.stats.totalMatchedSize() > 0);
+        assertTrue(status.stats.totalLiteralSize() +
+                   status.stats.totalMatchedSize() == fileSize);
+    }
+
+    @Test
+    public void testCopyFileSparse() throws IOException
+    {
+        Path src = _tempDir.newFile().toPath();
+        Path dst = Paths.get(src.toString() + ".copy");
+        int fileSize = 1000000;
+        byte[] content = new byte[fileSize];
+        Random random = new Random(0);
+        for (int offset = 1000; offset < fileSize - 20000; offset += 100000) {
+            byte[] data = new byte[5000];
+            random.nextBytes(data);
+            System.arraycopy(data, 0, content, offset, data.length);
+        }
+        FileUtil.writeToFiles(content, src);
+        ReturnStatus status = fileCopy(src, dst, "--sparse");
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        assertTrue(status.stats.totalLiteralSize() == fileSize);
+        ReturnStatus status2 = fileCopy(src, dst, "--sparse",
+                                        "--ignore-times", "--no-whole-file");
+        assertTrue(status2.rc == 0);
+        assertTrue(FileUtil.isContentIdentical(src, dst));
+        assertTrue(status2.stats.totalMatchedSize() == fileSize);
+    }
+
     @Test(timeout=100)
     public void testServerHelp() throws InterruptedException, IOException
     {
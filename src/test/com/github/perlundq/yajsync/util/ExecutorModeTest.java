@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+public class ExecutorModeTest
+{
+    private static void assertRunsTasks(ExecutorService executor)
+        throws Exception
+    {
+        try {
+            int result = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return 42;
+                }
+            }).get();
+            assertEquals(42, result);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFromName()
+    {
+        assertEquals(ExecutorMode.PLATFORM,
+                     ExecutorMode.fromNameOrNull("platform"));
+        assertEquals(ExecutorMode.VIRTUAL,
+                     ExecutorMode.fromNameOrNull("Virtual"));
+        assertNull(ExecutorMode.fromNameOrNull("green"));
+    }
+
+    @Test
+    public void testPlatform() throws Exception
+    {
+        assertTrue(ExecutorMode.PLATFORM.isSupported());
+        assertRunsTasks(ExecutorMode.PLATFORM.newExecutor());
+        assertRunsTasks(ExecutorMode.PLATFORM.newExecutor(2));
+    }
+
+    @Test
+    public void testVirtualIfSupported() throws Exception
+    {
+        if (ExecutorMode.VIRTUAL.isSupported()) {
+            assertRunsTasks(ExecutorMode.VIRTUAL.newExecutor());
+        } else {
+            try {
+                ExecutorMode.VIRTUAL.newExecutor();
+                assertTrue(false);
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        }
+    }
+}
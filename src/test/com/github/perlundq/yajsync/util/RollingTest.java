@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RollingTest
+{
+    // the rolling checksum as defined by rsync, one byte at a time
+    private static int reference(byte[] buf, int offset, int length)
+    {
+        int low16 = 0;
+        int high16 = 0;
+        for (int i = 0; i < length; i++) {
+            low16 += buf[offset + i];
+            high16 += low16;
+        }
+        return (low16 & 0xFFFF) | (high16 << 16);
+    }
+
+    private static byte[] randomBytes(int length)
+    {
+        byte[] buf = new byte[length];
+        new Random(0).nextBytes(buf);
+        return buf;
+    }
+
+    @Test
+    public void testCompute()
+    {
+        byte[] buf = randomBytes(4096);
+        for (int offset = 0; offset < 8; offset++) {
+            for (int length = 0; length <= buf.length - offset; length++) {
+                assertEquals("offset " + offset + " length " + length,
+                             reference(buf, offset, length),
+                             Rolling.compute(buf, offset, length));
+            }
+        }
+    }
+
+    @Test
+    public void testComputeExtremeValues()
+    {
+        byte[] buf = new byte[1 << 20];
+        for (byte value : new byte[] { Byte.MIN_VALUE, -1, Byte.MAX_VALUE }) {
+            Arrays.fill(buf, value);
+            for (int length = 1; length <= buf.length; length *= 4) {
+                assertEquals(reference(buf, 0, length),
+                             Rolling.compute(buf, 0, length));
+            }
+        }
+    }
+
+    @Test
+    public void testComputeBlocks()
+    {
+        byte[] buf = randomBytes(10000);
+        ByteBuffer direct = ByteBuffer.allocateDirect(buf.length);
+        direct.put(buf);
+        for (int blockLength : new int[] { 1, 7, 512, 1000, 4096, 20000 }) {
+            for (int length : new int[] { 0, 1, 999, 1000, 1001, 9999 }) {
+                int[] result = new int[Rolling.numBlocks(length, blockLength)];
+                int numBlocks = Rolling.computeBlocks(buf, 1, length,
+                                                      blockLength, result);
+                assertEquals(result.length, numBlocks);
+                int[] directResult = new int[result.length];
+                assertEquals(numBlocks,
+                             Rolling.computeBlocks(direct, 1, length,
+                                                   blockLength,
+                                                   directResult));
+                assertArrayEquals(result, directResult);
+                for (int i = 0; i < numBlocks; i++) {
+                    int offset = i * blockLength;
+                    int blockSize = Math.min(blockLength, length - offset);
+                    assertEquals(reference(buf, 1 + offset, blockSize),
+                                 result[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRoll()
+    {
+        byte[] buf = randomBytes(4096);
+        int blockLength = 700;
+        int rolling = Rolling.compute(buf, 0, blockLength);
+        for (int offset = 1; offset + blockLength <= buf.length; offset++) {
+            rolling = Rolling.subtract(rolling, blockLength, buf[offset - 1]);
+            rolling = Rolling.add(rolling, buf[offset + blockLength - 1]);
+            assertEquals(Rolling.compute(buf, offset, blockLength), rolling);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class XXHashTest
+{
+    // reference values from the xxHash C library (XXH64 and XXH3_128bits,
+    // seed 0) of the first n bytes of input()
+    private static final Object[][] VECTORS = {
+        { 0, "ef46db3751d8e999", "99aa06d3014798d86001c324468d497f" },
+        { 1, "babb47eeee947ac0", "96c6b354eb95b541a1cd1f36d839fc34" },
+        { 3, "e36bf674c1c1323f", "ba8e369764a111b1d7c85afe10f8338d" },
+        { 4, "d2df7d0d2d376b72", "c88b3d36ef1d66f5a290e7aa1113e079" },
+        { 8, "9a29c82504c406e0", "38d158c2231a9284c402bc719f54642f" },
+        { 9, "1f46d8d9709837cc", "6479211faba8a3dcedfa6fa24c87c481" },
+        { 16, "5d8570fcbe74be32", "e9936930a2ae1a9dc854f88e47b7b401" },
+        { 17, "9b333f9d983638b0", "2aa1f363a9de61a8a0867b6ced82f78d" },
+        { 100, "6ca74f680ecdaaf1", "ea703b9b301ca8b6fa8853e0629a9214" },
+        { 128, "bea00840cc9a3380", "84d019012f35e0233f2081cecae53e6e" },
+        { 129, "85094d35e0621e08", "14dacf1103d2ca4f0eaf62b3ce91fd95" },
+        { 240, "28dcb7fc523da33b", "8bcb6feb961594d233b6d6f208bf60fb" },
+        { 241, "3ec2cb2fcc79cc00", "ab494d88949c44b98c53d518429849ac" },
+        { 1024, "d6262057b7baec1c", "eb479f6bd7558c4722d8a458174b2f6b" },
+        { 1025, "7fd1e02a32a53383", "cea97d96e28283ac6dcc9333a751ca8c" },
+        { 4096, "a1bd3c885d7bce25", "94b9ed7220e1d262e043f5b8158c95bc" },
+        { 100000, "539ee773929894a4", "7a74cc4ecb4c6254ad4f4369843978a5" },
+    };
+
+    private static byte[] input()
+    {
+        byte[] buf = new byte[100000];
+        long x = 0x123456789L;
+        for (int i = 0; i < buf.length; i++) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+            buf[i] = (byte) (x >>> 56);
+        }
+        return buf;
+    }
+
+    private static String toHex(byte[] digest)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    // update md with buf[0, length) in randomly sized pieces, including
+    // single byte updates
+    private static byte[] digestInPieces(MessageDigest md, byte[] buf,
+                                         int length, Random random)
+    {
+        int offset = 0;
+        while (offset < length) {
+            if (random.nextInt(8) == 0) {
+                md.update(buf[offset]);
+                offset++;
+            } else {
+                int n = Math.min(length - offset, 1 + random.nextInt(600));
+                md.update(buf, offset, n);
+                offset += n;
+            }
+        }
+        return md.digest();
+    }
+
+    @Test
+    public void testXXHash64ReferenceValues()
+    {
+        byte[] buf = input();
+        MessageDigest md = new XXHash64();
+        for (Object[] vector : VECTORS) {
+            md.update(buf, 0, (int) vector[0]);
+            assertEquals("length " + vector[0], vector[1], toHex(md.digest()));
+        }
+    }
+
+    @Test
+    public void testXXHash128ReferenceValues()
+    {
+        byte[] buf = input();
+        MessageDigest md = new XXHash128();
+        for (Object[] vector : VECTORS) {
+            md.update(buf, 0, (int) vector[0]);
+            assertEquals("length " + vector[0], vector[2], toHex(md.digest()));
+        }
+    }
+
+    @Test
+    public void testStreamingEqualsOneShot()
+    {
+        byte[] buf = input();
+        Random random = new Random(0);
+        for (ChecksumAlgorithm algorithm : ChecksumAlgorithm.values()) {
+            MessageDigest oneShot = algorithm.newInstance();
+            MessageDigest streaming = algorithm.newInstance();
+            for (int length = 0; length < 3000; length += 1 + length / 16) {
+                oneShot.update(buf, 0, length);
+                assertArrayEquals(algorithm + " length " + length,
+                                  oneShot.digest(),
+                                  digestInPieces(streaming, buf, length,
+                                                 random));
+            }
+        }
+    }
+
+    @Test
+    public void testDigestLength()
+    {
+        for (ChecksumAlgorithm algorithm : ChecksumAlgorithm.values()) {
+            MessageDigest md = algorithm.newInstance();
+            assertEquals(algorithm.digestLength(), md.getDigestLength());
+            assertEquals(algorithm.digestLength(), md.digest().length);
+        }
+    }
+
+    @Test
+    public void testLookup()
+    {
+        for (ChecksumAlgorithm algorithm : ChecksumAlgorithm.values()) {
+            String name = algorithm.toString();
+            assertEquals(algorithm, ChecksumAlgorithm.fromNameOrNull(name));
+        }
+        assertEquals(ChecksumAlgorithm.XXH128,
+                     ChecksumAlgorithm.fromCapabilityOrNull('2'));
+        assertEquals(null, ChecksumAlgorithm.fromCapabilityOrNull('\0'));
+        assertEquals(null, ChecksumAlgorithm.fromCapabilityOrNull('f'));
+        assertEquals(null, ChecksumAlgorithm.fromNameOrNull("sha1"));
+    }
+}